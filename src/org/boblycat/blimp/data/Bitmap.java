@@ -24,52 +24,107 @@ import net.sourceforge.jiu.data.PixelImage;
 
 /**
  * A bitmap. Wraps JIU's PixelImage and adds Blimp-specific fields.
+ *
+ * The pixels can also be stored as a {@link PackedImage}, which is used
+ * by the lookup table operations and by display and export code.  In that
+ * case {@link #getImage()} returns a JIU view of the packed samples, see
+ * {@link PackedImage#asJiu()}, so the pixels are only stored once.
+ * Bitmaps are shared between layers and caches, so the pixels should not
+ * be modified after the bitmap has been passed on.
  */
 public class Bitmap {
     private PixelImage image;
+    private volatile PackedImage packedImage;
     private double pixelScaleFactor;
     private ExifTable exifTable;
+    private final Object imageLock = new Object();
 
+    /**
+     * Returns the image as a JIU image.  For packed bitmaps this is a view
+     * of the packed samples, not a copy.
+     */
     public PixelImage getImage() {
-        return this.image;
+        synchronized (imageLock) {
+            if (image == null && packedImage != null)
+                image = packedImage.asJiu();
+            return this.image;
+        }
     }
 
     public void setImage(PixelImage image) {
-        this.image = image;
+        synchronized (imageLock) {
+            this.image = image;
+            packedImage = PackedImage.unwrap(image);
+        }
+    }
+
+    /**
+     * Returns the image in the packed format, or <code>null</code> if the
+     * bitmap was created from a JIU image which is not backed by a packed
+     * image.
+     */
+    public PackedImage getPackedImage() {
+        return packedImage;
     }
 
     public Bitmap(PixelImage image) {
         this.image = image;
+        packedImage = PackedImage.unwrap(image);
+    }
+
+    public Bitmap(PackedImage packedImage) {
+        this.packedImage = packedImage;
     }
 
     public Bitmap() {
     }
 
     public int getWidth() {
+        if (packedImage != null)
+            return packedImage.getWidth();
         if (image == null)
             return -1;
         return image.getWidth();
     }
 
     public int getHeight() {
+        if (packedImage != null)
+            return packedImage.getHeight();
         if (image == null)
             return -1;
         return image.getHeight();
     }
 
     public BitmapSize getSize() {
-        if (image == null)
+        int width = getWidth();
+        if (width < 0)
             return null;
-        return new BitmapSize(image.getWidth(), image.getHeight(),
-                pixelScaleFactor);
+        return new BitmapSize(width, getHeight(), pixelScaleFactor);
     }
 
     public int getChannelBitDepth() {
+        if (packedImage != null)
+            return packedImage.getBitsPerChannel();
         if (image == null)
             return -1;
         return image.getBitsPerPixel() / image.getNumChannels();
     }
 
+    /**
+     * Returns an estimate of the memory used by the pixels of this bitmap,
+     * in bytes.
+     */
+    public long getByteSize() {
+        synchronized (imageLock) {
+            if (packedImage != null)
+                return packedImage.getByteSize();
+            if (image != null)
+                return (long) image.getWidth() * image.getHeight()
+                    * image.getBitsPerPixel() / 8;
+            return 0;
+        }
+    }
+
     /**
      * Set the pixel size factor, which describes how large each pixel is
      * compared to a pixel in the original input data.
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.data;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sourceforge.jiu.data.IntegerImage;
+import net.sourceforge.jiu.data.PixelImage;
+
+import org.boblycat.blimp.ops.BoxReduce;
+import org.boblycat.blimp.util.Util;
+
+/**
+ * A lazily built multi-resolution pyramid of a bitmap, where each level
+ * is half the size of the previous one.  This is used for serving zoomed
+ * out views: reducing by a divisor is done from the smallest level that
+ * still divides the divisor evenly, which is much cheaper than scaling
+ * the full bitmap.
+ *
+ * The pyramid only keeps weak references to the base bitmap and to the
+ * levels, so it does not keep memory alive beyond the budget of the
+ * bitmap cache.  A level is kept as long as it is used elsewhere, for
+ * instance as a cached view, and is built again from the nearest larger
+ * level which still exists when it is needed after being collected.
+ *
+ * @author Knut Arild Erstad
+ */
+public class BitmapPyramid {
+    private WeakReference<Bitmap> base;
+    private List<WeakReference<PixelImage>> levels;
+
+    public BitmapPyramid(Bitmap base) {
+        this.base = new WeakReference<Bitmap>(base);
+        levels = new ArrayList<WeakReference<PixelImage>>();
+    }
+
+    /**
+     * Checks whether this is the pyramid for the given bitmap.
+     */
+    public boolean isFor(Bitmap bitmap) {
+        return bitmap != null && base.get() == bitmap;
+    }
+
+    /**
+     * Checks whether the bitmap can be reduced using a pyramid.
+     */
+    public static boolean isSupported(Bitmap bitmap) {
+        return bitmap.getImage() instanceof IntegerImage;
+    }
+
+    private static PixelImage reduce(PixelImage image, int factor) {
+        BoxReduce op = new BoxReduce(factor);
+        op.setInputImage(image);
+        try {
+            op.process();
+            return op.getOutputImage();
+        }
+        catch (Exception e) {
+            Util.err("Failed to reduce image", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns a pyramid level, building it if necessary.
+     *
+     * @param level
+     *      the level, where zero is the base bitmap, one is half size, etc.
+     * @return
+     *      the image at the given level, or <code>null</code> if the base
+     *      bitmap no longer exists or the level is too small.
+     */
+    public PixelImage getLevel(int level) {
+        Bitmap bitmap = base.get();
+        if (bitmap == null) {
+            levels.clear();
+            return null;
+        }
+        // start from the nearest level which has not been collected
+        PixelImage image = bitmap.getImage();
+        int current = 0;
+        for (int i = Math.min(level, levels.size()); i > 0; i--) {
+            PixelImage existing = levels.get(i - 1).get();
+            if (existing != null) {
+                image = existing;
+                current = i;
+                break;
+            }
+        }
+        while (current < level) {
+            if (image.getWidth() < 2 || image.getHeight() < 2)
+                return null;
+            image = reduce(image, 2);
+            if (image == null)
+                return null;
+            // the levels may be cached as layer results
+            PackedImage packed = PackedImage.unwrap(image);
+            if (packed != null)
+                packed.markShared();
+            WeakReference<PixelImage> ref = new WeakReference<PixelImage>(image);
+            if (current < levels.size())
+                levels.set(current, ref);
+            else
+                levels.add(ref);
+            current++;
+        }
+        return image;
+    }
+
+    /**
+     * Create an image which is reduced by an integer divisor.  The result
+     * is the same size as the base image divided by the divisor, rounded
+     * down, and each pixel is the average of a block of base pixels.
+     *
+     * @param divisor
+     *      the divisor, larger than zero.
+     * @return
+     *      a reduced image, or <code>null</code> if the base bitmap no longer
+     *      exists.
+     */
+    public PixelImage reduce(int divisor) {
+        int level = 0;
+        int remaining = divisor;
+        while (remaining % 2 == 0) {
+            level++;
+            remaining /= 2;
+        }
+        PixelImage image = getLevel(level);
+        while (image == null && level > 0) {
+            level--;
+            remaining *= 2;
+            image = getLevel(level);
+        }
+        if (image == null || remaining == 1)
+            return image;
+        return reduce(image, remaining);
+    }
+}
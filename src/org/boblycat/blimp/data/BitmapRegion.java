@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.data;
+
+/**
+ * A rectangular region of a bitmap, in pixels.
+ *
+ * @author Knut Arild Erstad
+ */
+public class BitmapRegion {
+    public int x;
+    public int y;
+    public int width;
+    public int height;
+
+    public BitmapRegion(int x, int y, int width, int height) {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+    public boolean isEmpty() {
+        return width <= 0 || height <= 0;
+    }
+
+    /**
+     * Check if this region completely contains another region.
+     */
+    public boolean contains(BitmapRegion other) {
+        return other.x >= x && other.y >= y
+            && other.x + other.width <= x + width
+            && other.y + other.height <= y + height;
+    }
+
+    /**
+     * Returns the part of this region which is inside a bitmap of the
+     * given size.  The result may be empty.
+     */
+    public BitmapRegion clip(int bitmapWidth, int bitmapHeight) {
+        int x1 = Math.max(0, x);
+        int y1 = Math.max(0, y);
+        int x2 = Math.min(bitmapWidth, x + width);
+        int y2 = Math.min(bitmapHeight, y + height);
+        return new BitmapRegion(x1, y1, Math.max(0, x2 - x1),
+                Math.max(0, y2 - y1));
+    }
+
+    /**
+     * Returns a new region which is larger by <code>margin</code>
+     * pixels on every side.
+     */
+    public BitmapRegion grow(int margin) {
+        return new BitmapRegion(x - margin, y - margin,
+                width + 2 * margin, height + 2 * margin);
+    }
+
+    @Override
+    public String toString() {
+        return x + "," + y + "," + width + "x" + height;
+    }
+
+    public boolean equals(BitmapRegion other) {
+        if (other == null)
+            return false;
+        return x == other.x && y == other.y && width == other.width
+            && height == other.height;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (other instanceof BitmapRegion)
+            return equals((BitmapRegion) other);
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((x * 31 + y) * 31 + width) * 31 + height;
+    }
+}
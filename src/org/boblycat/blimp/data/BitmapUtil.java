@@ -20,6 +20,7 @@ package org.boblycat.blimp.data;
 
 import java.awt.image.BufferedImage;
 import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
 import java.util.Iterator;
@@ -41,11 +42,13 @@ import org.boblycat.blimp.exif.MetaDataUtil;
 import org.boblycat.blimp.exif.ValidationError;
 import org.boblycat.blimp.util.Util;
 
-import net.sourceforge.jiu.data.MemoryRGB24Image;
+import net.sourceforge.jiu.data.ByteChannelImage;
+import net.sourceforge.jiu.data.IntegerImage;
 import net.sourceforge.jiu.data.PixelImage;
 import net.sourceforge.jiu.data.RGB24Image;
 import net.sourceforge.jiu.data.RGB48Image;
 import net.sourceforge.jiu.data.RGBIndex;
+import net.sourceforge.jiu.data.ShortChannelImage;
 
 public class BitmapUtil {
     private static byte[] getShortRGBData(RGB48Image rgb, int index1,
@@ -133,46 +136,130 @@ public class BitmapUtil {
                 RGBIndex.INDEX_BLUE);
     }
 
+    /**
+     * Returns the pixels of a bitmap as an 8-bit packed image with no gaps
+     * between the rows, reducing the color depth if necessary.  This is done
+     * in a single pass for both packed and JIU bitmaps.
+     *
+     * The returned image may share its pixel array with the bitmap, and
+     * should not be modified.
+     *
+     * @param bitmap
+     *      the bitmap to convert.
+     * @return
+     *      an 8-bit packed image, or <code>null</code> if the image type is
+     *      not supported.
+     */
+    public static PackedImage get8BitPackedImage(Bitmap bitmap) {
+        PackedImage packed = bitmap.getPackedImage();
+        if (packed != null)
+            return packed.to8Bit();
+        PixelImage image = bitmap.getImage();
+        if (image == null)
+            return null;
+        byte[] bytes = get8BitRGBData(image);
+        if (bytes == null)
+            return null;
+        return new PackedImage(image.getWidth(), image.getHeight(), bytes);
+    }
+
     /**
      * Create a copy of the bitmap, reducing to 8-bit color depth if necessary.
+     * Since bitmaps are not modified after they are created, the copy may
+     * share its pixels with the original if it already is an 8-bit packed
+     * bitmap.
+     *
      * @param bitmap The bitmap to copy.
-     * @return A copy of the bitmap, containing a MemoryRGB24Image.
+     * @return A copy of the bitmap, containing an 8-bit {@link PackedImage}.
      */
     public static Bitmap create8BitCopy(Bitmap bitmap) {
-        if (bitmap.getImage() == null)
+        if (bitmap.getPackedImage() == null && bitmap.getImage() == null)
             return new Bitmap();
-        PixelImage inPixelImage = bitmap.getImage();
-        int width = inPixelImage.getWidth();
-        int height = inPixelImage.getHeight();
-        MemoryRGB24Image outImage = new MemoryRGB24Image(width, height);
-        if (inPixelImage instanceof RGB24Image) {
-            RGB24Image inImage = (RGB24Image) inPixelImage;
-            byte[] channelData = new byte[width*height];
-            for (int channel=0; channel<outImage.getNumChannels(); channel++) {
-                inImage.getByteSamples(channel, 0, 0, width, height,
-                        channelData, 0);
-                outImage.putByteSamples(channel, 0, 0, width, height,
-                        channelData, 0);
+        PackedImage packed = get8BitPackedImage(bitmap);
+        if (packed == null) {
+            PixelImage image = bitmap.getImage();
+            Util.err("Unknown image class: " + image.getClass().getName());
+            packed = new PackedImage(image.getWidth(), image.getHeight(),
+                    false);
+        }
+        return new Bitmap(packed);
+    }
+
+    /**
+     * Copy a rectangular region of pixels from one integer image to another.
+     * The images must have the same number of channels and channel depth.
+     *
+     * @param source the image to copy from.
+     * @param sourceX the left edge of the region in the source image.
+     * @param sourceY the top edge of the region in the source image.
+     * @param width the width of the region.
+     * @param height the height of the region.
+     * @param dest the image to copy to.
+     * @param destX the left edge of the region in the destination image.
+     * @param destY the top edge of the region in the destination image.
+     */
+    public static void copyRegion(PixelImage source, int sourceX, int sourceY,
+            int width, int height, PixelImage dest, int destX, int destY) {
+        if (!(source instanceof IntegerImage) || !(dest instanceof IntegerImage))
+            throw new IllegalArgumentException("Integer images required");
+        int numChannels = source.getNumChannels();
+        if (source instanceof ByteChannelImage
+                && dest instanceof ByteChannelImage) {
+            ByteChannelImage input = (ByteChannelImage) source;
+            ByteChannelImage output = (ByteChannelImage) dest;
+            byte[] row = new byte[width];
+            for (int y = 0; y < height; y++) {
+                for (int c = 0; c < numChannels; c++) {
+                    input.getByteSamples(c, sourceX, sourceY + y, width, 1,
+                            row, 0);
+                    output.putByteSamples(c, destX, destY + y, width, 1,
+                            row, 0);
+                }
             }
         }
-        else if (inPixelImage instanceof RGB48Image) {
-            RGB48Image inImage = (RGB48Image) inPixelImage;
-            short[] inChannelData = new short[width*height];
-            byte[] outChannelData = new byte[width*height];
-            for (int channel=0; channel<outImage.getNumChannels(); channel++) {
-                inImage.getShortSamples(channel, 0, 0, width, height,
-                        inChannelData, 0);
-                for (int i=0; i<inChannelData.length; i++) {
-                    outChannelData[i] = (byte) ((inChannelData[i] >> 8) & 0xff);
+        else if (source instanceof ShortChannelImage
+                && dest instanceof ShortChannelImage) {
+            ShortChannelImage input = (ShortChannelImage) source;
+            ShortChannelImage output = (ShortChannelImage) dest;
+            short[] row = new short[width];
+            for (int y = 0; y < height; y++) {
+                for (int c = 0; c < numChannels; c++) {
+                    input.getShortSamples(c, sourceX, sourceY + y, width, 1,
+                            row, 0);
+                    output.putShortSamples(c, destX, destY + y, width, 1,
+                            row, 0);
                 }
-                outImage.putByteSamples(channel, 0, 0, width, height,
-                        outChannelData, 0);
             }
         }
         else {
-            Util.err("Unknown image class: " + inPixelImage.getClass().getName());
+            IntegerImage input = (IntegerImage) source;
+            IntegerImage output = (IntegerImage) dest;
+            int[] row = new int[width];
+            for (int y = 0; y < height; y++) {
+                for (int c = 0; c < numChannels; c++) {
+                    input.getSamples(c, sourceX, sourceY + y, width, 1,
+                            row, 0);
+                    output.putSamples(c, destX, destY + y, width, 1, row, 0);
+                }
+            }
         }
-        return new Bitmap(outImage);
+    }
+
+    /**
+     * Create a new image containing a rectangular region of an integer image.
+     *
+     * @param source the image to copy from.
+     * @param x the left edge of the region.
+     * @param y the top edge of the region.
+     * @param width the width of the region.
+     * @param height the height of the region.
+     * @return a new image, compatible with the source image.
+     */
+    public static PixelImage copyRegion(PixelImage source, int x, int y,
+            int width, int height) {
+        PixelImage dest = source.createCompatibleImage(width, height);
+        copyRegion(source, x, y, width, height, dest, 0, 0);
+        return dest;
     }
 
     public static BufferedImage toAwtImage(PixelImage pixelImage) {
@@ -185,6 +272,39 @@ public class BitmapUtil {
         return awtImage;
     }
 
+    /**
+     * Convert a bitmap to an 8-bit AWT image.  Packed bitmaps are converted
+     * one row at a time, without creating a JIU image or a full 8-bit copy
+     * first.
+     */
+    public static BufferedImage toAwtImage(Bitmap bitmap) {
+        PackedImage packed = bitmap.getPackedImage();
+        if (packed == null)
+            packed = get8BitPackedImage(bitmap);
+        if (packed == null)
+            return toAwtImage(bitmap.getImage());
+        int width = packed.getWidth();
+        int height = packed.getHeight();
+        BufferedImage awtImage = new BufferedImage(width, height,
+                BufferedImage.TYPE_3BYTE_BGR);
+        WritableRaster raster = awtImage.getRaster();
+        int n = width * PackedImage.NUM_CHANNELS;
+        byte[] row = new byte[n];
+        short[] shortRow = packed.is16Bit() ? new short[n] : null;
+        for (int y = 0; y < height; y++) {
+            if (shortRow != null) {
+                packed.getRowSamples(y, shortRow, 0);
+                for (int i = 0; i < n; i++)
+                    row[i] = (byte) ((shortRow[i] >> 8) & 0xff);
+            }
+            else {
+                packed.getRowSamples(y, row, 0);
+            }
+            raster.setDataElements(0, y, width, 1, row);
+        }
+        return awtImage;
+    }
+
     public static void writeBitmap(Bitmap bitmap, String formatName,
             File fileName, double quality) throws IOException {
         writeBitmap(bitmap, formatName, fileName.toString(), quality);
@@ -258,7 +378,7 @@ public class BitmapUtil {
     }
 
     private static IIOImage toIIOImage(Bitmap bitmap) {
-        return new IIOImage(toAwtImage(bitmap.getImage()), null, null);
+        return new IIOImage(toAwtImage(bitmap), null, null);
     }
 
     private static void copyTag(ExifTag tag, ExifTable fromTable, ExifTable toTable) {
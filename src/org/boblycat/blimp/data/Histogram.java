@@ -38,9 +38,11 @@ public class Histogram extends ArrayHistogram1D {
 
     Histogram1DCreator creator;
     RGBChannel channel;
+    int numEntries;
 
     public Histogram(int numEntries) {
         super(numEntries);
+        this.numEntries = numEntries;
         creator = new Histogram1DCreator();
     }
 
@@ -67,7 +69,65 @@ public class Histogram extends ArrayHistogram1D {
         return channel;
     }
 
+    /**
+     * Count the samples of a packed image directly, without creating
+     * a JIU image.  Returns <code>false</code> if the histogram size does
+     * not match the image.
+     */
+    private boolean getForPackedChannelRange(PackedImage image,
+            int startIndex, int endIndex) {
+        if (image.getMaxSample() + 1 != numEntries)
+            return false;
+        int[] counts = new int[numEntries];
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int n = width * PackedImage.NUM_CHANNELS;
+        byte[] bytes = image.getByteData();
+        short[] shorts = image.getShortData();
+        // off-heap images are read one row at a time
+        byte[] byteRow = null;
+        short[] shortRow = null;
+        if (image.isOffHeap()) {
+            if (image.is16Bit())
+                shorts = shortRow = new short[n];
+            else
+                bytes = byteRow = new byte[n];
+        }
+        for (int y = 0; y < height; y++) {
+            int rowStart = image.getOffset() + y * image.getStride();
+            if (byteRow != null) {
+                image.getRowSamples(y, byteRow, 0);
+                rowStart = 0;
+            }
+            else if (shortRow != null) {
+                image.getRowSamples(y, shortRow, 0);
+                rowStart = 0;
+            }
+            for (int channel = startIndex; channel < endIndex; channel++) {
+                int i = rowStart + channel;
+                int end = rowStart + n;
+                if (bytes != null) {
+                    for (; i < end; i += PackedImage.NUM_CHANNELS)
+                        counts[bytes[i] & 0xff]++;
+                }
+                else {
+                    for (; i < end; i += PackedImage.NUM_CHANNELS)
+                        counts[shorts[i] & 0xffff]++;
+                }
+            }
+        }
+        clear();
+        for (int i=0; i<getMaxValue(); i++) {
+            setEntry(i, counts[i]);
+        }
+        return true;
+    }
+
     private void getForChannelRange(Bitmap bitmap, int startIndex, int endIndex) {
+        PackedImage packed = bitmap.getPackedImage();
+        if (packed != null
+                && getForPackedChannelRange(packed, startIndex, endIndex))
+            return;
         IntegerImage image = (IntegerImage) bitmap.getImage();
         clear();
         for (int channel = startIndex; channel < endIndex; channel++) {
@@ -98,7 +158,10 @@ public class Histogram extends ArrayHistogram1D {
      * @param bitmap a bitmap
      */
     public void getAllChannels(Bitmap bitmap) {
-        getForChannelRange(bitmap, 0, bitmap.getImage().getNumChannels());
+        PackedImage packed = bitmap.getPackedImage();
+        int numChannels = (packed != null) ? PackedImage.NUM_CHANNELS
+                : bitmap.getImage().getNumChannels();
+        getForChannelRange(bitmap, 0, numChannels);
     }
 
     /**
@@ -0,0 +1,854 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.data;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+import org.boblycat.blimp.util.OffHeapMemory;
+
+import net.sourceforge.jiu.data.PixelImage;
+import net.sourceforge.jiu.data.RGB24Image;
+import net.sourceforge.jiu.data.RGB48Image;
+import net.sourceforge.jiu.data.RGBIndex;
+
+/**
+ * An RGB image with 8 or 16 bits per channel, where the samples are stored
+ * interleaved (RGBRGB...) in a single <code>byte</code> or
+ * <code>short</code> array or buffer.
+ *
+ * JIU's memory images store each channel separately, so converting them
+ * for display or export means reading and interleaving them row by row.
+ * A packed image can be used directly by such code, and by simple
+ * per-pixel operations, see {@link Bitmap#getPackedImage()}.  Other
+ * operations can work on the packed samples through {@link #asJiu()}.
+ *
+ * Row <code>y</code> starts at index <code>offset + y * stride</code> of
+ * the data, and the samples for the pixel at <code>x</code> start at
+ * <code>3 * x</code> within the row.  Several images can share the same
+ * data, see {@link #getRegion}.
+ *
+ * Large images created with {@link #allocate} are stored outside the Java
+ * heap when possible, see {@link OffHeapMemory}.  For such images
+ * {@link #getByteData()} and {@link #getShortData()} return
+ * <code>null</code>, and the samples must be accessed one row at a time
+ * using {@link #getRowSamples} and {@link #putRowSamples} instead.
+ * The same applies to images stored in memory-mapped temporary files,
+ * which are used when an image does not fit in memory at all.
+ *
+ * @author Knut Arild Erstad
+ */
+public class PackedImage {
+    public static final int NUM_CHANNELS = 3;
+
+    /** Images smaller than this (in bytes) are always stored on the heap. */
+    static final long MIN_OFF_HEAP_SIZE = 1 << 20;
+    /**
+     * Images smaller than this are never stored in memory-mapped files,
+     * unless the heap is full.
+     */
+    static final long MIN_MAPPED_SIZE = 64 << 20;
+
+    private int width;
+    private int height;
+    private int stride;
+    private int offset;
+    private boolean use16Bit;
+    private byte[] bytes;
+    private short[] shorts;
+    private ByteBuffer byteBuffer;
+    private ShortBuffer shortBuffer;
+    private Storage storage;
+    private boolean isRegion;
+
+    /**
+     * Ownership information for off-heap data, shared by an image and all
+     * its regions.
+     */
+    private static class Storage {
+        OffHeapMemory.Block block;
+        boolean shared;
+
+        Storage(OffHeapMemory.Block block) {
+            this.block = block;
+        }
+    }
+
+    /**
+     * Construct a new image stored on the heap.
+     *
+     * @param width
+     *      the width of the image.
+     * @param height
+     *      the height of the image.
+     * @param use16Bit
+     *      <code>true</code> for 16 bits per channel, <code>false</code>
+     *      for 8 bits per channel.
+     */
+    public PackedImage(int width, int height, boolean use16Bit) {
+        this.width = width;
+        this.height = height;
+        this.use16Bit = use16Bit;
+        stride = width * NUM_CHANNELS;
+        offset = 0;
+        if (use16Bit)
+            shorts = new short[stride * height];
+        else
+            bytes = new byte[stride * height];
+    }
+
+    /**
+     * Construct an 8-bit image using an existing array, which must contain
+     * the samples for all rows with no gaps in between.  The array is not
+     * copied.
+     */
+    public PackedImage(int width, int height, byte[] data) {
+        this.width = width;
+        this.height = height;
+        stride = width * NUM_CHANNELS;
+        offset = 0;
+        if (data.length < stride * height)
+            throw new IllegalArgumentException("Array too small for image");
+        bytes = data;
+    }
+
+    private PackedImage(int width, int height, boolean use16Bit,
+            OffHeapMemory.Block block) {
+        this.width = width;
+        this.height = height;
+        this.use16Bit = use16Bit;
+        stride = width * NUM_CHANNELS;
+        offset = 0;
+        storage = new Storage(block);
+        if (use16Bit)
+            shortBuffer = block.getBuffer().asShortBuffer();
+        else
+            byteBuffer = block.getBuffer();
+    }
+
+    private PackedImage(PackedImage image, int x, int y, int width,
+            int height) {
+        this.width = width;
+        this.height = height;
+        use16Bit = image.use16Bit;
+        stride = image.stride;
+        offset = image.offset + y * stride + x * NUM_CHANNELS;
+        bytes = image.bytes;
+        shorts = image.shorts;
+        byteBuffer = image.byteBuffer;
+        shortBuffer = image.shortBuffer;
+        // keeps the off-heap block alive for as long as the region is used
+        storage = image.storage;
+        isRegion = true;
+    }
+
+    /**
+     * Create a new image, which is stored outside the Java heap if it is
+     * large enough and the off-heap memory budget allows it.  Very large
+     * images which do not fit in the budget or on the heap are stored in
+     * a memory-mapped temporary file instead.
+     *
+     * @param width
+     *      the width of the image.
+     * @param height
+     *      the height of the image.
+     * @param use16Bit
+     *      <code>true</code> for 16 bits per channel, <code>false</code>
+     *      for 8 bits per channel.
+     * @return
+     *      a new image.
+     */
+    public static PackedImage allocate(int width, int height,
+            boolean use16Bit) {
+        long size = (long) width * height * NUM_CHANNELS * (use16Bit ? 2 : 1);
+        if (size >= MIN_OFF_HEAP_SIZE) {
+            OffHeapMemory.Block block = OffHeapMemory.allocate(size);
+            if (block == null && size >= MIN_MAPPED_SIZE
+                    && size > availableHeap() / 2)
+                block = OffHeapMemory.allocateMapped(size);
+            if (block != null)
+                return new PackedImage(width, height, use16Bit, block);
+        }
+        try {
+            return new PackedImage(width, height, use16Bit);
+        }
+        catch (OutOfMemoryError e) {
+            OffHeapMemory.Block block = OffHeapMemory.allocateMapped(size);
+            if (block == null)
+                throw e;
+            return new PackedImage(width, height, use16Bit, block);
+        }
+    }
+
+    /**
+     * Create a new image stored in a memory-mapped temporary file, falling
+     * back to {@link #allocate} if that fails.
+     */
+    public static PackedImage allocateMapped(int width, int height,
+            boolean use16Bit) {
+        long size = (long) width * height * NUM_CHANNELS * (use16Bit ? 2 : 1);
+        OffHeapMemory.Block block = OffHeapMemory.allocateMapped(size);
+        if (block == null)
+            return allocate(width, height, use16Bit);
+        return new PackedImage(width, height, use16Bit, block);
+    }
+
+    private static long availableHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.maxMemory()
+            - (runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the distance between the start of two rows in the data,
+     * in samples.
+     */
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * Returns the index of the first sample in the data.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    public boolean is16Bit() {
+        return use16Bit;
+    }
+
+    public int getBitsPerChannel() {
+        return use16Bit ? 16 : 8;
+    }
+
+    public int getMaxSample() {
+        return use16Bit ? 0xffff : 0xff;
+    }
+
+    /**
+     * Returns the number of bytes used by the samples of this image.
+     */
+    public long getByteSize() {
+        return (long) width * height * NUM_CHANNELS * (use16Bit ? 2 : 1);
+    }
+
+    /**
+     * Checks if the image is stored outside the Java heap.  This includes
+     * memory-mapped images.
+     */
+    public boolean isOffHeap() {
+        return byteBuffer != null || shortBuffer != null;
+    }
+
+    /**
+     * Checks if the image is stored in a memory-mapped file.
+     */
+    public boolean isMapped() {
+        return storage != null && storage.block.isMapped();
+    }
+
+    /**
+     * Returns the data array for 8-bit images stored on the heap, or
+     * <code>null</code>.
+     */
+    public byte[] getByteData() {
+        return bytes;
+    }
+
+    /**
+     * Returns the data array for 16-bit images stored on the heap, or
+     * <code>null</code>.
+     */
+    public short[] getShortData() {
+        return shorts;
+    }
+
+    /**
+     * Checks if the rows are stored consecutively, without gaps.
+     */
+    public boolean isContiguous() {
+        return stride == width * NUM_CHANNELS;
+    }
+
+    private void checkReleased() {
+        if (isReleased())
+            throw new IllegalStateException("The image has been released");
+    }
+
+    private void read(int index, byte[] dest, int destPos, int length) {
+        if (bytes != null) {
+            System.arraycopy(bytes, index, dest, destPos, length);
+        }
+        else {
+            checkReleased();
+            ByteBuffer buffer = byteBuffer.duplicate();
+            buffer.position(index);
+            buffer.get(dest, destPos, length);
+        }
+    }
+
+    private void read(int index, short[] dest, int destPos, int length) {
+        if (shorts != null) {
+            System.arraycopy(shorts, index, dest, destPos, length);
+        }
+        else {
+            checkReleased();
+            ShortBuffer buffer = shortBuffer.duplicate();
+            buffer.position(index);
+            buffer.get(dest, destPos, length);
+        }
+    }
+
+    private void write(int index, byte[] src, int srcPos, int length) {
+        if (bytes != null) {
+            System.arraycopy(src, srcPos, bytes, index, length);
+        }
+        else {
+            checkReleased();
+            ByteBuffer buffer = byteBuffer.duplicate();
+            buffer.position(index);
+            buffer.put(src, srcPos, length);
+        }
+    }
+
+    private void write(int index, short[] src, int srcPos, int length) {
+        if (shorts != null) {
+            System.arraycopy(src, srcPos, shorts, index, length);
+        }
+        else {
+            checkReleased();
+            ShortBuffer buffer = shortBuffer.duplicate();
+            buffer.position(index);
+            buffer.put(src, srcPos, length);
+        }
+    }
+
+    /**
+     * Copy the <code>3 * width</code> samples of a row of an 8-bit image
+     * to an array.
+     */
+    public void getRowSamples(int y, byte[] dest, int destPos) {
+        read(offset + y * stride, dest, destPos, width * NUM_CHANNELS);
+    }
+
+    /**
+     * Copy the <code>3 * width</code> samples of a row of a 16-bit image
+     * to an array.
+     */
+    public void getRowSamples(int y, short[] dest, int destPos) {
+        read(offset + y * stride, dest, destPos, width * NUM_CHANNELS);
+    }
+
+    /**
+     * Replace the <code>3 * width</code> samples of a row of an 8-bit image.
+     */
+    public void putRowSamples(int y, byte[] src, int srcPos) {
+        write(offset + y * stride, src, srcPos, width * NUM_CHANNELS);
+    }
+
+    /**
+     * Replace the <code>3 * width</code> samples of a row of a 16-bit image.
+     */
+    public void putRowSamples(int y, short[] src, int srcPos) {
+        write(offset + y * stride, src, srcPos, width * NUM_CHANNELS);
+    }
+
+    public int getSample(int channel, int x, int y) {
+        int i = offset + y * stride + x * NUM_CHANNELS + channel;
+        if (shorts != null)
+            return shorts[i] & 0xffff;
+        if (bytes != null)
+            return bytes[i] & 0xff;
+        checkReleased();
+        if (shortBuffer != null)
+            return shortBuffer.get(i) & 0xffff;
+        return byteBuffer.get(i) & 0xff;
+    }
+
+    public void putSample(int channel, int x, int y, int value) {
+        int i = offset + y * stride + x * NUM_CHANNELS + channel;
+        if (shorts != null)
+            shorts[i] = (short) value;
+        else if (bytes != null)
+            bytes[i] = (byte) value;
+        else if (shortBuffer != null)
+            shortBuffer.put(i, (short) value);
+        else if (byteBuffer != null)
+            byteBuffer.put(i, (byte) value);
+        else
+            checkReleased();
+    }
+
+    /**
+     * Create a new, empty image with the same bit depth as this one.
+     * See {@link #allocate}.
+     */
+    public PackedImage createCompatibleImage(int width, int height) {
+        return allocate(width, height, use16Bit);
+    }
+
+    /**
+     * Returns an image for a region of this image.  The new image shares
+     * the data with this image, so no pixels are copied.
+     */
+    public PackedImage getRegion(int x, int y, int width, int height) {
+        assert (x >= 0 && y >= 0 && x + width <= this.width
+                && y + height <= this.height);
+        markShared();
+        return new PackedImage(this, x, y, width, height);
+    }
+
+    /**
+     * Mark the data as used by code which does not know when the image is
+     * released, so {@link #release()} will not free it.  This is done
+     * automatically for images which have regions.
+     */
+    public void markShared() {
+        if (storage != null) {
+            synchronized (storage) {
+                storage.shared = true;
+            }
+        }
+    }
+
+    /**
+     * Checks if the data is shared, see {@link #markShared()}.  Images
+     * stored on the heap are never shared.
+     */
+    public boolean isShared() {
+        if (storage == null)
+            return false;
+        synchronized (storage) {
+            return storage.shared;
+        }
+    }
+
+    /**
+     * Checks if {@link #release()} has been called for this image.
+     */
+    public boolean isReleased() {
+        return bytes == null && shorts == null && byteBuffer == null
+            && shortBuffer == null;
+    }
+
+    /**
+     * Release off-heap memory used by this image immediately, instead of
+     * waiting for the garbage collector.  This should only be called by
+     * code which created the image and knows that it is no longer used.
+     * Regions of the image are not released, and releasing an image which
+     * has been shared through {@link #getRegion} only makes this object
+     * unusable.  Does nothing for images stored on the heap.
+     */
+    public void release() {
+        if (!isOffHeap())
+            return;
+        if (storage != null && !isRegion) {
+            synchronized (storage) {
+                if (!storage.shared)
+                    storage.block.release();
+            }
+        }
+        byteBuffer = null;
+        shortBuffer = null;
+    }
+
+    /**
+     * Copy all pixels in this image to another image with the same bit
+     * depth.
+     *
+     * @param dest
+     *      the image to copy to.
+     * @param destX
+     *      the left edge of the region in the destination image.
+     * @param destY
+     *      the top edge of the region in the destination image.
+     */
+    public void copyTo(PackedImage dest, int destX, int destY) {
+        copyTo(0, 0, width, height, dest, destX, destY);
+    }
+
+    /**
+     * Copy a rectangular region of this image to another image with the
+     * same bit depth.  Unlike {@link #getRegion}, this does not prevent
+     * the image from being released afterwards.
+     *
+     * @param x
+     *      the left edge of the region in this image.
+     * @param y
+     *      the top edge of the region in this image.
+     * @param width
+     *      the width of the region.
+     * @param height
+     *      the height of the region.
+     * @param dest
+     *      the image to copy to.
+     * @param destX
+     *      the left edge of the region in the destination image.
+     * @param destY
+     *      the top edge of the region in the destination image.
+     */
+    public void copyTo(int x, int y, int width, int height, PackedImage dest,
+            int destX, int destY) {
+        if (dest.use16Bit != use16Bit)
+            throw new IllegalArgumentException("Bit depth mismatch");
+        int n = width * NUM_CHANNELS;
+        short[] shortRow = null;
+        byte[] byteRow = null;
+        for (int row = 0; row < height; row++) {
+            int i = offset + (y + row) * stride + x * NUM_CHANNELS;
+            int j = dest.offset + (destY + row) * dest.stride
+                + destX * NUM_CHANNELS;
+            if (shorts != null) {
+                dest.write(j, shorts, i, n);
+            }
+            else if (dest.shorts != null) {
+                read(i, dest.shorts, j, n);
+            }
+            else if (use16Bit) {
+                if (shortRow == null)
+                    shortRow = new short[n];
+                read(i, shortRow, 0, n);
+                dest.write(j, shortRow, 0, n);
+            }
+            else if (bytes != null) {
+                dest.write(j, bytes, i, n);
+            }
+            else if (dest.bytes != null) {
+                read(i, dest.bytes, j, n);
+            }
+            else {
+                if (byteRow == null)
+                    byteRow = new byte[n];
+                read(i, byteRow, 0, n);
+                dest.write(j, byteRow, 0, n);
+            }
+        }
+    }
+
+    /**
+     * Checks if a JIU image can be converted to a packed image.
+     */
+    public static boolean isSupported(PixelImage image) {
+        return image instanceof RGB24Image || image instanceof RGB48Image;
+    }
+
+    /**
+     * Convert a JIU image to a packed image.
+     *
+     * @param image
+     *      an RGB24Image or RGB48Image.
+     * @return
+     *      a new packed image, see {@link #allocate}, or the packed image
+     *      behind a view returned by {@link #asJiu()}.
+     */
+    public static PackedImage fromJiu(PixelImage image) {
+        PackedImage packed = unwrap(image);
+        if (packed != null)
+            return packed;
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int n = width * NUM_CHANNELS;
+        if (image instanceof RGB48Image) {
+            RGB48Image rgb = (RGB48Image) image;
+            packed = allocate(width, height, true);
+            short[] row = new short[width];
+            short[] packedRow = new short[n];
+            for (int y = 0; y < height; y++) {
+                getJiuRow(rgb, y, packedRow, row);
+                packed.putRowSamples(y, packedRow, 0);
+            }
+            return packed;
+        }
+        if (image instanceof RGB24Image) {
+            RGB24Image rgb = (RGB24Image) image;
+            packed = allocate(width, height, false);
+            byte[] row = new byte[width];
+            byte[] packedRow = new byte[n];
+            for (int y = 0; y < height; y++) {
+                getJiuRow(rgb, y, packedRow, row);
+                packed.putRowSamples(y, packedRow, 0);
+            }
+            return packed;
+        }
+        throw new IllegalArgumentException("Unsupported image class: "
+                + image.getClass().getName());
+    }
+
+    /**
+     * Copy one row of a JIU image to an array of interleaved samples.
+     *
+     * @param channelRow
+     *      a temporary array with room for one row of a single channel.
+     */
+    static void getJiuRow(RGB48Image image, int y, short[] row,
+            short[] channelRow) {
+        int width = image.getWidth();
+        for (int c = 0; c < NUM_CHANNELS; c++) {
+            image.getShortSamples(jiuIndex(c), 0, y, width, 1, channelRow, 0);
+            int i = c;
+            for (int x = 0; x < width; x++, i += NUM_CHANNELS)
+                row[i] = channelRow[x];
+        }
+    }
+
+    /**
+     * Copy one row of a JIU image to an array of interleaved samples.
+     *
+     * @param channelRow
+     *      a temporary array with room for one row of a single channel.
+     */
+    static void getJiuRow(RGB24Image image, int y, byte[] row,
+            byte[] channelRow) {
+        int width = image.getWidth();
+        for (int c = 0; c < NUM_CHANNELS; c++) {
+            image.getByteSamples(jiuIndex(c), 0, y, width, 1, channelRow, 0);
+            int i = c;
+            for (int x = 0; x < width; x++, i += NUM_CHANNELS)
+                row[i] = channelRow[x];
+        }
+    }
+
+    static int jiuIndex(int channel) {
+        switch (channel) {
+        case 0:
+            return RGBIndex.INDEX_RED;
+        case 1:
+            return RGBIndex.INDEX_GREEN;
+        default:
+            return RGBIndex.INDEX_BLUE;
+        }
+    }
+
+    /**
+     * Returns a JIU image which reads and writes the samples of this image
+     * directly, for use with operations which do not support packed images.
+     * No pixels are copied, and images created by the JIU image's
+     * <code>createCompatibleImage</code> method are packed images too.
+     *
+     * @return
+     *      an RGB24Image or RGB48Image backed by this image.
+     */
+    public PixelImage asJiu() {
+        if (use16Bit)
+            return new PackedRGB48Image(this);
+        return new PackedRGB24Image(this);
+    }
+
+    /**
+     * Returns the packed image behind a JIU image returned by
+     * {@link #asJiu()}, or <code>null</code> for other JIU images.
+     */
+    public static PackedImage unwrap(PixelImage image) {
+        if (image instanceof PackedRGBImage)
+            return ((PackedRGBImage) image).getPackedImage();
+        return null;
+    }
+
+    private int sampleIndex(int channel, int x, int y) {
+        return offset + y * stride + x * NUM_CHANNELS + channel;
+    }
+
+    /**
+     * Copy the samples of one channel in a rectangular region to an array,
+     * one row after the other.
+     */
+    public void getChannelSamples(int channel, int x, int y, int w, int h,
+            int[] dest, int destPos) {
+        for (int row = 0; row < h; row++) {
+            int i = sampleIndex(channel, x, y + row);
+            int end = destPos + w;
+            if (shorts != null) {
+                for (; destPos < end; destPos++, i += NUM_CHANNELS)
+                    dest[destPos] = shorts[i] & 0xffff;
+            }
+            else if (bytes != null) {
+                for (; destPos < end; destPos++, i += NUM_CHANNELS)
+                    dest[destPos] = bytes[i] & 0xff;
+            }
+            else if (shortBuffer != null) {
+                for (; destPos < end; destPos++, i += NUM_CHANNELS)
+                    dest[destPos] = shortBuffer.get(i) & 0xffff;
+            }
+            else {
+                checkReleased();
+                for (; destPos < end; destPos++, i += NUM_CHANNELS)
+                    dest[destPos] = byteBuffer.get(i) & 0xff;
+            }
+        }
+    }
+
+    /**
+     * Replace the samples of one channel in a rectangular region, see
+     * {@link #getChannelSamples(int, int, int, int, int, int[], int)}.
+     */
+    public void putChannelSamples(int channel, int x, int y, int w, int h,
+            int[] src, int srcPos) {
+        for (int row = 0; row < h; row++) {
+            int i = sampleIndex(channel, x, y + row);
+            int end = srcPos + w;
+            if (shorts != null) {
+                for (; srcPos < end; srcPos++, i += NUM_CHANNELS)
+                    shorts[i] = (short) src[srcPos];
+            }
+            else if (bytes != null) {
+                for (; srcPos < end; srcPos++, i += NUM_CHANNELS)
+                    bytes[i] = (byte) src[srcPos];
+            }
+            else if (shortBuffer != null) {
+                for (; srcPos < end; srcPos++, i += NUM_CHANNELS)
+                    shortBuffer.put(i, (short) src[srcPos]);
+            }
+            else {
+                checkReleased();
+                for (; srcPos < end; srcPos++, i += NUM_CHANNELS)
+                    byteBuffer.put(i, (byte) src[srcPos]);
+            }
+        }
+    }
+
+    /**
+     * Copy the samples of one channel in a rectangular region of an 8-bit
+     * image to an array, one row after the other.
+     */
+    public void getChannelSamples(int channel, int x, int y, int w, int h,
+            byte[] dest, int destPos) {
+        for (int row = 0; row < h; row++) {
+            int i = sampleIndex(channel, x, y + row);
+            int end = destPos + w;
+            if (bytes != null) {
+                for (; destPos < end; destPos++, i += NUM_CHANNELS)
+                    dest[destPos] = bytes[i];
+            }
+            else {
+                checkReleased();
+                for (; destPos < end; destPos++, i += NUM_CHANNELS)
+                    dest[destPos] = byteBuffer.get(i);
+            }
+        }
+    }
+
+    /**
+     * Replace the samples of one channel in a rectangular region of an
+     * 8-bit image.
+     */
+    public void putChannelSamples(int channel, int x, int y, int w, int h,
+            byte[] src, int srcPos) {
+        for (int row = 0; row < h; row++) {
+            int i = sampleIndex(channel, x, y + row);
+            int end = srcPos + w;
+            if (bytes != null) {
+                for (; srcPos < end; srcPos++, i += NUM_CHANNELS)
+                    bytes[i] = src[srcPos];
+            }
+            else {
+                checkReleased();
+                for (; srcPos < end; srcPos++, i += NUM_CHANNELS)
+                    byteBuffer.put(i, src[srcPos]);
+            }
+        }
+    }
+
+    /**
+     * Copy the samples of one channel in a rectangular region of a 16-bit
+     * image to an array, one row after the other.
+     */
+    public void getChannelSamples(int channel, int x, int y, int w, int h,
+            short[] dest, int destPos) {
+        for (int row = 0; row < h; row++) {
+            int i = sampleIndex(channel, x, y + row);
+            int end = destPos + w;
+            if (shorts != null) {
+                for (; destPos < end; destPos++, i += NUM_CHANNELS)
+                    dest[destPos] = shorts[i];
+            }
+            else {
+                checkReleased();
+                for (; destPos < end; destPos++, i += NUM_CHANNELS)
+                    dest[destPos] = shortBuffer.get(i);
+            }
+        }
+    }
+
+    /**
+     * Replace the samples of one channel in a rectangular region of a
+     * 16-bit image.
+     */
+    public void putChannelSamples(int channel, int x, int y, int w, int h,
+            short[] src, int srcPos) {
+        for (int row = 0; row < h; row++) {
+            int i = sampleIndex(channel, x, y + row);
+            int end = srcPos + w;
+            if (shorts != null) {
+                for (; srcPos < end; srcPos++, i += NUM_CHANNELS)
+                    shorts[i] = src[srcPos];
+            }
+            else {
+                checkReleased();
+                for (; srcPos < end; srcPos++, i += NUM_CHANNELS)
+                    shortBuffer.put(i, src[srcPos]);
+            }
+        }
+    }
+
+    /**
+     * Set all samples of one channel to the given value.
+     */
+    public void fillChannel(int channel, int value) {
+        int[] row = new int[width];
+        Arrays.fill(row, value);
+        for (int y = 0; y < height; y++)
+            putChannelSamples(channel, 0, y, width, 1, row, 0);
+    }
+
+    /**
+     * Returns an 8-bit copy of this image, stored on the heap.  If this
+     * image already is an 8-bit contiguous image on the heap, it is returned
+     * as-is.
+     */
+    public PackedImage to8Bit() {
+        if (bytes != null && offset == 0 && isContiguous())
+            return this;
+        PackedImage result = new PackedImage(width, height, false);
+        byte[] dest = result.bytes;
+        int n = width * NUM_CHANNELS;
+        short[] row = use16Bit ? new short[n] : null;
+        for (int y = 0; y < height; y++) {
+            int j = y * n;
+            if (use16Bit) {
+                getRowSamples(y, row, 0);
+                for (int x = 0; x < n; x++)
+                    dest[j++] = (byte) ((row[x] >> 8) & 0xff);
+            }
+            else {
+                getRowSamples(y, dest, j);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import net.sourceforge.jiu.data.PixelImage;
+import net.sourceforge.jiu.data.RGB24Image;
+import net.sourceforge.jiu.data.RGB48Image;
+
+/**
+ * Reads and writes packed images in a simple binary format intended for
+ * temporary files and buffers, such as bitmaps spilled from a cache.  Writing and
+ * reading should be fast, so the samples are only lightly compressed:
+ * each sample is stored as the difference from the same channel of the
+ * previous pixel, and the result is deflated using the fastest setting.
+ *
+ * The format is not meant to be portable between versions of Blimp.
+ *
+ * @author Knut Arild Erstad
+ */
+public class PackedImageFile {
+    private static final int MAGIC = 0x424c5049; // "BLPI"
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private PackedImageFile() {
+    }
+
+    private static void delta(byte[] row, int n) {
+        for (int i = n - 1; i >= PackedImage.NUM_CHANNELS; i--)
+            row[i] -= row[i - PackedImage.NUM_CHANNELS];
+    }
+
+    private static void undelta(byte[] row, int n) {
+        for (int i = PackedImage.NUM_CHANNELS; i < n; i++)
+            row[i] += row[i - PackedImage.NUM_CHANNELS];
+    }
+
+    /**
+     * Write an image to a file, replacing the file if it exists.
+     */
+    public static void write(PackedImage image, File file)
+            throws IOException {
+        write(image, new BufferedOutputStream(new FileOutputStream(file),
+                BUFFER_SIZE));
+    }
+
+    /**
+     * Write a JIU image to a file, replacing the file if it exists.  The
+     * samples are read one row at a time, so the image is not copied.
+     *
+     * @param image
+     *      an image supported by {@link PackedImage#isSupported}.
+     */
+    public static void write(PixelImage image, File file)
+            throws IOException {
+        write(image, new BufferedOutputStream(new FileOutputStream(file),
+                BUFFER_SIZE));
+    }
+
+    /**
+     * Write an image to a stream, which is closed afterwards.
+     */
+    public static void write(PackedImage image, OutputStream stream)
+            throws IOException {
+        write(image, null, stream);
+    }
+
+    /**
+     * Write a JIU image to a stream, which is closed afterwards.  The
+     * samples are read one row at a time, so the image is not copied.
+     *
+     * @param image
+     *      an image supported by {@link PackedImage#isSupported}.
+     */
+    public static void write(PixelImage image, OutputStream stream)
+            throws IOException {
+        PackedImage packed = PackedImage.unwrap(image);
+        if (packed == null && !PackedImage.isSupported(image)) {
+            stream.close();
+            throw new IllegalArgumentException("Unsupported image class: "
+                    + image.getClass().getName());
+        }
+        write(packed, image, stream);
+    }
+
+    /**
+     * Write either a packed image, or a JIU image if <code>packed</code>
+     * is <code>null</code>.
+     */
+    private static void write(PackedImage packed, PixelImage jiuImage,
+            OutputStream stream) throws IOException {
+        int width;
+        int height;
+        boolean use16Bit;
+        if (packed != null) {
+            width = packed.getWidth();
+            height = packed.getHeight();
+            use16Bit = packed.is16Bit();
+        }
+        else {
+            width = jiuImage.getWidth();
+            height = jiuImage.getHeight();
+            use16Bit = jiuImage instanceof RGB48Image;
+        }
+        int n = width * PackedImage.NUM_CHANNELS;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new DeflaterOutputStream(stream,
+                    deflater, BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeBoolean(use16Bit);
+            if (use16Bit) {
+                short[] row = new short[n];
+                short[] channelRow = packed == null ? new short[width] : null;
+                byte[] bytes = new byte[2 * n];
+                for (int y = 0; y < height; y++) {
+                    if (packed != null)
+                        packed.getRowSamples(y, row, 0);
+                    else
+                        PackedImage.getJiuRow((RGB48Image) jiuImage, y, row,
+                                channelRow);
+                    // high and low bytes are stored separately, since the
+                    // low bytes are much more noisy
+                    for (int i = 0; i < n; i++) {
+                        bytes[i] = (byte) (row[i] >> 8);
+                        bytes[n + i] = (byte) row[i];
+                    }
+                    delta(bytes, 2 * n);
+                    out.write(bytes);
+                }
+            }
+            else {
+                byte[] row = new byte[n];
+                byte[] channelRow = packed == null ? new byte[width] : null;
+                for (int y = 0; y < height; y++) {
+                    if (packed != null)
+                        packed.getRowSamples(y, row, 0);
+                    else
+                        PackedImage.getJiuRow((RGB24Image) jiuImage, y, row,
+                                channelRow);
+                    delta(row, n);
+                    out.write(row);
+                }
+            }
+        }
+        finally {
+            if (out != null)
+                out.close();
+            else
+                stream.close();
+            deflater.end();
+        }
+    }
+
+    /**
+     * Read an image written by {@link #write}.
+     *
+     * @return
+     *      a new image, see {@link PackedImage#allocate}.
+     */
+    public static PackedImage read(File file) throws IOException {
+        return read(new BufferedInputStream(new FileInputStream(file),
+                BUFFER_SIZE));
+    }
+
+    /**
+     * Read an image written by {@link #write}.  The stream is closed
+     * afterwards.
+     *
+     * @return
+     *      a new image, see {@link PackedImage#allocate}.
+     */
+    public static PackedImage read(InputStream stream) throws IOException {
+        Inflater inflater = new Inflater();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new InflaterInputStream(stream,
+                    inflater, BUFFER_SIZE));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Not a packed image");
+            int width = in.readInt();
+            int height = in.readInt();
+            boolean use16Bit = in.readBoolean();
+            if (width <= 0 || height <= 0)
+                throw new IOException("Invalid packed image size");
+            int n = width * PackedImage.NUM_CHANNELS;
+            PackedImage image = PackedImage.allocate(width, height, use16Bit);
+            if (use16Bit) {
+                short[] row = new short[n];
+                byte[] bytes = new byte[2 * n];
+                for (int y = 0; y < height; y++) {
+                    in.readFully(bytes);
+                    undelta(bytes, 2 * n);
+                    for (int i = 0; i < n; i++)
+                        row[i] = (short) ((bytes[i] << 8)
+                                | (bytes[n + i] & 0xff));
+                    image.putRowSamples(y, row, 0);
+                }
+            }
+            else {
+                byte[] row = new byte[n];
+                for (int y = 0; y < height; y++) {
+                    in.readFully(row);
+                    undelta(row, n);
+                    image.putRowSamples(y, row, 0);
+                }
+            }
+            return image;
+        }
+        finally {
+            if (in != null)
+                in.close();
+            else
+                stream.close();
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.data;
+
+import net.sourceforge.jiu.data.RGB24Image;
+
+/**
+ * An RGB24Image backed by an 8-bit packed image, see
+ * {@link PackedImage#asJiu()}.
+ *
+ * @author Knut Arild Erstad
+ */
+class PackedRGB24Image extends PackedRGBImage implements RGB24Image {
+    PackedRGB24Image(PackedImage packed) {
+        super(packed);
+    }
+
+    public Class<?> getImageType() {
+        return RGB24Image.class;
+    }
+
+    public void clear(byte newValue) {
+        clear(newValue & 0xff);
+    }
+
+    public void clear(int channelIndex, byte newValue) {
+        clear(channelIndex, newValue & 0xff);
+    }
+
+    public byte getByteSample(int x, int y) {
+        return getByteSample(0, x, y);
+    }
+
+    public byte getByteSample(int channel, int x, int y) {
+        return (byte) packed.getSample(channel(channel), x, y);
+    }
+
+    public void getByteSamples(int channelIndex, int x, int y, int w, int h,
+            byte[] dest, int destOffset) {
+        packed.getChannelSamples(channel(channelIndex), x, y, w, h, dest,
+                destOffset);
+    }
+
+    public void putByteSample(int x, int y, byte newValue) {
+        putByteSample(0, x, y, newValue);
+    }
+
+    public void putByteSample(int channel, int x, int y, byte newValue) {
+        packed.putSample(channel(channel), x, y, newValue);
+    }
+
+    public void putByteSamples(int channel, int x, int y, int w, int h,
+            byte[] src, int srcOffset) {
+        packed.putChannelSamples(channel(channel), x, y, w, h, src,
+                srcOffset);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.data;
+
+import net.sourceforge.jiu.data.RGB48Image;
+
+/**
+ * An RGB48Image backed by a 16-bit packed image, see
+ * {@link PackedImage#asJiu()}.
+ *
+ * @author Knut Arild Erstad
+ */
+class PackedRGB48Image extends PackedRGBImage implements RGB48Image {
+    PackedRGB48Image(PackedImage packed) {
+        super(packed);
+    }
+
+    public Class<?> getImageType() {
+        return RGB48Image.class;
+    }
+
+    public void clear(short newValue) {
+        clear(newValue & 0xffff);
+    }
+
+    public void clear(int channelIndex, short newValue) {
+        clear(channelIndex, newValue & 0xffff);
+    }
+
+    public short getShortSample(int x, int y) {
+        return getShortSample(0, x, y);
+    }
+
+    public short getShortSample(int channel, int x, int y) {
+        return (short) packed.getSample(channel(channel), x, y);
+    }
+
+    public void getShortSamples(int channelIndex, int x, int y, int w, int h,
+            short[] dest, int destOffset) {
+        packed.getChannelSamples(channel(channelIndex), x, y, w, h, dest,
+                destOffset);
+    }
+
+    public void putShortSample(int x, int y, short newValue) {
+        putShortSample(0, x, y, newValue);
+    }
+
+    public void putShortSample(int channel, int x, int y, short newValue) {
+        packed.putSample(channel(channel), x, y, newValue);
+    }
+
+    public void putShortSamples(int channel, int x, int y, int w, int h,
+            short[] src, int srcOffset) {
+        packed.putChannelSamples(channel(channel), x, y, w, h, src,
+                srcOffset);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.data;
+
+import net.sourceforge.jiu.data.PixelImage;
+import net.sourceforge.jiu.data.RGBIntegerImage;
+
+/**
+ * Base class for the JIU images returned by {@link PackedImage#asJiu()}.
+ * All samples are read from and written to the packed image.
+ *
+ * @author Knut Arild Erstad
+ */
+abstract class PackedRGBImage implements RGBIntegerImage {
+    private static final int[] PACKED_INDEX = new int[PackedImage.NUM_CHANNELS];
+
+    static {
+        for (int c = 0; c < PackedImage.NUM_CHANNELS; c++)
+            PACKED_INDEX[PackedImage.jiuIndex(c)] = c;
+    }
+
+    protected final PackedImage packed;
+
+    PackedRGBImage(PackedImage packed) {
+        this.packed = packed;
+    }
+
+    PackedImage getPackedImage() {
+        return packed;
+    }
+
+    /**
+     * Converts a JIU channel index to a channel in the packed image.
+     */
+    protected static int channel(int jiuChannel) {
+        return PACKED_INDEX[jiuChannel];
+    }
+
+    public int getWidth() {
+        return packed.getWidth();
+    }
+
+    public int getHeight() {
+        return packed.getHeight();
+    }
+
+    public int getNumChannels() {
+        return PackedImage.NUM_CHANNELS;
+    }
+
+    public int getBitsPerPixel() {
+        return PackedImage.NUM_CHANNELS * packed.getBitsPerChannel();
+    }
+
+    public long getAllocatedMemory() {
+        return packed.getByteSize();
+    }
+
+    public PixelImage createCompatibleImage(int width, int height) {
+        return packed.createCompatibleImage(width, height).asJiu();
+    }
+
+    public PixelImage createCopy() {
+        PackedImage copy = packed.createCompatibleImage(packed.getWidth(),
+                packed.getHeight());
+        packed.copyTo(copy, 0, 0);
+        return copy.asJiu();
+    }
+
+    public void clear(int newValue) {
+        for (int c = 0; c < PackedImage.NUM_CHANNELS; c++)
+            packed.fillChannel(c, newValue);
+    }
+
+    public void clear(int channelIndex, int newValue) {
+        packed.fillChannel(channel(channelIndex), newValue);
+    }
+
+    public int getMaxSample(int channel) {
+        return packed.getMaxSample();
+    }
+
+    public int getSample(int x, int y) {
+        return getSample(0, x, y);
+    }
+
+    public int getSample(int channel, int x, int y) {
+        return packed.getSample(channel(channel), x, y);
+    }
+
+    public void getSamples(int channelIndex, int x, int y, int w, int h,
+            int[] dest, int destOffset) {
+        packed.getChannelSamples(channel(channelIndex), x, y, w, h, dest,
+                destOffset);
+    }
+
+    public void putSample(int x, int y, int newValue) {
+        putSample(0, x, y, newValue);
+    }
+
+    public void putSample(int channel, int x, int y, int newValue) {
+        packed.putSample(channel(channel), x, y, newValue);
+    }
+
+    public void putSamples(int channel, int x, int y, int w, int h,
+            int[] src, int srcOffset) {
+        packed.putChannelSamples(channel(channel), x, y, w, h, src,
+                srcOffset);
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.data;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import net.sourceforge.jiu.data.PixelImage;
+
+import org.boblycat.blimp.util.BandExecutor;
+
+/**
+ * A bitmap which is divided into square tiles that are computed on demand.
+ *
+ * The tiles are produced by a {@link TileSource}, typically by applying
+ * a sequence of layers to the corresponding region of another bitmap.
+ * Computed tiles are only softly referenced, so individual tiles can be
+ * released under memory pressure and recomputed later.  Missing tiles are
+ * computed in parallel using the {@link BandExecutor}.
+ *
+ * Code which needs the whole image can still call {@link #getImage()},
+ * which assembles (and keeps) a single image from all the tiles.
+ *
+ * @author Knut Arild Erstad
+ */
+public class TiledBitmap extends Bitmap {
+    /**
+     * Computes the contents of tiles.  This can be called from several
+     * threads at the same time.
+     */
+    public interface TileSource {
+        /**
+         * Called before the tiles covering a region are computed.
+         * This can be used to prepare the input needed for computing
+         * them, for instance in parallel.
+         *
+         * @param region
+         *      a region aligned to tiles.
+         */
+        void prepare(BitmapRegion region);
+
+        /**
+         * Compute a tile.
+         *
+         * @param region
+         *      the region of the bitmap covered by the tile.
+         * @return
+         *      an image with the same size as the region.
+         */
+        PixelImage computeTile(BitmapRegion region);
+    }
+
+    private int width;
+    private int height;
+    private int tileSize;
+    private int tilesX;
+    private int tilesY;
+    private TileSource source;
+    private List<SoftReference<PixelImage>> tiles;
+    // guards the tile list, which is accessed from the band threads
+    private final Object tileLock = new Object();
+
+    public TiledBitmap(int width, int height, int tileSize,
+            TileSource source) {
+        assert (tileSize > 0);
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.source = source;
+        tilesX = (width + tileSize - 1) / tileSize;
+        tilesY = (height + tileSize - 1) / tileSize;
+        tiles = new ArrayList<SoftReference<PixelImage>>(tilesX * tilesY);
+        for (int i = 0; i < tilesX * tilesY; i++)
+            tiles.add(null);
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getTileCountX() {
+        return tilesX;
+    }
+
+    public int getTileCountY() {
+        return tilesY;
+    }
+
+    /**
+     * Returns the region covered by a tile.  Tiles at the right and bottom
+     * edges may be smaller than the tile size.
+     */
+    public BitmapRegion getTileRegion(int tileX, int tileY) {
+        return new BitmapRegion(tileX * tileSize, tileY * tileSize,
+                tileSize, tileSize).clip(width, height);
+    }
+
+    private PixelImage findTile(int tileX, int tileY) {
+        synchronized (tileLock) {
+            SoftReference<PixelImage> ref = tiles.get(tileY * tilesX + tileX);
+            return (ref == null) ? null : ref.get();
+        }
+    }
+
+    private void storeTile(int tileX, int tileY, PixelImage tile) {
+        synchronized (tileLock) {
+            tiles.set(tileY * tilesX + tileX,
+                    new SoftReference<PixelImage>(tile));
+        }
+    }
+
+    /**
+     * Returns a tile, computing it if necessary.
+     */
+    public PixelImage getTile(int tileX, int tileY) {
+        PixelImage tile = findTile(tileX, tileY);
+        if (tile == null) {
+            BitmapRegion region = getTileRegion(tileX, tileY);
+            tile = source.computeTile(region);
+            assert (tile.getWidth() == region.width
+                    && tile.getHeight() == region.height);
+            storeTile(tileX, tileY, tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Make sure that all the tiles covering the given region have been
+     * computed.  Missing tiles are computed in parallel.
+     *
+     * @param region
+     *      a non-empty region inside the bitmap.
+     */
+    public void prepareRegion(BitmapRegion region) {
+        getRegionTiles(region);
+    }
+
+    private List<PixelImage> getRegionTiles(BitmapRegion region) {
+        assert (!region.isEmpty());
+        assert (new BitmapRegion(0, 0, width, height).contains(region));
+        int firstX = region.x / tileSize;
+        int firstY = region.y / tileSize;
+        int lastX = (region.x + region.width - 1) / tileSize;
+        int lastY = (region.y + region.height - 1) / tileSize;
+        return getTiles(firstX, firstY, lastX, lastY);
+    }
+
+    /**
+     * Returns the tiles in the given range, computing missing tiles
+     * in parallel.  The tiles are returned row by row.
+     */
+    private List<PixelImage> getTiles(int firstX, int firstY, int lastX,
+            int lastY) {
+        List<PixelImage> result = new ArrayList<PixelImage>();
+        List<Callable<PixelImage>> tasks = new ArrayList<Callable<PixelImage>>();
+        List<Integer> missing = new ArrayList<Integer>();
+        for (int ty = firstY; ty <= lastY; ty++) {
+            for (int tx = firstX; tx <= lastX; tx++) {
+                PixelImage tile = findTile(tx, ty);
+                if (tile == null) {
+                    final int x = tx;
+                    final int y = ty;
+                    missing.add(result.size());
+                    tasks.add(new Callable<PixelImage>() {
+                        public PixelImage call() {
+                            return getTile(x, y);
+                        }
+                    });
+                }
+                result.add(tile);
+            }
+        }
+        if (tasks.isEmpty())
+            return result;
+        BitmapRegion tileRegion = new BitmapRegion(firstX * tileSize,
+                firstY * tileSize, (lastX - firstX + 1) * tileSize,
+                (lastY - firstY + 1) * tileSize).clip(width, height);
+        source.prepare(tileRegion);
+        if (tasks.size() > 1 && BandExecutor.isParallelEnabled()) {
+            List<PixelImage> computed = BandExecutor.invokeAll(tasks);
+            for (int i = 0; i < missing.size(); i++)
+                result.set(missing.get(i), computed.get(i));
+        }
+        else {
+            for (int i = 0; i < missing.size(); i++) {
+                try {
+                    result.set(missing.get(i), tasks.get(i).call());
+                }
+                catch (Exception e) {
+                    // getTile() does not throw checked exceptions
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a new image containing a region of the bitmap.  Only the tiles
+     * intersecting with the region are computed.
+     *
+     * @param region
+     *      a non-empty region inside the bitmap.
+     * @return
+     *      a new image.
+     */
+    public PixelImage getRegion(BitmapRegion region) {
+        List<PixelImage> regionTiles = getRegionTiles(region);
+        int firstX = region.x / tileSize;
+        int firstY = region.y / tileSize;
+        int lastX = (region.x + region.width - 1) / tileSize;
+        int lastY = (region.y + region.height - 1) / tileSize;
+        PixelImage output = regionTiles.get(0).createCompatibleImage(
+                region.width, region.height);
+        int i = 0;
+        for (int ty = firstY; ty <= lastY; ty++) {
+            for (int tx = firstX; tx <= lastX; tx++) {
+                BitmapRegion part = getTileRegion(tx, ty).clip(
+                        region.x + region.width, region.y + region.height);
+                int x1 = Math.max(part.x, region.x);
+                int y1 = Math.max(part.y, region.y);
+                int x2 = part.x + part.width;
+                int y2 = part.y + part.height;
+                BitmapUtil.copyRegion(regionTiles.get(i), x1 - tx * tileSize,
+                        y1 - ty * tileSize, x2 - x1, y2 - y1,
+                        output, x1 - region.x, y1 - region.y);
+                i++;
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Returns the whole image, computing and assembling all the tiles the
+     * first time this is called.  The tiles are released afterwards.
+     */
+    @Override
+    public synchronized PixelImage getImage() {
+        PixelImage image = super.getImage();
+        if (image == null) {
+            image = getRegion(new BitmapRegion(0, 0, width, height));
+            setImage(image);
+            synchronized (tileLock) {
+                for (int i = 0; i < tiles.size(); i++)
+                    tiles.set(i, null);
+            }
+        }
+        return image;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public BitmapSize getSize() {
+        return new BitmapSize(width, height, getPixelScaleFactor());
+    }
+
+    @Override
+    public int getChannelBitDepth() {
+        PixelImage image = super.getImage();
+        if (image == null)
+            image = getTile(0, 0);
+        return image.getBitsPerPixel() / image.getNumChannels();
+    }
+}
@@ -18,6 +18,8 @@
  */
 package org.boblycat.blimp.gui.swt;
 
+import org.boblycat.blimp.data.BitmapRegion;
+import org.boblycat.blimp.data.BitmapSize;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.events.MouseEvent;
 import org.eclipse.swt.events.MouseMoveListener;
@@ -37,8 +39,15 @@ import org.eclipse.swt.widgets.ScrollBar;
 /**
  * A canvas wrapper for displaying and scrolling an image.
  *
- * Zooming (resizing) is not supported directly by this class,
- * and should be done by passing on a resized image.
+ * Zooming out should be done by passing on a resized image.
+ * Zooming in is done by giving an integer magnification along with the
+ * image, in which case only the visible part of the image is enlarged
+ * when painting.
+ *
+ * The image may also cover only a region of a larger image, typically the
+ * visible part.  An <code>SWT.Selection</code> event is sent when the
+ * visible part changes because of scrolling or resizing, which can be
+ * used to request a new image region, see {@link #getVisibleRegion()}.
  *
  * @author Knut Arild Erstad
  */
@@ -47,6 +56,9 @@ public class ImageCanvas extends Composite {
 
     private Canvas canvas;
     private Image currentImage;
+    private int magnification;
+    private BitmapRegion imageRegion;
+    private int fullWidth, fullHeight;
     private String currentProgressMessage;
     private boolean dirty;
     private boolean delayedRedrawInProgress;
@@ -63,9 +75,11 @@ public class ImageCanvas extends Composite {
      */
     public ImageCanvas(Composite parent, int style) {
         super(parent, style);
+        magnification = 1;
         Listener redrawListener = new Listener() {
             public void handleEvent(Event e) {
                 canvas.redraw();
+                notifyViewportChange();
             }
         };
         setLayout(new FillLayout());
@@ -83,6 +97,7 @@ public class ImageCanvas extends Composite {
         canvas.addListener(SWT.Resize, new Listener() {
             public void handleEvent(Event e) {
                 invalidate();
+                notifyViewportChange();
             }
         });
         
@@ -97,6 +112,7 @@ public class ImageCanvas extends Composite {
                         incrementScrollBar(canvas.getHorizontalBar(), mouseX - e.x);
                         incrementScrollBar(canvas.getVerticalBar(), mouseY - e.y);
                         canvas.redraw();
+                        notifyViewportChange();
                     }
                     mouseX = e.x;
                     mouseY = e.y;
@@ -134,16 +150,99 @@ public class ImageCanvas extends Composite {
      *      the new image data, or <code>null</code> to clear the image.
      */
     public void setImageData(ImageData data) {
+        setImageData(data, 1);
+    }
+
+    /**
+     * Update the currently displayed image, which will be enlarged by the
+     * given magnification when painted.
+     *
+     * @param data
+     *      the new image data, or <code>null</code> to clear the image.
+     * @param magnification
+     *      an integer magnification factor (1 for no magnification).
+     */
+    public void setImageData(ImageData data, int magnification) {
+        setImageData(data, magnification, null, null);
+    }
+
+    /**
+     * Update the currently displayed image, which covers a region of a
+     * larger image.
+     *
+     * @param data
+     *      the new image data, or <code>null</code> to clear the image.
+     * @param magnification
+     *      an integer magnification factor (1 for no magnification).
+     * @param region
+     *      the region of the larger image covered by the image data, or
+     *      <code>null</code> if the image data covers the whole image.
+     * @param fullSize
+     *      the size of the larger image, or <code>null</code> if the
+     *      image data covers the whole image.
+     */
+    public void setImageData(ImageData data, int magnification,
+            BitmapRegion region, BitmapSize fullSize) {
+        assert (magnification >= 1);
         SwtUtil.dispose(currentImage);
         if (isDisposed())
             return;
-        if (data == null)
+        this.magnification = magnification;
+        if (data == null) {
             currentImage = null;
-        else
+        }
+        else {
             currentImage = new Image(getDisplay(), data);
+            if (region == null || fullSize == null) {
+                region = new BitmapRegion(0, 0, data.width, data.height);
+                fullWidth = data.width;
+                fullHeight = data.height;
+            }
+            else {
+                fullWidth = fullSize.width;
+                fullHeight = fullSize.height;
+            }
+        }
+        imageRegion = region;
         invalidate();
     }
 
+    /**
+     * Returns the part of the (whole, unmagnified) image which is currently
+     * visible in the canvas.
+     *
+     * @return
+     *      a region, or <code>null</code> if there is no current image.
+     */
+    public BitmapRegion getVisibleRegion() {
+        if (currentImage == null)
+            return null;
+        updateImageParams();
+        Rectangle clientArea = canvas.getClientArea();
+        int x = 0, y = 0;
+        if (canvas.getHorizontalBar().isEnabled())
+            x = canvas.getHorizontalBar().getSelection() / magnification;
+        if (canvas.getVerticalBar().isEnabled())
+            y = canvas.getVerticalBar().getSelection() / magnification;
+        int w = (clientArea.width + magnification - 1) / magnification + 1;
+        int h = (clientArea.height + magnification - 1) / magnification + 1;
+        return new BitmapRegion(x, y, w, h).clip(fullWidth, fullHeight);
+    }
+
+    /**
+     * Check if the visible part of the image is covered by the current
+     * image data.
+     */
+    public boolean isVisibleRegionAvailable() {
+        BitmapRegion visible = getVisibleRegion();
+        return visible == null || imageRegion.contains(visible);
+    }
+
+    private void notifyViewportChange() {
+        if (currentImage != null)
+            notifyListeners(SWT.Selection, new Event());
+    }
+
     /**
      * Set or clear a progress message, which will be displayed after a
      * short delay.
@@ -192,12 +291,34 @@ public class ImageCanvas extends Composite {
         if (canvas.getHorizontalBar().isEnabled())
             x = -canvas.getHorizontalBar().getSelection();
         else
-            x = (clientArea.width - imageBounds.width) / 2;
+            x = (clientArea.width - fullWidth * magnification) / 2;
         if (canvas.getVerticalBar().isEnabled())
             y = -canvas.getVerticalBar().getSelection();
         else
-            y = (clientArea.height - imageBounds.height) / 2;
-        imageGC.drawImage(currentImage, x, y);
+            y = (clientArea.height - fullHeight * magnification) / 2;
+        // position of the current image region
+        x += imageRegion.x * magnification;
+        y += imageRegion.y * magnification;
+        if (magnification == 1) {
+            imageGC.drawImage(currentImage, x, y);
+        }
+        else {
+            // Only enlarge the source pixels that are actually visible
+            int srcX = Math.max(0, -x / magnification);
+            int srcY = Math.max(0, -y / magnification);
+            int srcX2 = Math.min(imageBounds.width,
+                    (clientArea.width - x + magnification - 1) / magnification);
+            int srcY2 = Math.min(imageBounds.height,
+                    (clientArea.height - y + magnification - 1) / magnification);
+            int srcW = srcX2 - srcX;
+            int srcH = srcY2 - srcY;
+            if (srcW > 0 && srcH > 0) {
+                imageGC.setInterpolation(SWT.NONE);
+                imageGC.drawImage(currentImage, srcX, srcY, srcW, srcH,
+                        x + srcX * magnification, y + srcY * magnification,
+                        srcW * magnification, srcH * magnification);
+            }
+        }
         drawProgressMessage(imageGC);
         imageGC.dispose();
         gc.drawImage(bufferImage, 0, 0);
@@ -236,9 +357,9 @@ public class ImageCanvas extends Composite {
             return;
         Rectangle destArea = canvas.getClientArea();
         prepareScrollBar(canvas.getHorizontalBar(), destArea.width,
-                currentImage.getBounds().width);
+                fullWidth * magnification);
         prepareScrollBar(canvas.getVerticalBar(), destArea.height,
-                currentImage.getBounds().height);
+                fullHeight * magnification);
         //layout();
         dirty = false;
     }
@@ -20,6 +20,7 @@ package org.boblycat.blimp.gui.swt;
 
 import org.boblycat.blimp.data.Bitmap;
 import org.boblycat.blimp.data.BitmapUtil;
+import org.boblycat.blimp.data.PackedImage;
 import org.eclipse.swt.graphics.*;
 import org.eclipse.swt.graphics.ImageLoader;
 
@@ -64,6 +65,20 @@ public class ImageConverter {
         return data;
     }
 
+    /**
+     * Convert a bitmap to 24-bit SWT image data.  For packed 8-bit bitmaps
+     * the pixel array is used directly, otherwise the data is converted
+     * in a single pass.  The pixels should not be modified afterwards.
+     */
+    public static ImageData bitmapToSwtImageData(Bitmap bitmap) {
+        PackedImage packed = BitmapUtil.get8BitPackedImage(bitmap);
+        if (packed == null)
+            return null;
+        PaletteData paletteData = new PaletteData(0xff0000, 0xff00, 0xff);
+        return new ImageData(packed.getWidth(), packed.getHeight(),
+                24, paletteData, 1, packed.getByteData());
+    }
+
     static Image jiuToSwtImageViaPixels(Device device, PixelImage pixelImage) {
         ImageData data = jiuToSwtImageData(pixelImage);
         if (data != null)
@@ -83,7 +98,7 @@ public class ImageConverter {
     }
 
     public static void saveBitmap(Bitmap bitmap, String filename, int format) {
-        ImageData data = jiuToSwtImageData(bitmap.getImage());
+        ImageData data = bitmapToSwtImageData(bitmap);
         ImageLoader loader = new ImageLoader();
         loader.data = new ImageData[1];
         loader.data[0] = data;
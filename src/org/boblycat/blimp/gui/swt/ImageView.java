@@ -18,6 +18,7 @@
  */
 package org.boblycat.blimp.gui.swt;
 
+import org.boblycat.blimp.data.BitmapRegion;
 import org.boblycat.blimp.event.BitmapChangeListener;
 import org.boblycat.blimp.event.BitmapEvent;
 import org.boblycat.blimp.event.LayerChangeListener;
@@ -25,7 +26,7 @@ import org.boblycat.blimp.event.LayerEvent;
 import org.boblycat.blimp.event.ProgressEvent;
 import org.boblycat.blimp.event.ProgressListener;
 import org.boblycat.blimp.gui.swt.thread.SwtImageWorkerThread;
-import org.boblycat.blimp.io.Serializer;
+import org.boblycat.blimp.io.Fingerprint;
 import org.boblycat.blimp.session.BlimpSession;
 import org.boblycat.blimp.session.HistoryBlimpSession;
 import org.boblycat.blimp.session.BlimpSession.PreviewQuality;
@@ -49,24 +50,28 @@ class BitmapEventSource extends EventSource<BitmapChangeListener, BitmapEvent> {
  * same image.
  */
 class ImageInfo {
-    String sessionXml;
+    Fingerprint sessionFingerprint;
     int zoomLevel;
     BlimpSession.PreviewQuality quality;
+    BitmapRegion region;
 
-    ImageInfo(String sessionXml, int zoomLevel,
-            BlimpSession.PreviewQuality quality) {
-        this.sessionXml = sessionXml;
+    ImageInfo(Fingerprint sessionFingerprint, int zoomLevel,
+            BlimpSession.PreviewQuality quality, BitmapRegion region) {
+        this.sessionFingerprint = sessionFingerprint;
         this.zoomLevel = zoomLevel;
         this.quality = quality;
+        this.region = region;
     }
 
-    boolean equals(String sessionXml, int zoomLevel,
-            BlimpSession.PreviewQuality quality) {
+    boolean equals(Fingerprint sessionFingerprint, int zoomLevel,
+            BlimpSession.PreviewQuality quality, BitmapRegion region) {
         if (this.zoomLevel != zoomLevel || this.quality != quality)
             return false;
-        if (sessionXml == null)
-            return this.sessionXml == null;
-        return sessionXml.equals(this.sessionXml);
+        if (region == null ? this.region != null : !region.equals(this.region))
+            return false;
+        if (sessionFingerprint == null)
+            return this.sessionFingerprint == null;
+        return sessionFingerprint.equals(this.sessionFingerprint);
     }
 }
 
@@ -86,7 +91,7 @@ public class ImageView extends Composite {
     int asyncRequestCount;
     boolean needNewRequest;
     ImageInfo lastRequestedImageInfo;
-    String cachedSessionXml;
+    Fingerprint cachedSessionFingerprint;
     SwtImageWorkerThread.SharedData threadData;
     BitmapEventSource bitmapEventSource;
     ProgressBarTimer progressBarTimer;
@@ -114,6 +119,13 @@ public class ImageView extends Composite {
 
         // Create GUI components
         imageCanvas = new ImageCanvas(this, SWT.NONE);
+        imageCanvas.addListener(SWT.Selection, new Listener() {
+            public void handleEvent(Event e) {
+                // scrolled outside of the generated region
+                if (!imageCanvas.isVisibleRegionAvailable())
+                    startDelayedRequest();
+            }
+        });
 
         zoomLabel = new CLabel(this, SWT.NONE);
         zoomLabel.setText("100%");
@@ -189,7 +201,7 @@ public class ImageView extends Composite {
             public void run() {
                 if (isDisposed())
                     return;
-                cachedSessionXml = null;
+                cachedSessionFingerprint = null;
                 asyncGenerateBitmap();
             }
         };
@@ -221,7 +233,9 @@ public class ImageView extends Composite {
                     PaletteData paletteData = new PaletteData(0xff, 0xff00, 0xff0000);
                     data = new ImageData(1, 1, 24, paletteData);
                 }
-                imageCanvas.setImageData(data);
+                imageCanvas.setImageData(data,
+                        Math.max(1, threadData.magnification),
+                        threadData.region, threadData.viewSize);
                 updateZoomLabel();
                 if (needNewRequest)
                     asyncGenerateBitmap();
@@ -239,7 +253,7 @@ public class ImageView extends Composite {
                 workerThread.quit();
                 // Note that while the image view calls quit() here, the worker
                 // thread may still be processing, and outlive the image view.
-                // For instance, an image export could be in progress.
+                // For instance, a print job could be in progress.
             }
         });
     }
@@ -306,17 +320,21 @@ public class ImageView extends Composite {
     }
 
     private void asyncImageRequestSent() {
-        if (cachedSessionXml == null)
-            cachedSessionXml = Serializer.beanToXml(session);
-        lastRequestedImageInfo = new ImageInfo(cachedSessionXml, zoomLevel,
-                getPreviewQuality());
+        asyncImageRequestSent(null);
+    }
+
+    private void asyncImageRequestSent(BitmapRegion region) {
+        if (cachedSessionFingerprint == null)
+            cachedSessionFingerprint = session.fingerprint();
+        lastRequestedImageInfo = new ImageInfo(cachedSessionFingerprint,
+                zoomLevel, getPreviewQuality(), region);
         asyncRequestCount++;
     }
 
-    private boolean lastRequestEqualsCurrent() {
+    private boolean lastRequestEqualsCurrent(BitmapRegion region) {
         return lastRequestedImageInfo != null
-            && lastRequestedImageInfo.equals(cachedSessionXml, zoomLevel,
-                    getPreviewQuality());
+            && lastRequestedImageInfo.equals(cachedSessionFingerprint,
+                    zoomLevel, getPreviewQuality(), region);
     }
     
     private void asyncGenerateBitmap() {
@@ -325,20 +343,27 @@ public class ImageView extends Composite {
         assert(asyncRequestCount >= 0);
         if (asyncRequestCount > 0) {
             needNewRequest = true;
+            // abort the running request if its result is already outdated
+            if (!lastRequestEqualsCurrent(imageCanvas.getVisibleRegion()))
+                workerThread.cancelActiveBitmapRequest(this);
             return;
         }
 
         needNewRequest = false;
 
-        if (lastRequestEqualsCurrent())
+        // Only the visible part of the image is requested.  The region is
+        // based on the current image, which matches the current zoom since
+        // no requests are sent while zooming is in progress.
+        BitmapRegion region = imageCanvas.getVisibleRegion();
+        if (lastRequestEqualsCurrent(region))
             return;
 
         asyncRequestCount -= workerThread.cancelRequestsByOwner(this);
         Rectangle destArea = imageCanvas.getCanvasClientArea();
         workerThread.asyncGenerateSizedBitmap(this, session, bitmapGeneratedTask,
                 destArea.width, destArea.height,
-                getPreviewQuality());
-        asyncImageRequestSent();
+                getPreviewQuality(), region);
+        asyncImageRequestSent(region);
     }
 
     public void addBitmapListener(BitmapChangeListener listener) {
@@ -441,6 +441,7 @@ public class MainWindow {
         mainTabFolder.setSelection(item);
         currentImageTab = new ImageTab(item, imageView);
         imageTabs.add(currentImageTab);
+        updateForegroundWorker();
         imageView.addBitmapListener(new BitmapChangeListener() {
             public void handleChange(BitmapEvent e) {
                 if (currentImageTab == null
@@ -475,8 +476,14 @@ public class MainWindow {
         return addImageViewWithSession(session, false);
     }
 
+    private void updateForegroundWorker() {
+        for (ImageTab tab: imageTabs)
+            tab.imageView.workerThread.setForeground(tab == currentImageTab);
+    }
+
     void updateCurrentImageTab(ImageTab newImageTab) {
         currentImageTab = newImageTab;
+        updateForegroundWorker();
         updateLayersView();
         updateExifView();
         if (currentImageTab == null) {
@@ -773,10 +780,10 @@ public class MainWindow {
         if (ext.equals("jpg") || ext.equals("jpeg"))
             quality = JpegQualityDialog.queryJpegQuality(shell);
 
-        // Export the image on the worker thread, and handle the result on the
-        // main thread.
+        // Export the image in the background, and handle the result on the
+        // main thread.  The export is cancelled if the tab is closed.
         currentImageTab.editorEnv.workerThread.asyncExportBitmap(
-                this, session, new File(filename), quality,
+                currentImageTab, session, new File(filename), quality,
                 new ImageWorkerThread.FileExportTask() {
                     public void handleSuccess(File file) {
                         SwtUtil.messageDialog(shell, "Image Exported",
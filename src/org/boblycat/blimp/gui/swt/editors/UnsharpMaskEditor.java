@@ -29,23 +29,36 @@ import org.eclipse.swt.widgets.Composite;
  */
 public class UnsharpMaskEditor extends GridBasedLayerEditor {
     UnsharpMaskLayer unsharpMask;
-    ValueSlider levelSlider;
+    ValueSlider radiusSlider;
+    ValueSlider amountSlider;
+    ValueSlider thresholdSlider;
 
     public UnsharpMaskEditor(Composite parent, int style) {
         super(parent, style);
-        levelSlider = createSlider("Level", UnsharpMaskLayer.MIN_LEVEL,
-                UnsharpMaskLayer.MAX_LEVEL, 0);
+        // radius from 0.1 to 100.0 pixels
+        radiusSlider = createSlider("Radius",
+                (int) (UnsharpMaskLayer.MIN_RADIUS * 10),
+                (int) (UnsharpMaskLayer.MAX_RADIUS * 10), 1);
+        amountSlider = createSlider("Amount", UnsharpMaskLayer.MIN_AMOUNT,
+                UnsharpMaskLayer.MAX_AMOUNT, 0);
+        thresholdSlider = createSlider("Threshold",
+                UnsharpMaskLayer.MIN_THRESHOLD,
+                UnsharpMaskLayer.MAX_THRESHOLD, 0);
     }
 
     @Override
     protected void updateLayer() {
-        unsharpMask.setLevel(levelSlider.getSelection());
+        unsharpMask.setRadius(radiusSlider.getSelectionAsDouble());
+        unsharpMask.setAmount(amountSlider.getSelection());
+        unsharpMask.setThreshold(thresholdSlider.getSelection());
     }
 
     @Override
     protected void layerChanged() {
         unsharpMask = (UnsharpMaskLayer) layer;
-        levelSlider.setSelection(unsharpMask.getLevel());
+        radiusSlider.setSelectionAsDouble(unsharpMask.getRadius());
+        amountSlider.setSelection(unsharpMask.getAmount());
+        thresholdSlider.setSelection(unsharpMask.getThreshold());
     }
 
 }
@@ -27,9 +27,9 @@ import org.boblycat.blimp.data.Bitmap;
 import org.boblycat.blimp.gui.swt.ImageConverter;
 import org.boblycat.blimp.gui.swt.SwtUtil;
 import org.boblycat.blimp.gui.swt.thread.SwtImageWorkerThread.PrintTask;
+import org.boblycat.blimp.layers.Layer;
 import org.boblycat.blimp.layers.PrintLayer;
 import org.boblycat.blimp.session.BlimpSession;
-import org.boblycat.blimp.session.BlimpSession.PreviewQuality;
 import org.boblycat.blimp.thread.ImageWorkerThread;
 import org.boblycat.blimp.thread.Request;
 import org.boblycat.blimp.util.Util;
@@ -51,19 +51,31 @@ public class PrintRequest extends Request {
         super(thread, owner, session, null);
         printTask = task;
         printer = new Printer(printerData);
-        printLayerCopy = (PrintLayer) sessionCopy.findLayer(printLayer.getName());
-        assert (printLayerCopy != null);
+        // snapshot layers must not be modified, so print from a copy
+        Layer snapshotLayer = snapshot.findLayer(printLayer.getName());
+        assert (snapshotLayer != null);
+        printLayerCopy = (PrintLayer) snapshotLayer.clone();
         printLayerCopy.setActive(true);
         printLayerCopy.setPreview(false);
-        sessionCopy.setPreviewQuality(PreviewQuality.Accurate);
+        snapshot = snapshot.withLayer(printLayerCopy);
+    }
+
+    @Override
+    protected int getPriority() {
+        return PRIORITY_BACKGROUND;
+    }
+
+    @Override
+    protected boolean isPreemptible() {
+        return true;
     }
 
     @Override
     protected void execute() throws IOException {
         Bitmap bitmap = thread.getSession().getFullBitmap();
-        ImageData imageData = ImageConverter.jiuToSwtImageData(bitmap.getImage());
+        ImageData imageData = ImageConverter.bitmapToSwtImageData(bitmap);
         Image swtImage = new Image(printer, imageData);
-        printJobName = "blimp_" + sessionCopy.getName();
+        printJobName = "blimp_" + snapshot.getName();
         if (printer.startJob(printJobName)) {
             GC gc = new GC(printer);
             try {
@@ -20,6 +20,8 @@ package org.boblycat.blimp.gui.swt.thread;
 
 
 import org.boblycat.blimp.data.Bitmap;
+import org.boblycat.blimp.data.BitmapRegion;
+import org.boblycat.blimp.data.BitmapSize;
 import org.boblycat.blimp.data.BitmapUtil;
 import org.boblycat.blimp.event.ProgressEvent;
 import org.boblycat.blimp.event.ProgressEventSource;
@@ -50,6 +52,9 @@ public class SwtImageWorkerThread extends ImageWorkerThread {
     public class SharedData {
         public ImageData imageData;
         public double zoom;
+        public int magnification;
+        public BitmapRegion region;
+        public BitmapSize viewSize;
         public Bitmap viewBitmap;
         public String errorMessage;
     }
@@ -97,12 +102,18 @@ public class SwtImageWorkerThread extends ImageWorkerThread {
         // convert to SWT image data on the worker thread
         if (bitmap != null) {
             Bitmap tmpBitmap = BitmapUtil.create8BitCopy(bitmap);
-            ImageData data = ImageConverter.jiuToSwtImageData(tmpBitmap.getImage());
+            ImageData data = ImageConverter.bitmapToSwtImageData(tmpBitmap);
             double currentZoom = getSession().getCurrentZoom();
+            int magnification = getSession().getDisplayMagnification();
+            BitmapRegion region = getSession().getCurrentRegion();
+            BitmapSize viewSize = getSession().getCurrentViewSize();
             synchronized (sharedData) {
                 sharedData.viewBitmap = tmpBitmap;
                 sharedData.imageData = data;
                 sharedData.zoom = currentZoom;
+                sharedData.magnification = magnification;
+                sharedData.region = region;
+                sharedData.viewSize = viewSize;
                 sharedData.errorMessage = null;
             }
         }
@@ -152,6 +163,9 @@ public class SwtImageWorkerThread extends ImageWorkerThread {
             returnData.imageData = sharedData.imageData;
             returnData.viewBitmap = sharedData.viewBitmap;
             returnData.zoom = sharedData.zoom;
+            returnData.magnification = sharedData.magnification;
+            returnData.region = sharedData.region;
+            returnData.viewSize = sharedData.viewSize;
             returnData.errorMessage = sharedData.errorMessage;
         }
         return returnData;
@@ -22,12 +22,17 @@ import java.beans.BeanInfo;
 import java.beans.IntrospectionException;
 import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
+import java.lang.reflect.Array;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
+import org.boblycat.blimp.data.ColorRGB;
+import org.boblycat.blimp.data.PointDouble;
 import org.boblycat.blimp.util.Util;
 
 /**
@@ -36,6 +41,10 @@ import org.boblycat.blimp.util.Util;
  * @author Knut Arild Erstad
  */
 public abstract class BlimpBean implements Iterable<BlimpBean.Property> {
+    /** Serializable property descriptors, per class. */
+    private static Map<Class<?>, PropertyDescriptor[]> descriptorCache =
+        new HashMap<Class<?>, PropertyDescriptor[]>();
+
     /**
      * Wraps a BlimpBean property using JavaBeans functionality. BlimpBean
      * properties are accessible through the Iterable interface.
@@ -123,6 +132,23 @@ public abstract class BlimpBean implements Iterable<BlimpBean.Property> {
         return true;
     }
 
+    /**
+     * This function can be overridden to accept properties which are no
+     * longer serialized, but which may be present in files written by older
+     * versions.  Legacy properties are only used when reading files, and
+     * they must have a setter.  Typically the setter converts the value to
+     * the properties which replaced it.
+     *
+     * The default implementation always returns <code>false</code>.
+     *
+     * @param name
+     *            A property name.
+     * @return <code>false</code> by default.
+     */
+    protected boolean isLegacyProperty(String name) {
+        return false;
+    }
+
     /**
      * This function can be overridden to dynamically hide some properties
      * for property editors or in the XML representation.  For instance,
@@ -141,15 +167,20 @@ public abstract class BlimpBean implements Iterable<BlimpBean.Property> {
     }
 
     /**
-     * Iterator for BlimpBean properties. This includes all JavaBean properties
-     * defined in subclasses of BlimpBean which are both readable and writable.
-     *
-     * @return An iterator for this bean's properties.
+     * Returns the descriptors of all serializable properties.  The result
+     * is cached per class, since introspection is relatively slow.
      */
-    public Iterator<Property> iterator() {
-        List<Property> props = new ArrayList<Property>();
+    private PropertyDescriptor[] getSerializableDescriptors() {
+        Class<?> beanClass = getClass();
+        synchronized (descriptorCache) {
+            PropertyDescriptor[] cached = descriptorCache.get(beanClass);
+            if (cached != null)
+                return cached;
+        }
+        List<PropertyDescriptor> descriptors =
+            new ArrayList<PropertyDescriptor>();
         try {
-            BeanInfo beanInfo = Introspector.getBeanInfo(this.getClass(),
+            BeanInfo beanInfo = Introspector.getBeanInfo(beanClass,
                     BlimpBean.class);
             PropertyDescriptor[] propertyDesc = beanInfo
                     .getPropertyDescriptors();
@@ -161,15 +192,36 @@ public abstract class BlimpBean implements Iterable<BlimpBean.Property> {
                 if (!isSerializableProperty(pd))
                     continue;
                 // TODO: skip unsupported types?
-                props.add(new Property(this, pd));
+                descriptors.add(pd);
             }
         }
         catch (IntrospectionException e) {
             Util.err("Failed to get property descriptors for class "
-                    + this.getClass().getName());
+                    + beanClass.getName());
             e.printStackTrace();
             return null;
         }
+        PropertyDescriptor[] result = descriptors.toArray(
+                new PropertyDescriptor[descriptors.size()]);
+        synchronized (descriptorCache) {
+            descriptorCache.put(beanClass, result);
+        }
+        return result;
+    }
+
+    /**
+     * Iterator for BlimpBean properties. This includes all JavaBean properties
+     * defined in subclasses of BlimpBean which are both readable and writable.
+     *
+     * @return An iterator for this bean's properties.
+     */
+    public Iterator<Property> iterator() {
+        PropertyDescriptor[] descriptors = getSerializableDescriptors();
+        if (descriptors == null)
+            return null;
+        List<Property> props = new ArrayList<Property>(descriptors.length);
+        for (PropertyDescriptor pd: descriptors)
+            props.add(new Property(this, pd));
         return props.iterator();
     }
 
@@ -190,6 +242,32 @@ public abstract class BlimpBean implements Iterable<BlimpBean.Property> {
         return null;
     }
 
+    /**
+     * Search for a legacy property with the given name.
+     * See {@link #isLegacyProperty(String)}.
+     *
+     * @param name
+     *            The name of the (JavaBeans) property to search for.
+     * @return A property with the given name, or null.
+     */
+    public Property findLegacyProperty(String name) {
+        if (!isLegacyProperty(name))
+            return null;
+        try {
+            BeanInfo beanInfo = Introspector.getBeanInfo(this.getClass(),
+                    BlimpBean.class);
+            for (PropertyDescriptor pd: beanInfo.getPropertyDescriptors()) {
+                if (pd.getName().equals(name) && pd.getWriteMethod() != null)
+                    return new Property(this, pd);
+            }
+        }
+        catch (IntrospectionException e) {
+            Util.err("Failed to get property descriptors for class "
+                    + this.getClass().getName());
+        }
+        return null;
+    }
+
     /**
      * The element name used for XML/DOM representations of beans. Override in
      * subclasses.
@@ -230,19 +308,191 @@ public abstract class BlimpBean implements Iterable<BlimpBean.Property> {
     }
 
     /**
-     * Create a deep copy of this bean. Internally, this uses Serializer
-     * functionality and is meant to work automatically for subclasses.
+     * Create a deep copy of this bean.  This copies the same information as
+     * the XML representation, see {@link #copyDataTo(BlimpBean)}, and is
+     * meant to work automatically for subclasses.
      */
     public BlimpBean clone() {
-        try {
-            return Serializer.beanFromDOM(Serializer.beanToDOM(this));
+        BlimpBean copy = Serializer.newBeanInstance(getClass());
+        copyDataTo(copy);
+        return copy;
+    }
+
+    /**
+     * Copy the visible properties and the children of this bean to another
+     * bean.  This has the same effect as
+     * {@link Serializer#copyBeanData(BlimpBean, BlimpBean)}, but the data
+     * is copied directly instead of through a DOM tree, which is much
+     * faster.  The children of the destination are replaced by copies.
+     *
+     * @param dest
+     *      a bean, normally of the same class as this one.
+     */
+    public void copyDataTo(BlimpBean dest) {
+        dest.removeAllChildren();
+        boolean sameClass = (dest.getClass() == getClass());
+        for (Property p: this) {
+            if (!isVisibleProperty(p.descriptor))
+                continue;
+            Property destProp;
+            if (sameClass)
+                destProp = new Property(dest, p.descriptor);
+            else
+                destProp = dest.findProperty(p.getName());
+            if (destProp == null) {
+                Util.warn("property not found: " + p.getName());
+                continue;
+            }
+            destProp.setValue(copyValue(p.getValue()));
         }
-        catch (ClassNotFoundException e) {
-            // should never happen
-            e.printStackTrace();
-            assert (false);
+        List<? extends BlimpBean> children = getChildren();
+        if (children == null)
+            return;
+        for (BlimpBean child: children) {
+            try {
+                dest.addChild(child.clone());
+            }
+            catch (NotImplementedException e) {
+                Util.warn("failed to add child bean of class "
+                        + child.getClass().getName());
+            }
+        }
+    }
+
+    private static Object copyValue(Object value) {
+        if (value == null)
             return null;
+        if (value.getClass().isArray()) {
+            int length = Array.getLength(value);
+            Object copy = Array.newInstance(
+                    value.getClass().getComponentType(), length);
+            for (int i = 0; i < length; i++)
+                Array.set(copy, i, copyValue(Array.get(value, i)));
+            return copy;
+        }
+        if (value instanceof PointDouble) {
+            PointDouble p = (PointDouble) value;
+            return new PointDouble(p.x, p.y);
         }
+        if (value instanceof ColorRGB) {
+            ColorRGB c = (ColorRGB) value;
+            return new ColorRGB(c.getRed(), c.getGreen(), c.getBlue());
+        }
+        // strings, enums and boxed primitives are immutable
+        return value;
+    }
+
+    /**
+     * Compute a fingerprint of the bean's contents.  This covers the same
+     * information as the XML representation (the class, all visible
+     * property values and all children), but is much cheaper to compute.
+     * It is computed from the current property values every time, since
+     * properties can be modified directly through their setters.
+     *
+     * Fingerprints are meant for cache keys, while {@link #equals(BlimpBean)}
+     * compares the beans exactly.
+     *
+     * @return A fingerprint of this bean.
+     */
+    public Fingerprint fingerprint() {
+        Fingerprint.Builder builder = new Fingerprint.Builder();
+        addToFingerprint(builder);
+        return builder.toFingerprint();
+    }
+
+    /**
+     * This function can be overridden to leave the class out of the
+     * fingerprint and out of comparisons with {@link #equals(BlimpBean)}, for
+     * beans whose XML representation does not include the class.
+     *
+     * @return <code>true</code> by default.
+     */
+    protected boolean includeClassInFingerprint() {
+        return true;
+    }
+
+    private void addToFingerprint(Fingerprint.Builder builder) {
+        if (includeClassInFingerprint())
+            builder.add(getClass().getName());
+        builder.begin();
+        for (Property p: this) {
+            if (!isVisibleProperty(p.descriptor))
+                continue;
+            builder.add(p.getName());
+            addValueToFingerprint(builder, p.getValue());
+        }
+        builder.end();
+        List<? extends BlimpBean> children = getChildren();
+        builder.begin();
+        if (children != null)
+            for (BlimpBean child: children)
+                child.addToFingerprint(builder);
+        builder.end();
+    }
+
+    private static void addValueToFingerprint(Fingerprint.Builder builder,
+            Object value) {
+        value = normalizeValue(value);
+        if (value.getClass().isArray()) {
+            builder.begin();
+            for (int i = 0; i < Array.getLength(value); i++)
+                addValueToFingerprint(builder, Array.get(value, i));
+            builder.end();
+        }
+        else if (value instanceof Double)
+            builder.add(((Double) value).doubleValue());
+        else if (value instanceof Long)
+            builder.add(((Long) value).longValue());
+        else if (value instanceof Boolean)
+            builder.add(((Boolean) value).booleanValue());
+        else
+            builder.add((String) value);
+    }
+
+    /**
+     * Convert a property value to a Double, Long, Boolean, String or array,
+     * so that values which are serialized the same way are equal.
+     */
+    private static Object normalizeValue(Object value) {
+        if (value == null) {
+            // serialized as an empty string
+            return "";
+        }
+        if (value.getClass().isArray())
+            return value;
+        if (value instanceof Double || value instanceof Float)
+            return Double.valueOf(((Number) value).doubleValue());
+        if (value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte)
+            return Long.valueOf(((Number) value).longValue());
+        if (value instanceof Boolean)
+            return value;
+        return Serializer.propertyValueToString(value);
+    }
+
+    private static boolean valueEquals(Object value1, Object value2) {
+        value1 = normalizeValue(value1);
+        value2 = normalizeValue(value2);
+        boolean isArray = value1.getClass().isArray();
+        if (isArray != value2.getClass().isArray())
+            return false;
+        if (!isArray)
+            return value1.equals(value2);
+        int length = Array.getLength(value1);
+        if (length != Array.getLength(value2))
+            return false;
+        for (int i = 0; i < length; i++)
+            if (!valueEquals(Array.get(value1, i), Array.get(value2, i)))
+                return false;
+        return true;
+    }
+
+    private List<Property> visibleProperties() {
+        List<Property> props = new ArrayList<Property>();
+        for (Property p: this)
+            if (isVisibleProperty(p.descriptor))
+                props.add(p);
+        return props;
     }
 
     public boolean equals(Object obj) {
@@ -251,20 +501,52 @@ public abstract class BlimpBean implements Iterable<BlimpBean.Property> {
         return equals((BlimpBean) obj);
     }
 
+    /**
+     * Returns the hash code of the bean's fingerprint.  Equal beans have
+     * equal fingerprints, see {@link #fingerprint()}.
+     */
     public int hashCode() {
-        return Serializer.beanToXml(this).hashCode();
+        return fingerprint().hashCode();
     }
 
     /**
-     * Test if this bean is equals to the given bean.
+     * Test if this bean is equals to the given bean.  The class (unless
+     * left out by {@link #includeClassInFingerprint()}), the visible
+     * property values and the children are compared directly.
      * @param bean A bean to test equality against.
-     * @return <code>true</code> if the bean's XML representation is equal.
+     * @return <code>true</code> if the XML representations of the beans
+     * are equal.
      */
     public boolean equals(BlimpBean bean) {
         if (bean == null)
             return false;
-        // TODO: optimize this
-        return Serializer.beanToXml(bean).equals(Serializer.beanToXml(this));
+        if (bean == this)
+            return true;
+        if (includeClassInFingerprint() != bean.includeClassInFingerprint())
+            return false;
+        if (includeClassInFingerprint() && getClass() != bean.getClass())
+            return false;
+        List<Property> props = visibleProperties();
+        List<Property> otherProps = bean.visibleProperties();
+        if (props.size() != otherProps.size())
+            return false;
+        for (int i = 0; i < props.size(); i++) {
+            Property p = props.get(i);
+            Property other = otherProps.get(i);
+            if (!p.getName().equals(other.getName())
+                    || !valueEquals(p.getValue(), other.getValue()))
+                return false;
+        }
+        List<? extends BlimpBean> children = getChildren();
+        List<? extends BlimpBean> otherChildren = bean.getChildren();
+        int count = (children == null) ? 0 : children.size();
+        int otherCount = (otherChildren == null) ? 0 : otherChildren.size();
+        if (count != otherCount)
+            return false;
+        for (int i = 0; i < count; i++)
+            if (!children.get(i).equals(otherChildren.get(i)))
+                return false;
+        return true;
     }
 
     /**
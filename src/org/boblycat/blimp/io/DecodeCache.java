@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.io;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.boblycat.blimp.data.PackedImage;
+import org.boblycat.blimp.data.PackedImageFile;
+import org.boblycat.blimp.util.Util;
+
+import net.sourceforge.jiu.data.PixelImage;
+
+/**
+ * A persistent cache of decoded input images, stored as files in a
+ * directory which is kept between runs.  This is used for input formats
+ * which are slow to decode, such as camera raw files.
+ *
+ * Each image is identified by the path, size, modification time and
+ * contents of the input file, together with a string describing the
+ * decoding parameters.  The contents are hashed once per file and run,
+ * which is fast compared to decoding.  When the total size of the cache
+ * files exceeds the budget, the least recently used files are deleted.
+ *
+ * The directory can be set with the <code>blimp.cache.dir</code> system
+ * property, and defaults to <code>.blimp/cache</code> in the user's home
+ * directory.  Setting the directory to <code>null</code> disables the
+ * cache.
+ *
+ * Newly decoded images are normally written with {@link #putLater} on a
+ * background thread, so the first preview does not wait for the file.
+ *
+ * @author Knut Arild Erstad
+ */
+public class DecodeCache {
+    private static final String SUFFIX = ".pimg";
+    private static File directory = defaultDirectory();
+    private static long budget = 4L << 30;
+    private static Map<String, String> contentHashes =
+        new HashMap<String, String>();
+    private static ThreadPoolExecutor writer;
+
+    static class WriterThreadFactory implements ThreadFactory {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Blimp Decode Cache Writer");
+            // Not a daemon thread, so a file being written is completed
+            // when the application exits.
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    }
+
+    private DecodeCache() {
+    }
+
+    private static File defaultDirectory() {
+        String path = System.getProperty("blimp.cache.dir");
+        if (path != null)
+            return path.length() > 0 ? new File(path) : null;
+        String home = System.getProperty("user.home");
+        if (home == null)
+            return null;
+        return new File(new File(home, ".blimp"), "cache");
+    }
+
+    /**
+     * Set the cache directory, or <code>null</code> to disable the cache.
+     */
+    public static synchronized void setDirectory(File dir) {
+        directory = dir;
+    }
+
+    public static synchronized File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Set the maximum total size of the cache files, in bytes.
+     */
+    public static synchronized void setBudget(long bytes) {
+        budget = bytes;
+    }
+
+    public static synchronized long getBudget() {
+        return budget;
+    }
+
+    private static String contentHash(File file) throws IOException {
+        String statKey = file.getPath() + '\n' + file.length() + '\n'
+            + file.lastModified();
+        synchronized (DecodeCache.class) {
+            String hash = contentHashes.get(statKey);
+            if (hash != null)
+                return hash;
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 is not supported: " + e.getMessage());
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[1 << 16];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                digest.update(buffer, 0, n);
+        }
+        finally {
+            in.close();
+        }
+        StringBuilder hash = new StringBuilder();
+        for (byte b: digest.digest())
+            hash.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+        synchronized (DecodeCache.class) {
+            contentHashes.put(statKey, hash.toString());
+        }
+        return hash.toString();
+    }
+
+    private static File cacheFile(File dir, File input, String parameters)
+            throws IOException {
+        Fingerprint.Builder builder = new Fingerprint.Builder();
+        builder.add(input.getAbsolutePath());
+        builder.add(input.length());
+        builder.add(input.lastModified());
+        builder.add(contentHash(input));
+        builder.add(parameters);
+        return new File(dir, builder.toFingerprint().toString() + SUFFIX);
+    }
+
+    /**
+     * Look up a decoded image.
+     *
+     * @param input
+     *      the input file.
+     * @param parameters
+     *      a description of all parameters which affect the decoded image.
+     * @return
+     *      the image, or <code>null</code> if it is not in the cache.
+     */
+    public static PackedImage get(File input, String parameters) {
+        File dir = getDirectory();
+        if (dir == null || !input.isFile())
+            return null;
+        File file = null;
+        try {
+            file = cacheFile(dir, input, parameters);
+            if (!file.isFile())
+                return null;
+            PackedImage image = PackedImageFile.read(file);
+            // the modification time is used for finding unused files
+            file.setLastModified(System.currentTimeMillis());
+            return image;
+        }
+        catch (IOException e) {
+            Util.warn("Failed to read a cached image for " + input + ": "
+                    + e.getMessage());
+            if (file != null)
+                file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Store a decoded image.  Errors are logged and otherwise ignored.
+     *
+     * @param input
+     *      the input file.
+     * @param parameters
+     *      a description of all parameters which affect the decoded image.
+     * @param image
+     *      the decoded image.
+     */
+    public static void put(File input, String parameters, PackedImage image) {
+        put(input, parameters, image, null);
+    }
+
+    /**
+     * Store a decoded image on a background thread, and return
+     * immediately.  The samples are read directly from the image while
+     * the file is written, so the image must not be modified afterwards.
+     * Errors are logged and otherwise ignored.
+     *
+     * @param input
+     *      the input file.
+     * @param parameters
+     *      a description of all parameters which affect the decoded image.
+     * @param image
+     *      the decoded image, see {@link PackedImage#isSupported}.
+     */
+    public static void putLater(final File input, final String parameters,
+            final PixelImage image) {
+        if (getDirectory() == null)
+            return;
+        getWriter().execute(new Runnable() {
+            public void run() {
+                put(input, parameters, null, image);
+            }
+        });
+    }
+
+    private static synchronized ThreadPoolExecutor getWriter() {
+        if (writer == null) {
+            // The thread is stopped after a while without writes.
+            writer = new ThreadPoolExecutor(0, 1, 10, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new WriterThreadFactory());
+        }
+        return writer;
+    }
+
+    /**
+     * Wait until the images passed to {@link #putLater} have been stored.
+     */
+    static void waitForWrites() throws InterruptedException {
+        try {
+            getWriter().submit(new Runnable() {
+                public void run() {
+                }
+            }).get();
+        }
+        catch (ExecutionException e) {
+            // cannot happen for an empty task
+        }
+    }
+
+    /**
+     * Store either a packed image, or a JIU image if <code>packed</code>
+     * is <code>null</code>.
+     */
+    private static void put(File input, String parameters,
+            PackedImage packed, PixelImage jiuImage) {
+        File dir = getDirectory();
+        if (dir == null || !input.isFile())
+            return;
+        File temp = null;
+        try {
+            File file = cacheFile(dir, input, parameters);
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("Failed to create " + dir);
+            // write to a temporary file first, so other processes never
+            // see a partial file
+            temp = File.createTempFile("blimp", ".tmp", dir);
+            if (packed != null)
+                PackedImageFile.write(packed, temp);
+            else
+                PackedImageFile.write(jiuImage, temp);
+            if (!temp.renameTo(file)) {
+                file.delete();
+                if (!temp.renameTo(file))
+                    throw new IOException("Failed to rename " + temp);
+            }
+            temp = null;
+        }
+        catch (IOException e) {
+            Util.warn("Failed to cache the decoded image for " + input
+                    + ": " + e.getMessage());
+        }
+        finally {
+            if (temp != null)
+                temp.delete();
+        }
+        trim(dir);
+    }
+
+    /**
+     * Delete the least recently used files until the cache fits within
+     * the budget.
+     */
+    private static void trim(File dir) {
+        File[] files = dir.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.getName().endsWith(SUFFIX);
+            }
+        });
+        if (files == null)
+            return;
+        long total = 0;
+        for (File file: files)
+            total += file.length();
+        long max = getBudget();
+        if (total <= max)
+            return;
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (int i = 0; i < files.length && total > max; i++) {
+            long size = files[i].length();
+            if (files[i].delete())
+                total -= size;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.io;
+
+/**
+ * A 128-bit hash which identifies the contents of a {@link BlimpBean},
+ * see {@link BlimpBean#fingerprint()}.  Two beans with the same XML
+ * representation always have the same fingerprint, and beans with
+ * different contents have different fingerprints with overwhelming
+ * probability.
+ *
+ * Fingerprints are created by adding values one at a time to a
+ * {@link Builder}.  Unlike XML serialization, this does not create any
+ * intermediate strings or DOM nodes, and can be used from any thread.
+ *
+ * @author Knut Arild Erstad
+ */
+public final class Fingerprint {
+    private final long high;
+    private final long low;
+
+    public Fingerprint(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    public long getHigh() {
+        return high;
+    }
+
+    public long getLow() {
+        return low;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Fingerprint))
+            return false;
+        Fingerprint other = (Fingerprint) obj;
+        return high == other.high && low == other.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (low ^ (low >>> 32));
+    }
+
+    /**
+     * Returns the fingerprint as 32 hexadecimal digits.
+     */
+    @Override
+    public String toString() {
+        return hex(high) + hex(low);
+    }
+
+    private static String hex(long value) {
+        String str = Long.toHexString(value);
+        StringBuilder buf = new StringBuilder(16);
+        for (int i = str.length(); i < 16; i++)
+            buf.append('0');
+        return buf.append(str).toString();
+    }
+
+    /**
+     * Accumulates values into a fingerprint.  Each value is mixed into two
+     * independent 64-bit hashes.  Values of different types are tagged, so
+     * for instance the integer 1 and the string "1" give different results.
+     */
+    public static class Builder {
+        private static final int TAG_NULL = 1;
+        private static final int TAG_LONG = 2;
+        private static final int TAG_DOUBLE = 3;
+        private static final int TAG_STRING = 4;
+        private static final int TAG_BOOLEAN = 5;
+        private static final int TAG_BEGIN = 6;
+        private static final int TAG_END = 7;
+
+        private long high = 0x6a09e667f3bcc908L;
+        private long low = 0xbb67ae8584caa73bL;
+
+        /**
+         * The finalizer of the SplitMix64 generator, which is a bijection
+         * with good avalanche properties.
+         */
+        private static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            return z ^ (z >>> 31);
+        }
+
+        private void addRaw(long value) {
+            high = mix(high ^ value) + 0x9e3779b97f4a7c15L;
+            low = mix(low + value * 0xc2b2ae3d27d4eb4fL) ^ 0x165667b19e3779f9L;
+        }
+
+        public Builder addNull() {
+            addRaw(TAG_NULL);
+            return this;
+        }
+
+        public Builder add(long value) {
+            addRaw(TAG_LONG);
+            addRaw(value);
+            return this;
+        }
+
+        public Builder add(double value) {
+            addRaw(TAG_DOUBLE);
+            addRaw(Double.doubleToLongBits(value));
+            return this;
+        }
+
+        public Builder add(boolean value) {
+            addRaw(TAG_BOOLEAN);
+            addRaw(value ? 1 : 0);
+            return this;
+        }
+
+        public Builder add(String value) {
+            if (value == null)
+                return addNull();
+            addRaw(TAG_STRING);
+            addRaw(value.length());
+            int n = value.length();
+            int i = 0;
+            // four characters at a time
+            for (; i + 4 <= n; i += 4)
+                addRaw(((long) value.charAt(i) << 48)
+                        | ((long) value.charAt(i + 1) << 32)
+                        | ((long) value.charAt(i + 2) << 16)
+                        | value.charAt(i + 3));
+            for (; i < n; i++)
+                addRaw(value.charAt(i));
+            return this;
+        }
+
+        public Builder add(Fingerprint value) {
+            addRaw(value.high);
+            addRaw(value.low);
+            return this;
+        }
+
+        /** Marks the start of a nested structure, such as an array. */
+        public Builder begin() {
+            addRaw(TAG_BEGIN);
+            return this;
+        }
+
+        /** Marks the end of a nested structure. */
+        public Builder end() {
+            addRaw(TAG_END);
+            return this;
+        }
+
+        public Fingerprint toFingerprint() {
+            return new Fingerprint(mix(high), mix(low ^ high));
+        }
+    }
+}
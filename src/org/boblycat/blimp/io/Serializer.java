@@ -337,6 +337,8 @@ public class Serializer {
             if (nodeName.equals("property")) {
                 String propName = element.getAttribute("name");
                 BlimpBean.Property prop = dest.findProperty(propName);
+                if (prop == null)
+                    prop = dest.findLegacyProperty(propName);
                 if (prop == null)
                     beanParseWarning("property not found: " + propName);
                 else
@@ -18,13 +18,24 @@
  */
 package org.boblycat.blimp.layers;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 
 import org.boblycat.blimp.data.Bitmap;
+import org.boblycat.blimp.data.BitmapUtil;
+import org.boblycat.blimp.data.PackedImage;
 import org.boblycat.blimp.event.ProgressEvent;
+import org.boblycat.blimp.ops.LookupOperation;
+import org.boblycat.blimp.ops.LookupTable;
 import org.boblycat.blimp.session.LayerRearranger;
+import org.boblycat.blimp.util.BandExecutor;
+import org.boblycat.blimp.util.CancellationToken;
+import org.boblycat.blimp.util.CancelledException;
 import org.boblycat.blimp.util.Util;
 
+import net.sourceforge.jiu.data.IntegerImage;
 import net.sourceforge.jiu.data.PixelImage;
 import net.sourceforge.jiu.ops.ImageToImageOperation;
 import net.sourceforge.jiu.ops.ProgressListener;
@@ -33,6 +44,15 @@ import net.sourceforge.jiu.ops.ProgressListener;
  * Abstract base class for adjustment layers.
  */
 public abstract class AdjustmentLayer extends Layer {
+    /** The smallest band height used when processing in parallel. */
+    static final int MIN_BAND_HEIGHT = 64;
+    /** Images with fewer pixels than this are never split into bands. */
+    static final int MIN_PARALLEL_PIXELS = 256 * 256;
+
+    private interface BandFunction {
+        Bitmap apply(Bitmap band);
+    }
+
     public abstract Bitmap applyLayer(Bitmap source);
 
     class JiuProgressListener implements ProgressListener {
@@ -55,31 +75,287 @@ public abstract class AdjustmentLayer extends Layer {
         }
     }
 
-    /** Helper function for applying JIU operations */
+    /**
+     * Checks the current {@link CancellationToken} whenever a JIU operation
+     * reports progress, which most operations do for every row.
+     */
+    static class JiuCancellationListener implements ProgressListener {
+        CancellationToken token;
+
+        JiuCancellationListener(CancellationToken token) {
+            this.token = token;
+        }
+
+        public void setProgress(float progress) {
+            token.check();
+        }
+
+        public void setProgress(int index, int size) {
+            token.check();
+        }
+    }
+
+    /**
+     * Helper function for applying JIU operations.  If the current thread
+     * has a {@link CancellationToken}, it is checked while the operation
+     * runs, and a {@link CancelledException} is passed on to the caller.
+     */
     protected PixelImage applyJiuOperation(PixelImage input,
             ImageToImageOperation op) {
         PixelImage image = input;
         op.setInputImage(image);
         ProgressListener listener = null;
-        if (progressEventSource.size() > 0) {
+        // Progress is not reported for single bands processed in parallel
+        if (progressEventSource.size() > 0 && !BandExecutor.isBandThread()) {
             listener = new JiuProgressListener(this);
             op.addProgressListener(listener);
         }
+        ProgressListener cancellationListener = null;
+        CancellationToken token = CancellationToken.getCurrent();
+        if (token != null) {
+            token.check();
+            cancellationListener = new JiuCancellationListener(token);
+            op.addProgressListener(cancellationListener);
+        }
         try {
             op.process();
             image = op.getOutputImage();
         }
+        catch (CancelledException e) {
+            throw e;
+        }
         catch (Exception e) {
             Util.logger.log(Level.SEVERE,
                     op.getClass().getName() + " failed with a "
                     + e.getClass().getName() + ": " + e.getMessage(),
                     e);
         }
-        if (listener != null)
-            op.removeProgressListener(listener);
+        finally {
+            if (listener != null)
+                op.removeProgressListener(listener);
+            if (cancellationListener != null)
+                op.removeProgressListener(cancellationListener);
+        }
         return image;
     }
 
+    /**
+     * Applies a lookup table to the source bitmap.  This is used by layers
+     * which implement {@link PointOperation}, and by the session when the
+     * tables of several consecutive point operations are combined.
+     * The result is a packed bitmap for RGB images, see {@link PackedImage}.
+     *
+     * @param source
+     *      the source bitmap.
+     * @param table
+     *      a lookup table which matches the source image.
+     * @return
+     *      a new bitmap.
+     */
+    public Bitmap applyLookupTable(Bitmap source, final LookupTable table) {
+        final PackedImage packedInput = source.getPackedImage();
+        final PixelImage input = (packedInput == null) ? source.getImage()
+                : null;
+        if (packedInput == null && !PackedImage.isSupported(input)) {
+            return applyInBands(source, 0, new BandFunction() {
+                public Bitmap apply(Bitmap band) {
+                    return new Bitmap(applyJiuOperation(band.getImage(),
+                            new LookupOperation(table)));
+                }
+            });
+        }
+        int width = source.getWidth();
+        int height = source.getHeight();
+        final PackedImage output = PackedImage.allocate(width, height,
+                source.getChannelBitDepth() > 8);
+        // the bands are written directly to the output, so no overlap or
+        // copying is needed
+        int numBands = bandCount(width, height, 0);
+        if (numBands <= 1) {
+            applyLookupTableToRows(table, packedInput, input, output,
+                    0, height);
+            return new Bitmap(output);
+        }
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int i = 0; i < numBands; i++) {
+            final int startRow = (int) ((long) height * i / numBands);
+            final int endRow = (int) ((long) height * (i + 1) / numBands);
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    applyLookupTableToRows(table, packedInput, input, output,
+                            startRow, endRow);
+                    return null;
+                }
+            });
+        }
+        BandExecutor.invokeAll(tasks);
+        return new Bitmap(output);
+    }
+
+    private static void applyLookupTableToRows(LookupTable table,
+            PackedImage packedInput, PixelImage input, PackedImage output,
+            int startRow, int endRow) {
+        CancellationToken.checkCurrent();
+        if (packedInput != null)
+            LookupOperation.apply(table, packedInput, output, startRow, endRow);
+        else
+            LookupOperation.apply(table, input, output, startRow, endRow);
+    }
+
+    /**
+     * Returns the number of rows needed above and below a horizontal band
+     * of the source bitmap in order to correctly compute the band on its
+     * own.  Layers which support parallel processing of bands should
+     * override this.  For instance, a filter using a neighbourhood of
+     * <code>r</code> pixels should return at least <code>r</code>.
+     *
+     * The same number of pixels is also used as a margin on all sides
+     * when only a region of the image is generated, so layers returning
+     * a non-negative value must not depend on pixels further away
+     * horizontally either.
+     *
+     * The default implementation returns zero for layers which implement
+     * {@link PointOperation}, and -1 for all other layers.
+     *
+     * @param source
+     *      the source bitmap.
+     * @return
+     *      the number of overlapping rows, or a negative number if the layer
+     *      cannot be applied to separate bands.
+     */
+    public int getBandOverlap(Bitmap source) {
+        if (this instanceof PointOperation)
+            return 0;
+        return -1;
+    }
+
+    /**
+     * Apply the layer, possibly splitting the source bitmap into horizontal
+     * bands which are processed in parallel by the {@link BandExecutor}.
+     * The result is the same as for {@link #applyLayer(Bitmap)}, which is
+     * called directly for layers and images where splitting is not
+     * possible or worthwhile.
+     *
+     * @param source
+     *      the source bitmap.
+     * @return
+     *      the resulting bitmap.
+     */
+    public Bitmap applyLayerParallel(Bitmap source) {
+        int overlap = canChangeDimensions() ? -1 : getBandOverlap(source);
+        return applyInBands(source, overlap, new BandFunction() {
+            public Bitmap apply(Bitmap band) {
+                return applyLayer(band);
+            }
+        });
+    }
+
+    private static int bandCount(int width, int height, int overlap) {
+        if (overlap < 0 || !BandExecutor.isParallelEnabled())
+            return 1;
+        if ((long) width * height < MIN_PARALLEL_PIXELS)
+            return 1;
+        // avoid bands where most of the work is spent on the overlap
+        int minHeight = Math.max(MIN_BAND_HEIGHT, 2 * overlap);
+        return Math.min(BandExecutor.getThreadCount(), height / minHeight);
+    }
+
+    private static boolean allPacked(List<Bitmap> bitmaps) {
+        for (Bitmap bitmap: bitmaps)
+            if (bitmap.getPackedImage() == null)
+                return false;
+        return true;
+    }
+
+    private Bitmap applyInBands(Bitmap source, int overlap,
+            final BandFunction function) {
+        PackedImage packed = source.getPackedImage();
+        PixelImage image = (packed == null) ? source.getImage() : null;
+        int numBands;
+        if (packed == null && !(image instanceof IntegerImage))
+            numBands = 1;
+        else
+            numBands = bandCount(source.getWidth(), source.getHeight(),
+                    overlap);
+        if (numBands <= 1)
+            return function.apply(source);
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int[] bandStart = new int[numBands + 1];
+        int[] paddedStart = new int[numBands];
+        int[] paddedEnd = new int[numBands];
+        List<Callable<Bitmap>> tasks = new ArrayList<Callable<Bitmap>>();
+        for (int i = 0; i <= numBands; i++)
+            bandStart[i] = (int) ((long) height * i / numBands);
+        for (int i = 0; i < numBands; i++) {
+            paddedStart[i] = Math.max(0, bandStart[i] - overlap);
+            paddedEnd[i] = Math.min(height, bandStart[i + 1] + overlap);
+            int bandHeight = paddedEnd[i] - paddedStart[i];
+            // bands of packed images share the pixel array with the source
+            final Bitmap band;
+            if (packed != null)
+                band = new Bitmap(packed.getRegion(0, paddedStart[i],
+                        width, bandHeight));
+            else
+                band = new Bitmap(BitmapUtil.copyRegion(image, 0,
+                        paddedStart[i], width, bandHeight));
+            band.setPixelScaleFactor(source.getPixelScaleFactor());
+            band.setExifTable(source.getExifTable());
+            tasks.add(new Callable<Bitmap>() {
+                public Bitmap call() {
+                    return function.apply(band);
+                }
+            });
+        }
+        List<Bitmap> results = BandExecutor.invokeAll(tasks);
+        CancellationToken.checkCurrent();
+        for (int i = 0; i < numBands; i++) {
+            Bitmap result = results.get(i);
+            if (result == null || result.getWidth() != width
+                    || result.getHeight() != paddedEnd[i] - paddedStart[i]) {
+                Util.warn(getClass().getName() + " changed the band size, "
+                        + "applying it to the whole image instead");
+                return function.apply(source);
+            }
+        }
+        Bitmap merged;
+        if (allPacked(results)) {
+            PackedImage output = null;
+            for (int i = 0; i < numBands; i++) {
+                PackedImage result = results.get(i).getPackedImage();
+                if (output == null)
+                    output = result.createCompatibleImage(width, height);
+                result.copyTo(0, bandStart[i] - paddedStart[i],
+                        width, bandStart[i + 1] - bandStart[i],
+                        output, 0, bandStart[i]);
+            }
+            merged = new Bitmap(output);
+        }
+        else {
+            PixelImage output = null;
+            for (int i = 0; i < numBands; i++) {
+                PixelImage result = results.get(i).getImage();
+                if (output == null)
+                    output = result.createCompatibleImage(width, height);
+                BitmapUtil.copyRegion(result,
+                        0, bandStart[i] - paddedStart[i],
+                        width, bandStart[i + 1] - bandStart[i],
+                        output, 0, bandStart[i]);
+            }
+            merged = new Bitmap(output);
+        }
+        // the band results are not used elsewhere, so off-heap memory can
+        // be released right away (regions of the source are left alone)
+        for (Bitmap result: results) {
+            PackedImage packedResult = result.getPackedImage();
+            if (packedResult != null)
+                packedResult.release();
+        }
+        merged.setPixelScaleFactor(results.get(0).getPixelScaleFactor());
+        merged.setExifTable(results.get(0).getExifTable());
+        return merged;
+    }
+
     /**
      * All layers that change the dimensions of an image must override this
      * function and return <code>true</code>.  This is used when deciding the
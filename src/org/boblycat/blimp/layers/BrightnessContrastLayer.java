@@ -19,13 +19,12 @@
 package org.boblycat.blimp.layers;
 
 import org.boblycat.blimp.data.Bitmap;
+import org.boblycat.blimp.ops.LookupTable;
 
-import net.sourceforge.jiu.data.PixelImage;
 import net.sourceforge.jiu.util.MathUtil;
-import net.sourceforge.jiu.color.adjustment.Brightness;
-import net.sourceforge.jiu.color.adjustment.MultiplicativeContrast;
 
-public class BrightnessContrastLayer extends AdjustmentLayer {
+public class BrightnessContrastLayer extends AdjustmentLayer
+implements PointOperation {
     public static final int MIN_BRIGHTNESS = -100;
     public static final int MAX_BRIGHTNESS = 100;
     public static final int MIN_CONTRAST = 0;
@@ -59,18 +58,54 @@ public class BrightnessContrastLayer extends AdjustmentLayer {
     }
 
     public Bitmap applyLayer(Bitmap source) {
-        PixelImage image = source.getImage();
-        if (brightness != 0) {
-            Brightness bOp = new Brightness();
-            bOp.setBrightness(brightness);
-            image = applyJiuOperation(image, bOp);
+        LookupTable table = LookupTable.forBitmap(source);
+        updateLookupTable(table);
+        return applyLookupTable(source, table);
+    }
+
+    /**
+     * Returns the brightness function used by the JIU
+     * <code>Brightness</code> operation, which moves each sample towards
+     * white or black.
+     */
+    static int[] brightnessFunction(int maxSample, int brightness) {
+        int[] function = new int[maxSample + 1];
+        float n = (100.0f - Math.abs(brightness)) / 100.0f;
+        for (int i = 0; i <= maxSample; i++) {
+            if (brightness < 0)
+                function[i] = (int) (i * n);
+            else
+                function[i] = maxSample - (int) ((maxSample - i) * n);
         }
-        if (contrast != 100) {
-            MultiplicativeContrast op = new MultiplicativeContrast();
-            op.setContrast(contrast);
-            image = applyJiuOperation(image, op);
+        return function;
+    }
+
+    /**
+     * Returns the contrast function used by the JIU
+     * <code>MultiplicativeContrast</code> operation, which scales the
+     * distance from the middle value.
+     */
+    static int[] contrastFunction(int maxSample, int contrast) {
+        int[] function = new int[maxSample + 1];
+        float mid = maxSample / 2.0f;
+        float c = contrast / 100.0f;
+        for (int i = 0; i <= maxSample; i++) {
+            int value = Math.round(mid + (i - mid) * c);
+            function[i] = MathUtil.clamp(value, 0, maxSample);
         }
-        return new Bitmap(image);
+        return function;
+    }
+
+    public void updateLookupTable(LookupTable table) {
+        // The two steps are appended separately, with rounding in between,
+        // so the result is identical to applying the JIU operations one
+        // after the other.
+        if (brightness != 0)
+            table.apply(-1, brightnessFunction(table.getMaxSample(),
+                    brightness));
+        if (contrast != 100)
+            table.apply(-1, contrastFunction(table.getMaxSample(),
+                    contrast));
     }
 
     public String getDescription() {
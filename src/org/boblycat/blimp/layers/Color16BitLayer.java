@@ -34,6 +34,12 @@ public class Color16BitLayer extends AdjustmentLayer {
         return new Bitmap(image);
     }
 
+    @Override
+    public int getBandOverlap(Bitmap source) {
+        // pixels are processed independently
+        return 0;
+    }
+
     @Override
     public String getDescription() {
         return "16-bit Color Depth";
@@ -61,6 +61,12 @@ public class ColorBalanceLayer extends AdjustmentLayer {
         return new Bitmap(applyJiuOperation(source.getImage(), op));
     }
 
+    @Override
+    public int getBandOverlap(Bitmap source) {
+        // pixels are processed independently
+        return 0;
+    }
+
     /* (non-Javadoc)
      * @see org.boblycat.blimp.layers.Layer#getDescription()
      */
@@ -48,6 +48,12 @@ public class ColorizeLayer extends AdjustmentLayer {
         return new Bitmap(applyJiuOperation(source.getImage(), op));
     }
 
+    @Override
+    public int getBandOverlap(Bitmap source) {
+        // pixels are processed independently
+        return 0;
+    }
+
     @Override
     public String getDescription() {
         return "Colorize";
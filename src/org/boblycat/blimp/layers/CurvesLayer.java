@@ -23,12 +23,12 @@ import java.util.TreeMap;
 import org.boblycat.blimp.data.Bitmap;
 import org.boblycat.blimp.data.PointDouble;
 import org.boblycat.blimp.data.RGBChannel;
+import org.boblycat.blimp.ops.LookupTable;
 
-import net.sourceforge.jiu.color.adjustment.Curves;
-import net.sourceforge.jiu.data.PixelImage;
+import net.sourceforge.jiu.util.MathUtil;
 import net.sourceforge.jiu.util.NaturalCubicSpline;
 
-public class CurvesLayer extends AdjustmentLayer {
+public class CurvesLayer extends AdjustmentLayer implements PointOperation {
     NaturalCubicSpline spline;
     RGBChannel channel;
 
@@ -40,12 +40,27 @@ public class CurvesLayer extends AdjustmentLayer {
     }
 
     public Bitmap applyLayer(Bitmap source) {
-        Curves curvesOp = new Curves();
-        curvesOp.setSpline(spline);
-        curvesOp.setChannel(channel.toJiuIndex());
-        PixelImage image = source.getImage();
-        image = applyJiuOperation(image, curvesOp);
-        return new Bitmap(image);
+        LookupTable table = LookupTable.forBitmap(source);
+        updateLookupTable(table);
+        return applyLookupTable(source, table);
+    }
+
+    public void updateLookupTable(LookupTable table) {
+        table.applyNormalized(channel.toJiuIndex(),
+                splineFunction(spline, table));
+    }
+
+    /**
+     * Evaluates a spline at every sample value of the given table.
+     * The result is clamped to values between zero and one.
+     */
+    static double[] splineFunction(NaturalCubicSpline spline,
+            LookupTable table) {
+        double[] values = spline.getSplineValues(0.0, 1.0,
+                table.getMaxSample() + 1);
+        for (int i = 0; i < values.length; i++)
+            values[i] = MathUtil.clamp(values[i], 0.0, 1.0);
+        return values;
     }
 
     public String getDescription() {
@@ -19,11 +19,12 @@
 package org.boblycat.blimp.layers;
 
 import org.boblycat.blimp.data.Bitmap;
+import org.boblycat.blimp.ops.LookupTable;
 import org.boblycat.blimp.util.Util;
 
 import net.sourceforge.jiu.color.adjustment.GammaCorrection;
 
-public class GammaLayer extends AdjustmentLayer {
+public class GammaLayer extends AdjustmentLayer implements PointOperation {
     double gamma;
 
     public GammaLayer() {
@@ -44,9 +45,17 @@ public class GammaLayer extends AdjustmentLayer {
 
     @Override
     public Bitmap applyLayer(Bitmap source) {
-        GammaCorrection op = new GammaCorrection();
-        op.setGamma(gamma);
-        return new Bitmap(applyJiuOperation(source.getImage(), op));
+        LookupTable table = LookupTable.forBitmap(source);
+        updateLookupTable(table);
+        return applyLookupTable(source, table);
+    }
+
+    public void updateLookupTable(LookupTable table) {
+        double exponent = 1.0 / gamma;
+        double[] function = new double[table.getMaxSample() + 1];
+        for (int i = 0; i < function.length; i++)
+            function[i] = Math.pow(table.normalize(i), exponent);
+        table.applyNormalized(-1, function);
     }
 
     @Override
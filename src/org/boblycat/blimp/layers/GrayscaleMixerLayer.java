@@ -80,6 +80,12 @@ public class GrayscaleMixerLayer extends AdjustmentLayer {
         return new Bitmap(image);
     }
 
+    @Override
+    public int getBandOverlap(Bitmap source) {
+        // pixels are processed independently
+        return 0;
+    }
+
     @Override
     public String getDescription() {
         return "Grayscale Mixer";
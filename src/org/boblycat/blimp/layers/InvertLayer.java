@@ -19,15 +19,21 @@
 package org.boblycat.blimp.layers;
 
 import org.boblycat.blimp.data.Bitmap;
+import org.boblycat.blimp.ops.LookupTable;
 
-import net.sourceforge.jiu.data.PixelImage;
-import net.sourceforge.jiu.color.Invert;
-
-public class InvertLayer extends AdjustmentLayer {
+public class InvertLayer extends AdjustmentLayer implements PointOperation {
     public Bitmap applyLayer(Bitmap source) {
-        PixelImage image = source.getImage();
-        image = applyJiuOperation(image, new Invert());
-        return new Bitmap(image);
+        LookupTable table = LookupTable.forBitmap(source);
+        updateLookupTable(table);
+        return applyLookupTable(source, table);
+    }
+
+    public void updateLookupTable(LookupTable table) {
+        int max = table.getMaxSample();
+        int[] function = new int[max + 1];
+        for (int i = 0; i <= max; i++)
+            function[i] = max - i;
+        table.apply(function);
     }
 
     public String getDescription() {
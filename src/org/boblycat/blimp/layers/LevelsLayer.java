@@ -18,28 +18,13 @@
  */
 package org.boblycat.blimp.layers;
 
-import net.sourceforge.jiu.color.adjustment.Curves;
 import net.sourceforge.jiu.util.MathUtil;
 import net.sourceforge.jiu.util.NaturalCubicSpline;
 
 import org.boblycat.blimp.data.Bitmap;
+import org.boblycat.blimp.ops.LookupTable;
 
-class LevelsOperation extends Curves {
-    void setValues(double blackLevel, double center, double whiteLevel) {
-        NaturalCubicSpline spline = new NaturalCubicSpline();
-        // point 1: (black, 0)
-        // point 2: (center, 0.5)
-        // point 3: (white, 1)
-        spline.addPoint(blackLevel, 0);
-        // ignore the center value if it is not between black and white
-        if (center > blackLevel && center < whiteLevel)
-            spline.addPoint(center, 0.5);
-        spline.addPoint(whiteLevel, 1);
-        setSpline(spline);
-    }
-}
-
-public class LevelsLayer extends AdjustmentLayer {
+public class LevelsLayer extends AdjustmentLayer implements PointOperation {
     private double blackLevel;
     private double center;
     private double whiteLevel;
@@ -52,9 +37,22 @@ public class LevelsLayer extends AdjustmentLayer {
 
     @Override
     public Bitmap applyLayer(Bitmap source) {
-        LevelsOperation op = new LevelsOperation();
-        op.setValues(blackLevel, center, whiteLevel);
-        return new Bitmap(applyJiuOperation(source.getImage(), op));
+        LookupTable table = LookupTable.forBitmap(source);
+        updateLookupTable(table);
+        return applyLookupTable(source, table);
+    }
+
+    public void updateLookupTable(LookupTable table) {
+        NaturalCubicSpline spline = new NaturalCubicSpline();
+        // point 1: (black, 0)
+        // point 2: (center, 0.5)
+        // point 3: (white, 1)
+        spline.addPoint(blackLevel, 0);
+        // ignore the center value if it is not between black and white
+        if (center > blackLevel && center < whiteLevel)
+            spline.addPoint(center, 0.5);
+        spline.addPoint(whiteLevel, 1);
+        table.applyNormalized(-1, CurvesLayer.splineFunction(spline, table));
     }
 
     @Override
@@ -18,10 +18,10 @@
  */
 package org.boblycat.blimp.layers;
 
-import net.sourceforge.jiu.filters.LocalContrast;
 import net.sourceforge.jiu.util.MathUtil;
 
 import org.boblycat.blimp.data.Bitmap;
+import org.boblycat.blimp.ops.LocalContrastFilter;
 
 /**
  * A layer for adding contrast in local areas within an image.
@@ -41,18 +41,27 @@ public class LocalContrastLayer extends AdjustmentLayer {
     public static final int MIN_ADAPTIVE = 0;
     public static final int MAX_AMOUNT = 1000;
     public static final int MAX_RADIUS = 1000;
-    public static final int MAX_ADAPTIVE = LocalContrast.MAX_ADAPTIVE;
+    public static final int MAX_ADAPTIVE = LocalContrastFilter.MAX_ADAPTIVE;
     private int radius = 100;
     private int amount = 100;
     private int adaptive = 70;
 
     @Override
     public Bitmap applyLayer(Bitmap source) {
-        LocalContrast op = new LocalContrast();
-        op.setModifiers((int) (radius / source.getPixelScaleFactor()), amount, adaptive);
+        LocalContrastFilter op = new LocalContrastFilter();
+        op.setModifiers(scaledRadius(source), amount, adaptive);
         return new Bitmap(applyJiuOperation(source.getImage(), op));
     }
 
+    private int scaledRadius(Bitmap source) {
+        return Math.max(1, (int) (radius / source.getPixelScaleFactor()));
+    }
+
+    @Override
+    public int getBandOverlap(Bitmap source) {
+        return scaledRadius(source) + 1;
+    }
+
     @Override
     public String getDescription() {
         return "Local Contrast Enhancement";
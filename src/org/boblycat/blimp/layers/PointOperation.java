@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.layers;
+
+import org.boblycat.blimp.ops.LookupTable;
+
+/**
+ * Interface for adjustment layers which are pure point operations, meaning
+ * that each output sample only depends on the input sample at the same
+ * position and in the same channel.
+ *
+ * The session will combine consecutive active point operations into a
+ * single lookup table, which is applied to the image in one pass.
+ *
+ * @author Knut Arild Erstad
+ */
+public interface PointOperation {
+    /**
+     * Append the layer's transformation to the given lookup table.
+     * The table may already contain the transformations of previous layers.
+     *
+     * @param table
+     *      a lookup table which matches the image being processed.
+     */
+    public void updateLookupTable(LookupTable table);
+}
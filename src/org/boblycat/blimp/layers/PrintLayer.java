@@ -22,12 +22,13 @@ import net.sourceforge.jiu.color.reduction.ReduceRGB;
 import net.sourceforge.jiu.data.IntegerImage;
 import net.sourceforge.jiu.data.MemoryRGB24Image;
 import net.sourceforge.jiu.data.PixelImage;
-import net.sourceforge.jiu.geometry.Resample;
 import net.sourceforge.jiu.geometry.Rotate90Left;
 import net.sourceforge.jiu.util.MathUtil;
 
 import org.boblycat.blimp.data.Bitmap;
 import org.boblycat.blimp.data.BitmapSize;
+import org.boblycat.blimp.ops.ResampleFilter;
+import org.boblycat.blimp.ops.Resampler;
 
 public class PrintLayer extends DimensionAdjustmentLayer {
     private int paperWidth;
@@ -102,12 +103,12 @@ public class PrintLayer extends DimensionAdjustmentLayer {
         BitmapSize rescaleSize = caluclateSizeWithoutBorder(sourceSize);
         int rescaleWidth = rescaleSize.width;
         int rescaleHeight = rescaleSize.height;
-        Resample resample = new Resample();
+        Resampler resample = new Resampler();
         resample.setSize(rescaleWidth, rescaleHeight);
         if (isPreview())
-            resample.setFilter(Resample.FilterType.TRIANGLE);
+            resample.setFilter(ResampleFilter.Triangle);
         else
-            resample.setFilter(Resample.FilterType.LANCZOS3); // hardcode to high quality
+            resample.setFilter(ResampleFilter.Lanczos3); // hardcode to high quality
         IntegerImage rescaled = (IntegerImage) applyJiuOperation(image, resample);
 
         if (!isPreview())
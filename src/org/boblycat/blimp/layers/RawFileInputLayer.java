@@ -20,16 +20,22 @@ package org.boblycat.blimp.layers;
 
 import java.beans.PropertyDescriptor;
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.logging.Level;
 import javax.imageio.IIOException;
 import org.boblycat.blimp.data.Bitmap;
 import org.boblycat.blimp.data.ColorDepth;
 import org.boblycat.blimp.data.ColorSpace;
+import org.boblycat.blimp.data.PackedImage;
+import org.boblycat.blimp.io.DecodeCache;
+import org.boblycat.blimp.util.CancellationToken;
 import org.boblycat.blimp.util.Util;
 import net.sourceforge.jiu.codecs.PNMCodec;
+import net.sourceforge.jiu.data.PixelImage;
 import net.sourceforge.jiu.ops.OperationFailedException;
 import net.sourceforge.jiu.ops.ProgressListener;
 
@@ -147,6 +153,13 @@ public class RawFileInputLayer extends FileInputLayer {
         }
     }
 
+    private Bitmap setScaleFactor(Bitmap bitmap) {
+        if (quality == Quality.HalfSize)
+            // compensate for half-size performed by dcraw
+            bitmap.setPixelScaleFactor(2);
+        return bitmap;
+    }
+
     public Bitmap load() throws IOException {
         if (!isActive())
             return null;
@@ -193,6 +206,17 @@ public class RawFileInputLayer extends FileInputLayer {
                     commandLine.add(Double.toString(rawWhiteBalance[i]));
             }
 
+            // the arguments so far describe how the raw file is decoded
+            String parameters = commandLine.subList(1, commandLine.size())
+                .toString();
+            File file = new File(filePath);
+            PackedImage cached = DecodeCache.get(file, parameters);
+            if (cached != null) {
+                Util.log(Level.FINE, "Loaded cached raw image for "
+                        + filePath);
+                return setScaleFactor(new Bitmap(cached));
+            }
+
             commandLine.add("-c"); // write to stdout
             commandLine.add(filePath); // raw file
 
@@ -200,13 +224,17 @@ public class RawFileInputLayer extends FileInputLayer {
             Process process = processBuilder.start();
             try {
                 PNMCodec codec = new PNMCodec();
+                // a cancelled decode is aborted while reading the output,
+                // and dcraw is killed below
                 ProgressListener codecListener = new ProgressListener() {
                     public void setProgress(float progress) {
                         triggerProgress(getDescription(), progress);
+                        CancellationToken.checkCurrent();
                     }
                     public void setProgress(int index, int size) {
                         triggerProgress(getDescription(),
                                 (double) index / (double) size);
+                        CancellationToken.checkCurrent();
                     }
                 };
                 codec.addProgressListener(codecListener);
@@ -214,12 +242,12 @@ public class RawFileInputLayer extends FileInputLayer {
                         .getInputStream()));
                 codec.process();
                 //Debug.print(this, codec.getImage().getClass().toString());
-                Bitmap bitmap = new Bitmap();
-                bitmap.setImage(codec.getImage());
-                if (quality == Quality.HalfSize)
-                    // compensate for half-size performed by dcraw
-                    bitmap.setPixelScaleFactor(2);
-                return bitmap;
+                PixelImage image = codec.getImage();
+                // layers never modify their input, so the image can be
+                // written while the preview is generated
+                if (PackedImage.isSupported(image))
+                    DecodeCache.putLater(file, parameters, image);
+                return setScaleFactor(new Bitmap(image));
             }
             finally {
                 process.destroy();
@@ -20,22 +20,22 @@ package org.boblycat.blimp.layers;
 
 import org.boblycat.blimp.data.Bitmap;
 import org.boblycat.blimp.data.BitmapSize;
+import org.boblycat.blimp.ops.ResampleFilter;
+import org.boblycat.blimp.ops.Resampler;
 import org.boblycat.blimp.util.Util;
 
 import net.sourceforge.jiu.data.PixelImage;
-import net.sourceforge.jiu.geometry.Resample;
-import net.sourceforge.jiu.geometry.Resample.FilterType;
 
 public class ResizeLayer extends DimensionAdjustmentLayer {
     public enum Filter {
-        BSpline  { FilterType getType() { return FilterType.B_SPLINE; } },
-        Bell     { FilterType getType() { return FilterType.BELL; } },
-        Hermite  { FilterType getType() { return FilterType.HERMITE; } },
-        Lanczos3 { FilterType getType() { return FilterType.LANCZOS3; } },
-        Mitchell { FilterType getType() { return FilterType.MITCHELL; } },
-        Triangle { FilterType getType() { return FilterType.TRIANGLE; } };
-
-        abstract FilterType getType();
+        BSpline  { ResampleFilter getType() { return ResampleFilter.BSpline; } },
+        Bell     { ResampleFilter getType() { return ResampleFilter.Bell; } },
+        Hermite  { ResampleFilter getType() { return ResampleFilter.Hermite; } },
+        Lanczos3 { ResampleFilter getType() { return ResampleFilter.Lanczos3; } },
+        Mitchell { ResampleFilter getType() { return ResampleFilter.Mitchell; } },
+        Triangle { ResampleFilter getType() { return ResampleFilter.Triangle; } };
+
+        abstract ResampleFilter getType();
     }
 
     static final Filter DEFAULT_FILTER = Filter.Lanczos3;
@@ -68,7 +68,7 @@ public class ResizeLayer extends DimensionAdjustmentLayer {
     @Override
     public Bitmap applyLayer(Bitmap source) {
         PixelImage input = source.getImage();
-        Resample resampleOp = new Resample();
+        Resampler resampleOp = new Resampler();
         resampleOp.setFilter(resampleFilter.getType());
         BitmapSize newSize = calculateNewSize(input.getWidth(), input.getHeight());
         resampleOp.setSize(newSize.width, newSize.height);
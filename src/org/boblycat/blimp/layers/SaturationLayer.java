@@ -55,6 +55,12 @@ public class SaturationLayer extends AdjustmentLayer {
         return new Bitmap(applyJiuOperation(source.getImage(), op));
     }
 
+    @Override
+    public int getBandOverlap(Bitmap source) {
+        // pixels are processed independently
+        return 0;
+    }
+
     @Override
     public String getDescription() {
         return "Hue/Saturation/Lightness";
@@ -18,43 +18,108 @@
  */
 package org.boblycat.blimp.layers;
 
-import net.sourceforge.jiu.filters.ConvolutionKernelFilter;
-import net.sourceforge.jiu.filters.UnsharpMaskKernel;
 import net.sourceforge.jiu.util.MathUtil;
 
 import org.boblycat.blimp.data.Bitmap;
+import org.boblycat.blimp.ops.UnsharpMaskFilter;
 
+/**
+ * Unsharp mask sharpening using a Gaussian blur.
+ *
+ * The radius is given in pixels of the original image, and is scaled
+ * according to the pixel scale factor, so previews and exported images
+ * are sharpened the same way.
+ *
+ * Older versions used a single "level" property.  It is still accepted
+ * when loading files, and is converted to an amount with the default
+ * radius.  The amount range covers all the old levels, so each level
+ * keeps its own strength.
+ */
 public class UnsharpMaskLayer extends AdjustmentLayer {
     public static final int MIN_LEVEL = 0;
     public static final int MAX_LEVEL = 50;
+    public static final double MIN_RADIUS = 0.1;
+    public static final double MAX_RADIUS = 100.0;
+    public static final int MIN_AMOUNT = 0;
+    // level 1 corresponds to an amount of 100
+    public static final int MAX_AMOUNT = 100 * MAX_LEVEL;
+    public static final int MIN_THRESHOLD = 0;
+    public static final int MAX_THRESHOLD = 255;
 
-    int level;
+    double radius;
+    int amount;
+    int threshold;
 
     public UnsharpMaskLayer() {
-        level = 1;
+        radius = 1.0;
+        amount = 100;
+        threshold = 0;
+    }
+
+    private double scaledRadius(Bitmap source) {
+        double factor = source.getPixelScaleFactor();
+        if (factor <= 0)
+            return radius;
+        return radius / factor;
     }
 
     @Override
     public Bitmap applyLayer(Bitmap source) {
-        if (level == 0)
+        if (amount == 0)
             return source;
-        ConvolutionKernelFilter op = new ConvolutionKernelFilter();
-        op.setKernel(new UnsharpMaskKernel(level));
-        //op.setKernel(ConvolutionKernelFilter.TYPE_SHARPEN);
+        UnsharpMaskFilter op = new UnsharpMaskFilter();
+        op.setModifiers(scaledRadius(source), amount, threshold);
         return new Bitmap(applyJiuOperation(source.getImage(), op));
     }
 
+    @Override
+    public int getBandOverlap(Bitmap source) {
+        return UnsharpMaskFilter.kernelRadius(scaledRadius(source));
+    }
+
     @Override
     public String getDescription() {
         return "Unsharp Mask";
     }
 
+    @Override
+    protected boolean isLegacyProperty(String name) {
+        return name.equals("level");
+    }
+
+    /**
+     * Set the sharpening level used by older versions.  This is only used
+     * when loading old files.  Level 1 corresponds to the default amount,
+     * and level 0 disables the sharpening.
+     */
     public void setLevel(int level) {
-        this.level = MathUtil.clamp(level, MIN_LEVEL, MAX_LEVEL);
+        level = MathUtil.clamp(level, MIN_LEVEL, MAX_LEVEL);
+        radius = 1.0;
+        setAmount(100 * level);
+    }
+
+    public void setRadius(double radius) {
+        this.radius = MathUtil.clamp(radius, MIN_RADIUS, MAX_RADIUS);
+    }
+
+    public double getRadius() {
+        return radius;
     }
 
-    public int getLevel() {
-        return level;
+    public void setAmount(int amount) {
+        this.amount = MathUtil.clamp(amount, MIN_AMOUNT, MAX_AMOUNT);
     }
 
+    public int getAmount() {
+        return amount;
+    }
+
+    public void setThreshold(int threshold) {
+        this.threshold = MathUtil.clamp(threshold, MIN_THRESHOLD,
+                MAX_THRESHOLD);
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
 }
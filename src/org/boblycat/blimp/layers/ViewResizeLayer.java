@@ -19,8 +19,10 @@
 package org.boblycat.blimp.layers;
 
 import net.sourceforge.jiu.geometry.SuperSamplingScale;
+import net.sourceforge.jiu.data.PixelImage;
 
 import org.boblycat.blimp.data.Bitmap;
+import org.boblycat.blimp.data.BitmapPyramid;
 import org.boblycat.blimp.data.BitmapSize;
 import org.boblycat.blimp.data.ZoomFactor;
 
@@ -59,20 +61,60 @@ public class ViewResizeLayer extends DimensionAdjustmentLayer {
     }
 
     public Bitmap applyLayer(Bitmap source) {
+        return applyLayer(source, null);
+    }
+
+    /**
+     * Apply the zoom, using a pyramid of the source bitmap if possible.
+     * Zooming out by an integer divisor is done from the pyramid, while
+     * other zoom factors scale the source bitmap directly.
+     * Zooming in by an integer factor is not done here; the source bitmap
+     * is returned as-is, and the magnification is left to the view.
+     *
+     * @param source
+     *      the source bitmap.
+     * @param pyramid
+     *      a pyramid for the source bitmap, or <code>null</code>.
+     * @return
+     *      the zoomed bitmap.
+     */
+    public Bitmap applyLayer(Bitmap source, BitmapPyramid pyramid) {
         int sourceWidth = source.getWidth();
         int sourceHeight = source.getHeight();
         setImageSize(sourceWidth, sourceHeight);
         Bitmap ret = source;
-        if (zoomFactor.getMultiplier() == 1 && zoomFactor.getDivisor() == 1)
+        if (zoomFactor.getDivisor() == 1)
             return source;
-        SuperSamplingScale scaler = new SuperSamplingScale();
-        scaler.setRatio(zoomFactor.getMultiplier(), zoomFactor.getDivisor());
-        ret = new Bitmap(applyJiuOperation(ret.getImage(), scaler));
+        PixelImage reduced = null;
+        if (zoomFactor.getMultiplier() == 1 && pyramid != null
+                && pyramid.isFor(source))
+            reduced = pyramid.reduce(zoomFactor.getDivisor());
+        if (reduced != null) {
+            ret = new Bitmap(reduced);
+        }
+        else {
+            SuperSamplingScale scaler = new SuperSamplingScale();
+            scaler.setRatio(zoomFactor.getMultiplier(), zoomFactor.getDivisor());
+            ret = new Bitmap(applyJiuOperation(ret.getImage(), scaler));
+        }
         double scaleFactor = source.getWidth() / (double) ret.getWidth();
         ret.setPixelScaleFactor(source.getPixelScaleFactor() * scaleFactor);
         return ret;
     }
 
+    /**
+     * Returns the magnification that should be applied when displaying
+     * the output of this layer.  This is larger than one when zooming
+     * in, since the layer itself never enlarges the image.
+     *
+     * @return an integer magnification factor.
+     */
+    public int getDisplayMagnification() {
+        if (zoomFactor.getDivisor() == 1)
+            return zoomFactor.getMultiplier();
+        return 1;
+    }
+
     public ZoomFactor zoom() {
         return zoomFactor;
     }
@@ -113,6 +155,8 @@ public class ViewResizeLayer extends DimensionAdjustmentLayer {
 
     @Override
     public BitmapSize calculateSize(BitmapSize inputSize) {
+        if (zoomFactor.getDivisor() == 1)
+            return inputSize;
         int w = zoomFactor.scale(inputSize.width);
         int h = zoomFactor.scale(inputSize.height);
         double scaleFactor = inputSize.width / (double) w;
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.ops;
+
+/**
+ * Box blur functions for single-channel floating point data.
+ *
+ * The blur is computed using running sums, so the cost per pixel does not
+ * depend on the radius.  Pixels outside the edges are treated as copies of
+ * the nearest edge pixel.
+ *
+ * @author Knut Arild Erstad
+ */
+public class BoxBlur {
+    /**
+     * Blur each row of the source data and store the result in the
+     * destination array.
+     */
+    public static void blurHorizontal(float[] src, float[] dest, int width,
+            int height, int radius) {
+        double scale = 1.0 / (2 * radius + 1);
+        int last = width - 1;
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            double sum = 0;
+            for (int i = -radius - 1; i < radius; i++)
+                sum += src[offset + clamp(i, last)];
+            for (int x = 0; x < width; x++) {
+                sum += src[offset + clamp(x + radius, last)]
+                        - src[offset + clamp(x - radius - 1, last)];
+                dest[offset + x] = (float) (sum * scale);
+            }
+        }
+    }
+
+    /**
+     * Blur each column of the source data and store the result in the
+     * destination array.  The data is traversed one row at a time with a
+     * running sum for each column, which avoids cache misses.
+     */
+    public static void blurVertical(float[] src, float[] dest, int width,
+            int height, int radius) {
+        double scale = 1.0 / (2 * radius + 1);
+        int last = height - 1;
+        double[] sums = new double[width];
+        for (int i = -radius - 1; i < radius; i++) {
+            int offset = clamp(i, last) * width;
+            for (int x = 0; x < width; x++)
+                sums[x] += src[offset + x];
+        }
+        for (int y = 0; y < height; y++) {
+            int addOffset = clamp(y + radius, last) * width;
+            int subOffset = clamp(y - radius - 1, last) * width;
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                sums[x] += src[addOffset + x] - src[subOffset + x];
+                dest[offset + x] = (float) (sums[x] * scale);
+            }
+        }
+    }
+
+    /**
+     * Replace each value by the average of the square area around it.
+     * The result is stored in the data array.
+     *
+     * @param data
+     *      the data to blur, stored row by row.
+     * @param temp
+     *      a temporary array with the same size as the data array.
+     * @param width
+     *      the width of the data.
+     * @param height
+     *      the height of the data.
+     * @param radius
+     *      the radius of the square, which has sides of
+     *      <code>2 * radius + 1</code> pixels.
+     */
+    public static void blur(float[] data, float[] temp, int width,
+            int height, int radius) {
+        blurHorizontal(data, temp, width, height, radius);
+        blurVertical(temp, data, width, height, radius);
+    }
+
+    private static int clamp(int index, int last) {
+        if (index < 0)
+            return 0;
+        if (index > last)
+            return last;
+        return index;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.ops;
+
+import net.sourceforge.jiu.data.IntegerImage;
+import net.sourceforge.jiu.data.PixelImage;
+import net.sourceforge.jiu.ops.ImageToImageOperation;
+import net.sourceforge.jiu.ops.MissingParameterException;
+import net.sourceforge.jiu.ops.WrongParameterException;
+
+/**
+ * Reduces the size of an integer image by an integer factor.
+ *
+ * Each output pixel is the average of a square block of input pixels.
+ * The output size is the input size divided by the factor, rounded down,
+ * so any remaining pixels at the right and bottom edges are ignored.
+ *
+ * @author Knut Arild Erstad
+ */
+public class BoxReduce extends ImageToImageOperation {
+    private int factor;
+
+    public BoxReduce() {
+        factor = 2;
+    }
+
+    public BoxReduce(int factor) {
+        this.factor = factor;
+    }
+
+    public void setFactor(int factor) {
+        this.factor = factor;
+    }
+
+    public int getFactor() {
+        return factor;
+    }
+
+    @Override
+    public void process() throws MissingParameterException,
+            WrongParameterException {
+        PixelImage pInput = getInputImage();
+        if (pInput == null)
+            throw new MissingParameterException("Missing input image");
+        if (!(pInput instanceof IntegerImage))
+            throw new WrongParameterException(
+                    "Input image must be an integer image");
+        if (factor < 1)
+            throw new WrongParameterException("Invalid factor: " + factor);
+        IntegerImage input = (IntegerImage) pInput;
+        int outWidth = input.getWidth() / factor;
+        int outHeight = input.getHeight() / factor;
+        if (outWidth < 1 || outHeight < 1)
+            throw new WrongParameterException("Image too small to reduce");
+        IntegerImage output = (IntegerImage) getOutputImage();
+        if (output == null) {
+            output = (IntegerImage) input.createCompatibleImage(outWidth,
+                    outHeight);
+            setOutputImage(output);
+        }
+        int inWidth = outWidth * factor;
+        int blockSize = factor * factor;
+        int[] row = new int[inWidth];
+        int[] sums = new int[outWidth];
+        int[] outRow = new int[outWidth];
+        int numChannels = input.getNumChannels();
+        for (int y = 0; y < outHeight; y++) {
+            for (int c = 0; c < numChannels; c++) {
+                for (int x = 0; x < outWidth; x++)
+                    sums[x] = 0;
+                for (int i = 0; i < factor; i++) {
+                    input.getSamples(c, 0, y * factor + i, inWidth, 1, row, 0);
+                    int pos = 0;
+                    for (int x = 0; x < outWidth; x++) {
+                        int sum = 0;
+                        for (int j = 0; j < factor; j++)
+                            sum += row[pos++];
+                        sums[x] += sum;
+                    }
+                }
+                for (int x = 0; x < outWidth; x++)
+                    outRow[x] = (sums[x] + blockSize / 2) / blockSize;
+                output.putSamples(c, 0, y, outWidth, 1, outRow, 0);
+            }
+            setProgress(y, outHeight);
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.ops;
+
+import org.boblycat.blimp.data.PackedImage;
+
+import net.sourceforge.jiu.data.ByteChannelImage;
+import net.sourceforge.jiu.data.IntegerImage;
+import net.sourceforge.jiu.data.PixelImage;
+import net.sourceforge.jiu.data.RGB24Image;
+import net.sourceforge.jiu.data.RGB48Image;
+import net.sourceforge.jiu.data.RGBIndex;
+import net.sourceforge.jiu.data.ShortChannelImage;
+import net.sourceforge.jiu.ops.ImageToImageOperation;
+import net.sourceforge.jiu.ops.MissingParameterException;
+import net.sourceforge.jiu.ops.WrongParameterException;
+
+/**
+ * A JIU operation which applies a {@link LookupTable} to an integer image.
+ *
+ * The image is processed one row at a time, with special cases for
+ * 8-bit and 16-bit channel images which avoid per-sample method calls.
+ * The static <code>apply</code> functions write the result to a
+ * {@link PackedImage} instead, which is faster still and can be used to
+ * process separate rows in parallel.
+ *
+ * @author Knut Arild Erstad
+ */
+public class LookupOperation extends ImageToImageOperation {
+    private LookupTable table;
+
+    public LookupOperation() {
+    }
+
+    public LookupOperation(LookupTable table) {
+        this.table = table;
+    }
+
+    public void setTable(LookupTable table) {
+        this.table = table;
+    }
+
+    public LookupTable getTable() {
+        return table;
+    }
+
+    @Override
+    public void process() throws MissingParameterException,
+            WrongParameterException {
+        PixelImage pInput = getInputImage();
+        if (pInput == null)
+            throw new MissingParameterException("Missing input image");
+        if (table == null)
+            throw new MissingParameterException("Missing lookup table");
+        if (!(pInput instanceof IntegerImage))
+            throw new WrongParameterException(
+                    "Input image must be an integer image");
+        IntegerImage input = (IntegerImage) pInput;
+        int numChannels = input.getNumChannels();
+        if (numChannels > table.getNumChannels())
+            throw new WrongParameterException(
+                    "Lookup table has too few channels");
+        for (int c = 0; c < numChannels; c++) {
+            if (input.getMaxSample(c) != table.getMaxSample())
+                throw new WrongParameterException(
+                        "Lookup table size does not match the input image");
+        }
+        int width = input.getWidth();
+        int height = input.getHeight();
+        IntegerImage output = (IntegerImage) getOutputImage();
+        if (output == null) {
+            output = (IntegerImage) input.createCompatibleImage(width, height);
+            setOutputImage(output);
+        }
+        if (input instanceof ByteChannelImage
+                && output instanceof ByteChannelImage)
+            processBytes((ByteChannelImage) input,
+                    (ByteChannelImage) output);
+        else if (input instanceof ShortChannelImage
+                && output instanceof ShortChannelImage)
+            processShorts((ShortChannelImage) input,
+                    (ShortChannelImage) output);
+        else
+            processInts(input, output);
+    }
+
+    private void processBytes(ByteChannelImage input, ByteChannelImage output) {
+        int width = input.getWidth();
+        int height = input.getHeight();
+        int numChannels = input.getNumChannels();
+        byte[] row = new byte[width];
+        for (int y = 0; y < height; y++) {
+            for (int c = 0; c < numChannels; c++) {
+                int[] lut = table.getChannelTable(c);
+                input.getByteSamples(c, 0, y, width, 1, row, 0);
+                for (int x = 0; x < width; x++)
+                    row[x] = (byte) lut[row[x] & 0xff];
+                output.putByteSamples(c, 0, y, width, 1, row, 0);
+            }
+            setProgress(y, height);
+        }
+    }
+
+    private void processShorts(ShortChannelImage input,
+            ShortChannelImage output) {
+        int width = input.getWidth();
+        int height = input.getHeight();
+        int numChannels = input.getNumChannels();
+        short[] row = new short[width];
+        for (int y = 0; y < height; y++) {
+            for (int c = 0; c < numChannels; c++) {
+                int[] lut = table.getChannelTable(c);
+                input.getShortSamples(c, 0, y, width, 1, row, 0);
+                for (int x = 0; x < width; x++)
+                    row[x] = (short) lut[row[x] & 0xffff];
+                output.putShortSamples(c, 0, y, width, 1, row, 0);
+            }
+            setProgress(y, height);
+        }
+    }
+
+    private void processInts(IntegerImage input, IntegerImage output) {
+        int width = input.getWidth();
+        int height = input.getHeight();
+        int numChannels = input.getNumChannels();
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int c = 0; c < numChannels; c++) {
+                int[] lut = table.getChannelTable(c);
+                input.getSamples(c, 0, y, width, 1, row, 0);
+                for (int x = 0; x < width; x++)
+                    row[x] = lut[row[x]];
+                output.putSamples(c, 0, y, width, 1, row, 0);
+            }
+            setProgress(y, height);
+        }
+    }
+
+    private static void checkPacked(LookupTable table, int maxSample,
+            PackedImage output, int width, int height) {
+        if (table.getNumChannels() < PackedImage.NUM_CHANNELS)
+            throw new IllegalArgumentException(
+                    "Lookup table has too few channels");
+        if (maxSample != table.getMaxSample()
+                || output.getMaxSample() != table.getMaxSample())
+            throw new IllegalArgumentException(
+                    "Lookup table size does not match the image");
+        if (output.getWidth() != width || output.getHeight() != height)
+            throw new IllegalArgumentException("Image size mismatch");
+    }
+
+    /**
+     * Apply a lookup table to a range of rows in a packed image.
+     *
+     * @param table
+     *      a lookup table with at least three channels.
+     * @param input
+     *      the input image.
+     * @param output
+     *      the output image, which must have the same size and bit depth
+     *      as the input.  It may be the same as the input.
+     * @param startRow
+     *      the first row to process.
+     * @param endRow
+     *      the row after the last row to process.
+     */
+    public static void apply(LookupTable table, PackedImage input,
+            PackedImage output, int startRow, int endRow) {
+        checkPacked(table, input.getMaxSample(), output,
+                input.getWidth(), input.getHeight());
+        int[] red = table.getChannelTable(0);
+        int[] green = table.getChannelTable(1);
+        int[] blue = table.getChannelTable(2);
+        int width = input.getWidth();
+        int n = width * PackedImage.NUM_CHANNELS;
+        if (input.is16Bit()) {
+            // off-heap images are processed through a row buffer
+            short[] in = input.getShortData();
+            short[] out = output.getShortData();
+            short[] inRow = (in == null) ? new short[n] : null;
+            short[] outRow = (out == null) ? new short[n] : null;
+            for (int y = startRow; y < endRow; y++) {
+                int i, j;
+                if (inRow != null) {
+                    input.getRowSamples(y, inRow, 0);
+                    in = inRow;
+                    i = 0;
+                }
+                else {
+                    i = input.getOffset() + y * input.getStride();
+                }
+                if (outRow != null) {
+                    out = outRow;
+                    j = 0;
+                }
+                else {
+                    j = output.getOffset() + y * output.getStride();
+                }
+                for (int x = 0; x < width; x++) {
+                    out[j++] = (short) red[in[i++] & 0xffff];
+                    out[j++] = (short) green[in[i++] & 0xffff];
+                    out[j++] = (short) blue[in[i++] & 0xffff];
+                }
+                if (outRow != null)
+                    output.putRowSamples(y, outRow, 0);
+            }
+        }
+        else {
+            byte[] in = input.getByteData();
+            byte[] out = output.getByteData();
+            byte[] inRow = (in == null) ? new byte[n] : null;
+            byte[] outRow = (out == null) ? new byte[n] : null;
+            for (int y = startRow; y < endRow; y++) {
+                int i, j;
+                if (inRow != null) {
+                    input.getRowSamples(y, inRow, 0);
+                    in = inRow;
+                    i = 0;
+                }
+                else {
+                    i = input.getOffset() + y * input.getStride();
+                }
+                if (outRow != null) {
+                    out = outRow;
+                    j = 0;
+                }
+                else {
+                    j = output.getOffset() + y * output.getStride();
+                }
+                for (int x = 0; x < width; x++) {
+                    out[j++] = (byte) red[in[i++] & 0xff];
+                    out[j++] = (byte) green[in[i++] & 0xff];
+                    out[j++] = (byte) blue[in[i++] & 0xff];
+                }
+                if (outRow != null)
+                    output.putRowSamples(y, outRow, 0);
+            }
+        }
+    }
+
+    /**
+     * Apply a lookup table to a range of rows in a JIU image, writing the
+     * result to a packed image.  This converts the image to the packed
+     * format in the same pass.
+     *
+     * @param table
+     *      a lookup table with at least three channels.
+     * @param input
+     *      an RGB24Image or RGB48Image,
+     *      see {@link PackedImage#isSupported(PixelImage)}.
+     * @param output
+     *      the output image, which must have the same size and bit depth
+     *      as the input.
+     * @param startRow
+     *      the first row to process.
+     * @param endRow
+     *      the row after the last row to process.
+     */
+    public static void apply(LookupTable table, PixelImage input,
+            PackedImage output, int startRow, int endRow) {
+        int width = input.getWidth();
+        int[] indices = { RGBIndex.INDEX_RED, RGBIndex.INDEX_GREEN,
+                RGBIndex.INDEX_BLUE };
+        if (input instanceof RGB48Image) {
+            RGB48Image rgb = (RGB48Image) input;
+            checkPacked(table, rgb.getMaxSample(0), output,
+                    width, input.getHeight());
+            short[] out = output.getShortData();
+            short[] outRow = null;
+            if (out == null)
+                out = outRow = new short[width * PackedImage.NUM_CHANNELS];
+            short[] row = new short[width];
+            for (int y = startRow; y < endRow; y++) {
+                int start = (outRow != null) ? 0
+                        : output.getOffset() + y * output.getStride();
+                for (int c = 0; c < PackedImage.NUM_CHANNELS; c++) {
+                    int[] lut = table.getChannelTable(c);
+                    rgb.getShortSamples(indices[c], 0, y, width, 1, row, 0);
+                    int j = start + c;
+                    for (int x = 0; x < width; x++, j += 3)
+                        out[j] = (short) lut[row[x] & 0xffff];
+                }
+                if (outRow != null)
+                    output.putRowSamples(y, outRow, 0);
+            }
+        }
+        else if (input instanceof RGB24Image) {
+            RGB24Image rgb = (RGB24Image) input;
+            checkPacked(table, rgb.getMaxSample(0), output,
+                    width, input.getHeight());
+            byte[] out = output.getByteData();
+            byte[] outRow = null;
+            if (out == null)
+                out = outRow = new byte[width * PackedImage.NUM_CHANNELS];
+            byte[] row = new byte[width];
+            for (int y = startRow; y < endRow; y++) {
+                int start = (outRow != null) ? 0
+                        : output.getOffset() + y * output.getStride();
+                for (int c = 0; c < PackedImage.NUM_CHANNELS; c++) {
+                    int[] lut = table.getChannelTable(c);
+                    rgb.getByteSamples(indices[c], 0, y, width, 1, row, 0);
+                    int j = start + c;
+                    for (int x = 0; x < width; x++, j += 3)
+                        out[j] = (byte) lut[row[x] & 0xff];
+                }
+                if (outRow != null)
+                    output.putRowSamples(y, outRow, 0);
+            }
+        }
+        else {
+            throw new IllegalArgumentException("Unsupported image class: "
+                    + input.getClass().getName());
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.ops;
+
+import org.boblycat.blimp.data.Bitmap;
+import org.boblycat.blimp.data.PackedImage;
+
+import net.sourceforge.jiu.data.IntegerImage;
+import net.sourceforge.jiu.data.PixelImage;
+
+/**
+ * A per-channel lookup table for integer images.
+ *
+ * The table starts out as the identity mapping, and point operations
+ * can be appended to it one after another using the <code>apply</code>
+ * functions.  Since the composition is done on integer tables, applying
+ * a combined table once gives exactly the same result as applying each of
+ * the operations in sequence, but only requires a single pass over the
+ * pixels.  Use {@link LookupOperation} to apply the table to an image.
+ *
+ * @author Knut Arild Erstad
+ */
+public class LookupTable {
+    private int maxSample;
+    private int[][] tables;
+
+    /**
+     * Creates an identity lookup table.
+     *
+     * @param numChannels
+     *      the number of channels.
+     * @param maxSample
+     *      the maximum sample value, typically 255 or 65535.
+     */
+    public LookupTable(int numChannels, int maxSample) {
+        if (numChannels <= 0 || maxSample <= 0)
+            throw new IllegalArgumentException("Invalid lookup table size");
+        this.maxSample = maxSample;
+        tables = new int[numChannels][maxSample + 1];
+        for (int c = 0; c < numChannels; c++) {
+            int[] table = tables[c];
+            for (int i = 0; i <= maxSample; i++)
+                table[i] = i;
+        }
+    }
+
+    /**
+     * Creates an identity lookup table which fits the given image.
+     * Images which are not integer images are assumed to be 8-bit.
+     */
+    public LookupTable(PixelImage image) {
+        this(image.getNumChannels(), maxSampleForImage(image));
+    }
+
+    private static int maxSampleForImage(PixelImage image) {
+        if (image instanceof IntegerImage)
+            return ((IntegerImage) image).getMaxSample(0);
+        return 255;
+    }
+
+    /**
+     * Checks whether lookup tables can be applied to the given image.
+     */
+    public static boolean isSupported(PixelImage image) {
+        return image instanceof IntegerImage;
+    }
+
+    /**
+     * Creates an identity lookup table which fits the given bitmap.
+     * Packed bitmaps are not converted to JIU images.
+     */
+    public static LookupTable forBitmap(Bitmap bitmap) {
+        PackedImage packed = bitmap.getPackedImage();
+        if (packed != null)
+            return new LookupTable(PackedImage.NUM_CHANNELS,
+                    packed.getMaxSample());
+        return new LookupTable(bitmap.getImage());
+    }
+
+    /**
+     * Checks whether lookup tables can be applied to the given bitmap.
+     */
+    public static boolean isSupported(Bitmap bitmap) {
+        return bitmap.getPackedImage() != null
+            || isSupported(bitmap.getImage());
+    }
+
+    public int getNumChannels() {
+        return tables.length;
+    }
+
+    public int getMaxSample() {
+        return maxSample;
+    }
+
+    /**
+     * Returns the table for a single channel.  The returned array is not
+     * copied, and should not be modified by the caller.
+     */
+    public int[] getChannelTable(int channel) {
+        return tables[channel];
+    }
+
+    /**
+     * Appends an integer function to the table.
+     *
+     * @param channel
+     *      the channel index, or a negative value for all channels.
+     *      Channel indices which do not exist in the table are ignored.
+     * @param function
+     *      a function table with <code>getMaxSample() + 1</code> entries.
+     *      All values must be in the range from zero to
+     *      <code>getMaxSample()</code>.
+     */
+    public void apply(int channel, int[] function) {
+        if (function.length != maxSample + 1)
+            throw new IllegalArgumentException("Wrong function size: "
+                    + function.length);
+        if (channel < 0) {
+            for (int c = 0; c < tables.length; c++)
+                applyToTable(tables[c], function);
+        }
+        else if (channel < tables.length) {
+            applyToTable(tables[channel], function);
+        }
+    }
+
+    /** Appends an integer function to the table for all channels. */
+    public void apply(int[] function) {
+        apply(-1, function);
+    }
+
+    /**
+     * Appends a normalized function to the table.  The function values
+     * are in the range from zero to one, and will be scaled, rounded and
+     * clamped to the sample range.
+     *
+     * @param channel
+     *      the channel index, or a negative value for all channels.
+     * @param function
+     *      a function table with <code>getMaxSample() + 1</code> entries.
+     */
+    public void applyNormalized(int channel, double[] function) {
+        int[] intFunction = new int[function.length];
+        for (int i = 0; i < function.length; i++)
+            intFunction[i] = toSample(function[i]);
+        apply(channel, intFunction);
+    }
+
+    /**
+     * Returns the normalized value (between zero and one) of a sample.
+     */
+    public double normalize(int sample) {
+        return (double) sample / maxSample;
+    }
+
+    /**
+     * Converts a normalized value to a rounded and clamped sample value.
+     */
+    public int toSample(double normalized) {
+        int value = (int) Math.round(normalized * maxSample);
+        if (value < 0)
+            return 0;
+        if (value > maxSample)
+            return maxSample;
+        return value;
+    }
+
+    /** Checks whether the table maps all samples to themselves. */
+    public boolean isIdentity() {
+        for (int c = 0; c < tables.length; c++) {
+            int[] table = tables[c];
+            for (int i = 0; i <= maxSample; i++)
+                if (table[i] != i)
+                    return false;
+        }
+        return true;
+    }
+
+    private static void applyToTable(int[] table, int[] function) {
+        for (int i = 0; i < table.length; i++)
+            table[i] = function[table[i]];
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.ops;
+
+/**
+ * Reconstruction filters used by {@link Resampler}.
+ *
+ * Each filter is a function which is zero outside the interval
+ * <code>[-support, support]</code>.
+ *
+ * @author Knut Arild Erstad
+ */
+public enum ResampleFilter {
+    Box(0.5) {
+        public double evaluate(double x) {
+            if (x >= -0.5 && x < 0.5)
+                return 1.0;
+            return 0.0;
+        }
+    },
+
+    Triangle(1.0) {
+        public double evaluate(double x) {
+            x = Math.abs(x);
+            if (x < 1.0)
+                return 1.0 - x;
+            return 0.0;
+        }
+    },
+
+    Hermite(1.0) {
+        public double evaluate(double x) {
+            x = Math.abs(x);
+            if (x < 1.0)
+                return (2.0 * x - 3.0) * x * x + 1.0;
+            return 0.0;
+        }
+    },
+
+    Bell(1.5) {
+        public double evaluate(double x) {
+            x = Math.abs(x);
+            if (x < 0.5)
+                return 0.75 - x * x;
+            if (x < 1.5) {
+                x -= 1.5;
+                return 0.5 * x * x;
+            }
+            return 0.0;
+        }
+    },
+
+    BSpline(2.0) {
+        public double evaluate(double x) {
+            x = Math.abs(x);
+            if (x < 1.0)
+                return 0.5 * x * x * x - x * x + 2.0 / 3.0;
+            if (x < 2.0) {
+                x = 2.0 - x;
+                return x * x * x / 6.0;
+            }
+            return 0.0;
+        }
+    },
+
+    Mitchell(2.0) {
+        private static final double B = 1.0 / 3.0;
+        private static final double C = 1.0 / 3.0;
+
+        public double evaluate(double x) {
+            x = Math.abs(x);
+            double xx = x * x;
+            if (x < 1.0)
+                return ((12 - 9 * B - 6 * C) * xx * x
+                        + (-18 + 12 * B + 6 * C) * xx
+                        + (6 - 2 * B)) / 6.0;
+            if (x < 2.0)
+                return ((-B - 6 * C) * xx * x
+                        + (6 * B + 30 * C) * xx
+                        + (-12 * B - 48 * C) * x
+                        + (8 * B + 24 * C)) / 6.0;
+            return 0.0;
+        }
+    },
+
+    Lanczos3(3.0) {
+        public double evaluate(double x) {
+            x = Math.abs(x);
+            if (x < 3.0)
+                return sinc(x) * sinc(x / 3.0);
+            return 0.0;
+        }
+    };
+
+    private double support;
+
+    private ResampleFilter(double support) {
+        this.support = support;
+    }
+
+    /**
+     * Returns the radius outside which the filter is zero.
+     */
+    public double getSupport() {
+        return support;
+    }
+
+    /**
+     * Evaluates the filter function.
+     */
+    public abstract double evaluate(double x);
+
+    static double sinc(double x) {
+        if (x == 0.0)
+            return 1.0;
+        x *= Math.PI;
+        return Math.sin(x) / x;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.ops;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import net.sourceforge.jiu.data.IntegerImage;
+import net.sourceforge.jiu.data.PixelImage;
+import net.sourceforge.jiu.ops.ImageToImageOperation;
+import net.sourceforge.jiu.ops.MissingParameterException;
+import net.sourceforge.jiu.ops.WrongParameterException;
+
+import org.boblycat.blimp.util.BandExecutor;
+
+/**
+ * A separable resampling operation for integer images.
+ *
+ * The filter weights for each output column and row are computed once
+ * before processing.  The image is then scaled horizontally into a
+ * floating point buffer and vertically into the output image, one channel
+ * at a time.  Both passes are split into strips of rows which are
+ * processed in parallel by the {@link BandExecutor}.  Samples are read
+ * and written at the image's own channel depth, so 16-bit images are
+ * processed without conversion.
+ *
+ * @author Knut Arild Erstad
+ */
+public class Resampler extends ImageToImageOperation {
+    /**
+     * Precomputed filter weights for scaling along one axis.
+     * Output index <code>i</code> is computed from the input indices
+     * <code>first[i]</code> to <code>first[i] + count[i] - 1</code>,
+     * using the weights stored from <code>i * stride</code>.
+     */
+    static class Weights {
+        int[] first;
+        int[] count;
+        float[] values;
+        int stride;
+
+        Weights(int inSize, int outSize, ResampleFilter filter) {
+            double scale = (double) outSize / inSize;
+            // widen the filter when reducing, to avoid aliasing
+            double filterScale = Math.max(1.0, 1.0 / scale);
+            double support = filter.getSupport() * filterScale;
+            stride = (int) Math.ceil(2 * support) + 3;
+            first = new int[outSize];
+            count = new int[outSize];
+            values = new float[outSize * stride];
+            double[] weights = new double[stride];
+            for (int i = 0; i < outSize; i++) {
+                double center = (i + 0.5) / scale;
+                int left = Math.max(0, (int) Math.floor(center - support));
+                int right = Math.min(inSize - 1,
+                        (int) Math.ceil(center + support));
+                int n = Math.min(right - left + 1, stride);
+                double sum = 0;
+                for (int j = 0; j < n; j++) {
+                    weights[j] = filter.evaluate(
+                            (left + j + 0.5 - center) / filterScale);
+                    sum += weights[j];
+                }
+                int offset = i * stride;
+                if (sum == 0.0) {
+                    // can happen for tiny box filters: use nearest pixel
+                    left = Math.min(inSize - 1, (int) center);
+                    n = 1;
+                    values[offset] = 1.0f;
+                }
+                else {
+                    for (int j = 0; j < n; j++)
+                        values[offset + j] = (float) (weights[j] / sum);
+                }
+                first[i] = left;
+                count[i] = n;
+            }
+        }
+    }
+
+    private interface RowFunction {
+        void process(int start, int end);
+    }
+
+    private int width;
+    private int height;
+    private ResampleFilter filter;
+
+    public Resampler() {
+        filter = ResampleFilter.Lanczos3;
+    }
+
+    public void setSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public void setFilter(ResampleFilter filter) {
+        this.filter = filter;
+    }
+
+    public ResampleFilter getFilter() {
+        return filter;
+    }
+
+    private static int stripCount(int rows) {
+        if (!BandExecutor.isParallelEnabled())
+            return 1;
+        return Math.max(1, Math.min(BandExecutor.getThreadCount(), rows / 16));
+    }
+
+    /**
+     * Run a function for all rows from zero to <code>rows - 1</code>,
+     * split into strips which are processed in parallel.
+     */
+    private static void forEachRow(int rows, final RowFunction function) {
+        int strips = stripCount(rows);
+        if (strips <= 1) {
+            function.process(0, rows);
+            return;
+        }
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int i = 0; i < strips; i++) {
+            final int start = (int) ((long) rows * i / strips);
+            final int end = (int) ((long) rows * (i + 1) / strips);
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    function.process(start, end);
+                    return null;
+                }
+            });
+        }
+        BandExecutor.invokeAll(tasks);
+    }
+
+    private static void scaleRows(final IntegerImage input, final int channel,
+            final Weights weights, final float[] dest, final int destWidth) {
+        final int inWidth = input.getWidth();
+        forEachRow(input.getHeight(), new RowFunction() {
+            public void process(int start, int end) {
+                int[] row = new int[inWidth];
+                for (int y = start; y < end; y++) {
+                    input.getSamples(channel, 0, y, inWidth, 1, row, 0);
+                    int destOffset = y * destWidth;
+                    for (int x = 0; x < destWidth; x++) {
+                        int first = weights.first[x];
+                        int n = weights.count[x];
+                        int w = x * weights.stride;
+                        float sum = 0;
+                        for (int j = 0; j < n; j++)
+                            sum += weights.values[w + j] * row[first + j];
+                        dest[destOffset + x] = sum;
+                    }
+                }
+            }
+        });
+    }
+
+    private static void scaleColumns(final float[] src, final int srcWidth,
+            final Weights weights, final IntegerImage output,
+            final int channel) {
+        final int max = output.getMaxSample(channel);
+        forEachRow(output.getHeight(), new RowFunction() {
+            public void process(int start, int end) {
+                float[] sums = new float[srcWidth];
+                int[] row = new int[srcWidth];
+                for (int y = start; y < end; y++) {
+                    int first = weights.first[y];
+                    int n = weights.count[y];
+                    int w = y * weights.stride;
+                    for (int x = 0; x < srcWidth; x++)
+                        sums[x] = 0;
+                    for (int j = 0; j < n; j++) {
+                        float weight = weights.values[w + j];
+                        int offset = (first + j) * srcWidth;
+                        for (int x = 0; x < srcWidth; x++)
+                            sums[x] += weight * src[offset + x];
+                    }
+                    for (int x = 0; x < srcWidth; x++) {
+                        int value = Math.round(sums[x]);
+                        if (value < 0)
+                            value = 0;
+                        else if (value > max)
+                            value = max;
+                        row[x] = value;
+                    }
+                    output.putSamples(channel, 0, y, srcWidth, 1, row, 0);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void process() throws MissingParameterException,
+            WrongParameterException {
+        PixelImage pInput = getInputImage();
+        if (pInput == null)
+            throw new MissingParameterException("Missing input image");
+        if (filter == null)
+            throw new MissingParameterException("Missing filter");
+        if (!(pInput instanceof IntegerImage))
+            throw new WrongParameterException(
+                    "Input image must be an integer image");
+        if (width <= 0 || height <= 0)
+            throw new WrongParameterException("Invalid output size: "
+                    + width + "x" + height);
+        IntegerImage input = (IntegerImage) pInput;
+        int inWidth = input.getWidth();
+        int inHeight = input.getHeight();
+        IntegerImage output = (IntegerImage) getOutputImage();
+        if (output == null) {
+            output = (IntegerImage) input.createCompatibleImage(width, height);
+            setOutputImage(output);
+        }
+        Weights columnWeights = new Weights(inWidth, width, filter);
+        Weights rowWeights = new Weights(inHeight, height, filter);
+        float[] buffer = new float[width * inHeight];
+        int numChannels = input.getNumChannels();
+        for (int c = 0; c < numChannels; c++) {
+            scaleRows(input, c, columnWeights, buffer, width);
+            setProgress(2 * c + 1, 2 * numChannels);
+            scaleColumns(buffer, width, rowWeights, output, c);
+            setProgress(2 * c + 2, 2 * numChannels);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.ops;
+
+import net.sourceforge.jiu.data.IntegerImage;
+import net.sourceforge.jiu.data.PixelImage;
+import net.sourceforge.jiu.ops.ImageToImageOperation;
+import net.sourceforge.jiu.ops.MissingParameterException;
+import net.sourceforge.jiu.ops.WrongParameterException;
+
+/**
+ * Unsharp mask sharpening for integer images of any channel depth.
+ *
+ * Each channel is blurred with a Gaussian kernel, which is applied as two
+ * separate one-dimensional passes.  The difference between the original
+ * and the blurred value is multiplied by the amount and added to the
+ * original value, unless the difference is smaller than the threshold.
+ *
+ * @author Knut Arild Erstad
+ */
+public class UnsharpMaskFilter extends ImageToImageOperation {
+    private double sigma;
+    private int amount;
+    private int threshold;
+
+    public UnsharpMaskFilter() {
+        sigma = 1.0;
+        amount = 100;
+        threshold = 0;
+    }
+
+    /**
+     * Set the parameters of the filter.
+     *
+     * @param sigma
+     *      the standard deviation of the Gaussian blur, in pixels.
+     * @param amount
+     *      the amount of sharpening in percent.
+     * @param threshold
+     *      the smallest difference from the blurred value which will be
+     *      sharpened, in 8-bit units.  The value is scaled up for images
+     *      with a higher channel depth.
+     */
+    public void setModifiers(double sigma, int amount, int threshold) {
+        this.sigma = Math.max(0.1, sigma);
+        this.amount = Math.max(0, amount);
+        this.threshold = Math.max(0, threshold);
+    }
+
+    /**
+     * Returns the number of pixels on each side of the center which are
+     * used by the Gaussian kernel for the given standard deviation.
+     */
+    public static int kernelRadius(double sigma) {
+        return Math.max(1, (int) Math.ceil(3 * sigma));
+    }
+
+    private static float[] createKernel(double sigma) {
+        int radius = kernelRadius(sigma);
+        float[] kernel = new float[2 * radius + 1];
+        double sum = 0;
+        for (int i = -radius; i <= radius; i++) {
+            double value = Math.exp(-(i * i) / (2 * sigma * sigma));
+            kernel[i + radius] = (float) value;
+            sum += value;
+        }
+        for (int i = 0; i < kernel.length; i++)
+            kernel[i] /= sum;
+        return kernel;
+    }
+
+    private static int clamp(int index, int last) {
+        if (index < 0)
+            return 0;
+        if (index > last)
+            return last;
+        return index;
+    }
+
+    @Override
+    public void process() throws MissingParameterException,
+            WrongParameterException {
+        PixelImage pInput = getInputImage();
+        if (pInput == null)
+            throw new MissingParameterException("Missing input image");
+        if (!(pInput instanceof IntegerImage))
+            throw new WrongParameterException(
+                    "Input image must be an integer image");
+        IntegerImage input = (IntegerImage) pInput;
+        int width = input.getWidth();
+        int height = input.getHeight();
+        int numChannels = input.getNumChannels();
+        IntegerImage output = (IntegerImage) getOutputImage();
+        if (output == null) {
+            output = (IntegerImage) input.createCompatibleImage(width, height);
+            setOutputImage(output);
+        }
+
+        float[] kernel = createKernel(sigma);
+        int radius = kernel.length / 2;
+        int lastX = width - 1;
+        int lastY = height - 1;
+        float[] horizontal = new float[width * height];
+        int[] row = new int[width];
+        float[] blurred = new float[width];
+        float factor = amount / 100.0f;
+
+        for (int c = 0; c < numChannels; c++) {
+            int max = input.getMaxSample(c);
+            int scaledThreshold = threshold * max / 255;
+            // horizontal pass
+            for (int y = 0; y < height; y++) {
+                input.getSamples(c, 0, y, width, 1, row, 0);
+                int offset = y * width;
+                for (int x = 0; x < width; x++) {
+                    float sum = 0;
+                    for (int k = -radius; k <= radius; k++)
+                        sum += kernel[k + radius] * row[clamp(x + k, lastX)];
+                    horizontal[offset + x] = sum;
+                }
+            }
+            // vertical pass, combined with the sharpening
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++)
+                    blurred[x] = 0;
+                for (int k = -radius; k <= radius; k++) {
+                    float weight = kernel[k + radius];
+                    int offset = clamp(y + k, lastY) * width;
+                    for (int x = 0; x < width; x++)
+                        blurred[x] += weight * horizontal[offset + x];
+                }
+                input.getSamples(c, 0, y, width, 1, row, 0);
+                for (int x = 0; x < width; x++) {
+                    float diff = row[x] - blurred[x];
+                    if (Math.abs(diff) < scaledThreshold)
+                        continue;
+                    int value = Math.round(row[x] + factor * diff);
+                    if (value < 0)
+                        value = 0;
+                    else if (value > max)
+                        value = max;
+                    row[x] = value;
+                }
+                output.putSamples(c, 0, y, width, 1, row, 0);
+                setProgress(c * height + y, numChannels * height);
+            }
+        }
+    }
+}
@@ -18,59 +18,1348 @@
  */
 package org.boblycat.blimp.session;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.WeakHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.boblycat.blimp.data.Bitmap;
-import org.boblycat.blimp.io.Serializer;
+import org.boblycat.blimp.data.BitmapRegion;
+import org.boblycat.blimp.data.PackedImage;
+import org.boblycat.blimp.data.PackedImageFile;
+import org.boblycat.blimp.exif.ExifTable;
+import org.boblycat.blimp.io.Fingerprint;
 import org.boblycat.blimp.layers.AdjustmentLayer;
 import org.boblycat.blimp.layers.InputLayer;
 import org.boblycat.blimp.layers.Layer;
-import org.boblycat.blimp.util.SoftHashMap;
+import org.boblycat.blimp.util.Util;
 
-class BitmapTable extends SoftHashMap<String, Bitmap> {
-    void put(Layer layer, Bitmap bitmap) {
-        put(Serializer.layerToXml(layer), bitmap);
+import net.sourceforge.jiu.data.PixelImage;
+
+/**
+ * A cache of input bitmaps and of the results of applying layers to
+ * bitmaps.  The cache can be used from several threads.
+ *
+ * The cache has a memory budget in bytes, and bitmaps are evicted when the
+ * size of all cached bitmaps exceeds it.  The callers can pass the time
+ * it took to compute each bitmap, and bitmaps which are cheap to compute
+ * again compared to their size are evicted first.  Each bitmap gets a
+ * priority when it is stored or used, which is its cost per byte plus the
+ * priority of the last evicted bitmap ("GreedyDual-Size").  This way
+ * bitmaps which are not used again are eventually evicted even if they
+ * were expensive, and bitmaps with the same cost per byte are evicted in
+ * least recently used order.  A new bitmap is not cached at all if it
+ * would only fit by evicting bitmaps with a higher priority.
+ * Results are stored per source bitmap, which is only referenced weakly.
+ * When a source bitmap is garbage collected, all results computed from it
+ * can no longer be found, and they are removed from the cache the next
+ * time it is used.
+ *
+ * Optionally, evicted bitmaps are compressed and kept in memory, which
+ * typically fits two or three times as many bitmaps in the same space.
+ * Bitmaps evicted from the compressed part, or all evicted bitmaps if
+ * compression is disabled, can be written to temporary files and read
+ * back when they are needed again, which is usually much faster than
+ * decoding a raw file or running an expensive layer again.  The files have
+ * a separate disk budget, and the least recently used files are deleted
+ * when it is exceeded.  A bitmap which has been spilled to disk can still
+ * be used to look up results computed from it, even after the original
+ * bitmap object has been garbage collected.
+ *
+ * The cache is locked while entries are looked up and while deciding which
+ * ones to evict, but bitmaps are read after releasing the lock, so threads
+ * using other entries are not blocked.  Evicted bitmaps are compressed and
+ * written on a background thread with a low priority, so a rendering
+ * thread which evicts a bitmap does not wait for it.  An evicted bitmap
+ * can still be found while it is being stored.
+ *
+ * Pixels stored outside the Java heap (see {@link PackedImage#allocate})
+ * are released when no entry uses them any longer, instead of waiting for
+ * the garbage collector.  Other threads may still be using an evicted
+ * bitmap, so the pixels are only released once all threads which called
+ * {@link #beginUse()} before the bitmap was evicted have called
+ * {@link #endUse}.  Bitmaps which are kept after that, for instance the
+ * bitmap shown in a view, must be marked with {@link #markShared}.
+ *
+ * @author Knut Arild Erstad
+ */
+public class BitmapCache {
+    private static final long DEFAULT_BUDGET =
+        Runtime.getRuntime().maxMemory() / 8 * 3;
+    private static final long DEFAULT_COMPRESSED_BUDGET =
+        Runtime.getRuntime().maxMemory() / 8;
+    private static final long DEFAULT_DISK_BUDGET = 2L << 30;
+
+    private static ThreadPoolExecutor storer;
+
+    static class StorerThreadFactory implements ThreadFactory {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Blimp Bitmap Cache Writer");
+            // The spill files are deleted on exit anyway, so the thread
+            // does not need to keep the application running.
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
     }
 
-    Bitmap get(Layer layer) {
-        return get(Serializer.layerToXml(layer));
+    /**
+     * A source bitmap, or a bitmap which has been spilled to disk and may
+     * be used as a source again.  The source remembers the keys of all
+     * entries computed from it.
+     */
+    private static class Source {
+        Set<EntryKey> keys;
+        // the entry which holds the bitmap, if any
+        EntryKey owner;
+        // the reference to the bitmap object currently in use, if any
+        SourceRef ref;
+
+        Source() {
+            keys = new HashSet<EntryKey>();
+        }
+
+        boolean isAlive() {
+            return ref != null && ref.get() != null;
+        }
     }
-}
 
-public class BitmapCache {
-    BitmapTable inputTable;
-    WeakHashMap<Bitmap, BitmapTable> adjustmentTables;
+    private static class SourceRef extends WeakReference<Bitmap> {
+        Source source;
+
+        SourceRef(Bitmap bitmap, Source source,
+                ReferenceQueue<Bitmap> queue) {
+            super(bitmap, queue);
+            this.source = source;
+            source.ref = this;
+        }
+    }
+
+    /**
+     * Identifies a tile by its region and the key of the layer sequence.
+     */
+    private static class RegionKey {
+        Fingerprint sequenceKey;
+        BitmapRegion region;
+
+        RegionKey(Fingerprint sequenceKey, BitmapRegion region) {
+            this.sequenceKey = sequenceKey;
+            this.region = region;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof RegionKey))
+                return false;
+            RegionKey other = (RegionKey) obj;
+            return sequenceKey.equals(other.sequenceKey)
+                && region.equals(other.region);
+        }
+
+        @Override
+        public int hashCode() {
+            return sequenceKey.hashCode() * 31 + region.hashCode();
+        }
+    }
+
+    /**
+     * Identifies an entry by its source (<code>null</code> for input
+     * bitmaps) and the fingerprint of the layers, or a {@link RegionKey}
+     * for tiles.
+     */
+    private static class EntryKey {
+        Source source;
+        Object key;
+
+        EntryKey(Source source, Object key) {
+            this.source = source;
+            this.key = key;
+        }
 
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof EntryKey))
+                return false;
+            EntryKey other = (EntryKey) obj;
+            return source == other.source && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(source) * 31 + key.hashCode();
+        }
+    }
+
+    private static class Entry {
+        EntryKey key;
+        Bitmap bitmap;
+        long size;
+        long cost;
+        double priority;
+        // orders entries with the same priority by when they were used
+        long tick;
+
+        Entry(EntryKey key, Bitmap bitmap, long size, long cost) {
+            this.key = key;
+            this.bitmap = bitmap;
+            this.size = size;
+            this.cost = cost;
+        }
+
+        double costPerByte() {
+            return (double) cost / Math.max(size, 1);
+        }
+    }
+
+    /**
+     * Orders entries by increasing priority, and entries with the same
+     * priority in least recently used order.
+     */
+    private static final Comparator<Entry> PRIORITY_ORDER =
+        new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                int result = Double.compare(a.priority, b.priority);
+                if (result != 0)
+                    return result;
+                if (a.tick == b.tick)
+                    return 0;
+                return a.tick < b.tick ? -1 : 1;
+            }
+        };
+
+    /**
+     * A bitmap which has been compressed or spilled to disk.  The pixels
+     * are stored in a byte array or a file, while the other bitmap data
+     * is kept as it is.
+     *
+     * While the bitmap is being compressed or written, the entry is
+     * pending, and the pixels are found in the evicted bitmap or in the
+     * compressed data instead.
+     */
+    private static class StoredEntry {
+        volatile byte[] data;
+        volatile File file;
+        // the evicted bitmap, until it has been compressed or written
+        Bitmap bitmap;
+        long size;
+        // the size of the bitmap in memory
+        long bitmapSize;
+        long cost;
+        double pixelScaleFactor;
+        ExifTable exifTable;
+        // the source for results computed from the bitmap, if any
+        Source derived;
+
+        StoredEntry(StoredEntry other) {
+            cost = other.cost;
+            bitmapSize = other.bitmapSize;
+            pixelScaleFactor = other.pixelScaleFactor;
+            exifTable = other.exifTable;
+            derived = other.derived;
+        }
+
+        StoredEntry(Entry entry, Source derived) {
+            bitmap = entry.bitmap;
+            bitmapSize = entry.size;
+            cost = entry.cost;
+            pixelScaleFactor = entry.bitmap.getPixelScaleFactor();
+            exifTable = entry.bitmap.getExifTable();
+            this.derived = derived;
+        }
+
+        PackedImage read() throws IOException {
+            // the file is set before the data is cleared
+            byte[] bytes = data;
+            if (bytes != null)
+                return PackedImageFile.read(new ByteArrayInputStream(bytes));
+            return PackedImageFile.read(file);
+        }
+    }
+
+    /**
+     * Off-heap pixels which are no longer used by any entry, and will be
+     * released when the threads which may still use them are done.
+     */
+    private static class PendingRelease {
+        PackedImage image;
+        // the last use token handed out before the pixels were evicted
+        long lastToken;
+
+        PendingRelease(PackedImage image, long lastToken) {
+            this.image = image;
+            this.lastToken = lastToken;
+        }
+    }
+
+    private HashMap<EntryKey, Entry> entries;
+    // the entries in memory, in eviction order
+    private TreeSet<Entry> evictionQueue;
+    private long ticks;
+    private LinkedHashMap<EntryKey, StoredEntry> compressedEntries;
+    private LinkedHashMap<EntryKey, StoredEntry> diskEntries;
+    // entries which are being compressed or written to disk
+    private HashMap<EntryKey, StoredEntry> pendingEntries;
+    // compression and file I/O, which is done on the background thread
+    private LinkedList<Runnable> tasks;
+    // the number of tasks handed to the background thread and not done
+    private int scheduledTasks;
+    private WeakHashMap<Bitmap, SourceRef> sources;
+    private ReferenceQueue<Bitmap> queue;
+    // the number of entries in memory or pending which use off-heap pixels
+    private IdentityHashMap<PackedImage, Integer> pixelRefs;
+    private LinkedList<PendingRelease> releases;
+    private TreeSet<Long> activeUses;
+    private long lastUseToken;
+    private long budget;
+    private long usedBytes;
+    // the priority of the last evicted entry
+    private double inflation;
+    private long compressedBudget;
+    private long compressedUsedBytes;
+    private long diskBudget;
+    private long diskUsedBytes;
+    private File diskDirectory;
+
+    /**
+     * Construct a cache with the default memory and disk budgets, which
+     * compresses evicted bitmaps.
+     */
     public BitmapCache() {
-        inputTable = new BitmapTable();
-        adjustmentTables = new WeakHashMap<Bitmap, BitmapTable>();
+        this(DEFAULT_BUDGET, DEFAULT_DISK_BUDGET);
+        compressedBudget = DEFAULT_COMPRESSED_BUDGET;
+    }
+
+    /**
+     * Construct a cache with the given memory budget, which does not
+     * spill bitmaps to disk.
+     *
+     * @param budget
+     *      the maximum size of all cached bitmaps, in bytes.
+     */
+    public BitmapCache(long budget) {
+        this(budget, 0);
+    }
+
+    /**
+     * Construct a cache with the given memory and disk budgets, which does
+     * not compress bitmaps.
+     *
+     * @param budget
+     *      the maximum size of all cached bitmaps in memory, in bytes.
+     * @param diskBudget
+     *      the maximum size of all files for spilled bitmaps, in bytes,
+     *      or <code>0</code> to never spill bitmaps to disk.
+     */
+    public BitmapCache(long budget, long diskBudget) {
+        entries = new HashMap<EntryKey, Entry>();
+        evictionQueue = new TreeSet<Entry>(PRIORITY_ORDER);
+        // access order, so the first entry is the least recently used one
+        compressedEntries =
+            new LinkedHashMap<EntryKey, StoredEntry>(16, 0.75f, true);
+        diskEntries =
+            new LinkedHashMap<EntryKey, StoredEntry>(16, 0.75f, true);
+        pendingEntries = new HashMap<EntryKey, StoredEntry>();
+        tasks = new LinkedList<Runnable>();
+        sources = new WeakHashMap<Bitmap, SourceRef>();
+        queue = new ReferenceQueue<Bitmap>();
+        pixelRefs = new IdentityHashMap<PackedImage, Integer>();
+        releases = new LinkedList<PendingRelease>();
+        activeUses = new TreeSet<Long>();
+        this.budget = budget;
+        this.diskBudget = diskBudget;
+    }
+
+    /**
+     * Set the memory budget.  Bitmaps are evicted immediately if the
+     * cache is larger than the new budget.
+     */
+    public void setBudget(long budget) {
+        synchronized (this) {
+            this.budget = budget;
+            evict();
+        }
+        runTasks();
+    }
+
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Returns the total size of all cached bitmaps, in bytes.
+     */
+    public synchronized long getUsedBytes() {
+        expungeStaleEntries();
+        return usedBytes;
+    }
+
+    /**
+     * Set the memory budget for compressed bitmaps, which comes in
+     * addition to the memory budget for uncompressed bitmaps.  A budget of
+     * <code>0</code> means that bitmaps are never compressed.
+     */
+    public void setCompressedBudget(long compressedBudget) {
+        synchronized (this) {
+            this.compressedBudget = compressedBudget;
+            evictCompressed();
+        }
+        runTasks();
+    }
+
+    public synchronized long getCompressedBudget() {
+        return compressedBudget;
+    }
+
+    /**
+     * Returns the total size of all compressed bitmaps, in bytes.
+     */
+    public synchronized long getCompressedUsedBytes() {
+        expungeStaleEntries();
+        return compressedUsedBytes;
+    }
+
+    /**
+     * Set the disk budget.  Files are deleted immediately if they are
+     * larger than the new budget in total.  A budget of <code>0</code>
+     * means that bitmaps are never spilled to disk.
+     */
+    public void setDiskBudget(long diskBudget) {
+        synchronized (this) {
+            this.diskBudget = diskBudget;
+            evictFromDisk();
+        }
+        runTasks();
+    }
+
+    public synchronized long getDiskBudget() {
+        return diskBudget;
+    }
+
+    /**
+     * Returns the total size of all files for spilled bitmaps, in bytes.
+     */
+    public synchronized long getDiskUsedBytes() {
+        expungeStaleEntries();
+        return diskUsedBytes;
+    }
+
+    /**
+     * Set the directory for files with spilled bitmaps, or
+     * <code>null</code> to use the system default for temporary files.
+     * Existing files are not moved.
+     */
+    public synchronized void setDiskDirectory(File directory) {
+        diskDirectory = directory;
+    }
+
+    public synchronized File getDiskDirectory() {
+        return diskDirectory;
+    }
+
+    /**
+     * Returns the number of uncompressed bitmaps in memory.
+     */
+    public synchronized int size() {
+        expungeStaleEntries();
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of compressed bitmaps.
+     */
+    public synchronized int compressedSize() {
+        expungeStaleEntries();
+        return compressedEntries.size();
+    }
+
+    /**
+     * Returns the number of bitmaps spilled to disk.
+     */
+    public synchronized int diskSize() {
+        expungeStaleEntries();
+        return diskEntries.size();
+    }
+
+    public void clear() {
+        synchronized (this) {
+            for (Entry entry: entries.values())
+                unrefPixels(entry.bitmap);
+            for (StoredEntry pending: pendingEntries.values())
+                if (pending.bitmap != null)
+                    unrefPixels(pending.bitmap);
+            for (StoredEntry diskEntry: diskEntries.values())
+                deleteLater(diskEntry.file);
+            entries.clear();
+            evictionQueue.clear();
+            compressedEntries.clear();
+            diskEntries.clear();
+            pendingEntries.clear();
+            sources.clear();
+            usedBytes = 0;
+            compressedUsedBytes = 0;
+            diskUsedBytes = 0;
+            inflation = 0;
+        }
+        runTasks();
+    }
+
+    /**
+     * Called by a thread before it starts using bitmaps from the cache.
+     * Until the matching call to {@link #endUse}, off-heap pixels of
+     * bitmaps which are evicted are not released.  Calls can be nested.
+     *
+     * @return
+     *      a token which must be passed to {@link #endUse}.
+     */
+    public synchronized long beginUse() {
+        long token = ++lastUseToken;
+        activeUses.add(token);
+        return token;
+    }
+
+    /**
+     * Called when a thread no longer uses the bitmaps it got from the cache
+     * after calling {@link #beginUse()}, apart from bitmaps marked with
+     * {@link #markShared}.
+     */
+    public void endUse(long token) {
+        synchronized (this) {
+            activeUses.remove(token);
+        }
+        runTasks();
+    }
+
+    /**
+     * Prevent the pixels of a bitmap from being released when it is
+     * evicted, because the bitmap is kept for an unknown time.
+     */
+    public static void markShared(Bitmap bitmap) {
+        if (bitmap == null)
+            return;
+        PackedImage image = bitmap.getPackedImage();
+        if (image != null)
+            image.markShared();
+    }
+
+    /**
+     * Returns the pixels of a bitmap if they are stored off-heap and can
+     * be released by the cache, or <code>null</code>.
+     */
+    private static PackedImage releasablePixels(Bitmap bitmap) {
+        if (bitmap.getClass() != Bitmap.class)
+            return null;
+        PackedImage image = bitmap.getPackedImage();
+        if (image == null || !image.isOffHeap() || image.isShared())
+            return null;
+        return image;
+    }
+
+    private static boolean isReleased(Bitmap bitmap) {
+        PackedImage image = bitmap.getPackedImage();
+        return image != null && image.isReleased();
+    }
+
+    /**
+     * Called when an entry in memory or a pending entry starts using the
+     * pixels of a bitmap.
+     */
+    private void refPixels(Bitmap bitmap) {
+        PackedImage image = releasablePixels(bitmap);
+        if (image == null)
+            return;
+        Integer count = pixelRefs.get(image);
+        pixelRefs.put(image, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Called when an entry stops using the pixels of a bitmap.  When no
+     * entries use them, they are released by {@link #releaseUnused}.
+     */
+    private void unrefPixels(Bitmap bitmap) {
+        PackedImage image = releasablePixels(bitmap);
+        if (image == null)
+            return;
+        Integer count = pixelRefs.get(image);
+        if (count == null)
+            return;
+        if (count > 1) {
+            pixelRefs.put(image, count - 1);
+            return;
+        }
+        pixelRefs.remove(image);
+        releases.add(new PendingRelease(image, lastUseToken));
+    }
+
+    /**
+     * Release the off-heap pixels which are not used by any entry, and
+     * cannot be used by threads which got them before they were evicted.
+     */
+    private void releaseUnused() {
+        long oldestUse = activeUses.isEmpty() ? Long.MAX_VALUE
+                : activeUses.first();
+        Iterator<PendingRelease> it = releases.iterator();
+        while (it.hasNext()) {
+            PendingRelease pending = it.next();
+            if (pending.lastToken >= oldestUse)
+                break;
+            it.remove();
+            PackedImage image = pending.image;
+            // the pixels may have been cached again, or shared since
+            if (!pixelRefs.containsKey(image) && !image.isShared())
+                image.release();
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getStorer() {
+        if (storer == null) {
+            // The thread is stopped after a while without evictions.
+            storer = new ThreadPoolExecutor(0, 1, 10, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new StorerThreadFactory());
+        }
+        return storer;
+    }
+
+    /**
+     * Hand the compression and file I/O queued while the cache was locked
+     * to the background thread.  This is called by the public functions
+     * after releasing the lock.  Deleting files queued by the functions
+     * which only query the cache is left to the next call.  Unused
+     * off-heap pixels are released here, once the entries have been
+     * updated.
+     */
+    private void runTasks() {
+        assert (!Thread.holdsLock(this));
+        List<Runnable> queued;
+        synchronized (this) {
+            releaseUnused();
+            if (tasks.isEmpty())
+                return;
+            queued = new ArrayList<Runnable>(tasks);
+            tasks.clear();
+            scheduledTasks += queued.size();
+        }
+        for (final Runnable task: queued) {
+            getStorer().execute(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    }
+                    finally {
+                        // schedule the tasks queued by this one, and
+                        // release the pixels it no longer uses
+                        runTasks();
+                        taskDone();
+                    }
+                }
+            });
+        }
+    }
+
+    private synchronized void taskDone() {
+        scheduledTasks--;
+        notifyAll();
+    }
+
+    /**
+     * Wait until the bitmaps evicted so far have been compressed or
+     * written, and the files of removed entries have been deleted.
+     */
+    void waitForTasks() throws InterruptedException {
+        runTasks();
+        synchronized (this) {
+            while (scheduledTasks > 0)
+                wait();
+        }
+    }
+
+    private void deleteLater(final File file) {
+        tasks.add(new Runnable() {
+            public void run() {
+                file.delete();
+            }
+        });
+    }
+
+    private static Fingerprint layerKey(Layer layer) {
+        return layer.fingerprint();
+    }
+
+    private static Fingerprint sequenceKey(List<? extends Layer> layers) {
+        List<Fingerprint> keys = new ArrayList<Fingerprint>(layers.size());
+        for (Layer layer: layers)
+            keys.add(layerKey(layer));
+        return combineKeys(keys);
+    }
+
+    /**
+     * Create a key identifying a sequence of layers, for use with the
+     * sequence and region functions.  The key is computed from the current
+     * property values, so it should be created on the thread which owns
+     * the layers.
+     */
+    public static Fingerprint createSequenceKey(
+            List<? extends AdjustmentLayer> layers) {
+        return sequenceKey(layers);
+    }
+
+    /**
+     * Combine the fingerprints of a sequence of layers into a key, like
+     * {@link #createSequenceKey}, for callers which already know the
+     * fingerprints.  The key of a single layer is its fingerprint.
+     */
+    public static Fingerprint combineKeys(List<Fingerprint> fingerprints) {
+        if (fingerprints.size() == 1)
+            return fingerprints.get(0);
+        Fingerprint.Builder builder = new Fingerprint.Builder();
+        builder.begin();
+        for (Fingerprint fingerprint: fingerprints)
+            builder.add(fingerprint);
+        return builder.end().toFingerprint();
+    }
+
+    private void expungeStaleEntries() {
+        Reference<? extends Bitmap> ref;
+        while ((ref = queue.poll()) != null) {
+            Source source = ((SourceRef) ref).source;
+            if (source.ref != ref)
+                continue; // the bitmap has been decompressed or read again
+            source.ref = null;
+            if (source.owner != null && isStored(source.owner))
+                continue;
+            removeSource(source);
+        }
+    }
+
+    private boolean isStored(EntryKey key) {
+        return compressedEntries.containsKey(key)
+            || diskEntries.containsKey(key)
+            || pendingEntries.containsKey(key);
     }
 
-    private BitmapTable getAdjustmentTable(Bitmap source) {
-        if (adjustmentTables.containsKey(source))
-            return adjustmentTables.get(source);
-        BitmapTable newTable = new BitmapTable();
-        adjustmentTables.put(source, newTable);
-        return newTable;
+    /**
+     * Checks if a stored entry is still in use for the given key.
+     */
+    private boolean isCurrent(EntryKey key, StoredEntry stored) {
+        return compressedEntries.get(key) == stored
+            || diskEntries.get(key) == stored
+            || pendingEntries.get(key) == stored;
+    }
+
+    private void removeSource(Source source) {
+        List<EntryKey> keys = new ArrayList<EntryKey>(source.keys);
+        source.keys.clear();
+        for (EntryKey key: keys)
+            removeEntry(key);
+    }
+
+    /**
+     * Called when an entry has been removed from one of the parts of the
+     * cache, and cleans up if it is no longer found in any of them.
+     */
+    private void forgetIfUnused(EntryKey key, StoredEntry removed) {
+        if (entries.containsKey(key) || isStored(key))
+            return;
+        if (key.source != null)
+            key.source.keys.remove(key);
+        // results computed from the bitmap can now only be found while
+        // the bitmap object is still alive
+        if (removed != null && removed.derived != null
+                && !removed.derived.isAlive())
+            removeSource(removed.derived);
+    }
+
+    private StoredEntry removeCompressed(EntryKey key) {
+        StoredEntry compressed = compressedEntries.remove(key);
+        if (compressed != null)
+            compressedUsedBytes -= compressed.size;
+        return compressed;
+    }
+
+    private StoredEntry removeFromDisk(EntryKey key) {
+        StoredEntry diskEntry = diskEntries.remove(key);
+        if (diskEntry != null) {
+            deleteLater(diskEntry.file);
+            diskUsedBytes -= diskEntry.size;
+        }
+        return diskEntry;
+    }
+
+    private void removeFromMemory(Entry entry) {
+        entries.remove(entry.key);
+        evictionQueue.remove(entry);
+        usedBytes -= entry.size;
+        unrefPixels(entry.bitmap);
+    }
+
+    private void removeEntry(EntryKey key) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            removeFromMemory(entry);
+            Source derived = findSource(entry.bitmap, false);
+            if (derived != null && key.equals(derived.owner))
+                derived.owner = null;
+        }
+        StoredEntry removed = pendingEntries.remove(key);
+        if (removed != null && removed.bitmap != null)
+            unrefPixels(removed.bitmap);
+        StoredEntry compressed = removeCompressed(key);
+        if (compressed != null)
+            removed = compressed;
+        StoredEntry diskEntry = removeFromDisk(key);
+        if (removed == null)
+            removed = diskEntry;
+        forgetIfUnused(key, removed);
+    }
+
+    private void evict() {
+        makeRoom(0, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Evict entries with the lowest priority until the given number of
+     * bytes can be added without exceeding the budget.
+     *
+     * @param extra
+     *      the number of bytes to add.
+     * @param maxPriority
+     *      the highest priority of entries which can be evicted.
+     * @return
+     *      <code>true</code> if the bytes fit, or <code>false</code> if
+     *      they would not fit without evicting entries with a higher
+     *      priority, in which case nothing is evicted.
+     */
+    private boolean makeRoom(long extra, double maxPriority) {
+        if (usedBytes + extra <= budget)
+            return true;
+        List<Entry> evicted = new ArrayList<Entry>();
+        long remaining = usedBytes + extra;
+        for (Entry entry: evictionQueue) {
+            if (remaining <= budget)
+                break;
+            if (entry.priority > maxPriority)
+                return false;
+            evicted.add(entry);
+            remaining -= entry.size;
+        }
+        if (remaining > budget)
+            return false;
+        for (Entry entry: evicted) {
+            removeFromMemory(entry);
+            inflation = Math.max(inflation, entry.priority);
+        }
+        for (Entry entry: evicted) {
+            EntryKey key = entry.key;
+            if (key.source != null && !key.source.keys.contains(key))
+                continue; // removed along with a spilled source
+            store(key, entry);
+            forgetIfUnused(key, null);
+        }
+        return true;
+    }
+
+    private void evictCompressed() {
+        while (compressedUsedBytes > compressedBudget
+                && !compressedEntries.isEmpty()) {
+            EntryKey key = compressedEntries.keySet().iterator().next();
+            StoredEntry compressed = compressedEntries.get(key);
+            if (!diskEntries.containsKey(key))
+                spill(key, compressed);
+            removeCompressed(key);
+            forgetIfUnused(key, compressed);
+        }
+    }
+
+    private void evictFromDisk() {
+        while (diskUsedBytes > diskBudget && !diskEntries.isEmpty()) {
+            EntryKey key = diskEntries.keySet().iterator().next();
+            forgetIfUnused(key, removeFromDisk(key));
+        }
+    }
+
+    /**
+     * Checks if the pixels of a bitmap can be stored.
+     */
+    private static boolean canStore(Bitmap bitmap) {
+        // subclasses may compute their pixels lazily
+        if (bitmap.getClass() != Bitmap.class)
+            return false;
+        if (bitmap.getPackedImage() != null)
+            return true;
+        PixelImage jiuImage = bitmap.getImage();
+        return jiuImage != null && PackedImage.isSupported(jiuImage);
+    }
+
+    /**
+     * Returns the pixels of a bitmap as a packed image, converting them if
+     * necessary.  See {@link #canStore}.
+     */
+    private static PackedImage packedImage(Bitmap bitmap) {
+        PackedImage image = bitmap.getPackedImage();
+        if (image != null)
+            return image;
+        return PackedImage.fromJiu(bitmap.getImage());
+    }
+
+    private Source derivedSource(EntryKey key, Bitmap bitmap) {
+        SourceRef ref = sources.get(bitmap);
+        if (ref != null && key.equals(ref.source.owner))
+            return ref.source;
+        return null;
+    }
+
+    /**
+     * Queue an evicted bitmap for being compressed or written to disk,
+     * depending on the budgets.  The entry is pending until then.
+     */
+    private void store(final EntryKey key, Entry entry) {
+        if (diskEntries.get(key) != null)
+            return; // still on disk from an earlier eviction
+        if (compressedBudget <= 0 && diskBudget <= 0)
+            return;
+        if (!canStore(entry.bitmap))
+            return;
+        final StoredEntry stored =
+            new StoredEntry(entry, derivedSource(key, entry.bitmap));
+        final boolean compress = compressedBudget > 0;
+        final File directory = diskDirectory;
+        pendingEntries.put(key, stored);
+        refPixels(entry.bitmap);
+        tasks.add(new Runnable() {
+            public void run() {
+                writeStored(key, stored, compress, directory);
+            }
+        });
+    }
+
+    /**
+     * Compress a pending bitmap or write it to disk, and add it to the
+     * cache unless it has been used or removed in the meantime.
+     * Called on the background thread, without holding the lock.
+     */
+    private void writeStored(EntryKey key, StoredEntry stored,
+            boolean compress, File directory) {
+        Bitmap bitmap = stored.bitmap;
+        PackedImage image = packedImage(bitmap);
+        byte[] data = null;
+        File file = null;
+        try {
+            if (compress) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                PackedImageFile.write(image, out);
+                data = out.toByteArray();
+            }
+            else {
+                file = createDiskFile(directory);
+                PackedImageFile.write(image, file);
+            }
+        }
+        catch (IOException e) {
+            Util.warn("Failed to store an evicted bitmap: "
+                    + e.getMessage());
+            if (file != null)
+                file.delete();
+            data = null;
+            file = null;
+        }
+        finally {
+            if (image != bitmap.getPackedImage())
+                image.release();
+        }
+        synchronized (this) {
+            if (pendingEntries.get(key) != stored) {
+                // read back or removed while it was being stored
+                if (file != null)
+                    deleteLater(file);
+                return;
+            }
+            pendingEntries.remove(key);
+            stored.bitmap = null;
+            unrefPixels(bitmap);
+            if (data != null) {
+                stored.data = data;
+                stored.size = data.length;
+                // the data must fit, and be worth keeping in memory
+                if (stored.size <= compressedBudget
+                        && stored.size < stored.bitmapSize) {
+                    compressedEntries.put(key, stored);
+                    compressedUsedBytes += stored.size;
+                    evictCompressed();
+                    return;
+                }
+                spill(key, stored);
+            }
+            else if (file != null) {
+                stored.file = file;
+                addToDisk(key, stored);
+            }
+            forgetIfUnused(key, stored);
+        }
+    }
+
+    private static File createDiskFile(File directory) throws IOException {
+        if (directory != null)
+            directory.mkdirs();
+        File file = File.createTempFile("blimp", ".cache", directory);
+        file.deleteOnExit();
+        return file;
+    }
+
+    private void addToDisk(EntryKey key, StoredEntry diskEntry) {
+        diskEntry.size = diskEntry.file.length();
+        diskEntries.put(key, diskEntry);
+        diskUsedBytes += diskEntry.size;
+        evictFromDisk();
+    }
+
+    /**
+     * Queue a compressed bitmap for being written to disk, if there is a
+     * disk budget.  Until then it can be read from the compressed data.
+     */
+    private void spill(final EntryKey key, StoredEntry compressed) {
+        if (diskBudget <= 0 || compressed.size > diskBudget)
+            return;
+        final StoredEntry diskEntry = new StoredEntry(compressed);
+        diskEntry.data = compressed.data;
+        diskEntry.size = compressed.size;
+        final File directory = diskDirectory;
+        pendingEntries.put(key, diskEntry);
+        tasks.add(new Runnable() {
+            public void run() {
+                writeSpilled(key, diskEntry, directory);
+            }
+        });
+    }
+
+    /**
+     * Write the data of a pending compressed bitmap to disk.  Called on
+     * the background thread, without holding the lock.  Until the file is
+     * complete, the entry is pending and read from the compressed data.
+     */
+    private void writeSpilled(EntryKey key, StoredEntry diskEntry,
+            File directory) {
+        File file = null;
+        OutputStream out = null;
+        try {
+            file = createDiskFile(directory);
+            out = new FileOutputStream(file);
+            out.write(diskEntry.data);
+            out.close();
+            out = null;
+        }
+        catch (IOException e) {
+            Util.warn("Failed to write a cached bitmap to disk: "
+                    + e.getMessage());
+            if (file != null)
+                file.delete();
+            file = null;
+        }
+        finally {
+            try {
+                if (out != null)
+                    out.close();
+            }
+            catch (IOException e) {
+                Util.warn("Failed to close a cache file: " + e.getMessage());
+            }
+        }
+        synchronized (this) {
+            if (pendingEntries.get(key) != diskEntry) {
+                if (file != null)
+                    deleteLater(file);
+                return;
+            }
+            pendingEntries.remove(key);
+            if (file != null) {
+                diskEntry.file = file;
+                diskEntry.data = null;
+                addToDisk(key, diskEntry);
+            }
+            forgetIfUnused(key, diskEntry);
+        }
+    }
+
+    /**
+     * Decompress a bitmap, or read it from disk.  Called without holding
+     * the lock.  If several threads read the same entry, the data is only
+     * read once, unless the bitmap is evicted again in the meantime.
+     */
+    private Bitmap read(EntryKey key, StoredEntry stored) {
+        synchronized (stored) {
+            synchronized (this) {
+                Entry entry = entries.get(key);
+                if (entry != null)
+                    return entry.bitmap;
+            }
+            PackedImage image;
+            try {
+                image = stored.read();
+            }
+            catch (IOException e) {
+                Util.warn("Failed to read a cached bitmap: "
+                        + e.getMessage());
+                synchronized (this) {
+                    if (isCurrent(key, stored))
+                        removeEntry(key);
+                }
+                return null;
+            }
+            Bitmap bitmap = new Bitmap(image);
+            bitmap.setPixelScaleFactor(stored.pixelScaleFactor);
+            bitmap.setExifTable(stored.exifTable);
+            return bitmap;
+        }
+    }
+
+    /**
+     * Returns the bitmap of a stored entry if it is still in use elsewhere,
+     * so it does not have to be read again.
+     */
+    private static Bitmap liveBitmap(StoredEntry stored) {
+        if (stored.bitmap != null)
+            return stored.bitmap;
+        if (stored.derived != null && stored.derived.isAlive()) {
+            Bitmap bitmap = stored.derived.ref.get();
+            if (bitmap != null && !isReleased(bitmap))
+                return bitmap;
+        }
+        return null;
+    }
+
+    /**
+     * Put a bitmap which was read from a stored entry back in memory.
+     *
+     * @return
+     *      the bitmap to use, which is a different one if another thread
+     *      has already put the entry back in memory.
+     */
+    private Bitmap restore(EntryKey key, StoredEntry stored, Bitmap bitmap) {
+        Entry entry = entries.get(key);
+        if (entry != null)
+            return entry.bitmap;
+        if (!isCurrent(key, stored))
+            return bitmap; // removed in the meantime
+        if (stored.derived != null && sources.get(bitmap) == null)
+            sources.put(bitmap, new SourceRef(bitmap, stored.derived, queue));
+        long size = bitmap.getByteSize();
+        if (size <= budget)
+            addEntry(key, bitmap, size, stored.cost);
+        if (entries.containsKey(key)) {
+            // a pending bitmap no longer has to be stored, and the
+            // compressed data is only kept until the bitmap is in memory
+            if (pendingEntries.get(key) == stored && stored.bitmap != null) {
+                pendingEntries.remove(key);
+                unrefPixels(stored.bitmap);
+            }
+            if (compressedEntries.get(key) == stored)
+                removeCompressed(key);
+        }
+        return bitmap;
+    }
+
+    private Source findSource(Bitmap bitmap, boolean create) {
+        SourceRef ref = sources.get(bitmap);
+        if (ref != null)
+            return ref.source;
+        if (!create)
+            return null;
+        ref = new SourceRef(bitmap, new Source(), queue);
+        sources.put(bitmap, ref);
+        return ref.source;
+    }
+
+    /**
+     * Add a bitmap to the memory part of the cache, unless its priority is
+     * too low.
+     */
+    private void addEntry(EntryKey key, Bitmap bitmap, long size,
+            long cost) {
+        Entry entry = new Entry(key, bitmap, size, cost);
+        entry.priority = inflation + entry.costPerByte();
+        if (!makeRoom(size, entry.priority))
+            return;
+        entry.tick = ++ticks;
+        entries.put(key, entry);
+        evictionQueue.add(entry);
+        usedBytes += size;
+        refPixels(bitmap);
+        if (key.source != null)
+            key.source.keys.add(key);
+        // the bitmap can be found again after spilling it to disk
+        Source derived = findSource(bitmap, true);
+        if (derived.owner == null)
+            derived.owner = key;
+    }
+
+    private void putEntry(Bitmap source, Object key, Bitmap bitmap,
+            long cost) {
+        synchronized (this) {
+            expungeStaleEntries();
+            EntryKey entryKey;
+            if (source == null)
+                entryKey = new EntryKey(null, key);
+            else
+                entryKey = new EntryKey(findSource(source, true), key);
+            removeEntry(entryKey);
+            long size = (bitmap == null) ? 0 : bitmap.getByteSize();
+            // a bitmap larger than the whole budget would evict everything
+            if (bitmap != null && size <= budget)
+                addEntry(entryKey, bitmap, size, cost);
+        }
+        runTasks();
+    }
+
+    private Bitmap getEntry(Bitmap source, Object key) {
+        EntryKey entryKey;
+        StoredEntry stored;
+        Bitmap bitmap;
+        synchronized (this) {
+            expungeStaleEntries();
+            if (source == null) {
+                entryKey = new EntryKey(null, key);
+            }
+            else {
+                Source found = findSource(source, false);
+                if (found == null)
+                    return null;
+                entryKey = new EntryKey(found, key);
+            }
+            Entry entry = entries.get(entryKey);
+            if (entry != null) {
+                evictionQueue.remove(entry);
+                entry.priority = inflation + entry.costPerByte();
+                entry.tick = ++ticks;
+                evictionQueue.add(entry);
+                return entry.bitmap;
+            }
+            stored = pendingEntries.get(entryKey);
+            if (stored == null)
+                stored = compressedEntries.get(entryKey);
+            if (stored == null)
+                stored = diskEntries.get(entryKey);
+            if (stored == null)
+                return null;
+            bitmap = liveBitmap(stored);
+            if (bitmap != null)
+                bitmap = restore(entryKey, stored, bitmap);
+        }
+        if (bitmap == null) {
+            Bitmap loaded = read(entryKey, stored);
+            if (loaded != null) {
+                synchronized (this) {
+                    bitmap = restore(entryKey, stored, loaded);
+                }
+                // another thread read it first, so nobody uses this copy
+                if (bitmap != loaded && loaded.getPackedImage() != null)
+                    loaded.getPackedImage().release();
+            }
+        }
+        runTasks();
+        return bitmap;
+    }
+
+    /**
+     * Put the result of applying a layer.
+     *
+     * @param source
+     *      the bitmap which the layer was applied to.
+     * @param layer
+     *      the layer.
+     * @param result
+     *      the result.
+     * @param cost
+     *      the time it took to compute the result, in nanoseconds, or
+     *      <code>0</code> if unknown.
+     */
+    public void put(Bitmap source, AdjustmentLayer layer, Bitmap result,
+            long cost) {
+        putEntry(source, layerKey(layer), result, cost);
     }
 
     public void put(Bitmap source, AdjustmentLayer layer, Bitmap result) {
-        BitmapTable table = getAdjustmentTable(source);
-        table.put(layer, result);
+        put(source, layer, result, 0);
+    }
+
+    /**
+     * Put the result of applying a sequence of layers in one step.
+     * This is used for combined point operations.
+     */
+    public void put(Bitmap source, List<? extends AdjustmentLayer> layers,
+            Bitmap result, long cost) {
+        putEntry(source, sequenceKey(layers), result, cost);
     }
 
-    public void put(InputLayer layer, Bitmap result) {
-        inputTable.put(layer, result);
+    /**
+     * Put the result of applying a layer, or a sequence of layers in one
+     * step, which is identified by its fingerprint or by a key created by
+     * {@link #combineKeys}.  This avoids fingerprinting the layers again
+     * when the caller already knows the fingerprints.
+     *
+     * @param source
+     *      the bitmap which the layers were applied to, or
+     *      <code>null</code> for the bitmap of an input layer.
+     */
+    public void put(Bitmap source, Fingerprint key, Bitmap result,
+            long cost) {
+        putEntry(source, key, result, cost);
+    }
+
+    /**
+     * Put the result of applying a sequence of layers to a region of
+     * the source bitmap.  The layers are identified by a key created
+     * by {@link #createSequenceKey} or {@link #combineKeys}.
+     */
+    public void put(Bitmap source, Fingerprint sequenceKey,
+            BitmapRegion region, Bitmap result, long cost) {
+        putEntry(source, new RegionKey(sequenceKey, region), result, cost);
+    }
+
+    public void put(InputLayer layer, Bitmap result, long cost) {
+        putEntry(null, layerKey(layer), result, cost);
     }
 
     public Bitmap get(Bitmap source, AdjustmentLayer layer) {
-        BitmapTable table = adjustmentTables.get(source);
-        if (table == null)
-            return null;
-        return table.get(layer);
+        return getEntry(source, layerKey(layer));
+    }
+
+    public Bitmap get(Bitmap source, List<? extends AdjustmentLayer> layers) {
+        return getEntry(source, sequenceKey(layers));
+    }
+
+    /**
+     * Get a bitmap stored by {@link #put(Bitmap, Fingerprint, Bitmap, long)}.
+     */
+    public Bitmap get(Bitmap source, Fingerprint key) {
+        return getEntry(source, key);
+    }
+
+    public Bitmap get(Bitmap source, Fingerprint sequenceKey,
+            BitmapRegion region) {
+        return getEntry(source, new RegionKey(sequenceKey, region));
     }
 
     public Bitmap get(InputLayer layer) {
-        return inputTable.get(layer);
+        return getEntry(null, layerKey(layer));
     }
 }
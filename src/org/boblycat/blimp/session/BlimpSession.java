@@ -23,13 +23,22 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 
+import net.sourceforge.jiu.data.PixelImage;
+
 import org.boblycat.blimp.data.Bitmap;
+import org.boblycat.blimp.data.BitmapPyramid;
+import org.boblycat.blimp.data.BitmapRegion;
 import org.boblycat.blimp.data.BitmapSize;
 import org.boblycat.blimp.data.BitmapUtil;
+import org.boblycat.blimp.data.PackedImage;
 import org.boblycat.blimp.data.RGBHistograms;
+import org.boblycat.blimp.data.TiledBitmap;
 import org.boblycat.blimp.data.ZoomFactor;
 import org.boblycat.blimp.event.LayerChangeListener;
 import org.boblycat.blimp.event.LayerEvent;
@@ -39,12 +48,16 @@ import org.boblycat.blimp.exif.ExifBlobReader;
 import org.boblycat.blimp.exif.ExifTable;
 import org.boblycat.blimp.exif.ReaderError;
 import org.boblycat.blimp.io.BlimpBean;
+import org.boblycat.blimp.io.Fingerprint;
 import org.boblycat.blimp.io.Serializer;
 import org.boblycat.blimp.layers.AdjustmentLayer;
 import org.boblycat.blimp.layers.DimensionAdjustmentLayer;
 import org.boblycat.blimp.layers.InputLayer;
 import org.boblycat.blimp.layers.Layer;
+import org.boblycat.blimp.layers.PointOperation;
 import org.boblycat.blimp.layers.ViewResizeLayer;
+import org.boblycat.blimp.ops.LookupTable;
+import org.boblycat.blimp.util.CancellationToken;
 import org.boblycat.blimp.util.Util;
 
 class CachedExifData {
@@ -79,13 +92,42 @@ public class BlimpSession extends InputLayer implements LayerChangeListener {
         Accurate
     }
 
+    /**
+     * The size of the tiles used when layers are applied lazily to the
+     * view, see {@link #createTiledBitmap}.  When only a region of the
+     * image is generated, it is aligned to tiles of this size, so that
+     * tiles can be reused (cached) when the region is moved.
+     */
+    public static final int TILE_SIZE = 256;
+
+    /**
+     * The largest total band overlap of the layers which are applied to
+     * tiles.  A tile is computed from a region padded by the overlap of its
+     * own layer and of the tiled layers before it, so with large overlaps
+     * a tile costs almost as much as the whole image.  Layers beyond this
+     * limit are applied to the whole image instead.
+     */
+    static final int MAX_TILE_MARGIN = TILE_SIZE / 4;
+
     List<Layer> layerList;
     Bitmap currentBitmap;
     ViewResizeLayer viewLayer;
     PreviewQuality previewQuality;
     CachedExifData exifData;
+    boolean combinePointOperations;
+    BitmapPyramid inputPyramid;
+    BitmapPyramid outputPyramid;
+    BitmapRegion viewRegion;
+    BitmapRegion currentRegion;
+    BitmapSize currentViewSize;
 
     private String projectFilePath;
+    // the most recent snapshot of this session, shared with later snapshots
+    private SessionSnapshot lastSnapshot;
+    // the snapshot this session was last synchronized with, if any
+    private SessionSnapshot appliedSnapshot;
+    // layers which may have changed since lastSnapshot was created
+    private Set<Layer> dirtyLayers;
 
     class SessionProgressListener implements ProgressListener {
         BlimpSession session;
@@ -98,6 +140,9 @@ public class BlimpSession extends InputLayer implements LayerChangeListener {
 
         public void reportProgress(ProgressEvent e) {
             session.reportLayerProgress(layer, e.progress);
+            // layers report progress often, which makes it a good place
+            // for checking if the computation should be aborted
+            CancellationToken.checkCurrent();
         }
     }
 
@@ -107,28 +152,431 @@ public class BlimpSession extends InputLayer implements LayerChangeListener {
         viewLayer = new ViewResizeLayer();
         previewQuality = PreviewQuality.Accurate;
         exifData = new CachedExifData();
+        combinePointOperations = true;
+        dirtyLayers = Collections.newSetFromMap(
+                new IdentityHashMap<Layer, Boolean>());
     }
 
     private void reportLayerProgress(Layer layer, double progress) {
         triggerProgress(layer.getProgressDescription(), progress);
     }
 
-    protected Bitmap applyLayer(Bitmap source, AdjustmentLayer layer) {
-        reportLayerProgress(layer, 0.0);
-        ProgressListener listener = new SessionProgressListener(this, layer);
-        layer.addProgressListener(listener);
-        Bitmap result = layer.applyLayer(source);
+    private static void inheritBitmapData(Bitmap source, Bitmap result) {
         if (result != null) {
             if (result.getPixelScaleFactor() <= 0)
                 result.setPixelScaleFactor(source.getPixelScaleFactor());
             if (result.getExifTable() == null)
                 result.setExifTable(source.getExifTable());
         }
+    }
+
+    protected Bitmap applyLayer(Bitmap source, AdjustmentLayer layer) {
+        reportLayerProgress(layer, 0.0);
+        ProgressListener listener = new SessionProgressListener(this, layer);
+        layer.addProgressListener(listener);
+        Bitmap result;
+        if (layer == viewLayer)
+            result = viewLayer.applyLayer(source, getPyramid(source));
+        else
+            result = layer.applyLayerParallel(source);
+        inheritBitmapData(source, result);
         layer.removeProgressListener(listener);
         reportLayerProgress(layer, 1.0);
         return result;
     }
 
+    private Bitmap applyLayerDirectly(Bitmap source, AdjustmentLayer layer) {
+        Bitmap result = layer.applyLayerParallel(source);
+        inheritBitmapData(source, result);
+        return result;
+    }
+
+    private static LookupTable combinedLookupTable(Bitmap source,
+            List<AdjustmentLayer> layers) {
+        LookupTable table = LookupTable.forBitmap(source);
+        for (AdjustmentLayer layer: layers)
+            ((PointOperation) layer).updateLookupTable(table);
+        return table;
+    }
+
+    /**
+     * Apply a sequence of consecutive point operation layers.  If possible,
+     * the lookup tables of all the layers are combined and applied in
+     * a single pass, which gives the same result as applying the layers
+     * one at a time.
+     *
+     * @param source
+     *      the source bitmap.
+     * @param layers
+     *      a list of active layers which all implement {@link PointOperation}.
+     * @return
+     *      the resulting bitmap.
+     */
+    protected Bitmap applyPointOperations(Bitmap source,
+            List<AdjustmentLayer> layers) {
+        if (layers.size() == 1 || !LookupTable.isSupported(source)) {
+            Bitmap bm = source;
+            for (AdjustmentLayer layer: layers)
+                bm = applyLayer(bm, layer);
+            return bm;
+        }
+        LookupTable table = combinedLookupTable(source, layers);
+        // report progress on the last layer in the sequence
+        AdjustmentLayer lastLayer = layers.get(layers.size() - 1);
+        reportLayerProgress(lastLayer, 0.0);
+        ProgressListener listener = new SessionProgressListener(this, lastLayer);
+        lastLayer.addProgressListener(listener);
+        Bitmap result = lastLayer.applyLookupTable(source, table);
+        inheritBitmapData(source, result);
+        lastLayer.removeProgressListener(listener);
+        reportLayerProgress(lastLayer, 1.0);
+        return result;
+    }
+
+    private Bitmap applyPointOperationsDirectly(Bitmap source,
+            List<AdjustmentLayer> layers) {
+        if (layers.size() == 1 || !LookupTable.isSupported(source)) {
+            Bitmap bm = source;
+            for (AdjustmentLayer layer: layers)
+                bm = applyLayerDirectly(bm, layer);
+            return bm;
+        }
+        AdjustmentLayer lastLayer = layers.get(layers.size() - 1);
+        Bitmap result = lastLayer.applyLookupTable(source,
+                combinedLookupTable(source, layers));
+        inheritBitmapData(source, result);
+        return result;
+    }
+
+    private Bitmap applyLayerSequence(Bitmap source,
+            List<AdjustmentLayer> layers) {
+        return applyLayerSequence(source, layers, false);
+    }
+
+    /**
+     * Apply a sequence of layers.  If <code>direct</code> is
+     * <code>true</code>, the layers are applied without progress reporting
+     * and without going through {@link #applyLayer} and
+     * {@link #applyPointOperations}, which means that subclasses will not
+     * cache the intermediate bitmaps.  For the same reason, the
+     * computation can only be preempted between layers if
+     * <code>direct</code> is <code>false</code>.
+     */
+    private Bitmap applyLayerSequence(Bitmap source,
+            List<AdjustmentLayer> layers, boolean direct) {
+        Bitmap bm = source;
+        List<AdjustmentLayer> pointOps = new ArrayList<AdjustmentLayer>();
+        for (AdjustmentLayer layer: layers) {
+            if (!layer.isActive())
+                continue;
+            if (direct)
+                CancellationToken.checkCurrent();
+            else
+                CancellationToken.checkCurrentBoundary();
+            if (combinePointOperations && layer instanceof PointOperation) {
+                pointOps.add(layer);
+                continue;
+            }
+            if (pointOps.size() > 0) {
+                if (direct)
+                    bm = applyPointOperationsDirectly(bm, pointOps);
+                else
+                    bm = applyPointOperations(bm, pointOps);
+                pointOps.clear();
+            }
+            if (direct)
+                bm = applyLayerDirectly(bm, layer);
+            else
+                bm = applyLayer(bm, layer);
+        }
+        if (pointOps.size() > 0) {
+            if (direct)
+                bm = applyPointOperationsDirectly(bm, pointOps);
+            else
+                bm = applyPointOperations(bm, pointOps);
+        }
+        return bm;
+    }
+
+    /**
+     * Returns a bitmap containing a region of another bitmap.  For packed
+     * bitmaps the pixels are shared instead of copied.
+     */
+    static Bitmap regionBitmap(Bitmap bm, BitmapRegion region) {
+        PackedImage packed = bm.getPackedImage();
+        if (packed != null)
+            return new Bitmap(packed.getRegion(region.x, region.y,
+                    region.width, region.height));
+        return new Bitmap(BitmapUtil.copyRegion(bm.getImage(), region.x,
+                region.y, region.width, region.height));
+    }
+
+    /**
+     * Computes the tiles of one layer group (a single layer, or a run of
+     * combined point operations) from the corresponding tiles of the
+     * previous group, or from the bitmap the tiled layers are applied to.
+     * Tiles can be computed on several threads at the same time.
+     */
+    class LayerTileSource implements TiledBitmap.TileSource {
+        Bitmap root;
+        Bitmap input;
+        List<AdjustmentLayer> group;
+        Object key;
+        int margin;
+
+        LayerTileSource(Bitmap root, Bitmap input, List<AdjustmentLayer> group,
+                List<AdjustmentLayer> sequence) {
+            this.root = root;
+            this.input = input;
+            this.group = group;
+            key = createTileKey(sequence);
+            for (AdjustmentLayer layer: group)
+                margin += layer.getBandOverlap(root);
+        }
+
+        BitmapRegion paddedRegion(BitmapRegion region) {
+            return region.grow(margin).clip(root.getWidth(),
+                    root.getHeight());
+        }
+
+        public void prepare(BitmapRegion region) {
+            if (input instanceof TiledBitmap)
+                ((TiledBitmap) input).prepareRegion(paddedRegion(region));
+        }
+
+        public PixelImage computeTile(BitmapRegion region) {
+            Bitmap tile = findTile(root, key, region);
+            if (tile != null)
+                return tile.getImage();
+            CancellationToken.checkCurrent();
+            long start = System.nanoTime();
+            BitmapRegion padded = paddedRegion(region);
+            Bitmap bm;
+            if (input instanceof TiledBitmap)
+                bm = new Bitmap(((TiledBitmap) input).getRegion(padded));
+            else
+                bm = regionBitmap(input, padded);
+            inheritBitmapData(root, bm);
+            bm = applyLayerSequence(bm, group, true);
+            if (padded.equals(region))
+                tile = bm;
+            else
+                tile = regionBitmap(bm, new BitmapRegion(region.x - padded.x,
+                        region.y - padded.y, region.width, region.height));
+            storeTile(root, key, region, tile, System.nanoTime() - start);
+            return tile.getImage();
+        }
+    }
+
+    /**
+     * Create a key identifying the tiles of a sequence of layers, which is
+     * passed on to {@link #findTile} and {@link #storeTile}.  This is
+     * called on the thread which creates the tiled bitmap.
+     * The default implementation returns <code>null</code>.
+     *
+     * @param layers
+     *      the active layers which are applied to get the tiles.
+     * @return
+     *      a key, or <code>null</code>.
+     */
+    protected Object createTileKey(List<AdjustmentLayer> layers) {
+        return null;
+    }
+
+    /**
+     * Look up a previously computed tile.  The default implementation
+     * does nothing, but subclasses can override this (and
+     * {@link #storeTile}) in order to cache tiles.
+     * This can be called on several threads at the same time.
+     *
+     * @param root
+     *      the bitmap which the layers were applied to.
+     * @param key
+     *      a key created by {@link #createTileKey}.
+     * @param region
+     *      the region covered by the tile.
+     * @return
+     *      a tile, or <code>null</code>.
+     */
+    protected Bitmap findTile(Bitmap root, Object key, BitmapRegion region) {
+        return null;
+    }
+
+    /**
+     * Called when a tile has been computed.  The default implementation does
+     * nothing.  See {@link #findTile}.
+     *
+     * @param cost
+     *      the time it took to compute the tile, in nanoseconds.
+     */
+    protected void storeTile(Bitmap root, Object key, BitmapRegion region,
+            Bitmap tile, long cost) {
+    }
+
+    /**
+     * Create a tiled bitmap for applying a sequence of layers to a
+     * bitmap.  The layers must not change the dimensions of the image, and
+     * must all support being applied to separate parts of the image, see
+     * {@link AdjustmentLayer#getBandOverlap}.
+     *
+     * Each layer, or run of combined point operations, gets its own tiled
+     * bitmap, which is used as the input of the next one.  Thus changing
+     * one of the last layers will not cause the tiles of the earlier layers
+     * to be recomputed, as long as they are cached.
+     *
+     * The layers are copied, so later changes to the session will not
+     * affect the returned bitmap.
+     *
+     * @param source
+     *      the source bitmap.
+     * @param layers
+     *      a non-empty list of active layers.
+     * @return
+     *      a new tiled bitmap, where no tiles have been computed yet.
+     */
+    protected TiledBitmap createTiledBitmap(Bitmap source,
+            List<AdjustmentLayer> layers) {
+        List<AdjustmentLayer> sequence = new ArrayList<AdjustmentLayer>();
+        List<List<AdjustmentLayer>> groups = new ArrayList<List<AdjustmentLayer>>();
+        List<AdjustmentLayer> group = null;
+        for (AdjustmentLayer layer: layers) {
+            AdjustmentLayer copy = (AdjustmentLayer) layer.clone();
+            sequence.add(copy);
+            boolean combine = combinePointOperations
+                && copy instanceof PointOperation;
+            if (group == null || !combine) {
+                group = new ArrayList<AdjustmentLayer>();
+                groups.add(group);
+            }
+            group.add(copy);
+            if (!combine)
+                group = null;
+        }
+        Bitmap input = source;
+        int count = 0;
+        for (List<AdjustmentLayer> g: groups) {
+            count += g.size();
+            TiledBitmap tiled = new TiledBitmap(source.getWidth(),
+                    source.getHeight(), TILE_SIZE,
+                    new LayerTileSource(source, input, g,
+                            sequence.subList(0, count)));
+            inheritBitmapData(source, tiled);
+            input = tiled;
+        }
+        return (TiledBitmap) input;
+    }
+
+    private boolean canApplyToRegion(AdjustmentLayer layer, Bitmap source) {
+        if (layer == viewLayer || !layer.isActive())
+            return true;
+        return !layer.canChangeDimensions()
+            && layer.getBandOverlap(source) >= 0;
+    }
+
+    /**
+     * Apply the layers for the view.  The trailing layers which can be
+     * applied to separate regions are applied lazily using a tiled bitmap,
+     * as long as their total overlap is within {@link #MAX_TILE_MARGIN},
+     * while the other layers are applied to the whole image as usual.
+     * This requires the view layer to leave the image size unchanged.
+     *
+     * If a region is given, only the tiles which intersect with the region
+     * are computed, and the returned bitmap only covers those tiles.
+     * Its position in the view is available from {@link #getCurrentRegion()}.
+     */
+    private Bitmap applyLayerSequenceForView(Bitmap source,
+            List<AdjustmentLayer> layers, BitmapRegion region) {
+        int split = layers.size();
+        int margin = 0;
+        while (split > 0) {
+            AdjustmentLayer layer = layers.get(split - 1);
+            if (!canApplyToRegion(layer, source))
+                break;
+            if (layer != viewLayer && layer.isActive())
+                margin += layer.getBandOverlap(source);
+            if (margin > MAX_TILE_MARGIN)
+                break;
+            split--;
+        }
+        Bitmap bm = applyLayerSequence(source, layers.subList(0, split));
+        List<AdjustmentLayer> tiledLayers = new ArrayList<AdjustmentLayer>();
+        boolean hasViewLayer = false;
+        for (AdjustmentLayer layer: layers.subList(split, layers.size())) {
+            if (layer == viewLayer)
+                hasViewLayer = true;
+            else if (layer.isActive())
+                tiledLayers.add(layer);
+        }
+        if (hasViewLayer && applyLayer(bm, viewLayer) != bm) {
+            // The image size has changed, causing a new zoom factor to be
+            // chosen, so the viewport is no longer valid.
+            return applyLayerSequence(bm, layers.subList(split, layers.size()));
+        }
+        TiledBitmap tiled = null;
+        if (!tiledLayers.isEmpty())
+            tiled = createTiledBitmap(bm, tiledLayers);
+        if (region == null)
+            return (tiled == null) ? bm : tiled;
+
+        int width = bm.getWidth();
+        int height = bm.getHeight();
+        BitmapRegion clipped = region.clip(width, height);
+        if (clipped.isEmpty())
+            return (tiled == null) ? bm : tiled;
+        int firstTileX = clipped.x / TILE_SIZE;
+        int firstTileY = clipped.y / TILE_SIZE;
+        int lastTileX = (clipped.x + clipped.width - 1) / TILE_SIZE;
+        int lastTileY = (clipped.y + clipped.height - 1) / TILE_SIZE;
+        BitmapRegion covered = new BitmapRegion(firstTileX * TILE_SIZE,
+                firstTileY * TILE_SIZE,
+                (lastTileX - firstTileX + 1) * TILE_SIZE,
+                (lastTileY - firstTileY + 1) * TILE_SIZE).clip(width, height);
+        if (covered.width == width && covered.height == height)
+            return (tiled == null) ? bm : tiled;
+
+        Bitmap ret;
+        if (tiled == null) {
+            ret = regionBitmap(bm, covered);
+        }
+        else {
+            triggerProgress("Visible region", 0.0);
+            ret = new Bitmap(tiled.getRegion(covered));
+            triggerProgress("Visible region", 1.0);
+        }
+        inheritBitmapData(bm, ret);
+        currentRegion = covered;
+        currentViewSize = bm.getSize();
+        return ret;
+    }
+
+    /**
+     * Enable or disable combining consecutive point operation layers
+     * (such as levels, curves and gamma) into a single lookup table.
+     * This is enabled by default.
+     */
+    public void setCombinePointOperations(boolean combine) {
+        combinePointOperations = combine;
+    }
+
+    public boolean getCombinePointOperations() {
+        return combinePointOperations;
+    }
+
+    /**
+     * Returns a pyramid for a bitmap to be zoomed.  Pyramids are kept for
+     * the input bitmap and for the last other bitmap, which is normally the
+     * full-resolution output of the layers before the zoom.
+     */
+    private BitmapPyramid getPyramid(Bitmap source) {
+        if (!BitmapPyramid.isSupported(source))
+            return null;
+        if (inputPyramid != null && inputPyramid.isFor(source))
+            return inputPyramid;
+        if (outputPyramid == null || !outputPyramid.isFor(source))
+            outputPyramid = new BitmapPyramid(source);
+        return outputPyramid;
+    }
+
     protected Bitmap inputBitmap(InputLayer input) throws IOException {
         reportLayerProgress(input, 0.0);
         ProgressListener listener = new SessionProgressListener(this, input);
@@ -146,6 +594,8 @@ public class BlimpSession extends InputLayer implements LayerChangeListener {
     }
 
     public void applyLayers() throws IOException {
+        currentRegion = null;
+        currentViewSize = null;
         currentBitmap = generateBitmap(true);
     }
 
@@ -165,6 +615,8 @@ public class BlimpSession extends InputLayer implements LayerChangeListener {
             Util.err("Input failed!");
             return null;
         }
+        if (inputPyramid == null || !inputPyramid.isFor(bm))
+            inputPyramid = new BitmapPyramid(bm);
         return bm;
     }
 
@@ -191,6 +643,11 @@ public class BlimpSession extends InputLayer implements LayerChangeListener {
 
     private Bitmap internalGenerateBitmapBeforeLayer(String layerName,
             boolean useViewport) throws IOException {
+        return internalGenerateBitmapBeforeLayer(layerName, useViewport, false);
+    }
+
+    private Bitmap internalGenerateBitmapBeforeLayer(String layerName,
+            boolean useViewport, boolean forView) throws IOException {
         if (layerName != null) {
             Layer test = findLayer(layerName);
             if (test == null) {
@@ -211,16 +668,14 @@ public class BlimpSession extends InputLayer implements LayerChangeListener {
         List<AdjustmentLayer> layers = tryRearrangeLayersBefore(layerName,
                 useViewport);
 
-        for (AdjustmentLayer layer : layers) {
-            if (layer.isActive())
-                bm = applyLayer(bm, layer);
-        }
-
-        return bm;
+        if (forView && viewLayer.zoom().getDivisor() == 1)
+            return applyLayerSequenceForView(bm, layers, viewRegion);
+        return applyLayerSequence(bm, layers);
     }
 
     protected Bitmap generateBitmap(boolean useViewport) throws IOException {
-        return internalGenerateBitmapBeforeLayer(null, useViewport);
+        return internalGenerateBitmapBeforeLayer(null, useViewport,
+                useViewport);
     }
 
     /**
@@ -300,6 +755,7 @@ public class BlimpSession extends InputLayer implements LayerChangeListener {
      * @param forHistory <code>true</code> if this is done for history purposes (such as undo/redo)
      */
     public void synchronizeSessionData(BlimpSession other, boolean forHistory) {
+        appliedSnapshot = null;
         List<Layer> newList = new ArrayList<Layer>();
         for (Layer otherLayer: other.layerList)
             newList.add(findOrCloneLayer(otherLayer));
@@ -321,15 +777,151 @@ public class BlimpSession extends InputLayer implements LayerChangeListener {
                 // different layer classes with same name
                 i = -1;
         }
-        if (i < 0)
-            return (Layer) otherLayer.clone();
+        if (i < 0) {
+            Layer newLayer = (Layer) otherLayer.clone();
+            newLayer.addChangeListener(this);
+            return newLayer;
+        }
         Layer foundLayer = layerList.get(i);
         // Note: remove by index avoids equals(), so it is faster than remove(Object)
         layerList.remove(i);
         Serializer.copyBeanData(otherLayer, foundLayer);
+        layerChanged(foundLayer);
         return foundLayer;
     }
 
+    /**
+     * Create an immutable snapshot of the session's layers, which can be
+     * handed to a worker thread.  Layers which have not changed since the
+     * previous snapshot are shared with it, so only the changed layers
+     * are copied.
+     *
+     * The layers are tracked with their change events, and only the
+     * layers which have sent an event since the previous snapshot are
+     * fingerprinted.  Therefore a modified layer must be followed by a
+     * call to {@link Layer#invalidate()}, as the layer editors do.
+     *
+     * @return a snapshot of the session.
+     */
+    public synchronized SessionSnapshot snapshot() {
+        lastSnapshot = SessionSnapshot.create(this, lastSnapshot,
+                dirtyLayers);
+        dirtyLayers.clear();
+        return lastSnapshot;
+    }
+
+    private synchronized void layerChanged(Layer layer) {
+        dirtyLayers.add(layer);
+    }
+
+    /**
+     * Returns the fingerprint of one of the session's layers.  The
+     * fingerprint recorded by the latest snapshot is reused if the layer
+     * has not sent a change event since, so a session which is only
+     * synchronized with snapshots never needs to fingerprint its layers.
+     * Otherwise the fingerprint is computed from the layer.
+     *
+     * @param layer
+     *      a layer.
+     * @return
+     *      the fingerprint of the layer.
+     */
+    protected Fingerprint layerFingerprint(Layer layer) {
+        synchronized (this) {
+            if (lastSnapshot != null && !dirtyLayers.contains(layer)) {
+                int i = lastSnapshot.indexOf(layer.getName());
+                if (i >= 0 && lastSnapshot.getSource(i) == layer)
+                    return lastSnapshot.getFingerprint(i);
+            }
+        }
+        return layer.fingerprint();
+    }
+
+    /**
+     * Synchronize the session data with a snapshot of another session,
+     * in the same way as {@link #synchronizeSessionData(BlimpSession,
+     * boolean)} with <code>forHistory</code> set to <code>false</code>.
+     * Only the layers which differ from the previously applied snapshot
+     * are copied, so a session which is synchronized with snapshots should
+     * not be modified in other ways.
+     *
+     * @param snapshot A snapshot of another session.
+     */
+    public void synchronizeSessionData(SessionSnapshot snapshot) {
+        if (snapshot == appliedSnapshot)
+            return;
+        List<Layer> newList =
+            new ArrayList<Layer>(snapshot.getLayers().size());
+        for (Layer snapshotLayer: snapshot.getLayers())
+            newList.add(findOrCopyLayer(snapshotLayer));
+        layerList = newList;
+        setName(snapshot.getName());
+        setProjectFilePath(snapshot.getProjectFilePath());
+        appliedSnapshot = snapshot;
+        // the layers are equal to the snapshot's now, so later snapshots
+        // of this session can share them without fingerprinting
+        synchronized (this) {
+            lastSnapshot = snapshot.withSources(newList);
+            dirtyLayers.clear();
+        }
+    }
+
+    private Layer findOrCopyLayer(Layer snapshotLayer) {
+        String layerName = snapshotLayer.getName();
+        int i = indexOfLayer(layerName, layerList);
+        if (i >= 0 && layerList.get(i).getClass() != snapshotLayer.getClass())
+            // different layer classes with same name
+            i = -1;
+        if (i < 0) {
+            Layer newLayer = (Layer) snapshotLayer.clone();
+            newLayer.addChangeListener(this);
+            return newLayer;
+        }
+        Layer foundLayer = layerList.remove(i);
+        // an unchanged layer is the same object in both snapshots
+        if (appliedSnapshot == null
+                || appliedSnapshot.findLayer(layerName) != snapshotLayer)
+            snapshotLayer.copyDataTo(foundLayer);
+        return foundLayer;
+    }
+
+    /**
+     * Restore the layers of an older snapshot of this session, for
+     * instance for undo and redo.  Unlike
+     * {@link #synchronizeSessionData(SessionSnapshot)}, the layers may
+     * have been modified in any way since, so they are compared by
+     * fingerprint, and only the changed layers are copied.  The name and
+     * project file path are not changed.
+     *
+     * @param snapshot A snapshot created by {@link #snapshot()}.
+     */
+    synchronized void restoreSnapshot(SessionSnapshot snapshot) {
+        List<Layer> layers = snapshot.getLayers();
+        List<Layer> newList = new ArrayList<Layer>(layers.size());
+        for (int i = 0; i < layers.size(); i++) {
+            Layer snapshotLayer = layers.get(i);
+            int j = indexOfLayer(snapshotLayer.getName(), layerList);
+            if (j >= 0 && layerList.get(j).getClass()
+                    != snapshotLayer.getClass())
+                j = -1;
+            if (j < 0) {
+                Layer newLayer = (Layer) snapshotLayer.clone();
+                newLayer.addChangeListener(this);
+                newList.add(newLayer);
+                continue;
+            }
+            Layer foundLayer = layerList.remove(j);
+            if (!foundLayer.fingerprint().equals(snapshot.getFingerprint(i)))
+                snapshotLayer.copyDataTo(foundLayer);
+            newList.add(foundLayer);
+        }
+        layerList = newList;
+        appliedSnapshot = null;
+        // the layers are equal to the snapshot's now, so share them
+        lastSnapshot = snapshot.withSources(newList);
+        dirtyLayers.clear();
+    }
+
     public void setInput(InputLayer newInput) {
         assert (newInput != null);
         if (layerList.isEmpty()) {
@@ -376,6 +968,33 @@ public class BlimpSession extends InputLayer implements LayerChangeListener {
 
     public Bitmap getSizedBitmap(int width, int height,
             PreviewQuality quality) throws IOException {
+        return getSizedBitmap(width, height, quality, null);
+    }
+
+    /**
+     * Generate a bitmap for a view of the given size.  If a region is
+     * given, only the part of the image covering the region may be
+     * generated, which is much faster for large zoomed-in images.
+     * The part of the view covered by the returned bitmap is given by
+     * {@link #getCurrentRegion()}.
+     *
+     * @param width
+     *      the width of the view.
+     * @param height
+     *      the height of the view.
+     * @param quality
+     *      the preview quality.
+     * @param region
+     *      the visible region of the image in view coordinates,
+     *      or <code>null</code> to generate the whole image.
+     * @return
+     *      a bitmap.
+     * @throws IOException
+     *      if an I/O error occured when processing the input layer.
+     */
+    public Bitmap getSizedBitmap(int width, int height,
+            PreviewQuality quality, BitmapRegion region) throws IOException {
+        viewRegion = region;
         viewLayer.setViewWidth(width);
         viewLayer.setViewHeight(height);
         previewQuality = quality;
@@ -388,12 +1007,15 @@ public class BlimpSession extends InputLayer implements LayerChangeListener {
     }
 
     public void zoomIn() {
+        // the view region is given in the coordinates of the old zoom
+        viewRegion = null;
         viewLayer.zoom().zoomIn();
         invalidate();
         triggerChangeEvent();
     }
 
     public void zoomOut() {
+        viewRegion = null;
         viewLayer.zoom().zoomOut();
         invalidate();
         triggerChangeEvent();
@@ -407,6 +1029,40 @@ public class BlimpSession extends InputLayer implements LayerChangeListener {
             return zoom.toDouble();
     }
 
+    /**
+     * Returns the magnification that the view should apply to the bitmap
+     * returned by {@link #getSizedBitmap}.  Zooming in is done at display
+     * time, so only the visible part of the image needs to be enlarged.
+     *
+     * @return an integer magnification factor, 1 when not zoomed in.
+     */
+    public int getDisplayMagnification() {
+        return viewLayer.getDisplayMagnification();
+    }
+
+    /**
+     * Returns the part of the view which is covered by the current bitmap.
+     *
+     * @return
+     *      a region, or <code>null</code> if the current bitmap covers
+     *      the whole view.
+     */
+    public BitmapRegion getCurrentRegion() {
+        return currentRegion;
+    }
+
+    /**
+     * Returns the size of the whole view when the current bitmap only
+     * covers a region of it.
+     *
+     * @return
+     *      a size, or <code>null</code> if the current bitmap covers
+     *      the whole view.
+     */
+    public BitmapSize getCurrentViewSize() {
+        return currentViewSize;
+    }
+
     public int layerCount() {
         return layerList.size();
     }
@@ -469,6 +1125,7 @@ public class BlimpSession extends InputLayer implements LayerChangeListener {
         Layer layer = getLayer(index);
         if (layer.isActive() != active) {
             layer.setActive(active);
+            layerChanged(layer);
             invalidate();
             triggerChangeEvent();
         }
@@ -517,6 +1174,7 @@ public class BlimpSession extends InputLayer implements LayerChangeListener {
     }
 
     public void handleChange(LayerEvent event) {
+        layerChanged(event.getLayer());
         invalidate();
         triggerChangeEvent();
     }
@@ -525,6 +1183,14 @@ public class BlimpSession extends InputLayer implements LayerChangeListener {
         return "session";
     }
 
+    /**
+     * Overridden since the XML representation of a session does not
+     * include the class.
+     */
+    protected boolean includeClassInFingerprint() {
+        return false;
+    }
+
     /**
      * Overrides the BlimpBean function used by serialization.
      */
@@ -555,7 +1221,8 @@ public class BlimpSession extends InputLayer implements LayerChangeListener {
      * Overridden so that the input property is not serialized directly.
      */
     protected boolean isSerializableProperty(PropertyDescriptor pd) {
-        if (pd.getName().equals("input") || pd.getName().equals("projectFilePath"))
+        if (pd.getName().equals("input") || pd.getName().equals("projectFilePath")
+                || pd.getName().equals("combinePointOperations"))
             return false;
         return super.isSerializableProperty(pd);
     }
@@ -19,9 +19,14 @@
 package org.boblycat.blimp.session;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.boblycat.blimp.data.Bitmap;
+import org.boblycat.blimp.data.BitmapRegion;
 import org.boblycat.blimp.data.BitmapSize;
+import org.boblycat.blimp.data.TiledBitmap;
+import org.boblycat.blimp.io.Fingerprint;
 import org.boblycat.blimp.layers.AdjustmentLayer;
 import org.boblycat.blimp.layers.InputLayer;
 import org.boblycat.blimp.layers.Layer;
@@ -29,12 +34,41 @@ import org.boblycat.blimp.layers.ResizeLayer;
 
 public class CachedBlimpSession extends BlimpSession {
     BitmapCache cache;
+    BitmapCache fallbackCache;
     // some bitmaps are kept alive for speed purposes:
     Bitmap activeInputBitmap;
     Bitmap activeResizedBitmap;
 
     public CachedBlimpSession() {
-        cache = new BitmapCache();
+        this(new BitmapCache());
+    }
+
+    /**
+     * Construct a session which uses the given cache.  A cache can be
+     * shared by several sessions, so they share a common memory budget
+     * and the decoded input of images which are open more than once.
+     */
+    public CachedBlimpSession(BitmapCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Set a cache which is searched when this session's own cache misses.
+     * The results of this session are only inserted into its own cache,
+     * never into the fallback cache.  Lookups still update the fallback
+     * cache, which counts the bitmaps found as recently used and keeps
+     * them in use while a bitmap is generated.
+     *
+     * Since cached bitmaps are found by their source bitmap, only results
+     * computed from the same source are reused, for instance when an
+     * export session uses the decoded input and full size layers of the
+     * interactive sessions.
+     *
+     * @param fallbackCache
+     *      a cache, or <code>null</code>.
+     */
+    public void setFallbackCache(BitmapCache fallbackCache) {
+        this.fallbackCache = fallbackCache;
     }
 
     private void log(String msg) {
@@ -42,38 +76,109 @@ public class CachedBlimpSession extends BlimpSession {
     }
 
     protected Bitmap applyLayer(Bitmap source, AdjustmentLayer layer) {
-        Bitmap bitmap = cache.get(source, layer);
+        Fingerprint key = layerFingerprint(layer);
+        Bitmap bitmap = cache.get(source, key);
+        if (bitmap == null && fallbackCache != null)
+            bitmap = fallbackCache.get(source, key);
         if (bitmap == null) {
             log("miss: " + layer.getClass());
+            long start = System.nanoTime();
             bitmap = super.applyLayer(source, layer);
-            cache.put(source, layer, bitmap);
+            cache.put(source, key, bitmap, System.nanoTime() - start);
         }
         else {
             log("hit: " + layer.getClass());
         }
-        if (layer instanceof ResizeLayer)
+        if (layer instanceof ResizeLayer) {
+            BitmapCache.markShared(bitmap);
             activeResizedBitmap = bitmap;
+        }
+        return bitmap;
+    }
+
+    protected Bitmap applyPointOperations(Bitmap source,
+            List<AdjustmentLayer> layers) {
+        if (layers.size() == 1)
+            return applyLayer(source, layers.get(0));
+        // A combined table is applied in a single pass, so recomputing the
+        // whole sequence costs the same as recomputing one of its layers.
+        // Therefore the sequence is cached as a unit.  The trade-off is
+        // that the intermediate bitmaps within the run are never cached;
+        // editing any layer in it recomputes the whole run, but only from
+        // its input, which is the cached output of the preceding layer.
+        Fingerprint key = sequenceKey(layers);
+        Bitmap bitmap = cache.get(source, key);
+        if (bitmap == null && fallbackCache != null)
+            bitmap = fallbackCache.get(source, key);
+        if (bitmap == null) {
+            log("miss: " + layers.size() + " point operations");
+            long start = System.nanoTime();
+            bitmap = super.applyPointOperations(source, layers);
+            cache.put(source, key, bitmap, System.nanoTime() - start);
+        }
+        else {
+            log("hit: " + layers.size() + " point operations");
+        }
         return bitmap;
     }
 
+    private Fingerprint sequenceKey(List<AdjustmentLayer> layers) {
+        List<Fingerprint> keys = new ArrayList<Fingerprint>(layers.size());
+        for (AdjustmentLayer layer: layers)
+            keys.add(layerFingerprint(layer));
+        return BitmapCache.combineKeys(keys);
+    }
+
+    protected Object createTileKey(List<AdjustmentLayer> layers) {
+        return sequenceKey(layers);
+    }
+
+    protected TiledBitmap createTiledBitmap(Bitmap source,
+            List<AdjustmentLayer> layers) {
+        // the tiled bitmap keeps the source and its tiles
+        BitmapCache.markShared(source);
+        return super.createTiledBitmap(source, layers);
+    }
+
+    protected Bitmap findTile(Bitmap root, Object key, BitmapRegion region) {
+        Bitmap tile = cache.get(root, (Fingerprint) key, region);
+        BitmapCache.markShared(tile);
+        return tile;
+    }
+
+    protected void storeTile(Bitmap root, Object key, BitmapRegion region,
+            Bitmap tile, long cost) {
+        BitmapCache.markShared(tile);
+        cache.put(root, (Fingerprint) key, region, tile, cost);
+    }
+
     protected Bitmap inputBitmap(InputLayer input) throws IOException {
         activeInputBitmap = null; // allow last input to be garbage collected
-        Bitmap bitmap = cache.get(input);
+        Fingerprint key = layerFingerprint(input);
+        Bitmap bitmap = cache.get(null, key);
+        if (bitmap == null && fallbackCache != null)
+            bitmap = fallbackCache.get(null, key);
         if (bitmap == null) {
             log("miss: " + input.getClass());
+            long start = System.nanoTime();
             bitmap = super.inputBitmap(input);
-            cache.put(input, bitmap);
+            cache.put(null, key, bitmap, System.nanoTime() - start);
         }
         else {
             log("hit: " + input.getClass());
 
         }
+        // kept by the session and its pyramid
+        BitmapCache.markShared(bitmap);
         activeInputBitmap = bitmap;
         return bitmap;
     }
 
     protected BitmapSize inputSize(InputLayer input) throws IOException {
-        Bitmap bitmap = cache.get(input);
+        Fingerprint key = layerFingerprint(input);
+        Bitmap bitmap = cache.get(null, key);
+        if (bitmap == null && fallbackCache != null)
+            bitmap = fallbackCache.get(null, key);
         if (bitmap == null) {
             log("size miss: " + input.getClass());
             // TODO: if we get here, the bitmap may be loaded without being
@@ -96,6 +201,20 @@ public class CachedBlimpSession extends BlimpSession {
     protected Bitmap generateBitmap(boolean useViewport) throws IOException {
         if (!hasActiveResizeLayer())
             activeResizedBitmap = null; // allow it to be garbage collected
-        return super.generateBitmap(useViewport);
+        // evicted bitmaps may still be used until the bitmap is generated
+        long token = cache.beginUse();
+        BitmapCache fallback = fallbackCache;
+        long fallbackToken = (fallback == null) ? 0 : fallback.beginUse();
+        try {
+            Bitmap bitmap = super.generateBitmap(useViewport);
+            // the result is kept by the session and passed on to the caller
+            BitmapCache.markShared(bitmap);
+            return bitmap;
+        }
+        finally {
+            if (fallback != null)
+                fallback.endUse(fallbackToken);
+            cache.endUse(token);
+        }
     }
 }
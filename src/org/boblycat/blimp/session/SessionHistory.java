@@ -20,21 +20,24 @@ package org.boblycat.blimp.session;
 
 import java.util.ArrayList;
 
-
-class HistoryEntry {
-    BlimpSession sessionCopy;
-    public HistoryEntry(BlimpSession session) {
-        // Note: sessionCopy must not be of class HistoryBlimpSession
-        // since that would cause a recusion well, so clone() is not used.
-        sessionCopy = BlimpSession.createCopy(session);
+public class SessionHistory {
+    static class HistoryEntry {
+        SessionSnapshot snapshot;
+        public HistoryEntry(BlimpSession session) {
+            // Snapshots share the layers which did not change, so an entry
+            // only costs as much as the layers modified since the last one.
+            snapshot = session.snapshot();
+        }
     }
-}
 
-public class SessionHistory {
+    /** The default maximum number of history entries. */
+    public static final int DEFAULT_MAX_ENTRIES = 200;
+
     BlimpSession session;
     ArrayList<HistoryEntry> historyList;
     int currentIndex;
     HistoryEntry savedHistoryEntry;
+    int maxEntries;
 
     public SessionHistory(BlimpSession session) {
         this.session = session;
@@ -43,6 +46,7 @@ public class SessionHistory {
         historyList.add(new HistoryEntry(session));
         currentIndex = 0;
         savedHistoryEntry = new HistoryEntry(session);
+        maxEntries = DEFAULT_MAX_ENTRIES;
     }
 
     public boolean canUndo() {
@@ -53,18 +57,45 @@ public class SessionHistory {
         return currentIndex < historyList.size()-1;
     }
 
+    /**
+     * Set the maximum number of history entries, including the current
+     * state.  When there are more entries, the oldest ones are discarded.
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = Math.max(1, maxEntries);
+        trim();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    private void trim() {
+        while (historyList.size() > maxEntries) {
+            if (currentIndex > 0) {
+                historyList.remove(0);
+                currentIndex--;
+            }
+            else {
+                // keep the current state, discard redo entries instead
+                historyList.remove(historyList.size()-1);
+            }
+        }
+    }
+
     public void record() {
         HistoryEntry currentEntry = historyList.get(currentIndex);
-        if (session.sessionDataEquals(currentEntry.sessionCopy))
+        HistoryEntry newEntry = new HistoryEntry(session);
+        if (newEntry.snapshot.layersEqual(currentEntry.snapshot))
             // no changes to record
             return;
         // Remove all entries > currentIndex
         for (int i = historyList.size()-1; i > currentIndex; --i) {
             historyList.remove(i);
         }
-        HistoryEntry newEntry = new HistoryEntry(session);
         historyList.add(newEntry);
         currentIndex++;
+        trim();
     }
 
     /**
@@ -86,8 +117,7 @@ public class SessionHistory {
 
     public boolean isDirty() {
         HistoryEntry currentEntry = historyList.get(currentIndex);
-        return !savedHistoryEntry.sessionCopy.sessionDataEquals(
-                currentEntry.sessionCopy);
+        return !savedHistoryEntry.snapshot.layersEqual(currentEntry.snapshot);
     }
 
     public void undo() {
@@ -95,7 +125,7 @@ public class SessionHistory {
             return;
         currentIndex--;
         HistoryEntry entry = historyList.get(currentIndex);
-        session.synchronizeSessionData(entry.sessionCopy, true);
+        session.restoreSnapshot(entry.snapshot);
     }
 
     public void redo() {
@@ -103,7 +133,7 @@ public class SessionHistory {
             return;
         currentIndex++;
         HistoryEntry entry = historyList.get(currentIndex);
-        session.synchronizeSessionData(entry.sessionCopy, true);
+        session.restoreSnapshot(entry.snapshot);
     }
 
     public int size() {
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.session;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.boblycat.blimp.io.Fingerprint;
+import org.boblycat.blimp.layers.Layer;
+
+/**
+ * An immutable snapshot of the layers of a session, which can be handed
+ * to another thread.  The layers of a snapshot are private copies which
+ * must never be modified.
+ *
+ * Snapshots are structurally shared: a new snapshot of a session reuses
+ * the copies of the previous snapshot for all layers which have not
+ * changed, so only the changed layers are copied.  This also makes it
+ * cheap to apply a snapshot, see
+ * {@link BlimpSession#synchronizeSessionData(SessionSnapshot)}, since an
+ * unchanged layer is the very same object in both snapshots.
+ *
+ * Only the layers which have sent a change event since the previous
+ * snapshot are fingerprinted, so creating a snapshot costs as much as the
+ * changed layers, see {@link BlimpSession#snapshot()}.
+ *
+ * @author Knut Arild Erstad
+ */
+public final class SessionSnapshot {
+    private final List<Layer> layers;
+    private final List<Fingerprint> fingerprints;
+    // the session layers the copies were made from, or null if unknown;
+    // only used for recognizing unchanged layers in create()
+    private final List<Layer> sources;
+    private final Map<String, Integer> indexByName;
+    private final String name;
+    private final String projectFilePath;
+
+    private SessionSnapshot(List<Layer> layers,
+            List<Fingerprint> fingerprints, List<Layer> sources, String name,
+            String projectFilePath) {
+        this.layers = Collections.unmodifiableList(layers);
+        this.fingerprints = fingerprints;
+        this.sources = sources;
+        this.name = name;
+        this.projectFilePath = projectFilePath;
+        indexByName = new HashMap<String, Integer>();
+        for (int i = 0; i < layers.size(); i++)
+            indexByName.put(layers.get(i).getName(), i);
+    }
+
+    /**
+     * Create a snapshot of the given session.
+     *
+     * @param session
+     *      a session.
+     * @param previous
+     *      an older snapshot of the same session whose unchanged layers
+     *      are reused, or <code>null</code>.
+     * @param dirtyLayers
+     *      the layers of the session which may have changed since
+     *      <code>previous</code> was created.  Other layers which were
+     *      copied for <code>previous</code> are reused without being
+     *      fingerprinted.
+     * @return
+     *      a new snapshot, or <code>previous</code> if nothing has changed.
+     */
+    static SessionSnapshot create(BlimpSession session,
+            SessionSnapshot previous, Set<Layer> dirtyLayers) {
+        int count = session.layerList.size();
+        List<Layer> layers = new ArrayList<Layer>(count);
+        List<Fingerprint> fingerprints = new ArrayList<Fingerprint>(count);
+        List<Layer> sources = new ArrayList<Layer>(count);
+        boolean changed = (previous == null
+                || previous.layers.size() != session.layerList.size()
+                || !session.getName().equals(previous.name)
+                || !equal(session.getProjectFilePath(),
+                        previous.projectFilePath));
+        boolean sourcesChanged = changed;
+        for (int i = 0; i < count; i++) {
+            Layer layer = session.layerList.get(i);
+            int prevIndex = (previous == null) ? -1
+                    : previous.indexOf(layer.getName());
+            Layer copy;
+            Fingerprint fingerprint;
+            if (prevIndex >= 0 && previous.sources.get(prevIndex) == layer
+                    && !dirtyLayers.contains(layer)) {
+                // no change events since the previous snapshot
+                copy = previous.layers.get(prevIndex);
+                fingerprint = previous.fingerprints.get(prevIndex);
+                if (prevIndex != i)
+                    changed = true;
+                layers.add(copy);
+                fingerprints.add(fingerprint);
+                sources.add(layer);
+                continue;
+            }
+            fingerprint = layer.fingerprint();
+            if (prevIndex >= 0
+                    && previous.layers.get(prevIndex).getClass()
+                        == layer.getClass()
+                    && previous.fingerprints.get(prevIndex).equals(
+                            fingerprint)) {
+                copy = previous.layers.get(prevIndex);
+                if (prevIndex != i)
+                    changed = true;
+            }
+            else {
+                copy = (Layer) layer.clone();
+                changed = true;
+            }
+            if (prevIndex < 0 || previous.sources.get(prevIndex) != layer)
+                sourcesChanged = true;
+            layers.add(copy);
+            fingerprints.add(fingerprint);
+            sources.add(layer);
+        }
+        // A snapshot with new sources is created even if the layers are
+        // equal, so the next one does not need to fingerprint them again.
+        if (!changed && !sourcesChanged)
+            return previous;
+        return new SessionSnapshot(layers, fingerprints, sources,
+                session.getName(), session.getProjectFilePath());
+    }
+
+    /**
+     * Returns a snapshot with the same layers, where the given session
+     * layers are recorded as their sources.  This is used after the
+     * layers of a session have been made equal to the snapshot's, so the
+     * next snapshot of the session does not need to fingerprint them.
+     *
+     * @param sessionLayers
+     *      layers equal to the layers of this snapshot, in the same order.
+     */
+    SessionSnapshot withSources(List<Layer> sessionLayers) {
+        assert (sessionLayers.size() == layers.size());
+        return new SessionSnapshot(layers, fingerprints,
+                new ArrayList<Layer>(sessionLayers), name, projectFilePath);
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    int indexOf(String layerName) {
+        Integer index = indexByName.get(layerName);
+        return index == null ? -1 : index.intValue();
+    }
+
+    Fingerprint getFingerprint(int index) {
+        return fingerprints.get(index);
+    }
+
+    /**
+     * Returns the session layer the copy at the given index was made
+     * from, or <code>null</code> if unknown.
+     */
+    Layer getSource(int index) {
+        return sources.get(index);
+    }
+
+    /**
+     * Checks if the layers of two snapshots are equal, ignoring the name
+     * and project file path.  Shared layers are recognized without
+     * comparing any data, and other layers are compared by fingerprint.
+     */
+    public boolean layersEqual(SessionSnapshot other) {
+        if (other == this)
+            return true;
+        if (other == null || other.layers.size() != layers.size())
+            return false;
+        for (int i = 0; i < layers.size(); i++) {
+            if (layers.get(i) != other.layers.get(i)
+                    && !fingerprints.get(i).equals(other.fingerprints.get(i)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the layers of the snapshot, including the input layer.
+     * The list and the layers must not be modified.
+     */
+    public List<Layer> getLayers() {
+        return layers;
+    }
+
+    /**
+     * Find a layer of the snapshot by name.  The layer must not be
+     * modified.
+     *
+     * @return a layer, or <code>null</code>.
+     */
+    public Layer findLayer(String layerName) {
+        int i = indexOf(layerName);
+        return i < 0 ? null : layers.get(i);
+    }
+
+    /**
+     * Returns a snapshot where the layer with the same name as the given
+     * one is replaced by it.  The other layers are shared.  The given
+     * layer becomes part of the new snapshot and must not be modified
+     * afterwards.
+     */
+    public SessionSnapshot withLayer(Layer layer) {
+        int i = indexOf(layer.getName());
+        if (i < 0)
+            throw new IllegalArgumentException("Layer not found: "
+                    + layer.getName());
+        List<Layer> newLayers = new ArrayList<Layer>(layers);
+        List<Fingerprint> newFingerprints =
+            new ArrayList<Fingerprint>(fingerprints);
+        newLayers.set(i, layer);
+        newFingerprints.set(i, layer.fingerprint());
+        List<Layer> newSources = new ArrayList<Layer>(sources);
+        newSources.set(i, null);
+        return new SessionSnapshot(newLayers, newFingerprints, newSources,
+                name, projectFilePath);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getProjectFilePath() {
+        return projectFilePath;
+    }
+}
@@ -24,6 +24,7 @@ package org.boblycat.blimp.thread;
 import java.io.IOException;
 
 import org.boblycat.blimp.data.Bitmap;
+import org.boblycat.blimp.data.BitmapRegion;
 import org.boblycat.blimp.session.BlimpSession;
 import org.boblycat.blimp.session.BlimpSession.PreviewQuality;
 
@@ -31,13 +32,40 @@ public class BitmapRequest extends Request {
     private int viewWidth;
     private int viewHeight;
     private PreviewQuality previewQuality;
+    private BitmapRegion viewRegion;
 
     public BitmapRequest(ImageWorkerThread thread, Object owner, BlimpSession session, Runnable runnable,
             int viewWidth, int viewHeight, PreviewQuality previewQuality) {
+        this(thread, owner, session, runnable, viewWidth, viewHeight,
+                previewQuality, null);
+    }
+
+    public BitmapRequest(ImageWorkerThread thread, Object owner, BlimpSession session, Runnable runnable,
+            int viewWidth, int viewHeight, PreviewQuality previewQuality,
+            BitmapRegion viewRegion) {
         super(thread, owner, session, runnable);
         this.viewWidth = viewWidth;
         this.viewHeight = viewHeight;
         this.previewQuality = previewQuality;
+        this.viewRegion = viewRegion;
+    }
+
+    /**
+     * A new bitmap request replaces older requests from the same owner,
+     * since only the most recent bitmap is shown.
+     */
+    @Override
+    protected boolean supersedes(Request older) {
+        return older instanceof BitmapRequest && older.owner == owner;
+    }
+
+    /**
+     * The runnable is still executed, but without a new bitmap, so the
+     * owner knows that the request is no longer in progress.
+     */
+    @Override
+    protected void cancelled() {
+        thread.bitmapGenerated(runnable, null);
     }
 
     @Override
@@ -47,7 +75,8 @@ public class BitmapRequest extends Request {
         // to other threads.
         Bitmap bitmap;
         if (viewWidth > 0 && viewHeight > 0)
-            bitmap = thread.getSession().getSizedBitmap(viewWidth, viewHeight, previewQuality);
+            bitmap = thread.getSession().getSizedBitmap(viewWidth, viewHeight,
+                    previewQuality, viewRegion);
         else
             bitmap = thread.getSession().getBitmap();
         thread.bitmapGenerated(runnable, bitmap);
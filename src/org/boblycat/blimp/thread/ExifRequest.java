@@ -33,6 +33,11 @@ public class ExifRequest extends Request {
         this.exifTask = task;
     }
 
+    @Override
+    protected int getPriority() {
+        return PRIORITY_QUERY;
+    }
+
     @Override
     protected void execute() throws IOException {
         assert(exifTask != null);
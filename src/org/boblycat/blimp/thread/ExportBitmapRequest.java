@@ -45,12 +45,26 @@ public class ExportBitmapRequest extends Request {
         this.exportTask = task;
     }
 
+    /**
+     * Not used, since exports are run by {@link ExportExecutor} with a
+     * session of its own instead of by an image worker thread.
+     */
     @Override
-    protected void execute() throws IOException {
+    protected void execute() {
+        throw new UnsupportedOperationException(
+                "Exports are run by the export executor");
+    }
+
+    /**
+     * Export the bitmap of the given session, which must have been
+     * synchronized with the snapshot of the request.
+     * Used by {@link ExportExecutor}.
+     */
+    void execute(BlimpSession session) {
         assert(file != null);
         assert(exportTask != null);
         try {
-            Bitmap bitmap = thread.getSession().getFullBitmap();
+            Bitmap bitmap = session.getFullBitmap();
             String ext = Util.getFileExtension(file);
             BitmapUtil.writeBitmap(bitmap, ext, file, exportQuality);
             thread.asyncExec(new Runnable() {
@@ -61,12 +75,16 @@ public class ExportBitmapRequest extends Request {
         }
         catch (IOException e) {
             // special handling of IOException during export
-            errorMessage = e.getMessage();
-            thread.asyncExec(new Runnable() {
-                public void run() {
-                    exportTask.handleError(file, errorMessage);
-                }
-            });
+            reportError(e.getMessage());
         }
     }
+
+    void reportError(String message) {
+        errorMessage = message;
+        thread.asyncExec(new Runnable() {
+            public void run() {
+                exportTask.handleError(file, errorMessage);
+            }
+        });
+    }
 }
\ No newline at end of file
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.thread;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.boblycat.blimp.event.ProgressEvent;
+import org.boblycat.blimp.event.ProgressListener;
+import org.boblycat.blimp.session.BitmapCache;
+import org.boblycat.blimp.session.CachedBlimpSession;
+import org.boblycat.blimp.util.CancellationToken;
+import org.boblycat.blimp.util.CancelledException;
+import org.boblycat.blimp.util.OffHeapMemory;
+import org.boblycat.blimp.util.Util;
+
+/**
+ * Runs image exports in the background, one at a time, so that the image
+ * worker threads stay available for previews while a large image is
+ * written.
+ *
+ * The exports use a session and a bitmap cache of their own, with a
+ * separate memory budget, so they do not evict the bitmaps used for
+ * previews.  The cache of the interactive sessions is still searched for
+ * the decoded input and for layers which have been applied at full size,
+ * but the results of exports are never stored in it, see
+ * {@link CachedBlimpSession#setFallbackCache}.
+ *
+ * Like the requests of the image worker threads, an export can be
+ * cancelled by its owner, for instance when its image is closed.
+ *
+ * @author Knut Arild Erstad
+ */
+public class ExportExecutor {
+    private static ExportExecutor shared;
+
+    private ThreadPoolExecutor executor;
+    private CachedBlimpSession session;
+    private AtomicInteger pendingCount;
+    // queued or in progress, guarded by the list itself
+    private List<ExportBitmapRequest> requests;
+    // only accessed on the export thread
+    private ExportBitmapRequest activeRequest;
+
+    static class ExportThreadFactory implements ThreadFactory {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Blimp Export Worker");
+            // Not a daemon thread, so an export in progress is completed
+            // when the application exits.
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    }
+
+    /**
+     * Construct an export executor.
+     *
+     * @param interactiveCache
+     *      the cache of the interactive sessions, or <code>null</code>.
+     * @param budget
+     *      the memory budget of the export cache, in bytes.
+     */
+    public ExportExecutor(BitmapCache interactiveCache, long budget) {
+        // The thread is stopped after a while without exports.
+        executor = new ThreadPoolExecutor(0, 1, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ExportThreadFactory());
+        session = new CachedBlimpSession(new BitmapCache(budget));
+        session.setFallbackCache(interactiveCache);
+        session.addProgressListener(new ProgressListener() {
+            public void reportProgress(ProgressEvent event) {
+                exportProgress(event);
+            }
+        });
+        pendingCount = new AtomicInteger();
+        requests = new ArrayList<ExportBitmapRequest>();
+    }
+
+    /**
+     * Returns the executor used by the image worker threads.  Its memory
+     * budget is one eighth of the maximum heap size.
+     */
+    public static synchronized ExportExecutor getShared() {
+        if (shared == null)
+            shared = new ExportExecutor(ImageWorkerThread.getSharedCache(),
+                    Runtime.getRuntime().maxMemory() / 8);
+        return shared;
+    }
+
+    /**
+     * Returns the number of exports which are queued or in progress.
+     */
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * Queue an export.  Exports are processed in the order they were
+     * submitted.
+     */
+    public void submit(final ExportBitmapRequest request) {
+        pendingCount.incrementAndGet();
+        synchronized (requests) {
+            requests.add(request);
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    process(request);
+                }
+                finally {
+                    synchronized (requests) {
+                        requests.remove(request);
+                    }
+                    pendingCount.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * Cancel the queued or running exports of the given owner.  A running
+     * export stops at the next layer boundary, and no file is written.
+     *
+     * @param owner an owner.
+     * @return The number of exports cancelled.
+     */
+    public int cancelRequestsByOwner(Object owner) {
+        int count = 0;
+        synchronized (requests) {
+            for (ExportBitmapRequest request: requests) {
+                if (request.owner == owner) {
+                    request.cancellation.cancel();
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private void exportProgress(ProgressEvent event) {
+        ExportBitmapRequest request = activeRequest;
+        if (request == null || request.thread == null)
+            return;
+        String message = "Exporting";
+        if (event.message != null)
+            message = message + ": " + event.message;
+        request.thread.progressReported(
+                new ProgressEvent(event.getLayer(), message, event.progress));
+    }
+
+    private void process(ExportBitmapRequest request) {
+        activeRequest = request;
+        CancellationToken.setCurrent(request.cancellation);
+        try {
+            // the export may have been cancelled while it was queued
+            request.cancellation.check();
+            session.synchronizeSessionData(request.snapshot);
+            request.execute(session);
+        }
+        catch (CancelledException e) {
+            Util.info("Cancelled export");
+            request.cancelled();
+        }
+        catch (OutOfMemoryError e) {
+            Util.err("Out of memory during export, with "
+                    + OffHeapMemory.getAllocatedBytes()
+                    + " bytes allocated off-heap");
+            request.reportError("Not enough memory to export "
+                    + session.getName()
+                    + ".\nPlease close some open images to free more space.");
+        }
+        catch (RuntimeException e) {
+            e.printStackTrace(System.err);
+            request.reportError("Unexpected error during export: "
+                    + e.getMessage());
+        }
+        finally {
+            CancellationToken.setCurrent(null);
+            activeRequest = null;
+            request.dispose();
+        }
+    }
+}
@@ -37,6 +37,17 @@ public class HistogramRequest extends Request {
         this.layerName = layerName;
     }
 
+    @Override
+    protected int getPriority() {
+        return PRIORITY_EDITOR;
+    }
+
+    @Override
+    protected boolean supersedes(Request older) {
+        return older instanceof HistogramRequest && older.owner == owner
+            && layerName.equals(((HistogramRequest) older).layerName);
+    }
+
     @Override
     protected void execute() throws IOException {
         assert(histogramTask != null && layerName != null);
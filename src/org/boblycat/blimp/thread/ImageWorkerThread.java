@@ -21,20 +21,38 @@ package org.boblycat.blimp.thread;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.boblycat.blimp.data.Bitmap;
+import org.boblycat.blimp.data.BitmapRegion;
 import org.boblycat.blimp.event.ProgressEvent;
 import org.boblycat.blimp.event.ProgressListener;
+import org.boblycat.blimp.session.BitmapCache;
 import org.boblycat.blimp.session.BlimpSession;
 import org.boblycat.blimp.session.CachedBlimpSession;
+import org.boblycat.blimp.util.CancellationToken;
+import org.boblycat.blimp.util.CancelledException;
+import org.boblycat.blimp.util.OffHeapMemory;
+import org.boblycat.blimp.util.PreemptedException;
 import org.boblycat.blimp.util.Util;
 
 /**
  * A worker thread for doing image (layer) processing.
  * Useful for GUI applications.
+ *
+ * Requests are executed in order of priority, see
+ * {@link Request#getPriority()}, so a preview is not delayed by queued
+ * prints.  A preemptible request which is running when a request with a
+ * higher priority arrives is stopped at the next layer boundary and queued
+ * again.
+ *
+ * Each worker has its own session, but all workers share a bitmap cache,
+ * and a {@link RenderScheduler} limits how many of them run at the same
+ * time.
  * @author Knut Arild Erstad
  */
 public abstract class ImageWorkerThread extends Thread {
@@ -43,14 +61,35 @@ public abstract class ImageWorkerThread extends Thread {
         void handleError(File filename, String errorMessage);
     }
 
+    private static final Comparator<Request> REQUEST_ORDER =
+        new Comparator<Request>() {
+            public int compare(Request a, Request b) {
+                int pa = a.getPriority();
+                int pb = b.getPriority();
+                if (pa != pb)
+                    return pa < pb ? -1 : 1;
+                if (a.sequenceNumber == b.sequenceNumber)
+                    return 0;
+                return a.sequenceNumber < b.sequenceNumber ? -1 : 1;
+            }
+        };
+
+    private static BitmapCache sharedCache;
+
     private BlockingQueue<Request> requestQueue;
+    private AtomicLong sequenceCounter;
     private BlimpSession session;
+    private volatile Request activeRequest;
+    private RenderScheduler scheduler;
+    private volatile boolean foreground;
 
     public ImageWorkerThread() {
         super("Blimp Image Worker");
-        requestQueue = new LinkedBlockingQueue<Request>();
+        requestQueue = new PriorityBlockingQueue<Request>(16, REQUEST_ORDER);
+        sequenceCounter = new AtomicLong();
         //session = new BlimpSession();
-        session = new CachedBlimpSession();
+        session = new CachedBlimpSession(getSharedCache());
+        scheduler = RenderScheduler.getShared();
         session.addProgressListener(new ProgressListener() {
             public void reportProgress(ProgressEvent event) {
                 progressReported(event);
@@ -58,6 +97,27 @@ public abstract class ImageWorkerThread extends Thread {
         });
     }
 
+    static synchronized BitmapCache getSharedCache() {
+        if (sharedCache == null)
+            sharedCache = new BitmapCache();
+        return sharedCache;
+    }
+
+    /**
+     * Mark the worker as belonging to the image shown in the foreground.
+     * Its requests are scheduled before the requests of other workers.
+     */
+    public void setForeground(boolean foreground) {
+        if (this.foreground == foreground)
+            return;
+        this.foreground = foreground;
+        scheduler.foregroundChanged();
+    }
+
+    public boolean isForeground() {
+        return foreground;
+    }
+
     /**
      * This function is called <i>on the worker thread</i> when a bitmap has been
      * generated.  It is up to subclasses how to handle this, but in general,
@@ -80,16 +140,28 @@ public abstract class ImageWorkerThread extends Thread {
     private void processRequest(Request req) {
         assert(Thread.currentThread() == this);
 
-        if (req.sessionCopy != null) {
-            session.synchronizeSessionData(req.sessionCopy, false);
-        }
-        String outOfMemoryMessage = String.format(
-                "An out of memory error occured while processing %s.\n" +
-                "Please close some open images to free more space.",
-                session.getName());
+        CancellationToken.setCurrent(req.cancellation);
         try {
+            // the request may have been cancelled or preempted while it
+            // was waiting for the scheduler
+            req.cancellation.checkBoundary();
+            if (req.snapshot != null) {
+                session.synchronizeSessionData(req.snapshot);
+            }
             req.execute();
         }
+        catch (PreemptedException e) {
+            // Keep the original sequence number, so the request stays
+            // ahead of requests with the same priority queued later.
+            Util.info("Preempted " + req.getClass().getSimpleName());
+            req.cancellation.clearPreempted();
+            requestQueue.add(req);
+            return; // not disposed yet
+        }
+        catch (CancelledException e) {
+            Util.info("Cancelled " + req.getClass().getSimpleName());
+            req.cancelled();
+        }
         catch (IOException e) {
             handleError(req.runnable, e.getMessage());
         }
@@ -97,7 +169,13 @@ public abstract class ImageWorkerThread extends Thread {
             // While there is no guarantee that recovering from an out-of-memory
             // error will succeed, but the following attempt does no harm,
             // at least.
-            handleError(req.runnable, outOfMemoryMessage);
+            Util.err("Out of memory, with "
+                    + OffHeapMemory.getAllocatedBytes()
+                    + " bytes allocated off-heap");
+            handleError(req.runnable, String.format(
+                    "An out of memory error occured while processing %s.\n" +
+                    "Please close some open images to free more space.",
+                    session.getName()));
             cancelAllRequests();
             quit();
         }
@@ -107,6 +185,10 @@ public abstract class ImageWorkerThread extends Thread {
             handleError(req.runnable, "Unexpected error on image thread: "
                     + e.getMessage());
         }
+        finally {
+            CancellationToken.setCurrent(null);
+            activeRequest = null;
+        }
         req.dispose();
     }
 
@@ -117,7 +199,26 @@ public abstract class ImageWorkerThread extends Thread {
                 Request req = requestQueue.take();
                 if (req instanceof QuitRequest)
                     break;
-                processRequest(req);
+                // The request counts as active while it waits for the
+                // scheduler, so it can still be superseded or cancelled.
+                activeRequest = req;
+                try {
+                    scheduler.acquire(this, req);
+                }
+                catch (InterruptedException e) {
+                    activeRequest = null;
+                    throw e;
+                }
+                // bitmaps evicted by other threads may be in use until the
+                // request is done, see BitmapCache.beginUse()
+                long useToken = getSharedCache().beginUse();
+                try {
+                    processRequest(req);
+                }
+                finally {
+                    getSharedCache().endUse(useToken);
+                    scheduler.release(req);
+                }
             }
             catch (InterruptedException e) {
                 Util.err("Image worker thread interrupted");
@@ -133,13 +234,17 @@ public abstract class ImageWorkerThread extends Thread {
         List<Request> tmp = new ArrayList<Request>();
         requestQueue.drainTo(tmp);
         for (Request req: tmp) {
+            req.cancelled();
             req.dispose();
         }
-        // TODO: cancel ongoing operation (if possible)
+        Request active = activeRequest;
+        if (active != null)
+            active.cancellation.cancel();
     }
 
     /**
-     * Cancel owned requests.
+     * Cancel owned requests, including exports, which run on the shared
+     * {@link ExportExecutor}.
      * @param owner an owner.
      * @return The number of requests cancelled.
      */
@@ -149,20 +254,65 @@ public abstract class ImageWorkerThread extends Thread {
         int count = 0;
         for (Request req: tmp) {
             if (req.owner != owner)
-                putRequest(req);
+                requestQueue.add(req);
             else {
                 count++;
+                req.cancelled();
                 req.dispose();
             }
         }
+        Request active = activeRequest;
+        if (active != null && active.owner == owner) {
+            active.cancellation.cancel();
+            count++;
+        }
+        count += ExportExecutor.getShared().cancelRequestsByOwner(owner);
         return count;
     }
 
+    /**
+     * Abort the bitmap request of the given owner if it is running, for
+     * instance because the user has made further changes.  See
+     * {@link Request#cancelled()}.
+     * @param owner an owner.
+     */
+    public void cancelActiveBitmapRequest(Object owner) {
+        Request active = activeRequest;
+        if (active instanceof BitmapRequest && active.owner == owner)
+            active.cancellation.cancel();
+    }
+
     public void quit() {
         putRequest(new QuitRequest(this));
     }
 
+    /**
+     * Queue a request.  Queued or running requests which are superseded by
+     * the new one are cancelled, see {@link Request#supersedes}.  A running
+     * preemptible request with a lower priority is preempted.
+     */
     protected void putRequest(Request req) {
+        req.sequenceNumber = sequenceCounter.getAndIncrement();
+        Request active = activeRequest;
+        if (active != null) {
+            if (req.supersedes(active))
+                active.cancellation.cancel();
+            else if (active.isPreemptible()
+                    && req.getPriority() < active.getPriority())
+                active.cancellation.preempt();
+        }
+        List<Request> superseded = new ArrayList<Request>();
+        for (Request queued: requestQueue) {
+            if (req.supersedes(queued))
+                superseded.add(queued);
+        }
+        for (Request queued: superseded) {
+            // the request may have been taken by the worker meanwhile
+            if (requestQueue.remove(queued)) {
+                queued.cancelled();
+                queued.dispose();
+            }
+        }
         try {
             requestQueue.put(req);
         }
@@ -180,6 +330,19 @@ public abstract class ImageWorkerThread extends Thread {
         putRequest(new BitmapRequest(this, owner, session, runnable, width, height, quality));
     }
 
+    /**
+     * Generate a bitmap for a view of the given size, where only the
+     * given region is visible.
+     *
+     * @see BlimpSession#getSizedBitmap(int, int, BlimpSession.PreviewQuality, BitmapRegion)
+     */
+    public void asyncGenerateSizedBitmap(Object owner, BlimpSession session,
+            Runnable runnable, int width, int height,
+            BlimpSession.PreviewQuality quality, BitmapRegion region) {
+        putRequest(new BitmapRequest(this, owner, session, runnable, width, height,
+                quality, region));
+    }
+
     public void asyncGenerateHistogram(Object owner, BlimpSession session,
             String layerName, HistogramGeneratedTask task) {
         putRequest(new HistogramRequest(this, owner, session, task, layerName));
@@ -190,9 +353,15 @@ public abstract class ImageWorkerThread extends Thread {
         putRequest(new SizeRequest(this, owner, session, task, layerName));
     }
 
+    /**
+     * Export the bitmap of a session to a file.  The export runs in the
+     * background on the shared {@link ExportExecutor} instead of this
+     * thread, but the task is still executed on the GUI thread.
+     */
     public void asyncExportBitmap(Object owner, BlimpSession session,
             File filePath, double quality, FileExportTask task) {
-        putRequest(new ExportBitmapRequest(this, owner, session, task, filePath, quality));
+        ExportExecutor.getShared().submit(new ExportBitmapRequest(this, owner,
+                session, task, filePath, quality));
     }
 
     public void zoomIn(Object owner, BlimpSession session, Runnable runnable) {
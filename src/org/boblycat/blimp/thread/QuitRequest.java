@@ -26,6 +26,12 @@ public class QuitRequest extends Request {
         super(thread, thread, null, null);
     }
 
+    @Override
+    protected int getPriority() {
+        // let the queued requests finish first
+        return Integer.MAX_VALUE;
+    }
+
     @Override
     protected void execute() {
         assert(false); // unreachable
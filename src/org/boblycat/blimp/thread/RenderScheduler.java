@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.thread;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A global scheduler which limits how many image worker threads may
+ * process requests at the same time.  Each open image has its own worker
+ * thread, which keeps the requests for one session in order, but the
+ * workers share a bounded number of slots, which defaults to the number
+ * of available processors.
+ *
+ * When workers compete for a slot, the worker of the image shown in the
+ * foreground wins, then the request with the highest priority (see
+ * {@link Request#getPriority()}), then the request which has waited the
+ * longest.  A preemptible request holding a slot is preempted if a
+ * better request is waiting.  Since the number of rendering workers is
+ * bounded, idle processors are available for the band processing of the
+ * foreground image, see {@link org.boblycat.blimp.util.BandExecutor}.
+ *
+ * @author Knut Arild Erstad
+ */
+public class RenderScheduler {
+    private static RenderScheduler shared;
+
+    private class Ticket {
+        ImageWorkerThread worker;
+        Request request;
+        long sequenceNumber;
+
+        Ticket(ImageWorkerThread worker, Request request) {
+            this.worker = worker;
+            this.request = request;
+            sequenceNumber = ticketCounter++;
+        }
+
+        boolean isForeground() {
+            return worker != null && worker.isForeground();
+        }
+
+        /**
+         * Checks if this ticket should get a slot before the other one.
+         * The foreground flag may change while waiting, so tickets are
+         * compared when a slot is assigned rather than kept sorted.
+         */
+        boolean before(Ticket other) {
+            boolean fg = isForeground();
+            if (fg != other.isForeground())
+                return fg;
+            int p = request.getPriority();
+            int otherP = other.request.getPriority();
+            if (p != otherP)
+                return p < otherP;
+            return sequenceNumber < other.sequenceNumber;
+        }
+    }
+
+    private int slotCount;
+    private long ticketCounter;
+    private List<Ticket> waiting;
+    private List<Ticket> running;
+
+    /**
+     * Construct a scheduler.
+     *
+     * @param slotCount
+     *      the maximum number of requests processed at the same time.
+     */
+    public RenderScheduler(int slotCount) {
+        this.slotCount = Math.max(1, slotCount);
+        waiting = new ArrayList<Ticket>();
+        running = new ArrayList<Ticket>();
+    }
+
+    /**
+     * Returns the scheduler shared by all image worker threads.
+     */
+    public static synchronized RenderScheduler getShared() {
+        if (shared == null)
+            shared = new RenderScheduler(
+                    Runtime.getRuntime().availableProcessors());
+        return shared;
+    }
+
+    public synchronized int getSlotCount() {
+        return slotCount;
+    }
+
+    /**
+     * Returns the number of requests currently holding a slot.
+     */
+    public synchronized int getRunningCount() {
+        return running.size();
+    }
+
+    /**
+     * Returns the number of requests waiting for a slot.
+     */
+    synchronized int getWaitingCount() {
+        return waiting.size();
+    }
+
+    private Ticket bestWaiting() {
+        Ticket best = null;
+        for (Ticket ticket: waiting) {
+            if (best == null || ticket.before(best))
+                best = ticket;
+        }
+        return best;
+    }
+
+    private void preemptFor(Ticket ticket) {
+        Ticket victim = null;
+        for (Ticket other: running) {
+            if (!other.request.isPreemptible() || !ticket.before(other))
+                continue;
+            if (victim == null || victim.before(other))
+                victim = other;
+        }
+        if (victim != null)
+            victim.request.cancellation.preempt();
+    }
+
+    /**
+     * Wait until the given request may be processed, and take a slot.
+     * Each successful call must be followed by a call to
+     * {@link #release(Request)}.
+     *
+     * @param worker
+     *      the worker thread which will process the request, or
+     *      <code>null</code> for a background worker.
+     * @param request
+     *      the request.
+     * @throws InterruptedException
+     *      if the thread was interrupted while waiting.
+     */
+    public synchronized void acquire(ImageWorkerThread worker,
+            Request request) throws InterruptedException {
+        Ticket ticket = new Ticket(worker, request);
+        waiting.add(ticket);
+        try {
+            while (running.size() >= slotCount || bestWaiting() != ticket) {
+                if (bestWaiting() == ticket)
+                    preemptFor(ticket);
+                // woken up when a slot is released, when another ticket
+                // leaves the queue, or when the foreground image changes
+                wait();
+            }
+        }
+        catch (InterruptedException e) {
+            waiting.remove(ticket);
+            notifyAll();
+            throw e;
+        }
+        waiting.remove(ticket);
+        running.add(ticket);
+        // the next waiting ticket may be able to run as well
+        notifyAll();
+    }
+
+    /**
+     * Called when the foreground flag of a worker has changed, so that
+     * the waiting tickets are compared again.  See
+     * {@link ImageWorkerThread#setForeground(boolean)}.
+     */
+    public synchronized void foregroundChanged() {
+        notifyAll();
+    }
+
+    /**
+     * Release the slot taken for the given request.
+     */
+    public synchronized void release(Request request) {
+        for (int i = 0; i < running.size(); i++) {
+            if (running.get(i).request == request) {
+                running.remove(i);
+                break;
+            }
+        }
+        notifyAll();
+    }
+}
@@ -24,12 +24,25 @@ package org.boblycat.blimp.thread;
 import java.io.IOException;
 
 import org.boblycat.blimp.session.BlimpSession;
+import org.boblycat.blimp.session.SessionSnapshot;
+import org.boblycat.blimp.util.CancellationToken;
 
 public abstract class Request {
+    /** Priority of requests which update the visible image. */
+    public static final int PRIORITY_PREVIEW = 0;
+    /** Priority of requests for histograms and sizes shown in editors. */
+    public static final int PRIORITY_EDITOR = 1;
+    /** Priority of requests for Exif data. */
+    public static final int PRIORITY_QUERY = 2;
+    /** Priority of long-running requests such as exports and prints. */
+    public static final int PRIORITY_BACKGROUND = 3;
+
     Object owner;
     protected Runnable runnable;
-    protected BlimpSession sessionCopy;
+    protected SessionSnapshot snapshot;
     protected ImageWorkerThread thread;
+    final CancellationToken cancellation = new CancellationToken();
+    long sequenceNumber;
 
     protected Request(ImageWorkerThread thread, Object owner,
             BlimpSession session, Runnable runnable) {
@@ -37,11 +50,57 @@ public abstract class Request {
         this.owner = owner;
         this.runnable = runnable;
         if (session != null)
-            this.sessionCopy = BlimpSession.createCopy(session);
+            this.snapshot = session.snapshot();
     }
 
     protected abstract void execute() throws IOException;
 
+    /**
+     * Returns the priority of the request.  Queued requests are executed
+     * in order of priority, lower values first, and requests with the
+     * same priority are executed in the order they were queued.
+     * The default implementation returns {@link #PRIORITY_PREVIEW}.
+     */
+    protected int getPriority() {
+        return PRIORITY_PREVIEW;
+    }
+
+    /**
+     * Checks if the request can be preempted by requests with a higher
+     * priority.  A preempted request is stopped between two layers and
+     * queued again, so it continues from the cached layers when it is
+     * executed the next time.
+     * The default implementation returns <code>false</code>.
+     */
+    protected boolean isPreemptible() {
+        return false;
+    }
+
+    /**
+     * Checks if this request makes an older, queued request unnecessary.
+     * If so, the older request is cancelled when this one is queued, so
+     * a burst of similar requests only results in a single execution.
+     * The default implementation returns <code>false</code>.
+     *
+     * @param older
+     *      a request which was queued before this one.
+     * @return
+     *      <code>true</code> if the older request can be cancelled.
+     */
+    protected boolean supersedes(Request older) {
+        return false;
+    }
+
+    /**
+     * Called on the worker thread instead of completing {@link #execute}
+     * normally if the request was cancelled while it was running.  This is
+     * also called for a queued request which is superseded by a new one,
+     * on the thread which queues the new request.
+     * The default implementation does nothing.
+     */
+    protected void cancelled() {
+    }
+
     // Will be called once, either after execute or during cancel.
     // Override to dispose of (non-memory) resources.
     protected void dispose() {
@@ -38,6 +38,17 @@ public class SizeRequest extends Request {
         this.layerName = layerName;
     }
 
+    @Override
+    protected int getPriority() {
+        return PRIORITY_EDITOR;
+    }
+
+    @Override
+    protected boolean supersedes(Request older) {
+        return older instanceof SizeRequest && older.owner == owner
+            && layerName.equals(((SizeRequest) older).layerName);
+    }
+
     @Override
     protected void execute() throws IOException {
         assert(sizeTask != null && layerName != null);
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A shared thread pool used for processing horizontal bands of an image
+ * in parallel.  The number of threads defaults to the number of available
+ * processors, and setting it to one disables parallel processing.
+ *
+ * Tasks submitted from one of the pool's own threads should be executed
+ * directly instead, to avoid waiting for a thread which can never become
+ * available.  Use {@link #isBandThread()} to check this.
+ *
+ * @author Knut Arild Erstad
+ */
+public class BandExecutor {
+    private static int threadCount = Runtime.getRuntime().availableProcessors();
+    private static Pool pool;
+
+    static class BandThread extends Thread {
+        BandThread(Runnable runnable, int number) {
+            super(runnable, "Blimp Band Worker " + number);
+            setDaemon(true);
+        }
+    }
+
+    static class BandThreadFactory implements ThreadFactory {
+        private int count;
+
+        public synchronized Thread newThread(Runnable runnable) {
+            count++;
+            return new BandThread(runnable, count);
+        }
+    }
+
+    /**
+     * A thread pool and the number of callers currently using it.  When
+     * the thread count changes, the pool is replaced, and the old pool is
+     * shut down once its last caller has finished.
+     */
+    static class Pool {
+        ExecutorService executor;
+        int users;
+        boolean retired;
+
+        Pool(int threads) {
+            executor = Executors.newFixedThreadPool(threads,
+                    new BandThreadFactory());
+        }
+    }
+
+    /**
+     * Set the number of threads used for band processing.  A value of one
+     * (or less) disables parallel processing.  Tasks which are already
+     * running finish on the previous threads.
+     */
+    public static synchronized void setThreadCount(int count) {
+        if (count < 1)
+            count = 1;
+        if (count == threadCount)
+            return;
+        threadCount = count;
+        if (pool != null) {
+            pool.retired = true;
+            if (pool.users == 0)
+                pool.executor.shutdown();
+            pool = null;
+        }
+    }
+
+    public static synchronized int getThreadCount() {
+        return threadCount;
+    }
+
+    private static synchronized Pool acquirePool() {
+        if (pool == null)
+            pool = new Pool(threadCount);
+        pool.users++;
+        return pool;
+    }
+
+    private static synchronized void releasePool(Pool used) {
+        used.users--;
+        if (used.retired && used.users == 0)
+            used.executor.shutdown();
+    }
+
+    /**
+     * Checks if the current thread belongs to the band processing pool.
+     */
+    public static boolean isBandThread() {
+        return Thread.currentThread() instanceof BandThread;
+    }
+
+    /**
+     * Checks if parallel processing should be used from the current thread.
+     */
+    public static boolean isParallelEnabled() {
+        return getThreadCount() > 1 && !isBandThread();
+    }
+
+    /**
+     * Execute a list of tasks in parallel and wait for all of them to
+     * finish.  If one of the tasks throws an exception, it is re-thrown
+     * from this function: unchecked exceptions and errors are re-thrown as
+     * they are, while checked exceptions are wrapped in a
+     * <code>RuntimeException</code>.
+     *
+     * The {@link CancellationToken} of the calling thread is installed in
+     * the threads executing the tasks, and tasks which have not started
+     * yet are skipped once it has been cancelled.
+     *
+     * @param tasks a list of tasks.
+     * @return the task results, in the same order as the tasks.
+     */
+    public static <T> List<T> invokeAll(List<Callable<T>> tasks) {
+        final CancellationToken token = CancellationToken.getCurrent();
+        if (token != null) {
+            List<Callable<T>> wrapped = new ArrayList<Callable<T>>();
+            for (final Callable<T> task: tasks) {
+                wrapped.add(new Callable<T>() {
+                    public T call() throws Exception {
+                        token.check();
+                        CancellationToken previous =
+                            CancellationToken.setCurrent(token);
+                        try {
+                            return task.call();
+                        }
+                        finally {
+                            CancellationToken.setCurrent(previous);
+                        }
+                    }
+                });
+            }
+            tasks = wrapped;
+        }
+        List<Future<T>> futures;
+        Pool used = acquirePool();
+        try {
+            futures = used.executor.invokeAll(tasks);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted during band processing",
+                    e);
+        }
+        finally {
+            releasePool(used);
+        }
+        List<T> results = new ArrayList<T>(futures.size());
+        for (Future<T> future: futures) {
+            try {
+                results.add(future.get());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(
+                        "Interrupted during band processing", e);
+            }
+            catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                if (cause instanceof Error)
+                    throw (Error) cause;
+                throw new RuntimeException(cause);
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.util;
+
+/**
+ * A flag which is used for cancelling a long-running computation, such as
+ * applying the layers of a session.  Cancellation is cooperative: the
+ * computation calls {@link #check()} at convenient points, for instance
+ * between layers or rows, which throws a {@link CancelledException} once
+ * the token has been cancelled from another thread.
+ *
+ * A token can be installed as the current token of a thread, so it does
+ * not have to be passed through every layer.  {@link BandExecutor}
+ * installs the current token in the threads which process bands.
+ *
+ * @author Knut Arild Erstad
+ */
+public class CancellationToken {
+    private static ThreadLocal<CancellationToken> current =
+        new ThreadLocal<CancellationToken>();
+
+    private volatile boolean cancelled;
+    private volatile boolean preempted;
+
+    /**
+     * Cancel the computation.  Can be called from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Ask the computation to stop at the next layer boundary so that
+     * more important work can run first.  Can be called from any thread.
+     * Unlike {@link #cancel()}, this does not affect {@link #check()}.
+     *
+     * @see #checkBoundary()
+     */
+    public void preempt() {
+        preempted = true;
+    }
+
+    public boolean isPreempted() {
+        return preempted;
+    }
+
+    /**
+     * Clear the preemption flag before the computation is restarted.
+     */
+    public void clearPreempted() {
+        preempted = false;
+    }
+
+    /**
+     * Throws a {@link CancelledException} if the token has been cancelled.
+     */
+    public void check() {
+        if (cancelled)
+            throw new CancelledException();
+    }
+
+    /**
+     * Like {@link #check()}, but also throws a {@link PreemptedException}
+     * if the token has been preempted.  Called between layers, where the
+     * completed work is kept by the cache.
+     */
+    public void checkBoundary() {
+        check();
+        if (preempted)
+            throw new PreemptedException();
+    }
+
+    /**
+     * Returns the token of the current thread, or <code>null</code>.
+     */
+    public static CancellationToken getCurrent() {
+        return current.get();
+    }
+
+    /**
+     * Set the token of the current thread.
+     *
+     * @param token
+     *      a token, or <code>null</code> to remove the token.
+     * @return
+     *      the previous token of the thread, or <code>null</code>.
+     */
+    public static CancellationToken setCurrent(CancellationToken token) {
+        CancellationToken previous = current.get();
+        if (token == null)
+            current.remove();
+        else
+            current.set(token);
+        return previous;
+    }
+
+    /**
+     * Check the token of the current thread, if any.
+     *
+     * @see #check()
+     */
+    public static void checkCurrent() {
+        CancellationToken token = current.get();
+        if (token != null)
+            token.check();
+    }
+
+    /**
+     * Check the token of the current thread at a layer boundary, if any.
+     *
+     * @see #checkBoundary()
+     */
+    public static void checkCurrentBoundary() {
+        CancellationToken token = current.get();
+        if (token != null)
+            token.checkBoundary();
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Allocates direct (off-heap) buffers for image data, and keeps track of
+ * how much memory is in use.
+ *
+ * Direct buffers do not count towards the Java heap size, and large
+ * images stored in them are never copied around by the garbage collector.
+ * The total size of all live blocks is limited by a budget; allocations
+ * which would exceed it fail, so the caller can fall back to the heap.
+ *
+ * A block can be released explicitly when its owner knows that the memory
+ * is no longer used, which frees it immediately if possible.  Otherwise
+ * the memory is freed by the garbage collector once the block is
+ * unreachable, and the accounting is updated the next time this class is
+ * used.
+ *
+ * Images which are too large for both the heap and the off-heap budget
+ * can be stored in memory-mapped temporary files instead, see
+ * {@link #allocateMapped}.  The operating system then decides which parts
+ * are kept in memory.  Mapped blocks are accounted separately, and do not
+ * count towards the budget.
+ *
+ * @author Knut Arild Erstad
+ */
+public class OffHeapMemory {
+    private static long budget = Runtime.getRuntime().maxMemory();
+    private static long allocatedBytes;
+    private static long mappedBytes;
+    private static File tempDirectory;
+    private static ReferenceQueue<Block> queue = new ReferenceQueue<Block>();
+    private static Set<Tracker> trackers = new HashSet<Tracker>();
+
+    /**
+     * A block of off-heap memory.
+     */
+    public static final class Block {
+        private ByteBuffer buffer;
+        private Tracker tracker;
+
+        Block(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * Checks if the block is backed by a memory-mapped file.
+         */
+        public boolean isMapped() {
+            return tracker.mapped;
+        }
+
+        /**
+         * Returns the buffer, which uses the native byte order.
+         * The buffer must not be used after the block is released.
+         */
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        public long getSize() {
+            return tracker.size;
+        }
+
+        /**
+         * Release the memory.  Does nothing if the block has already been
+         * released.
+         */
+        public void release() {
+            ByteBuffer released;
+            synchronized (OffHeapMemory.class) {
+                if (buffer == null)
+                    return;
+                released = buffer;
+                buffer = null;
+                untrack(tracker);
+                tracker.clear();
+            }
+            free(released);
+            tracker.deleteFile();
+        }
+    }
+
+    static class Tracker extends PhantomReference<Block> {
+        long size;
+        boolean mapped;
+        File file;
+
+        Tracker(Block block, long size, boolean mapped, File file) {
+            super(block, queue);
+            this.size = size;
+            this.mapped = mapped;
+            this.file = file;
+        }
+
+        /**
+         * Delete the temporary file of a mapped block, if it still exists.
+         * This can fail on systems where mapped files cannot be deleted
+         * until the mapping is garbage collected, in which case the file is
+         * deleted when the program exits.
+         */
+        void deleteFile() {
+            if (file != null && file.exists() && !file.delete())
+                file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Set the maximum number of bytes which can be allocated at the same
+     * time.  A budget of zero disables off-heap allocation.
+     */
+    public static synchronized void setBudget(long bytes) {
+        budget = Math.max(0, bytes);
+    }
+
+    public static synchronized long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Returns the number of bytes used by live blocks, not counting
+     * memory-mapped blocks.
+     */
+    public static synchronized long getAllocatedBytes() {
+        expungeStaleBlocks();
+        return allocatedBytes;
+    }
+
+    /**
+     * Returns the number of bytes used by live memory-mapped blocks.
+     */
+    public static synchronized long getMappedBytes() {
+        expungeStaleBlocks();
+        return mappedBytes;
+    }
+
+    /**
+     * Set the directory used for memory-mapped temporary files, or
+     * <code>null</code> to use the system default.
+     */
+    public static synchronized void setTempDirectory(File directory) {
+        tempDirectory = directory;
+    }
+
+    public static synchronized File getTempDirectory() {
+        return tempDirectory;
+    }
+
+    /**
+     * Allocate a block of off-heap memory.
+     *
+     * @param size
+     *      the number of bytes.
+     * @return
+     *      a new block, or <code>null</code> if the budget would be exceeded
+     *      or the memory could not be allocated.
+     */
+    public static Block allocate(long size) {
+        if (size <= 0 || size > Integer.MAX_VALUE)
+            return null;
+        synchronized (OffHeapMemory.class) {
+            expungeStaleBlocks();
+            if (allocatedBytes + size > budget)
+                return null;
+            // reserve the memory before allocating outside the lock
+            allocatedBytes += size;
+        }
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.allocateDirect((int) size);
+            buffer.order(ByteOrder.nativeOrder());
+        }
+        catch (OutOfMemoryError e) {
+            Util.warn("Failed to allocate " + size
+                    + " bytes of off-heap memory");
+            synchronized (OffHeapMemory.class) {
+                allocatedBytes -= size;
+            }
+            return null;
+        }
+        return track(new Block(buffer), size, false, null);
+    }
+
+    /**
+     * Allocate a block of memory backed by a memory-mapped temporary file.
+     * The file is deleted when the block is released or garbage collected.
+     *
+     * @param size
+     *      the number of bytes.
+     * @return
+     *      a new block, or <code>null</code> if the file could not be
+     *      created or mapped.
+     */
+    public static Block allocateMapped(long size) {
+        if (size <= 0 || size > Integer.MAX_VALUE)
+            return null;
+        File file = null;
+        RandomAccessFile raf = null;
+        ByteBuffer buffer;
+        try {
+            file = File.createTempFile("blimp", ".tmp", getTempDirectory());
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(size);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    size);
+            buffer.order(ByteOrder.nativeOrder());
+        }
+        catch (IOException e) {
+            Util.warn("Failed to create a memory-mapped file: "
+                    + e.getMessage());
+            buffer = null;
+        }
+        finally {
+            // the mapping stays valid after the file is closed
+            try {
+                if (raf != null)
+                    raf.close();
+            }
+            catch (IOException e) {
+                Util.warn("Failed to close a memory-mapped file: "
+                        + e.getMessage());
+            }
+        }
+        if (buffer == null) {
+            if (file != null)
+                file.delete();
+            return null;
+        }
+        // on some systems the file can be removed right away
+        if (file.delete())
+            file = null;
+        synchronized (OffHeapMemory.class) {
+            expungeStaleBlocks();
+            mappedBytes += size;
+        }
+        return track(new Block(buffer), size, true, file);
+    }
+
+    private static synchronized Block track(Block block, long size,
+            boolean mapped, File file) {
+        block.tracker = new Tracker(block, size, mapped, file);
+        trackers.add(block.tracker);
+        return block;
+    }
+
+    private static void untrack(Tracker tracker) {
+        if (trackers.remove(tracker)) {
+            if (tracker.mapped)
+                mappedBytes -= tracker.size;
+            else
+                allocatedBytes -= tracker.size;
+        }
+    }
+
+    private static void expungeStaleBlocks() {
+        Reference<? extends Block> ref;
+        while ((ref = queue.poll()) != null) {
+            Tracker tracker = (Tracker) ref;
+            untrack(tracker);
+            tracker.deleteFile();
+        }
+    }
+
+    /**
+     * Free a direct buffer immediately, using JVM specific functions.
+     * If that is not possible, the memory is freed by the garbage collector.
+     */
+    private static void free(ByteBuffer buffer) {
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner",
+                    ByteBuffer.class);
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            invokeCleaner.invoke(field.get(null), buffer);
+            return;
+        }
+        catch (Exception e) {
+            // fall through
+        }
+        try {
+            // older Sun and OpenJDK versions
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null)
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+        }
+        catch (Exception e) {
+            // leave it to the garbage collector
+        }
+    }
+}
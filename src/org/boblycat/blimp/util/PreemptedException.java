@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.util;
+
+/**
+ * Thrown at a layer boundary when a computation gives way to more
+ * important work, see {@link CancellationToken#preempt()}.  Unlike a
+ * cancelled computation, a preempted computation is expected to be
+ * restarted later.
+ *
+ * @author Knut Arild Erstad
+ */
+public class PreemptedException extends CancelledException {
+    private static final long serialVersionUID = 1L;
+
+    public PreemptedException() {
+        super("The operation was preempted");
+    }
+}
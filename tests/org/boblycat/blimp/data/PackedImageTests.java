@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.data;
+
+import java.awt.image.BufferedImage;
+
+import net.sourceforge.jiu.data.IntegerImage;
+import net.sourceforge.jiu.data.PixelImage;
+import net.sourceforge.jiu.data.RGB24Image;
+import net.sourceforge.jiu.data.RGB48Image;
+
+import org.boblycat.blimp.layers.AdjustmentLayer;
+import org.boblycat.blimp.layers.GradientInput;
+import org.boblycat.blimp.layers.InvertLayer;
+import org.boblycat.blimp.layers.LocalContrastLayer;
+import org.boblycat.blimp.layers.PointOperation;
+import org.boblycat.blimp.ops.LookupOperation;
+import org.boblycat.blimp.ops.LookupTable;
+import org.boblycat.blimp.ops.LookupTableTests;
+import org.boblycat.blimp.util.OffHeapMemory;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.boblycat.blimp.tests.Assert.*;
+
+public class PackedImageTests {
+    static IntegerImage createGradient(boolean use16Bit, int width,
+            int height) {
+        return GradientInput.createGradient(use16Bit, width, height);
+    }
+
+    @Test
+    public void testJiuView() {
+        for (int i = 0; i < 2; i++) {
+            boolean use16Bit = (i == 1);
+            IntegerImage input = createGradient(use16Bit, 40, 30);
+            PackedImage packed = PackedImage.fromJiu(input);
+            Bitmap bitmap = new Bitmap(packed);
+            IntegerImage view = (IntegerImage) bitmap.getImage();
+            assertTrue(use16Bit ? view instanceof RGB48Image
+                    : view instanceof RGB24Image);
+            assertImagesEqual(input, view);
+            assertSame(view, bitmap.getImage());
+            // no second copy of the pixels
+            assertEquals(packed.getByteSize(), bitmap.getByteSize());
+            assertSame(packed, PackedImage.fromJiu(view));
+
+            // writes go to the packed image
+            view.putSample(2, 39, 29, 17);
+            assertEquals(17, packed.getSample(2, 39, 29));
+            int[] row = new int[10];
+            view.getSamples(1, 5, 3, 5, 2, row, 0);
+            assertEquals(input.getSample(1, 9, 3), row[4]);
+            assertEquals(input.getSample(1, 5, 4), row[5]);
+
+            // new images and copies are packed too
+            PixelImage copy = view.createCopy();
+            assertNotNull(PackedImage.unwrap(copy));
+            assertImagesEqual(view, copy);
+            Bitmap wrapped = new Bitmap(view.createCompatibleImage(8, 4));
+            assertNotNull(wrapped.getPackedImage());
+            assertEquals(8, wrapped.getPackedImage().getWidth());
+        }
+    }
+
+    @Test
+    public void testLayerOnPackedBitmap() {
+        LocalContrastLayer layer = new LocalContrastLayer();
+        layer.setRadius(5);
+        IntegerImage input = createGradient(false, 50, 40);
+        Bitmap jiuBitmap = new Bitmap(input);
+        jiuBitmap.setPixelScaleFactor(1);
+        Bitmap packedBitmap = new Bitmap(PackedImage.fromJiu(input));
+        packedBitmap.setPixelScaleFactor(1);
+        Bitmap expected = layer.applyLayer(jiuBitmap);
+        Bitmap actual = layer.applyLayer(packedBitmap);
+        assertNull(expected.getPackedImage());
+        assertNotNull(actual.getPackedImage());
+        assertImagesEqual(expected.getImage(), actual.getImage());
+    }
+
+    @Test
+    public void testPackedEqualsJiu() {
+        for (int i = 0; i < 2; i++) {
+            boolean use16Bit = (i == 1);
+            IntegerImage input = createGradient(use16Bit, 64, 32);
+            PackedImage packed = PackedImage.fromJiu(input);
+            assertImagesEqual(input, packed.asJiu());
+            LookupTable table = new LookupTable(input);
+            for (AdjustmentLayer layer: LookupTableTests.createPointLayers())
+                ((PointOperation) layer).updateLookupTable(table);
+            LookupOperation op = new LookupOperation(table);
+            op.setInputImage(input);
+            try {
+                op.process();
+            }
+            catch (Exception e) {
+                fail(e.getMessage());
+            }
+            // both from a JIU and a packed source bitmap
+            AdjustmentLayer layer = new InvertLayer();
+            Bitmap fromJiu = layer.applyLookupTable(new Bitmap(input), table);
+            assertNotNull(fromJiu.getPackedImage());
+            assertImagesEqual(op.getOutputImage(), fromJiu.getImage());
+            Bitmap fromPacked = layer.applyLookupTable(new Bitmap(packed),
+                    table);
+            assertImagesEqual(op.getOutputImage(), fromPacked.getImage());
+            // 8-bit conversion of packed and JIU bitmaps
+            assertImagesEqual(
+                    BitmapUtil.create8BitCopy(new Bitmap(op.getOutputImage()))
+                    .getImage(),
+                    BitmapUtil.create8BitCopy(fromPacked).getImage());
+            BufferedImage expectedAwt = BitmapUtil.toAwtImage(
+                    op.getOutputImage());
+            BufferedImage actualAwt = BitmapUtil.toAwtImage(fromPacked);
+            for (int y = 0; y < input.getHeight(); y++)
+                for (int x = 0; x < input.getWidth(); x++)
+                    assertEquals(expectedAwt.getRGB(x, y),
+                            actualAwt.getRGB(x, y));
+        }
+    }
+
+    @Test
+    public void testOffHeapImages() {
+        // other blocks may be reclaimed by the GC at any time, so only
+        // upper and lower bounds are checked
+        PackedImage image = PackedImage.allocate(1000, 500, true);
+        assertTrue(image.isOffHeap());
+        assertNull(image.getShortData());
+        assertTrue(OffHeapMemory.getAllocatedBytes() >= image.getByteSize());
+        image.putSample(1, 999, 499, 54321);
+        PackedImage copy = image.createCompatibleImage(1000, 500);
+        image.copyTo(copy, 0, 0);
+        assertEquals(54321, copy.getSample(1, 999, 499));
+        IntegerImage jiuImage = (IntegerImage) image.asJiu();
+        assertEquals(54321, jiuImage.getSample(1, 999, 499));
+        long allocated = OffHeapMemory.getAllocatedBytes();
+        image.release();
+        copy.release();
+        assertTrue(OffHeapMemory.getAllocatedBytes()
+                <= allocated - 2 * image.getByteSize());
+
+        // memory shared with a region is only released by the GC
+        image = PackedImage.allocate(1000, 500, false);
+        PackedImage region = image.getRegion(10, 10, 20, 20);
+        image.release();
+        region.putSample(0, 0, 0, 42);
+        assertEquals(42, region.getSample(0, 0, 0));
+        assertTrue(OffHeapMemory.getAllocatedBytes() >= image.getByteSize());
+
+        // fall back to the heap when over budget
+        long budget = OffHeapMemory.getBudget();
+        try {
+            OffHeapMemory.setBudget(0);
+            assertFalse(PackedImage.allocate(1000, 500, true).isOffHeap());
+        }
+        finally {
+            OffHeapMemory.setBudget(budget);
+        }
+    }
+
+    @Test
+    public void testMappedImages() {
+        long mapped = OffHeapMemory.getMappedBytes();
+        PackedImage image = PackedImage.allocateMapped(1000, 500, true);
+        assertTrue(image.isMapped());
+        assertTrue(image.isOffHeap());
+        assertEquals(mapped + image.getByteSize(),
+                OffHeapMemory.getMappedBytes());
+        image.putSample(2, 500, 250, 12345);
+        assertEquals(12345, image.getSample(2, 500, 250));
+        image.release();
+        assertEquals(mapped, OffHeapMemory.getMappedBytes());
+    }
+}
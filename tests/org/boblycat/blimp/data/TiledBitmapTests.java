@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sourceforge.jiu.data.IntegerImage;
+import net.sourceforge.jiu.data.PixelImage;
+
+import org.boblycat.blimp.layers.AdjustmentLayer;
+import org.boblycat.blimp.layers.GradientInput;
+import org.boblycat.blimp.layers.LocalContrastLayer;
+import org.boblycat.blimp.layers.UnsharpMaskLayer;
+import org.boblycat.blimp.util.BandExecutor;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.boblycat.blimp.tests.Assert.*;
+
+public class TiledBitmapTests {
+    /**
+     * Copies tiles from an image, and records the regions it is asked for.
+     */
+    static class CopySource implements TiledBitmap.TileSource {
+        PixelImage image;
+        List<BitmapRegion> prepared = new ArrayList<BitmapRegion>();
+        List<BitmapRegion> computed = new ArrayList<BitmapRegion>();
+
+        CopySource(PixelImage image) {
+            this.image = image;
+        }
+
+        public synchronized void prepare(BitmapRegion region) {
+            prepared.add(region);
+        }
+
+        public PixelImage computeTile(BitmapRegion region) {
+            synchronized (this) {
+                computed.add(region);
+            }
+            return BitmapUtil.copyRegion(image, region.x, region.y,
+                    region.width, region.height);
+        }
+    }
+
+    /**
+     * Applies a layer to each tile and the margin around it, like the
+     * tiled bitmaps created by a session.
+     */
+    static class LayerSource implements TiledBitmap.TileSource {
+        Bitmap source;
+        AdjustmentLayer layer;
+
+        LayerSource(Bitmap source, AdjustmentLayer layer) {
+            this.source = source;
+            this.layer = layer;
+        }
+
+        public void prepare(BitmapRegion region) {
+        }
+
+        public PixelImage computeTile(BitmapRegion region) {
+            int margin = layer.getBandOverlap(source);
+            BitmapRegion padded = region.grow(margin).clip(source.getWidth(),
+                    source.getHeight());
+            Bitmap input = new Bitmap(BitmapUtil.copyRegion(source.getImage(),
+                    padded.x, padded.y, padded.width, padded.height));
+            input.setPixelScaleFactor(source.getPixelScaleFactor());
+            PixelImage output = layer.applyLayer(input).getImage();
+            return BitmapUtil.copyRegion(output, region.x - padded.x,
+                    region.y - padded.y, region.width, region.height);
+        }
+    }
+
+    @Test
+    public void testRegionClip() {
+        BitmapRegion region = new BitmapRegion(10, 20, 30, 40);
+        assertEquals(region, region.clip(100, 100));
+        assertEquals(new BitmapRegion(10, 20, 15, 40), region.clip(25, 100));
+        assertTrue(region.clip(5, 100).isEmpty());
+        assertEquals(new BitmapRegion(0, 0, 5, 7),
+                new BitmapRegion(-3, -2, 8, 9).clip(100, 100));
+        assertEquals(region.hashCode(),
+                new BitmapRegion(10, 20, 30, 40).hashCode());
+        assertFalse(region.equals(new BitmapRegion(10, 20, 30, 41)));
+    }
+
+    @Test
+    public void testRegionGrow() {
+        BitmapRegion region = new BitmapRegion(10, 20, 30, 40);
+        BitmapRegion grown = region.grow(5);
+        assertEquals(new BitmapRegion(5, 15, 40, 50), grown);
+        assertTrue(grown.contains(region));
+        assertFalse(region.contains(grown));
+        // the margin is cut off at the image edges
+        assertEquals(new BitmapRegion(0, 8, 52, 64),
+                region.grow(12).clip(52, 100));
+        assertEquals(new BitmapRegion(0, 0, 16, 16),
+                new BitmapRegion(0, 0, 16, 16).grow(20).clip(16, 16));
+    }
+
+    @Test
+    public void testTileBoundaries() {
+        IntegerImage image = GradientInput.createGradient(false, 50, 33);
+        CopySource source = new CopySource(image);
+        TiledBitmap tiled = new TiledBitmap(50, 33, 16, source);
+        assertEquals(4, tiled.getTileCountX());
+        assertEquals(3, tiled.getTileCountY());
+        assertEquals(new BitmapRegion(16, 16, 16, 16),
+                tiled.getTileRegion(1, 1));
+        // tiles at the right and bottom edges are smaller
+        assertEquals(new BitmapRegion(48, 32, 2, 1),
+                tiled.getTileRegion(3, 2));
+
+        // a region crossing four tiles
+        BitmapRegion region = new BitmapRegion(10, 12, 20, 10);
+        assertImagesEqual(BitmapUtil.copyRegion(image, 10, 12, 20, 10),
+                tiled.getRegion(region));
+        assertEquals(4, source.computed.size());
+        assertEquals(new BitmapRegion(0, 0, 32, 32), source.prepared.get(0));
+
+        // regions inside computed tiles, and at the edges
+        assertImagesEqual(BitmapUtil.copyRegion(image, 16, 16, 1, 1),
+                tiled.getRegion(new BitmapRegion(16, 16, 1, 1)));
+        assertEquals(4, source.computed.size());
+        assertImagesEqual(BitmapUtil.copyRegion(image, 47, 31, 3, 2),
+                tiled.getRegion(new BitmapRegion(47, 31, 3, 2)));
+        assertEquals(8, source.computed.size());
+
+        assertImagesEqual(image, tiled.getImage());
+        assertEquals(12, source.computed.size());
+    }
+
+    private static void testLayerTiles(AdjustmentLayer layer, int tileSize) {
+        Bitmap source = new Bitmap(GradientInput.createGradient(true, 70,
+                45));
+        source.setPixelScaleFactor(1);
+        Bitmap full = layer.applyLayer(source);
+        TiledBitmap tiled = new TiledBitmap(70, 45, tileSize,
+                new LayerSource(source, layer));
+        assertImagesEqual(full.getImage(), tiled.getImage());
+    }
+
+    @Test
+    public void testTiledEqualsFull() {
+        UnsharpMaskLayer sharpen = new UnsharpMaskLayer();
+        sharpen.setRadius(3.0);
+        sharpen.setAmount(200);
+        LocalContrastLayer contrast = new LocalContrastLayer();
+        contrast.setRadius(12);
+        int oldCount = BandExecutor.getThreadCount();
+        try {
+            for (int threads = 1; threads <= 4; threads += 3) {
+                BandExecutor.setThreadCount(threads);
+                // margins larger than the tiles reach the image edges
+                testLayerTiles(sharpen, 8);
+                testLayerTiles(sharpen, 32);
+                testLayerTiles(contrast, 8);
+                testLayerTiles(contrast, 32);
+                testLayerTiles(contrast, 100);
+            }
+        }
+        finally {
+            BandExecutor.setThreadCount(oldCount);
+        }
+    }
+}
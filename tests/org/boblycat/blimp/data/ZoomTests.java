@@ -18,7 +18,11 @@
  */
 package org.boblycat.blimp.data;
 
+import net.sourceforge.jiu.data.IntegerImage;
+import net.sourceforge.jiu.data.MemoryRGB24Image;
+
 import org.boblycat.blimp.data.ZoomFactor;
+import org.boblycat.blimp.ops.BoxReduce;
 import org.junit.*;
 import static org.junit.Assert.*;
 
@@ -87,4 +91,33 @@ public class ZoomTests {
         assertEquals(1, zoom.getMultiplier());
         assertEquals(1, zoom.getDivisor());
     }
+
+    @Test
+    public void testPyramidReduce() throws Exception {
+        MemoryRGB24Image image = new MemoryRGB24Image(203, 101);
+        for (int y = 0; y < image.getHeight(); y++)
+            for (int x = 0; x < image.getWidth(); x++)
+                for (int c = 0; c < 3; c++)
+                    image.putSample(c, x, y, (x * 3 + y * 5 + c * 50) % 256);
+        Bitmap bitmap = new Bitmap(image);
+        BitmapPyramid pyramid = new BitmapPyramid(bitmap);
+        assertTrue(pyramid.isFor(bitmap));
+        assertFalse(pyramid.isFor(new Bitmap(image)));
+        int[] divisors = { 1, 2, 3, 4, 6, 8, 12, 16 };
+        for (int divisor: divisors) {
+            IntegerImage reduced = (IntegerImage) pyramid.reduce(divisor);
+            assertEquals(203 / divisor, reduced.getWidth());
+            assertEquals(101 / divisor, reduced.getHeight());
+            BoxReduce op = new BoxReduce(divisor);
+            op.setInputImage(image);
+            op.process();
+            IntegerImage expected = (IntegerImage) op.getOutputImage();
+            for (int y = 0; y < reduced.getHeight(); y++)
+                for (int x = 0; x < reduced.getWidth(); x++)
+                    for (int c = 0; c < 3; c++)
+                        // allow for rounding in the intermediate levels
+                        assertTrue(Math.abs(expected.getSample(c, x, y)
+                                - reduced.getSample(c, x, y)) <= 2);
+        }
+    }
 }
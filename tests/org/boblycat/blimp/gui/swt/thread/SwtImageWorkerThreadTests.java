@@ -19,6 +19,8 @@
 package org.boblycat.blimp.gui.swt.thread;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.boblycat.blimp.gui.swt.thread.SwtImageWorkerThread;
 import org.boblycat.blimp.session.BlimpSession;
@@ -31,6 +33,7 @@ import static org.junit.Assert.*;
 class TestRequest extends Request {
     public volatile int executeCount;
     public volatile int disposeCount;
+    public volatile int cancelledCount;
     
     public TestRequest(ImageWorkerThread thread, Object owner, BlimpSession session,
             Runnable runnable) {
@@ -44,12 +47,56 @@ class TestRequest extends Request {
             thread.asyncExec(runnable);
     }
     
+    @Override
+    protected void cancelled() {
+        cancelledCount++;
+    }
+
     @Override
     protected void dispose() {
         disposeCount++;
     }
 }
 
+class CoalescingTestRequest extends TestRequest {
+    private Object requestOwner;
+
+    public CoalescingTestRequest(ImageWorkerThread thread, Object owner,
+            Runnable runnable) {
+        super(thread, owner, null, runnable);
+        requestOwner = owner;
+    }
+
+    @Override
+    protected boolean supersedes(Request older) {
+        return older instanceof CoalescingTestRequest
+            && ((CoalescingTestRequest) older).requestOwner == requestOwner;
+    }
+}
+
+class PriorityTestRequest extends TestRequest {
+    private int priority;
+    private List<Request> executed;
+
+    public PriorityTestRequest(ImageWorkerThread thread, int priority,
+            List<Request> executed, Runnable runnable) {
+        super(thread, null, null, runnable);
+        this.priority = priority;
+        this.executed = executed;
+    }
+
+    @Override
+    protected int getPriority() {
+        return priority;
+    }
+
+    @Override
+    protected void execute() throws IOException {
+        executed.add(this);
+        super.execute();
+    }
+}
+
 class CallbackRequest extends Request {
     private Runnable callback;
     
@@ -194,5 +241,56 @@ public class SwtImageWorkerThreadTests {
         assertEquals(1, req2.executeCount);
         assertEquals(1, req2.disposeCount);
     }
-    
+
+    @Test
+    public void testCoalesceRequests() {
+        Runnable finish = new Runnable() {
+            public void run() {
+                finished = true;
+            }
+        };
+        TestRequest req1 = new CoalescingTestRequest(thread, this, null);
+        TestRequest req2 = new CoalescingTestRequest(thread, null, null);
+        TestRequest req3 = new CoalescingTestRequest(thread, this, finish);
+        putSleepRequest(null, 10);
+        thread.putRequest(req1);
+        thread.putRequest(req2);
+        thread.putRequest(req3); // should replace req1, but not req2
+        runLoop();
+        assertEquals(0, req1.executeCount);
+        assertEquals(1, req1.cancelledCount);
+        assertEquals(1, req1.disposeCount);
+        assertEquals(1, req2.executeCount);
+        assertEquals(0, req2.cancelledCount);
+        assertEquals(1, req3.executeCount);
+    }
+
+    @Test
+    public void testPriorityOrder() {
+        Runnable finish = new Runnable() {
+            public void run() {
+                finished = true;
+            }
+        };
+        List<Request> executed = new ArrayList<Request>();
+        Request export = new PriorityTestRequest(thread,
+                Request.PRIORITY_BACKGROUND, executed, finish);
+        Request exif = new PriorityTestRequest(thread,
+                Request.PRIORITY_QUERY, executed, null);
+        Request preview1 = new PriorityTestRequest(thread,
+                Request.PRIORITY_PREVIEW, executed, null);
+        Request preview2 = new PriorityTestRequest(thread,
+                Request.PRIORITY_PREVIEW, executed, null);
+        putSleepRequest(null, 10);
+        thread.putRequest(export);
+        thread.putRequest(preview1);
+        thread.putRequest(exif);
+        thread.putRequest(preview2);
+        runLoop();
+        assertEquals(4, executed.size());
+        assertSame(preview1, executed.get(0));
+        assertSame(preview2, executed.get(1));
+        assertSame(exif, executed.get(2));
+        assertSame(export, executed.get(3));
+    }
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.boblycat.blimp.data.PackedImage;
+
+import net.sourceforge.jiu.data.MemoryRGB48Image;
+import net.sourceforge.jiu.data.RGBIndex;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class DecodeCacheTests {
+    @Test
+    public void testDecodeCache() throws IOException {
+        File dir = File.createTempFile("blimptest", "");
+        dir.delete();
+        File input = File.createTempFile("blimptest", ".raw");
+        File oldDir = DecodeCache.getDirectory();
+        DecodeCache.setDirectory(dir);
+        try {
+            FileOutputStream out = new FileOutputStream(input);
+            out.write(new byte[] { 1, 2, 3 });
+            out.close();
+            PackedImage image = new PackedImage(5, 4, true);
+            image.putSample(1, 2, 3, 54321);
+            assertNull(DecodeCache.get(input, "-h"));
+            DecodeCache.put(input, "-h", image);
+            PackedImage cached = DecodeCache.get(input, "-h");
+            assertNotNull(cached);
+            assertTrue(cached.is16Bit());
+            assertEquals(54321, cached.getSample(1, 2, 3));
+            assertNull(DecodeCache.get(input, "-q 3"));
+
+            // changing the input file invalidates the cached image
+            out = new FileOutputStream(input);
+            out.write(new byte[] { 1, 2, 4 });
+            out.close();
+            assertNull(DecodeCache.get(input, "-h"));
+        }
+        finally {
+            DecodeCache.setDirectory(oldDir);
+            for (File file: dir.listFiles())
+                file.delete();
+            dir.delete();
+            input.delete();
+        }
+    }
+
+    @Test
+    public void testPutLater() throws Exception {
+        File dir = File.createTempFile("blimptest", "");
+        dir.delete();
+        File input = File.createTempFile("blimptest", ".raw");
+        File oldDir = DecodeCache.getDirectory();
+        DecodeCache.setDirectory(dir);
+        try {
+            FileOutputStream out = new FileOutputStream(input);
+            out.write(new byte[] { 1, 2, 3 });
+            out.close();
+            MemoryRGB48Image image = new MemoryRGB48Image(5, 4);
+            image.putSample(RGBIndex.INDEX_GREEN, 2, 3, 54321);
+            image.putSample(RGBIndex.INDEX_BLUE, 4, 0, 123);
+            DecodeCache.putLater(input, "-h", image);
+            DecodeCache.waitForWrites();
+            PackedImage cached = DecodeCache.get(input, "-h");
+            assertNotNull(cached);
+            assertTrue(cached.is16Bit());
+            assertEquals(54321, cached.getSample(1, 2, 3));
+            assertEquals(123, cached.getSample(2, 4, 0));
+            assertEquals(0, cached.getSample(0, 2, 3));
+        }
+        finally {
+            DecodeCache.setDirectory(oldDir);
+            for (File file: dir.listFiles())
+                file.delete();
+            dir.delete();
+            input.delete();
+        }
+    }
+}
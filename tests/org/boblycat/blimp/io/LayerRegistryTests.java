@@ -25,6 +25,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.boblycat.blimp.gui.helper.LayerRegistry;
+import org.boblycat.blimp.layers.GradientInput;
 import org.boblycat.blimp.layers.Layer;
 import org.boblycat.blimp.layers.PrintLayer;
 import org.boblycat.blimp.layers.TestInput;
@@ -83,7 +84,8 @@ public class LayerRegistryTests {
         SerializationRegistry registry = SerializationRegistry.createDefaultRegistry();
         for (Class<? extends Layer> layerClass: layerClasses) {
             if (layerClass == PrintLayer.class || layerClass == ViewResizeLayer.class ||
-                    layerClass == TestLayer.class || layerClass == TestInput.class) {
+                    layerClass == TestLayer.class || layerClass == TestInput.class ||
+                    layerClass == GradientInput.class) {
                 // Skip these classes since they are not serialized
                 continue;
             }
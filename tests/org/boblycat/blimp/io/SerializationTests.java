@@ -35,6 +35,7 @@ import org.boblycat.blimp.event.LayerChangeListener;
 import org.boblycat.blimp.event.LayerEvent;
 import org.boblycat.blimp.io.BlimpBean;
 import org.boblycat.blimp.io.DOMNodeIterator;
+import org.boblycat.blimp.io.Fingerprint;
 import org.boblycat.blimp.io.Serializer;
 import org.boblycat.blimp.layers.*;
 import org.boblycat.blimp.layers.RawFileInputLayer.WhiteBalance;
@@ -223,6 +224,60 @@ public class SerializationTests {
         assertEquals("A 'string' value!", layerCopy.getStringValue());
     }
 
+    @Test
+    public void testFingerprint() {
+        CurvesLayer layer = new CurvesLayer();
+        layer.setPoints(new PointDouble[] { new PointDouble(0.0, 0.1),
+                new PointDouble(1.0, 0.5) });
+        Fingerprint fingerprint = layer.fingerprint();
+        assertEquals(32, fingerprint.toString().length());
+        BlimpBean copy = layer.clone();
+        assertEquals(fingerprint, copy.fingerprint());
+        assertEquals(layer, copy);
+        layer.setPoints(new PointDouble[] { new PointDouble(0.0, 0.1),
+                new PointDouble(1.0, 0.6) });
+        assertFalse(fingerprint.equals(layer.fingerprint()));
+        assertFalse(layer.equals(copy));
+        layer.setPoints(new PointDouble[] { new PointDouble(0.0, 0.1),
+                new PointDouble(1.0, 0.5) });
+        assertEquals(fingerprint, layer.fingerprint());
+
+        // sessions are compared without considering the class, like XML
+        BlimpSession session = new BlimpSession();
+        session.addLayer(layer);
+        HistoryBlimpSession historySession = new HistoryBlimpSession();
+        historySession.addLayer((CurvesLayer) copy.clone());
+        historySession.setName(session.getName());
+        assertEquals(Serializer.beanToXml(session),
+                Serializer.beanToXml(historySession));
+        assertEquals(session.fingerprint(), historySession.fingerprint());
+        assertTrue(session.equals(historySession));
+        assertEquals(session.hashCode(), historySession.hashCode());
+        ((CurvesLayer) historySession.getLayer(0)).setActive(false);
+        assertFalse(session.fingerprint().equals(
+                historySession.fingerprint()));
+        assertFalse(session.equals(historySession));
+    }
+
+    @Test
+    public void testEquals() {
+        TestLayer layer = new TestLayer();
+        layer.setIntValue(17);
+        layer.setStringValue(null);
+        TestLayer other = (TestLayer) layer.clone();
+        assertEquals(layer, other);
+        // null is serialized as an empty string
+        other.setStringValue("");
+        assertEquals(layer, other);
+        assertEquals(layer.hashCode(), other.hashCode());
+        other.setIntValue(18);
+        assertFalse(layer.equals(other));
+        other.setIntValue(17);
+        other.setDoubleArrayValue(new double[] { 1.0 });
+        assertFalse(layer.equals(other));
+        assertFalse(new CurvesLayer().equals(new LevelsLayer()));
+    }
+
     @Test
     public void testFromXmlWithWhiteSpace() throws Exception {
         String xml =
@@ -236,6 +291,43 @@ public class SerializationTests {
         assertEquals("    ", dummyLayer.getStringValue());
     }
 
+    @Test
+    public void testUnsharpMaskLegacyLevel() throws Exception {
+        String xml =
+            "<layer class=\"org.boblycat.blimp.layers.UnsharpMaskLayer\">" +
+            "  <property name=\"level\">3</property>" +
+            "</layer>";
+        Layer layer = Serializer.layerFromXml(xml);
+        assertTrue(layer instanceof UnsharpMaskLayer);
+        UnsharpMaskLayer unsharpMask = (UnsharpMaskLayer) layer;
+        assertEquals(300, unsharpMask.getAmount());
+        assertEqualsD(1.0, unsharpMask.getRadius());
+
+        // the level property should not be written
+        Element root = parseLayerXml(Serializer.layerToXml(unsharpMask));
+        assertNull(findPropertyElement(root, "level"));
+        assertNotNull(findPropertyElement(root, "amount"));
+    }
+
+    @Test
+    public void testUnsharpMaskLegacyLevelRange() throws Exception {
+        // every old level maps to a different amount
+        int lastAmount = -1;
+        for (int level = UnsharpMaskLayer.MIN_LEVEL;
+                level <= UnsharpMaskLayer.MAX_LEVEL; level++) {
+            String xml =
+                "<layer class=\"org.boblycat.blimp.layers.UnsharpMaskLayer\">" +
+                "  <property name=\"level\">" + level + "</property>" +
+                "</layer>";
+            UnsharpMaskLayer layer =
+                (UnsharpMaskLayer) Serializer.layerFromXml(xml);
+            assertEquals(100 * level, layer.getAmount());
+            assertEqualsD(1.0, layer.getRadius());
+            assertTrue(layer.getAmount() > lastAmount);
+            lastAmount = layer.getAmount();
+        }
+    }
+
     @Test
     public void testCurvesToXml() throws Exception {
         CurvesLayer layer = new CurvesLayer();
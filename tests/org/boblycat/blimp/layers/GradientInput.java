@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.layers;
+
+import net.sourceforge.jiu.data.IntegerImage;
+import net.sourceforge.jiu.data.MemoryRGB24Image;
+import net.sourceforge.jiu.data.MemoryRGB48Image;
+
+import org.boblycat.blimp.data.Bitmap;
+
+public class GradientInput extends InputLayer {
+    boolean use16Bit;
+    int width;
+    int height;
+
+    public GradientInput(boolean use16Bit) {
+        this(use16Bit, 64, 32);
+    }
+
+    public GradientInput(boolean use16Bit, int width, int height) {
+        this.use16Bit = use16Bit;
+        this.width = width;
+        this.height = height;
+    }
+
+    public static IntegerImage createGradient(boolean use16Bit, int width,
+            int height) {
+        IntegerImage image;
+        if (use16Bit)
+            image = new MemoryRGB48Image(width, height);
+        else
+            image = new MemoryRGB24Image(width, height);
+        int max = image.getMaxSample(0);
+        int n = width * height - 1;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = y * width + x;
+                image.putSample(0, x, y, i * max / n);
+                image.putSample(1, x, y, (n - i) * max / n);
+                image.putSample(2, x, y, (i * 7) % (max + 1));
+            }
+        }
+        return image;
+    }
+
+    @Override
+    public Bitmap getBitmap() {
+        return new Bitmap(createGradient(use16Bit, width, height));
+    }
+
+    @Override
+    public String getDescription() {
+        return "Gradient Input";
+    }
+}
@@ -21,6 +21,7 @@ package org.boblycat.blimp.layers;
 import org.boblycat.blimp.data.Bitmap;
 import org.boblycat.blimp.data.ColorRGB;
 import org.boblycat.blimp.data.TestBitmap;
+import org.boblycat.blimp.io.Fingerprint;
 import org.boblycat.blimp.layers.AdjustmentLayer;
 
 public class TestLayer extends AdjustmentLayer {
@@ -34,6 +35,8 @@ public class TestLayer extends AdjustmentLayer {
     Enum enumValue;
     double[] doubleArrayValue;
     ColorRGB colorValue;
+    // not a bean property, counts the calls to fingerprint()
+    public int fingerprintCount;
 
     public TestLayer() {
     }
@@ -42,6 +45,11 @@ public class TestLayer extends AdjustmentLayer {
         stringValue = strValue;
     }
 
+    public Fingerprint fingerprint() {
+        fingerprintCount++;
+        return super.fingerprint();
+    }
+
     public void setIntValue(int i) {
         intValue = i;
     }
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.ops;
+
+import java.util.Random;
+
+import net.sourceforge.jiu.data.IntegerImage;
+import net.sourceforge.jiu.data.MemoryRGB24Image;
+import net.sourceforge.jiu.data.MemoryRGB48Image;
+import net.sourceforge.jiu.data.PixelImage;
+
+import org.boblycat.blimp.data.Bitmap;
+import org.boblycat.blimp.layers.LocalContrastLayer;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class LocalContrastFilterTests {
+    static IntegerImage createNoise(boolean use16Bit, int width, int height) {
+        IntegerImage image;
+        if (use16Bit)
+            image = new MemoryRGB48Image(width, height);
+        else
+            image = new MemoryRGB24Image(width, height);
+        int max = image.getMaxSample(0);
+        Random random = new Random(42);
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                for (int c = 0; c < 3; c++)
+                    image.putSample(c, x, y, (x * max / width + y * max
+                            / height + random.nextInt(max / 4)) / 2);
+        return image;
+    }
+
+    static IntegerImage apply(IntegerImage input, int radius, int amount,
+            int adaptive) throws Exception {
+        LocalContrastFilter filter = new LocalContrastFilter();
+        filter.setModifiers(radius, amount, adaptive);
+        filter.setInputImage(input);
+        filter.process();
+        return (IntegerImage) filter.getOutputImage();
+    }
+
+    static double intensity(IntegerImage image, int x, int y) {
+        double sum = 0;
+        for (int c = 0; c < 3; c++)
+            sum += image.getSample(c, x, y);
+        return sum / (3 * image.getMaxSample(0));
+    }
+
+    /**
+     * A direct implementation of the filter, which averages the square
+     * area around each pixel.
+     */
+    static int reference(IntegerImage input, int radius, int amount,
+            int adaptive, int c, int x, int y) {
+        int width = input.getWidth();
+        int height = input.getHeight();
+        double sum = 0;
+        for (int j = y - radius; j <= y + radius; j++)
+            for (int i = x - radius; i <= x + radius; i++)
+                sum += intensity(input,
+                        Math.max(0, Math.min(i, width - 1)),
+                        Math.max(0, Math.min(j, height - 1)));
+        double average = sum / ((2 * radius + 1) * (2 * radius + 1));
+        double diff = intensity(input, x, y) - average;
+        double adaptiveFactor = adaptive / (LocalContrastFilter.MAX_ADAPTIVE
+                * (double) LocalContrastFilter.ADAPTIVE_HALF_DIFFERENCE);
+        double weight = 1 / (1 + adaptiveFactor * Math.abs(diff));
+        int max = input.getMaxSample(0);
+        long delta = Math.round(diff * weight * amount / 100.0 * max);
+        return (int) Math.max(0, Math.min(input.getSample(c, x, y) + delta,
+                max));
+    }
+
+    static void assertMatchesReference(IntegerImage input, int radius,
+            int amount, int adaptive) throws Exception {
+        IntegerImage output = apply(input, radius, amount, adaptive);
+        for (int y = 0; y < input.getHeight(); y++)
+            for (int x = 0; x < input.getWidth(); x++)
+                for (int c = 0; c < 3; c++)
+                    assertEquals(reference(input, radius, amount, adaptive,
+                            c, x, y), output.getSample(c, x, y), 1);
+    }
+
+    @Test
+    public void testReferenceOutput() throws Exception {
+        IntegerImage input = createNoise(false, 40, 30);
+        assertMatchesReference(input, 1, 100, 0);
+        assertMatchesReference(input, 4, 250, 70);
+        // a radius larger than the image
+        assertMatchesReference(input, 50, 100, 100);
+        assertMatchesReference(createNoise(true, 25, 20), 6, 100, 70);
+    }
+
+    @Test
+    public void testNoEffect() throws Exception {
+        IntegerImage input = createNoise(false, 20, 10);
+        PixelImage output = apply(input, 5, 0, 70);
+        for (int y = 0; y < 10; y++)
+            for (int x = 0; x < 20; x++)
+                for (int c = 0; c < 3; c++)
+                    assertEquals(input.getSample(c, x, y),
+                            ((IntegerImage) output).getSample(c, x, y));
+    }
+
+    @Test
+    public void testAdaptive() throws Exception {
+        // a bright square on a dark background
+        IntegerImage input = new MemoryRGB24Image(30, 30);
+        for (int y = 0; y < 30; y++)
+            for (int x = 0; x < 30; x++)
+                for (int c = 0; c < 3; c++)
+                    input.putSample(c, x, y,
+                            (x >= 10 && x < 20 && y >= 10 && y < 20)
+                            ? 160 : 80);
+        IntegerImage full = apply(input, 10, 100, 0);
+        IntegerImage adaptive = apply(input, 10, 100, 100);
+        int fullDelta = full.getSample(0, 15, 15) - 160;
+        int adaptiveDelta = adaptive.getSample(0, 15, 15) - 160;
+        assertTrue(adaptiveDelta > 0);
+        assertTrue(adaptiveDelta < fullDelta);
+    }
+
+    @Test
+    public void testAdaptiveHalfDifference() throws Exception {
+        // A single bright pixel on black, with a radius of 1, differs from
+        // its average by 8/9 of its own intensity.  Make the difference
+        // ADAPTIVE_HALF_DIFFERENCE of the full range.
+        IntegerImage input = new MemoryRGB48Image(5, 5);
+        int max = input.getMaxSample(0);
+        int value = Math.round(9 * max
+                * LocalContrastFilter.ADAPTIVE_HALF_DIFFERENCE / 8);
+        for (int c = 0; c < 3; c++)
+            input.putSample(c, 2, 2, value);
+        int fullDelta = apply(input, 1, 100, 0).getSample(0, 2, 2) - value;
+        int halfDelta = apply(input, 1, 100, LocalContrastFilter.MAX_ADAPTIVE)
+            .getSample(0, 2, 2) - value;
+        assertEquals(Math.round(max
+                * LocalContrastFilter.ADAPTIVE_HALF_DIFFERENCE), fullDelta, 1);
+        // allow one sample of rounding in each delta
+        assertEquals(fullDelta / 2.0, halfDelta, 1);
+    }
+
+    @Test
+    public void testLayerRadius() throws Exception {
+        // the radius is given in pixels of the full-size image
+        IntegerImage input = createNoise(false, 40, 30);
+        LocalContrastLayer layer = new LocalContrastLayer();
+        layer.setRadius(12);
+        layer.setAmount(200);
+        layer.setAdaptive(50);
+        Bitmap source = new Bitmap(input);
+        source.setPixelScaleFactor(3);
+        IntegerImage output = (IntegerImage) layer.applyLayer(source)
+            .getImage();
+        IntegerImage expected = apply(input, 4, 200, 50);
+        for (int y = 0; y < 30; y++)
+            for (int x = 0; x < 40; x++)
+                for (int c = 0; c < 3; c++)
+                    assertEquals(expected.getSample(c, x, y),
+                            output.getSample(c, x, y));
+        assertEquals(5, layer.getBandOverlap(source));
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.ops;
+
+import net.sourceforge.jiu.data.IntegerImage;
+import net.sourceforge.jiu.data.PixelImage;
+
+import org.boblycat.blimp.data.Bitmap;
+import org.boblycat.blimp.data.PointDouble;
+import org.boblycat.blimp.data.RGBChannel;
+import org.boblycat.blimp.layers.AdjustmentLayer;
+import org.boblycat.blimp.layers.BrightnessContrastLayer;
+import org.boblycat.blimp.layers.CurvesLayer;
+import org.boblycat.blimp.layers.GradientInput;
+import org.boblycat.blimp.layers.GammaLayer;
+import org.boblycat.blimp.layers.InvertLayer;
+import org.boblycat.blimp.layers.LevelsLayer;
+import org.boblycat.blimp.layers.PointOperation;
+import org.boblycat.blimp.util.BandExecutor;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.boblycat.blimp.tests.Assert.*;
+
+public class LookupTableTests {
+    static IntegerImage createGradient(boolean use16Bit) {
+        return GradientInput.createGradient(use16Bit, 64, 32);
+    }
+
+    public static AdjustmentLayer[] createPointLayers() {
+        LevelsLayer levels = new LevelsLayer();
+        levels.setBlackLevel(0.1);
+        levels.setCenter(0.4);
+        levels.setWhiteLevel(0.9);
+        CurvesLayer curves = new CurvesLayer();
+        curves.setPoints(new PointDouble[] {
+                new PointDouble(0, 0.1),
+                new PointDouble(0.5, 0.6),
+                new PointDouble(1, 0.9) });
+        curves.setChannel(RGBChannel.Green);
+        GammaLayer gamma = new GammaLayer();
+        gamma.setGamma(1.8);
+        return new AdjustmentLayer[] {
+                levels, curves, gamma,
+                new BrightnessContrastLayer(20, 150),
+                new InvertLayer() };
+    }
+
+    @Test
+    public void testIdentity() {
+        LookupTable table = new LookupTable(3, 255);
+        assertTrue(table.isIdentity());
+        assertEquals(3, table.getNumChannels());
+        assertEquals(255, table.getMaxSample());
+        PixelImage input = createGradient(false);
+        LookupOperation op = new LookupOperation(table);
+        op.setInputImage(input);
+        try {
+            op.process();
+        }
+        catch (Exception e) {
+            fail(e.getMessage());
+        }
+        assertImagesEqual(input, op.getOutputImage());
+    }
+
+    @Test
+    public void testSingleChannel() {
+        LookupTable table = new LookupTable(3, 255);
+        int[] function = new int[256];
+        for (int i = 0; i < 256; i++)
+            function[i] = 255 - i;
+        table.apply(1, function);
+        assertFalse(table.isIdentity());
+        assertEquals(10, table.getChannelTable(0)[10]);
+        assertEquals(245, table.getChannelTable(1)[10]);
+        assertEquals(10, table.getChannelTable(2)[10]);
+        table.apply(1, function);
+        assertTrue(table.isIdentity());
+    }
+
+    @Test
+    public void testNormalized() {
+        LookupTable table = new LookupTable(1, 255);
+        assertEquals(0, table.toSample(-0.5));
+        assertEquals(128, table.toSample(0.5));
+        assertEquals(255, table.toSample(1.5));
+        assertEquals(1.0, table.normalize(255), 0.0);
+    }
+
+    private void testCombinedEqualsSequential(boolean use16Bit) {
+        Bitmap source = new Bitmap(createGradient(use16Bit));
+        AdjustmentLayer[] layers = createPointLayers();
+        Bitmap sequential = source;
+        for (AdjustmentLayer layer: layers)
+            sequential = layer.applyLayer(sequential);
+        LookupTable table = new LookupTable(source.getImage());
+        for (AdjustmentLayer layer: layers)
+            ((PointOperation) layer).updateLookupTable(table);
+        Bitmap combined = layers[0].applyLookupTable(source, table);
+        assertImagesEqual(sequential.getImage(), combined.getImage());
+    }
+
+    @Test
+    public void testCombinedEqualsSequential8Bit() {
+        testCombinedEqualsSequential(false);
+    }
+
+    @Test
+    public void testCombinedEqualsSequential16Bit() {
+        testCombinedEqualsSequential(true);
+    }
+
+    /**
+     * The JIU Brightness operation followed by MultiplicativeContrast,
+     * each rounding to integer samples, as the brightness and contrast
+     * layer was applied before it used lookup tables.
+     */
+    private static int jiuBrightnessContrast(int sample, int max,
+            int brightness, int contrast) {
+        if (brightness != 0) {
+            float n = (100.0f - Math.abs(brightness)) / 100.0f;
+            if (brightness < 0)
+                sample = (int) (sample * n);
+            else
+                sample = max - (int) ((max - sample) * n);
+        }
+        if (contrast != 100) {
+            float mid = max / 2.0f;
+            sample = Math.round(mid + (sample - mid) * contrast / 100.0f);
+            sample = Math.max(0, Math.min(max, sample));
+        }
+        return sample;
+    }
+
+    private void testBrightnessContrastEqualsJiu(boolean use16Bit) {
+        IntegerImage source = GradientInput.createGradient(use16Bit, 256, 4);
+        int[][] parameters = {
+                { 20, 150 }, { -35, 100 }, { 0, 60 }, { 100, 400 },
+                { -100, 0 }, { 7, 233 } };
+        for (int[] p: parameters) {
+            BrightnessContrastLayer layer =
+                new BrightnessContrastLayer(p[0], p[1]);
+            IntegerImage output = (IntegerImage)
+                layer.applyLayer(new Bitmap(source)).getImage();
+            for (int c = 0; c < source.getNumChannels(); c++) {
+                int max = source.getMaxSample(c);
+                for (int y = 0; y < source.getHeight(); y++) {
+                    for (int x = 0; x < source.getWidth(); x++) {
+                        int expected = jiuBrightnessContrast(
+                                source.getSample(c, x, y), max, p[0], p[1]);
+                        assertEquals(expected, output.getSample(c, x, y));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBrightnessContrastEqualsJiu8Bit() {
+        testBrightnessContrastEqualsJiu(false);
+    }
+
+    @Test
+    public void testBrightnessContrastEqualsJiu16Bit() {
+        testBrightnessContrastEqualsJiu(true);
+    }
+
+    @Test
+    public void testParallelBands() {
+        Bitmap source = new Bitmap(GradientInput.createGradient(true, 300, 500));
+        AdjustmentLayer[] layers = createPointLayers();
+        int oldThreadCount = BandExecutor.getThreadCount();
+        try {
+            for (AdjustmentLayer layer: layers) {
+                BandExecutor.setThreadCount(1);
+                Bitmap expected = layer.applyLayerParallel(source);
+                BandExecutor.setThreadCount(4);
+                Bitmap actual = layer.applyLayerParallel(source);
+                assertImagesEqual(expected.getImage(), actual.getImage());
+            }
+        }
+        finally {
+            BandExecutor.setThreadCount(oldThreadCount);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.ops;
+
+import net.sourceforge.jiu.data.IntegerImage;
+import net.sourceforge.jiu.data.MemoryRGB24Image;
+import net.sourceforge.jiu.data.MemoryRGB48Image;
+
+import org.boblycat.blimp.util.BandExecutor;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.boblycat.blimp.tests.Assert.*;
+
+public class ResamplerTests {
+    static IntegerImage createPattern(boolean use16Bit, int width,
+            int height) {
+        IntegerImage image;
+        if (use16Bit)
+            image = new MemoryRGB48Image(width, height);
+        else
+            image = new MemoryRGB24Image(width, height);
+        int max = image.getMaxSample(0);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.putSample(0, x, y, x * max / (width - 1));
+                image.putSample(1, x, y, y * max / (height - 1));
+                image.putSample(2, x, y, ((x / 3 + y / 5) % 2) * max);
+            }
+        }
+        return image;
+    }
+
+    static IntegerImage resample(IntegerImage input, int width, int height,
+            ResampleFilter filter) throws Exception {
+        Resampler resampler = new Resampler();
+        resampler.setInputImage(input);
+        resampler.setSize(width, height);
+        resampler.setFilter(filter);
+        resampler.process();
+        return (IntegerImage) resampler.getOutputImage();
+    }
+
+    @Test
+    public void testFilterSupport() {
+        for (ResampleFilter filter: ResampleFilter.values()) {
+            double support = filter.getSupport();
+            assertTrue(filter.evaluate(0) > 0);
+            assertEquals(0.0, filter.evaluate(support), 0.0);
+            assertEquals(0.0, filter.evaluate(-support - 0.01), 0.0);
+            assertEquals(filter.evaluate(0.3), filter.evaluate(-0.3), 1e-12);
+        }
+    }
+
+    @Test
+    public void testOutputSize() throws Exception {
+        IntegerImage input = createPattern(false, 30, 20);
+        int[][] sizes = { { 30, 20 }, { 15, 10 }, { 7, 3 }, { 1, 1 },
+                { 61, 40 }, { 100, 5 } };
+        for (ResampleFilter filter: ResampleFilter.values()) {
+            for (int[] size: sizes) {
+                IntegerImage output = resample(input, size[0], size[1],
+                        filter);
+                assertEquals(size[0], output.getWidth());
+                assertEquals(size[1], output.getHeight());
+                assertEquals(input.getClass(), output.getClass());
+            }
+        }
+    }
+
+    @Test
+    public void testConstantImage() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            IntegerImage input = createPattern(i == 1, 25, 18);
+            int[] values = { 0, 77, input.getMaxSample(0) };
+            for (int c = 0; c < 3; c++)
+                for (int y = 0; y < 18; y++)
+                    for (int x = 0; x < 25; x++)
+                        input.putSample(c, x, y, values[c]);
+            for (ResampleFilter filter: ResampleFilter.values()) {
+                IntegerImage output = resample(input, 11, 41, filter);
+                for (int c = 0; c < 3; c++)
+                    for (int y = 0; y < 41; y++)
+                        for (int x = 0; x < 11; x++)
+                            assertEquals(values[c],
+                                    output.getSample(c, x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testSameSize() throws Exception {
+        // filters which are zero at all other pixel centers keep the image
+        IntegerImage input = createPattern(true, 20, 15);
+        assertImagesEqual(input, resample(input, 20, 15,
+                ResampleFilter.Triangle));
+        assertImagesEqual(input, resample(input, 20, 15,
+                ResampleFilter.Lanczos3));
+    }
+
+    @Test
+    public void testEdgePixels() throws Exception {
+        IntegerImage input = createPattern(false, 32, 24);
+        // the weights are normalized at the edges, so edge pixels are not
+        // darkened by the missing pixels outside the image
+        IntegerImage up = resample(input, 64, 48, ResampleFilter.Triangle);
+        assertEquals(input.getSample(0, 0, 5), up.getSample(0, 0, 10));
+        assertEquals(input.getSample(0, 31, 5), up.getSample(0, 63, 10));
+        assertEquals(input.getSample(1, 7, 0), up.getSample(1, 14, 0));
+        assertEquals(input.getSample(1, 7, 23), up.getSample(1, 14, 47));
+
+        IntegerImage down = resample(input, 16, 12, ResampleFilter.Box);
+        for (int y = 0; y < 12; y += 11) {
+            for (int x = 0; x < 16; x += 15) {
+                int sum = 0;
+                for (int j = 0; j < 2; j++)
+                    for (int i = 0; i < 2; i++)
+                        sum += input.getSample(2, 2 * x + i, 2 * y + j);
+                assertEquals(Math.round(sum / 4.0f),
+                        down.getSample(2, x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        int oldCount = BandExecutor.getThreadCount();
+        try {
+            IntegerImage input = createPattern(true, 150, 200);
+            for (ResampleFilter filter: ResampleFilter.values()) {
+                BandExecutor.setThreadCount(1);
+                IntegerImage expected = resample(input, 97, 310, filter);
+                BandExecutor.setThreadCount(4);
+                IntegerImage actual = resample(input, 97, 310, filter);
+                assertImagesEqual(expected, actual);
+                BandExecutor.setThreadCount(1);
+                expected = resample(input, 40, 70, filter);
+                BandExecutor.setThreadCount(4);
+                actual = resample(input, 40, 70, filter);
+                assertImagesEqual(expected, actual);
+            }
+        }
+        finally {
+            BandExecutor.setThreadCount(oldCount);
+        }
+    }
+}
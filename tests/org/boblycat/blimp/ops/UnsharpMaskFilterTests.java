@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.ops;
+
+import net.sourceforge.jiu.data.IntegerImage;
+import net.sourceforge.jiu.data.MemoryRGB24Image;
+import net.sourceforge.jiu.data.MemoryRGB48Image;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.boblycat.blimp.tests.Assert.*;
+
+public class UnsharpMaskFilterTests {
+    static final int WIDTH = 20;
+    static final int HEIGHT = 5;
+    static final int EDGE = 10;
+
+    /**
+     * An image with a vertical edge, from 100 on the left to 150 on the
+     * right (in 8-bit units).
+     */
+    static IntegerImage createEdge(boolean use16Bit) {
+        IntegerImage image;
+        if (use16Bit)
+            image = new MemoryRGB48Image(WIDTH, HEIGHT);
+        else
+            image = new MemoryRGB24Image(WIDTH, HEIGHT);
+        int scale = use16Bit ? 257 : 1;
+        for (int c = 0; c < 3; c++) {
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++)
+                    image.putSample(c, x, y, (x < EDGE ? 100 : 150) * scale);
+            }
+        }
+        return image;
+    }
+
+    static IntegerImage sharpen(IntegerImage input, double sigma, int amount,
+            int threshold) throws Exception {
+        UnsharpMaskFilter filter = new UnsharpMaskFilter();
+        filter.setInputImage(input);
+        filter.setModifiers(sigma, amount, threshold);
+        filter.process();
+        return (IntegerImage) filter.getOutputImage();
+    }
+
+    /**
+     * Returns the sum of the normalized Gaussian weights at the given
+     * distances from the center.
+     */
+    static double gaussianWeight(double sigma, int from, int to) {
+        int radius = UnsharpMaskFilter.kernelRadius(sigma);
+        double sum = 0;
+        double part = 0;
+        for (int i = -radius; i <= radius; i++) {
+            double value = Math.exp(-(i * i) / (2 * sigma * sigma));
+            sum += value;
+            if (i >= from && i <= to)
+                part += value;
+        }
+        return part / sum;
+    }
+
+    @Test
+    public void testEdgeProfile() throws Exception {
+        IntegerImage input = createEdge(false);
+        for (int amount: new int[] { 50, 100, 300 }) {
+            IntegerImage output = sharpen(input, 1.0, amount, 0);
+            // the pixels next to the edge are pushed apart by the amount
+            // times their difference from the blurred value
+            double diff = 50 * gaussianWeight(1.0, 1, 3);
+            int expectedDark = (int) Math.round(100 - diff * amount / 100);
+            int expectedBright = (int) Math.round(150 + diff * amount / 100);
+            for (int c = 0; c < 3; c++) {
+                assertEquals(Math.max(0, expectedDark),
+                        output.getSample(c, EDGE - 1, 2), 1);
+                assertEquals(Math.min(255, expectedBright),
+                        output.getSample(c, EDGE, 2), 1);
+                // the kernel does not reach the outer pixels
+                assertEquals(100, output.getSample(c, 0, 2));
+                assertEquals(150, output.getSample(c, WIDTH - 1, 2));
+            }
+        }
+    }
+
+    @Test
+    public void testAmountIsMonotonic() throws Exception {
+        IntegerImage input = createEdge(false);
+        int lastDark = 101;
+        for (int amount = 0; amount <= 200; amount += 50) {
+            int dark = sharpen(input, 1.5, amount, 0).getSample(0, EDGE - 1, 0);
+            assertTrue(dark < lastDark);
+            lastDark = dark;
+        }
+    }
+
+    @Test
+    public void testNoEffect() throws Exception {
+        IntegerImage input = createEdge(false);
+        assertImagesEqual(input, sharpen(input, 2.0, 0, 0));
+        // the threshold is larger than any difference from the blur
+        assertImagesEqual(input, sharpen(input, 1.0, 300, 30));
+        IntegerImage input16 = createEdge(true);
+        assertImagesEqual(input16, sharpen(input16, 1.0, 300, 30));
+    }
+
+    @Test
+    public void testThreshold() throws Exception {
+        IntegerImage input = createEdge(false);
+        // only the pixels next to the edge differ more than the threshold
+        // from the blurred value
+        int threshold = (int) Math.ceil(50 * gaussianWeight(1.0, 2, 3));
+        IntegerImage output = sharpen(input, 1.0, 100, threshold);
+        assertTrue(output.getSample(0, EDGE - 1, 2) < 100);
+        assertTrue(output.getSample(0, EDGE, 2) > 150);
+        assertEquals(100, output.getSample(0, EDGE - 2, 2));
+        assertEquals(150, output.getSample(0, EDGE + 1, 2));
+        // the threshold is given in 8-bit units for 16-bit images too
+        IntegerImage output16 = sharpen(createEdge(true), 1.0, 100,
+                threshold);
+        assertTrue(output16.getSample(0, EDGE - 1, 2) < 100 * 257);
+        assertEquals(100 * 257, output16.getSample(0, EDGE - 2, 2));
+    }
+}
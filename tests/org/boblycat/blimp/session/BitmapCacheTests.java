@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.session;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.boblycat.blimp.data.Bitmap;
+import org.boblycat.blimp.data.PackedImage;
+import org.boblycat.blimp.data.PackedImageFile;
+import org.boblycat.blimp.layers.GammaLayer;
+import org.boblycat.blimp.layers.InvertLayer;
+import org.boblycat.blimp.util.OffHeapMemory;
+
+import net.sourceforge.jiu.data.MemoryRGB24Image;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class BitmapCacheTests {
+    static Bitmap createBitmap(int width, int height) {
+        return new Bitmap(new MemoryRGB24Image(width, height));
+    }
+
+    @Test
+    public void testByteAccounting() {
+        BitmapCache cache = new BitmapCache(1000000);
+        Bitmap source = createBitmap(100, 100);
+        Bitmap result = createBitmap(100, 100);
+        assertEquals(30000, result.getByteSize());
+        cache.put(source, new InvertLayer(), result);
+        assertEquals(30000, cache.getUsedBytes());
+        assertSame(result, cache.get(source, new InvertLayer()));
+        // replacing an entry does not count it twice
+        cache.put(source, new InvertLayer(), createBitmap(10, 10));
+        assertEquals(300, cache.getUsedBytes());
+        assertEquals(1, cache.size());
+        assertNull(cache.get(createBitmap(100, 100), new InvertLayer()));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        BitmapCache cache = new BitmapCache(70000);
+        Bitmap source = createBitmap(10, 10);
+        GammaLayer[] layers = new GammaLayer[3];
+        Bitmap[] results = new Bitmap[3];
+        for (int i = 0; i < 3; i++) {
+            layers[i] = new GammaLayer();
+            layers[i].setGamma(1.0 + i);
+            results[i] = createBitmap(100, 100);
+        }
+        cache.put(source, layers[0], results[0]);
+        cache.put(source, layers[1], results[1]);
+        // make the first entry the most recently used one
+        assertSame(results[0], cache.get(source, layers[0]));
+        cache.put(source, layers[2], results[2]);
+        assertEquals(2, cache.size());
+        assertEquals(60000, cache.getUsedBytes());
+        assertSame(results[0], cache.get(source, layers[0]));
+        assertNull(cache.get(source, layers[1]));
+        assertSame(results[2], cache.get(source, layers[2]));
+
+        // bitmaps larger than the budget are not cached at all
+        cache.put(source, new InvertLayer(), createBitmap(200, 200));
+        assertNull(cache.get(source, new InvertLayer()));
+        assertEquals(2, cache.size());
+
+        cache.setBudget(40000);
+        assertEquals(1, cache.size());
+        assertSame(results[2], cache.get(source, layers[2]));
+    }
+
+    @Test
+    public void testCostAwareEviction() {
+        BitmapCache cache = new BitmapCache(70000);
+        Bitmap source = createBitmap(10, 10);
+        Bitmap expensive = createBitmap(100, 100);
+        Bitmap cheap = createBitmap(100, 100);
+        GammaLayer gamma = new GammaLayer();
+        GammaLayer[] others = new GammaLayer[2];
+        for (int i = 0; i < 2; i++) {
+            others[i] = new GammaLayer();
+            others[i].setGamma(2.0 + i);
+        }
+        cache.put(source, gamma, expensive, 10000000000L);
+        cache.put(source, new InvertLayer(), cheap, 1000);
+        // the expensive result is kept although it is least recently used
+        cache.put(source, others[0], createBitmap(100, 100), 1000);
+        assertSame(expensive, cache.get(source, gamma));
+        assertNull(cache.get(source, new InvertLayer()));
+        assertEquals(2, cache.size());
+
+        // a cheap result is not admitted at the expense of expensive ones
+        cache.put(source, others[1], createBitmap(100, 200), 1000);
+        assertNull(cache.get(source, others[1]));
+        assertSame(expensive, cache.get(source, gamma));
+        assertEquals(2, cache.size());
+    }
+
+    static Bitmap createRandomBitmap(int width, int height, boolean use16Bit,
+            long seed) {
+        Random random = new Random(seed);
+        PackedImage image = new PackedImage(width, height, use16Bit);
+        int max = image.getMaxSample() + 1;
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                for (int c = 0; c < PackedImage.NUM_CHANNELS; c++)
+                    image.putSample(c, x, y, random.nextInt(max));
+        Bitmap bitmap = new Bitmap(image);
+        bitmap.setPixelScaleFactor(2.0);
+        return bitmap;
+    }
+
+    static Bitmap createGradientBitmap(int width, int height, int offset) {
+        PackedImage image = new PackedImage(width, height, false);
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                for (int c = 0; c < PackedImage.NUM_CHANNELS; c++)
+                    image.putSample(c, x, y, (x + y + c + offset) & 0xff);
+        return new Bitmap(image);
+    }
+
+    static void assertSamePixels(Bitmap expected, Bitmap actual) {
+        PackedImage a = expected.getPackedImage();
+        PackedImage b = actual.getPackedImage();
+        assertEquals(a.getWidth(), b.getWidth());
+        assertEquals(a.getHeight(), b.getHeight());
+        assertEquals(a.is16Bit(), b.is16Bit());
+        for (int y = 0; y < a.getHeight(); y++)
+            for (int x = 0; x < a.getWidth(); x++)
+                for (int c = 0; c < PackedImage.NUM_CHANNELS; c++)
+                    assertEquals(a.getSample(c, x, y), b.getSample(c, x, y));
+        assertEquals(expected.getPixelScaleFactor(),
+                actual.getPixelScaleFactor(), 0.0);
+    }
+
+    @Test
+    public void testPackedImageFile() throws IOException {
+        File file = File.createTempFile("blimptest", ".cache");
+        try {
+            for (int i = 0; i < 2; i++) {
+                Bitmap bitmap = createRandomBitmap(37, 11, i == 1, i);
+                PackedImageFile.write(bitmap.getPackedImage(), file);
+                Bitmap copy = new Bitmap(PackedImageFile.read(file));
+                copy.setPixelScaleFactor(bitmap.getPixelScaleFactor());
+                assertSamePixels(bitmap, copy);
+            }
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testDiskSpill() throws Exception {
+        File dir = File.createTempFile("blimptest", "");
+        dir.delete();
+        BitmapCache cache = new BitmapCache(70000, 1000000);
+        cache.setDiskDirectory(dir);
+        try {
+            Bitmap source = createBitmap(10, 10);
+            Bitmap[] results = new Bitmap[3];
+            GammaLayer[] layers = new GammaLayer[3];
+            for (int i = 0; i < 3; i++) {
+                layers[i] = new GammaLayer();
+                layers[i].setGamma(1.0 + i);
+                // 30000 and 60000 bytes
+                results[i] = createRandomBitmap(100, 100, i == 1, i);
+            }
+            // cache copies, so the spilled bitmaps can be collected
+            cache.put(source, layers[0],
+                    createRandomBitmap(100, 100, false, 0));
+            cache.put(source, layers[1],
+                    createRandomBitmap(100, 100, true, 1));
+            // the evicted bitmap is written in the background
+            cache.waitForTasks();
+            assertEquals(1, cache.size());
+            assertEquals(1, cache.diskSize());
+            assertTrue(cache.getDiskUsedBytes() > 0);
+            assertEquals(1, dir.list().length);
+            assertSamePixels(results[0], cache.get(source, layers[0]));
+
+            // reading the first bitmap back evicts and spills the second
+            cache.waitForTasks();
+            assertEquals(1, cache.size());
+            assertEquals(2, cache.diskSize());
+            assertSamePixels(results[1], cache.get(source, layers[1]));
+
+            // the least recently used file is deleted
+            cache.setDiskBudget(cache.getDiskUsedBytes() - 1);
+            assertEquals(1, cache.diskSize());
+            cache.put(source, layers[2], results[2]);
+            cache.waitForTasks();
+            assertNull(cache.get(source, layers[0]));
+            assertSamePixels(results[1], cache.get(source, layers[1]));
+
+            cache.clear();
+            cache.waitForTasks();
+            assertEquals(0, cache.getDiskUsedBytes());
+            assertEquals(0, dir.list().length);
+        }
+        finally {
+            cache.clear();
+            cache.waitForTasks();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testCompressedEntries() throws InterruptedException {
+        BitmapCache cache = new BitmapCache(40000);
+        cache.setCompressedBudget(100000);
+        Bitmap source = createBitmap(10, 10);
+        GammaLayer[] layers = new GammaLayer[2];
+        Bitmap[] expected = new Bitmap[2];
+        for (int i = 0; i < 2; i++) {
+            layers[i] = new GammaLayer();
+            layers[i].setGamma(1.0 + i);
+            expected[i] = createGradientBitmap(100, 100, i);
+            cache.put(source, layers[i], createGradientBitmap(100, 100, i));
+        }
+        cache.waitForTasks();
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.compressedSize());
+        assertTrue(cache.getCompressedUsedBytes() < 30000 / 2);
+        assertSamePixels(expected[0], cache.get(source, layers[0]));
+        cache.waitForTasks();
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.compressedSize());
+
+        // without a disk budget, compressed bitmaps are simply dropped
+        cache.setCompressedBudget(0);
+        assertEquals(0, cache.compressedSize());
+        assertEquals(0, cache.getCompressedUsedBytes());
+        assertNull(cache.get(source, layers[1]));
+    }
+
+    static Bitmap createOffHeapBitmap() {
+        Bitmap bitmap = new Bitmap(PackedImage.allocate(1000, 500, true));
+        assertTrue(bitmap.getPackedImage().isOffHeap());
+        return bitmap;
+    }
+
+    @Test
+    public void testReleaseEvicted() {
+        // room for one off-heap bitmap of 3000000 bytes
+        BitmapCache cache = new BitmapCache(4000000);
+        Bitmap source = createBitmap(10, 10);
+        Bitmap replaced = createOffHeapBitmap();
+        long size = replaced.getByteSize();
+        long token = cache.beginUse();
+        cache.put(source, new InvertLayer(), replaced);
+        long allocated = OffHeapMemory.getAllocatedBytes();
+        cache.put(source, new InvertLayer(), createBitmap(10, 10));
+        // not released while it may still be in use
+        assertFalse(replaced.getPackedImage().isReleased());
+        cache.endUse(token);
+        assertTrue(replaced.getPackedImage().isReleased());
+        assertTrue(OffHeapMemory.getAllocatedBytes() <= allocated - size);
+
+        GammaLayer[] layers = new GammaLayer[3];
+        for (int i = 0; i < 3; i++) {
+            layers[i] = new GammaLayer();
+            layers[i].setGamma(1.0 + i);
+        }
+        Bitmap shared = createOffHeapBitmap();
+        BitmapCache.markShared(shared);
+        Bitmap evicted = createOffHeapBitmap();
+        cache.put(source, layers[0], shared);
+        cache.put(source, layers[1], evicted);
+        assertNull(cache.get(source, layers[0]));
+        assertFalse(shared.getPackedImage().isReleased());
+        allocated = OffHeapMemory.getAllocatedBytes();
+        cache.put(source, layers[2], createBitmap(700, 700));
+        assertNull(cache.get(source, layers[1]));
+        assertTrue(evicted.getPackedImage().isReleased());
+        assertTrue(OffHeapMemory.getAllocatedBytes() <= allocated - size);
+        shared.getPackedImage().release();
+    }
+
+    @Test
+    public void testConcurrentUse() throws Exception {
+        File dir = File.createTempFile("blimptest", "");
+        dir.delete();
+        // room for two bitmaps in memory and a few compressed ones, so
+        // bitmaps are constantly compressed, spilled and read back
+        final BitmapCache cache = new BitmapCache(2 * 30000, 10000000);
+        cache.setCompressedBudget(20000);
+        cache.setDiskDirectory(dir);
+        final Bitmap source = createBitmap(10, 10);
+        final GammaLayer[] layers = new GammaLayer[8];
+        final Bitmap[] expected = new Bitmap[layers.length];
+        for (int i = 0; i < layers.length; i++) {
+            layers[i] = new GammaLayer();
+            layers[i].setGamma(1.0 + i);
+            expected[i] = createGradientBitmap(100, 100, i);
+        }
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[4];
+        try {
+            for (int t = 0; t < threads.length; t++) {
+                final int seed = t;
+                threads[t] = new Thread() {
+                    public void run() {
+                        Random random = new Random(seed);
+                        try {
+                            for (int n = 0; n < 100; n++) {
+                                int i = random.nextInt(layers.length);
+                                Bitmap bitmap = cache.get(source, layers[i]);
+                                if (bitmap == null)
+                                    cache.put(source, layers[i],
+                                            createGradientBitmap(100, 100, i),
+                                            1000);
+                                else
+                                    assertSamePixels(expected[i], bitmap);
+                            }
+                        }
+                        catch (Throwable e) {
+                            synchronized (failure) {
+                                failure[0] = e;
+                            }
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            for (Thread thread: threads)
+                thread.join();
+            synchronized (failure) {
+                if (failure[0] != null)
+                    throw new AssertionError(failure[0]);
+            }
+            assertTrue(cache.getUsedBytes() <= cache.getBudget());
+            for (int i = 0; i < layers.length; i++) {
+                Bitmap bitmap = cache.get(source, layers[i]);
+                if (bitmap != null)
+                    assertSamePixels(expected[i], bitmap);
+            }
+        }
+        finally {
+            cache.clear();
+            cache.waitForTasks();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testReadWhileStoring() throws Exception {
+        File dir = File.createTempFile("blimptest", "");
+        dir.delete();
+        BitmapCache cache = new BitmapCache(40000, 1000000);
+        cache.setCompressedBudget(20000);
+        cache.setDiskDirectory(dir);
+        try {
+            Bitmap source = createBitmap(10, 10);
+            GammaLayer[] layers = new GammaLayer[3];
+            Bitmap[] expected = new Bitmap[layers.length];
+            for (int i = 0; i < layers.length; i++) {
+                layers[i] = new GammaLayer();
+                layers[i].setGamma(1.0 + i);
+                expected[i] = createRandomBitmap(100, 100, false, i);
+                cache.put(source, layers[i],
+                        createRandomBitmap(100, 100, false, i));
+            }
+            // the evicted bitmaps are found whether or not they have been
+            // compressed or written yet
+            for (int i = 0; i < layers.length; i++)
+                assertSamePixels(expected[i], cache.get(source, layers[i]));
+            cache.waitForTasks();
+            for (int i = 0; i < layers.length; i++)
+                assertSamePixels(expected[i], cache.get(source, layers[i]));
+        }
+        finally {
+            cache.clear();
+            cache.waitForTasks();
+            dir.delete();
+        }
+    }
+}
@@ -18,8 +18,14 @@
  */
 package org.boblycat.blimp.session;
 
+import java.io.IOException;
+
+import org.boblycat.blimp.data.Bitmap;
+import org.boblycat.blimp.layers.TestLayer;
 import org.boblycat.blimp.session.BlimpSession;
 import org.boblycat.blimp.session.CachedBlimpSession;
+import org.junit.Test;
+import static org.junit.Assert.*;
 
 public class CachedSessionTests extends SessionTests {
     // Note: all tests in SessionTests will be executed
@@ -27,4 +33,49 @@ public class CachedSessionTests extends SessionTests {
     protected BlimpSession newSession() {
         return new CachedBlimpSession();
     }
+
+    @Test
+    public void testFallbackCache() throws IOException {
+        CachedBlimpSession interactive = (CachedBlimpSession) createTestSession();
+        interactive.addLayer(new TestLayer("A"));
+        Bitmap bitmap = interactive.getBitmap();
+        int cachedCount = interactive.cache.size();
+        assertTrue(cachedCount > 0);
+
+        // a session without room in its own cache
+        CachedBlimpSession export = new CachedBlimpSession(new BitmapCache(0));
+        export.setFallbackCache(interactive.cache);
+        export.synchronizeSessionData(interactive, false);
+        assertSame(bitmap, export.getBitmap());
+        assertEquals(cachedCount, interactive.cache.size());
+
+        // changes are computed, but not stored in the fallback cache
+        TestLayer layer = (TestLayer) export.getLayer(1);
+        layer.setStringValue("B");
+        export.invalidate();
+        assertEquals("B", getTestBitmap(export).testValue);
+        assertEquals(cachedCount, interactive.cache.size());
+    }
+
+    @Test
+    public void testCacheKeysFromSnapshot() throws IOException {
+        BlimpSession session = createTestSession();
+        session.addLayer(new TestLayer("A"));
+        BlimpSession worker = newSession();
+        worker.synchronizeSessionData(session.snapshot());
+        TestLayer workerLayer = (TestLayer) worker.getLayer(1);
+        workerLayer.fingerprintCount = 0;
+
+        // the cache is searched with the fingerprints of the snapshot
+        assertEquals("A", getTestBitmap(worker).testValue);
+        worker.invalidate();
+        assertEquals("A", getTestBitmap(worker).testValue);
+        assertEquals(0, workerLayer.fingerprintCount);
+
+        // until the layer is changed
+        workerLayer.setStringValue("B");
+        workerLayer.invalidate();
+        assertEquals("B", getTestBitmap(worker).testValue);
+        assertTrue(workerLayer.fingerprintCount > 0);
+    }
 }
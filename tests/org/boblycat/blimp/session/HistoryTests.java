@@ -35,6 +35,7 @@ public class HistoryTests {
         SessionHistory history = new SessionHistory(session);
         assertFalse(history.canUndo());
         input.setFilePath("new value");
+        input.invalidate();
         assertFalse(history.canUndo());
         history.record();
         assertTrue(history.canUndo());
@@ -50,6 +51,7 @@ public class HistoryTests {
         SessionHistory history = new SessionHistory(session);
         assertFalse(history.canRedo());
         input.setFilePath("new value");
+        input.invalidate();
         history.record();
         assertFalse(history.canRedo());
         history.undo();
@@ -66,8 +68,10 @@ public class HistoryTests {
         session.setInput(input);
         SessionHistory history = new SessionHistory(session);
         input.setFilePath("new value 1");
+        input.invalidate();
         history.record();
         input.setFilePath("new value 2");
+        input.invalidate();
         history.record();
 
         assertEquals("new value 2", input.getFilePath());
@@ -87,8 +91,10 @@ public class HistoryTests {
         session.setInput(input);
         SessionHistory history = new SessionHistory(session);
         input.setFilePath("new value 1");
+        input.invalidate();
         history.record();
         input.setFilePath("new value 2");
+        input.invalidate();
         history.record();
         history.undo();
         history.undo();
@@ -132,6 +138,7 @@ public class HistoryTests {
 
         assertEquals(1, history.size());
         input.setFilePath("new value");
+        input.invalidate();
         history.record();
         assertEquals(2, history.size());
         history.record(); // should be rejected
@@ -169,6 +176,7 @@ public class HistoryTests {
         assertFalse(history.isDirty());
 
         input.setFilePath("new path");
+        input.invalidate();
         history.record();
         assertTrue(history.isDirty());
 
@@ -176,14 +184,17 @@ public class HistoryTests {
         assertFalse(history.isDirty());
 
         input.setFilePath("new path 2");
+        input.invalidate();
         history.record();
         assertTrue(history.isDirty());
 
         input.setFilePath("initial path");
+        input.invalidate();
         history.record();
         assertFalse(history.isDirty());
 
         input.setFilePath("save value");
+        input.invalidate();
         history.record();
         assertTrue(history.isDirty());
 
@@ -191,6 +202,7 @@ public class HistoryTests {
         assertFalse(history.isDirty());
 
         input.setFilePath("another value");
+        input.invalidate();
         history.record();
         assertTrue(history.isDirty());
 
@@ -222,4 +234,55 @@ public class HistoryTests {
         session.undo();
         assertEquals("saved name", session.getName());
     }
+
+    @Test
+    public void testSharedLayers() {
+        BlimpSession session = new BlimpSession();
+        TestInput input = new TestInput();
+        session.setInput(input);
+        TestLayer layer = new TestLayer("a");
+        session.addLayer(layer);
+        SessionHistory history = new SessionHistory(session);
+        layer.setStringValue("b");
+        layer.invalidate();
+        history.record();
+        SessionHistory.HistoryEntry first = history.historyList.get(0);
+        SessionHistory.HistoryEntry second = history.historyList.get(1);
+        // the unchanged input layer is shared by both entries
+        assertSame(first.snapshot.getLayers().get(0),
+                second.snapshot.getLayers().get(0));
+        assertNotSame(first.snapshot.getLayers().get(1),
+                second.snapshot.getLayers().get(1));
+
+        history.undo();
+        assertSame(layer, session.getLayer(1));
+        assertEquals("a", layer.getStringValue());
+        // undo does not record a new entry
+        history.record();
+        assertTrue(history.canRedo());
+    }
+
+    @Test
+    public void testMaxEntries() {
+        BlimpSession session = new BlimpSession();
+        TestInput input = new TestInput();
+        session.setInput(input);
+        SessionHistory history = new SessionHistory(session);
+        history.setMaxEntries(3);
+        for (int i = 1; i <= 5; i++) {
+            input.setFilePath("value " + i);
+            input.invalidate();
+            history.record();
+        }
+        assertEquals(3, history.size());
+        history.undo();
+        history.undo();
+        assertFalse(history.canUndo());
+        assertEquals("value 3", input.getFilePath());
+
+        history.setMaxEntries(1);
+        assertEquals(1, history.size());
+        assertEquals("value 3", input.getFilePath());
+        assertFalse(history.canRedo());
+    }
 }
@@ -19,19 +19,32 @@
 package org.boblycat.blimp.session;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.boblycat.blimp.data.Bitmap;
+import org.boblycat.blimp.data.BitmapRegion;
 import org.boblycat.blimp.data.BitmapSize;
+import org.boblycat.blimp.data.BitmapUtil;
 import org.boblycat.blimp.data.TestBitmap;
+import org.boblycat.blimp.data.TiledBitmap;
 import org.boblycat.blimp.event.LayerChangeListener;
 import org.boblycat.blimp.event.LayerEvent;
+import org.boblycat.blimp.layers.AdjustmentLayer;
+import org.boblycat.blimp.layers.GradientInput;
 import org.boblycat.blimp.layers.Layer;
+import org.boblycat.blimp.layers.LocalContrastLayer;
 import org.boblycat.blimp.layers.ResizeLayer;
 import org.boblycat.blimp.layers.TestInput;
 import org.boblycat.blimp.layers.TestLayer;
+import org.boblycat.blimp.layers.UnsharpMaskLayer;
 import org.boblycat.blimp.layers.ViewResizeLayer;
 import org.boblycat.blimp.session.BlimpSession;
 import org.boblycat.blimp.session.BlimpSession.PreviewQuality;
+import org.boblycat.blimp.ops.LookupTableTests;
+import org.boblycat.blimp.session.SessionSnapshot;
+import org.boblycat.blimp.util.CancellationToken;
+import org.boblycat.blimp.util.CancelledException;
 import org.junit.*;
 import static org.junit.Assert.*;
 import static org.boblycat.blimp.tests.Assert.*;
@@ -110,6 +123,132 @@ public class SessionTests {
         assertEquals("ABC", testBitmap.testValue);
     }
 
+    @Test
+    public void testCancellation() throws IOException {
+        BlimpSession session = createTestSession();
+        session.addLayer(new TestLayer("A"));
+        session.addLayer(new TestLayer("B"));
+        CancellationToken token = new CancellationToken();
+        CancellationToken.setCurrent(token);
+        try {
+            token.cancel();
+            session.getBitmap();
+            fail("CancelledException expected");
+        }
+        catch (CancelledException e) {
+            // expected
+        }
+        finally {
+            CancellationToken.setCurrent(null);
+        }
+        assertEquals("AB", getTestBitmap(session).testValue);
+    }
+
+    @Test
+    public void testSnapshot() throws IOException {
+        BlimpSession session = createTestSession();
+        TestLayer layerA = new TestLayer("A");
+        TestLayer layerB = new TestLayer("B");
+        session.addLayer(layerA);
+        session.addLayer(layerB);
+        SessionSnapshot snapshot1 = session.snapshot();
+        assertEquals(3, snapshot1.getLayers().size());
+        assertNotSame(layerA, snapshot1.getLayers().get(1));
+        assertSame(snapshot1, session.snapshot());
+
+        layerB.setStringValue("C");
+        layerB.invalidate();
+        SessionSnapshot snapshot2 = session.snapshot();
+        assertNotSame(snapshot1, snapshot2);
+        // unchanged layers are shared
+        assertSame(snapshot1.getLayers().get(0), snapshot2.getLayers().get(0));
+        assertSame(snapshot1.getLayers().get(1), snapshot2.getLayers().get(1));
+        assertNotSame(snapshot1.getLayers().get(2),
+                snapshot2.getLayers().get(2));
+        assertEquals("B", ((TestLayer) snapshot1.getLayers().get(2))
+                .getStringValue());
+
+        BlimpSession worker = newSession();
+        worker.synchronizeSessionData(snapshot1);
+        Layer workerLayer = worker.getLayer(2);
+        assertNotSame(snapshot1.getLayers().get(2), workerLayer);
+        assertEquals("AB", ((TestBitmap) worker.getFullBitmap()).testValue);
+        worker.synchronizeSessionData(snapshot2);
+        assertSame(workerLayer, worker.getLayer(2));
+        assertEquals("AC", ((TestBitmap) worker.getFullBitmap()).testValue);
+        assertEquals("B", ((TestLayer) snapshot1.getLayers().get(2))
+                .getStringValue());
+    }
+
+    @Test
+    public void testSnapshotFingerprintsChangedLayers() {
+        BlimpSession session = createTestSession();
+        TestLayer layerA = new TestLayer("A");
+        TestLayer layerB = new TestLayer("B");
+        session.addLayer(layerA);
+        session.addLayer(layerB);
+        SessionSnapshot snapshot1 = session.snapshot();
+        layerA.fingerprintCount = 0;
+        layerB.fingerprintCount = 0;
+
+        layerB.setStringValue("C");
+        layerB.invalidate();
+        SessionSnapshot snapshot2 = session.snapshot();
+        assertEquals(0, layerA.fingerprintCount);
+        assertEquals(1, layerB.fingerprintCount);
+        assertSame(snapshot1.getLayers().get(1), snapshot2.getLayers().get(1));
+        assertEquals("C", ((TestLayer) snapshot2.getLayers().get(2))
+                .getStringValue());
+
+        // moving and deactivating layers needs no fingerprints either
+        session.moveLayer(2, 1);
+        SessionSnapshot snapshot3 = session.snapshot();
+        assertEquals("C", ((TestLayer) snapshot3.getLayers().get(1))
+                .getStringValue());
+        session.activateLayer(1, false);
+        SessionSnapshot snapshot4 = session.snapshot();
+        assertFalse(snapshot4.getLayers().get(1).isActive());
+        assertTrue(snapshot3.getLayers().get(1).isActive());
+        assertEquals(0, layerA.fingerprintCount);
+        assertEquals(2, layerB.fingerprintCount);
+    }
+
+    @Test
+    public void testSnapshotAfterSynchronize() {
+        BlimpSession session = createTestSession();
+        TestLayer layer = new TestLayer("A");
+        session.addLayer(layer);
+        BlimpSession worker = newSession();
+        worker.synchronizeSessionData(session.snapshot());
+        TestLayer workerLayer = (TestLayer) worker.getLayer(1);
+        assertNotSame(layer, workerLayer);
+
+        // synchronizing does not make the layers dirty
+        SessionSnapshot snapshot1 = worker.snapshot();
+        assertEquals(0, workerLayer.fingerprintCount);
+        assertEquals("A", ((TestLayer) snapshot1.getLayers().get(1))
+                .getStringValue());
+
+        // edits of a cloned layer are picked up
+        workerLayer.setStringValue("B");
+        workerLayer.invalidate();
+        SessionSnapshot snapshot2 = worker.snapshot();
+        assertEquals("B", ((TestLayer) snapshot2.getLayers().get(1))
+                .getStringValue());
+
+        // and so are edits of a layer copied from a later snapshot
+        layer.setStringValue("C");
+        layer.invalidate();
+        worker.synchronizeSessionData(session.snapshot());
+        assertSame(workerLayer, worker.getLayer(1));
+        assertEquals("C", ((TestLayer) worker.snapshot().getLayers().get(1))
+                .getStringValue());
+        workerLayer.setStringValue("D");
+        workerLayer.invalidate();
+        assertEquals("D", ((TestLayer) worker.snapshot().getLayers().get(1))
+                .getStringValue());
+    }
+
     @Test
     public void testMultipleLayersInactive() {
         BlimpSession session = createTestSession();
@@ -419,6 +558,22 @@ public class SessionTests {
         assertEqualsD(1.0, session.getCurrentZoom());
     }
     
+    @Test
+    public void testGetSizedBitmapZoomIn() throws Exception {
+        // Zooming in should be left to the view, not enlarge the bitmap
+        BlimpSession session = createTestSession();
+        TestInput input = (TestInput) session.getInput();
+        input.setInputSize(150, 100);
+        session.getSizedBitmap(200, 200, PreviewQuality.Fast);
+        assertEquals(1, session.getDisplayMagnification());
+        session.zoomIn();
+        Bitmap bitmap = session.getSizedBitmap(200, 200, PreviewQuality.Fast);
+        assertEquals(150, bitmap.getWidth());
+        assertEquals(100, bitmap.getHeight());
+        assertEqualsD(2.0, session.getCurrentZoom());
+        assertEquals(2, session.getDisplayMagnification());
+    }
+
     @Test
     public void testGetBitmapNoZoomSideEffect() throws Exception {
         BlimpSession session = createTestSession();
@@ -442,4 +597,99 @@ public class SessionTests {
         input.setFilePath("path 1");
         assertEquals("path 1", session.inputFilePath());
     }
-}
\ No newline at end of file
+
+    Bitmap getGradientBitmap(BlimpSession session, boolean use16Bit,
+            boolean combine) throws IOException {
+        session.setInput(new GradientInput(use16Bit));
+        for (AdjustmentLayer layer: LookupTableTests.createPointLayers())
+            session.addLayer(layer);
+        session.setCombinePointOperations(combine);
+        return session.getFullBitmap();
+    }
+
+    @Test
+    public void testCombinePointOperations() throws IOException {
+        for (int i = 0; i < 2; i++) {
+            boolean use16Bit = (i == 1);
+            Bitmap expected = getGradientBitmap(newSession(), use16Bit, false);
+            Bitmap actual = getGradientBitmap(newSession(), use16Bit, true);
+            assertImagesEqual(expected.getImage(), actual.getImage());
+        }
+    }
+
+    @Test
+    public void testRegion() throws IOException {
+        BlimpSession session = newSession();
+        session.setInput(new GradientInput(false, 700, 600));
+        UnsharpMaskLayer sharpen = new UnsharpMaskLayer();
+        sharpen.setRadius(2.0);
+        sharpen.setAmount(150);
+        session.addLayer(sharpen);
+        for (AdjustmentLayer layer: LookupTableTests.createPointLayers())
+            session.addLayer(layer);
+        LocalContrastLayer contrast = new LocalContrastLayer();
+        contrast.setRadius(20);
+        session.addLayer(contrast);
+
+        Bitmap full = session.getFullBitmap();
+        Bitmap view = session.getSizedBitmap(1000, 1000,
+                PreviewQuality.Accurate);
+        assertNull(session.getCurrentRegion());
+        assertTrue(view instanceof TiledBitmap);
+        assertImagesEqual(full.getImage(), view.getImage());
+        Bitmap region = session.getSizedBitmap(1000, 1000,
+                PreviewQuality.Accurate,
+                new BitmapRegion(300, 260, 200, 100));
+        BitmapRegion covered = session.getCurrentRegion();
+        assertEquals(new BitmapRegion(256, 256, 256, 256), covered);
+        assertEquals(700, session.getCurrentViewSize().width);
+        assertEquals(600, session.getCurrentViewSize().height);
+        assertImagesEqual(BitmapUtil.copyRegion(full.getImage(),
+                covered.x, covered.y, covered.width, covered.height),
+                region.getImage());
+    }
+
+    @Test
+    public void testRegionLargeRadius() throws IOException {
+        final List<AdjustmentLayer> tiledLayers =
+            new ArrayList<AdjustmentLayer>();
+        final List<Bitmap> tiledSources = new ArrayList<Bitmap>();
+        BlimpSession session = new BlimpSession() {
+            protected TiledBitmap createTiledBitmap(Bitmap source,
+                    List<AdjustmentLayer> layers) {
+                tiledLayers.addAll(layers);
+                tiledSources.add(source);
+                return super.createTiledBitmap(source, layers);
+            }
+        };
+        session.setInput(new GradientInput(false, 700, 600));
+        LocalContrastLayer contrast = new LocalContrastLayer();
+        contrast.setRadius(LocalContrastLayer.MAX_RADIUS);
+        session.addLayer(contrast);
+        UnsharpMaskLayer sharpen = new UnsharpMaskLayer();
+        sharpen.setRadius(2.0);
+        session.addLayer(sharpen);
+
+        Bitmap full = session.getFullBitmap();
+        Bitmap region = session.getSizedBitmap(1000, 1000,
+                PreviewQuality.Accurate,
+                new BitmapRegion(300, 260, 200, 100));
+        BitmapRegion covered = session.getCurrentRegion();
+        assertImagesEqual(BitmapUtil.copyRegion(full.getImage(),
+                covered.x, covered.y, covered.width, covered.height),
+                region.getImage());
+
+        // only the sharpening is applied to tiles
+        assertEquals(1, tiledLayers.size());
+        assertTrue(tiledLayers.get(0) instanceof UnsharpMaskLayer);
+        Bitmap source = tiledSources.get(0);
+        BitmapRegion padded = session.new LayerTileSource(source, source,
+                tiledLayers, tiledLayers).paddedRegion(new BitmapRegion(
+                        BlimpSession.TILE_SIZE, BlimpSession.TILE_SIZE,
+                        BlimpSession.TILE_SIZE, BlimpSession.TILE_SIZE));
+        int maxSize = BlimpSession.TILE_SIZE + 2 * BlimpSession.MAX_TILE_MARGIN;
+        assertTrue(padded.width <= maxSize);
+        assertTrue(padded.height <= maxSize);
+        assertTrue(padded.width < source.getWidth());
+    }
+}
@@ -18,6 +18,9 @@
  */
 package org.boblycat.blimp.tests;
 
+import net.sourceforge.jiu.data.IntegerImage;
+import net.sourceforge.jiu.data.PixelImage;
+
 import static org.junit.Assert.*;
 
 /**
@@ -36,4 +39,23 @@ public class Assert {
         // Use a very small delta value instead of an exact match.
         assertEquals(expected, actual, 1e-100);
     }
+
+    /**
+     * Checks that two integer images have the same size and samples.
+     * @param expected the expected image
+     * @param actual the actual image
+     */
+    public static void assertImagesEqual(PixelImage expected,
+            PixelImage actual) {
+        IntegerImage image1 = (IntegerImage) expected;
+        IntegerImage image2 = (IntegerImage) actual;
+        assertEquals(image1.getWidth(), image2.getWidth());
+        assertEquals(image1.getHeight(), image2.getHeight());
+        assertEquals(image1.getNumChannels(), image2.getNumChannels());
+        for (int c = 0; c < image1.getNumChannels(); c++)
+            for (int y = 0; y < image1.getHeight(); y++)
+                for (int x = 0; x < image1.getWidth(); x++)
+                    assertEquals(image1.getSample(c, x, y),
+                            image2.getSample(c, x, y));
+    }
 }
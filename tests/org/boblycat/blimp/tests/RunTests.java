@@ -18,16 +18,25 @@
  */
 package org.boblycat.blimp.tests;
 
+import org.boblycat.blimp.data.PackedImageTests;
+import org.boblycat.blimp.data.TiledBitmapTests;
 import org.boblycat.blimp.data.ZoomTests;
 import org.boblycat.blimp.exif.ExifTests;
 import org.boblycat.blimp.gui.swt.SwtTests;
 import org.boblycat.blimp.gui.swt.thread.SwtImageWorkerThreadTests;
+import org.boblycat.blimp.io.DecodeCacheTests;
 import org.boblycat.blimp.io.LayerRegistryTests;
 import org.boblycat.blimp.io.SerializationTests;
+import org.boblycat.blimp.ops.LocalContrastFilterTests;
+import org.boblycat.blimp.ops.LookupTableTests;
+import org.boblycat.blimp.ops.ResamplerTests;
+import org.boblycat.blimp.ops.UnsharpMaskFilterTests;
+import org.boblycat.blimp.session.BitmapCacheTests;
 import org.boblycat.blimp.session.CachedSessionTests;
 import org.boblycat.blimp.session.HistoryTests;
 import org.boblycat.blimp.session.LayerRearrangerTest;
 import org.boblycat.blimp.session.SessionTests;
+import org.boblycat.blimp.thread.RenderSchedulerTests;
 import org.boblycat.blimp.util.Util;
 import org.boblycat.blimp.util.UtilTests;
 import org.junit.runner.*;
@@ -56,6 +65,15 @@ public class RunTests {
                 ExifTests.class,
                 SwtTests.class,
                 SwtImageWorkerThreadTests.class,
-                LayerRegistryTests.class);
+                LayerRegistryTests.class,
+                LookupTableTests.class,
+                BitmapCacheTests.class,
+                RenderSchedulerTests.class,
+                PackedImageTests.class,
+                DecodeCacheTests.class,
+                LocalContrastFilterTests.class,
+                ResamplerTests.class,
+                TiledBitmapTests.class,
+                UnsharpMaskFilterTests.class);
     }
 }
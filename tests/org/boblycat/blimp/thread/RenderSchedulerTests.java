@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2007, 2008, 2009 Knut Arild Erstad
+ *
+ * This file is part of Blimp, a layered photo editor.
+ *
+ * Blimp is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Blimp is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.boblycat.blimp.thread;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.boblycat.blimp.data.Bitmap;
+import org.boblycat.blimp.event.ProgressEvent;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+class ScheduledTestRequest extends Request {
+    private int priority;
+    private boolean preemptible;
+
+    ScheduledTestRequest(int priority, boolean preemptible) {
+        super(null, null, null, null);
+        this.priority = priority;
+        this.preemptible = preemptible;
+    }
+
+    @Override
+    protected int getPriority() {
+        return priority;
+    }
+
+    @Override
+    protected boolean isPreemptible() {
+        return preemptible;
+    }
+
+    @Override
+    protected void execute() {
+    }
+}
+
+class CountingTestRequest extends Request {
+    volatile int executeCount;
+    volatile int cancelledCount;
+
+    CountingTestRequest(Object owner) {
+        super(null, owner, null, null);
+    }
+
+    @Override
+    protected void execute() {
+        executeCount++;
+    }
+
+    @Override
+    protected void cancelled() {
+        cancelledCount++;
+    }
+}
+
+class ScheduledTestWorker extends ImageWorkerThread {
+    @Override
+    protected void bitmapGenerated(Runnable runnable, Bitmap bitmap) {
+    }
+
+    @Override
+    public void asyncExec(Runnable runnable) {
+    }
+
+    @Override
+    protected void progressReported(ProgressEvent event) {
+    }
+
+    @Override
+    protected boolean isFinished() {
+        return false;
+    }
+
+    @Override
+    protected void handleError(Runnable runnable, String errorMessage) {
+    }
+}
+
+public class RenderSchedulerTests {
+    private RenderScheduler scheduler;
+    private List<Request> order;
+
+    private Thread startAcquire(final Request req) {
+        return startAcquire(null, req);
+    }
+
+    private Thread startAcquire(final ImageWorkerThread worker,
+            final Request req) {
+        Thread thread = new Thread() {
+            public void run() {
+                try {
+                    scheduler.acquire(worker, req);
+                    order.add(req);
+                    scheduler.release(req);
+                }
+                catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void testPriorityAndPreemption() throws InterruptedException {
+        scheduler = new RenderScheduler(1);
+        order = Collections.synchronizedList(new ArrayList<Request>());
+        Request export = new ScheduledTestRequest(
+                Request.PRIORITY_BACKGROUND, true);
+        Request print = new ScheduledTestRequest(
+                Request.PRIORITY_BACKGROUND, false);
+        Request preview = new ScheduledTestRequest(
+                Request.PRIORITY_PREVIEW, false);
+        scheduler.acquire(null, export);
+        assertEquals(1, scheduler.getRunningCount());
+
+        Thread printThread = startAcquire(print);
+        // the ticket is compared with the running ones before it waits
+        waitForWaitingCount(scheduler, 1);
+        // same priority, so the running export is not preempted
+        assertFalse(export.cancellation.isPreempted());
+
+        Thread previewThread = startAcquire(preview);
+        waitForWaitingCount(scheduler, 2);
+        assertTrue(export.cancellation.isPreempted());
+        assertTrue(order.isEmpty());
+
+        scheduler.release(export);
+        printThread.join(1000);
+        previewThread.join(1000);
+        assertEquals(2, order.size());
+        assertSame(preview, order.get(0));
+        assertSame(print, order.get(1));
+        assertEquals(0, scheduler.getRunningCount());
+    }
+
+    @Test
+    public void testForegroundChange() throws InterruptedException {
+        scheduler = new RenderScheduler(1);
+        order = Collections.synchronizedList(new ArrayList<Request>());
+        ImageWorkerThread background = new ScheduledTestWorker();
+        ImageWorkerThread foreground = new ScheduledTestWorker();
+        Request export = new ScheduledTestRequest(
+                Request.PRIORITY_BACKGROUND, true);
+        Request preview = new ScheduledTestRequest(
+                Request.PRIORITY_BACKGROUND, false);
+        scheduler.acquire(background, export);
+        Thread previewThread = startAcquire(foreground, preview);
+        waitForWaitingCount(scheduler, 1);
+        assertFalse(export.cancellation.isPreempted());
+
+        // the waiting request is compared again when the flag changes
+        foreground.setForeground(true);
+        scheduler.foregroundChanged();
+        waitForPreempted(export);
+        scheduler.release(export);
+        previewThread.join(1000);
+        assertEquals(1, order.size());
+        assertEquals(0, scheduler.getRunningCount());
+    }
+
+    static void waitForWaitingCount(RenderScheduler scheduler, int count)
+            throws InterruptedException {
+        for (int i = 0; i < 1000 && scheduler.getWaitingCount() < count; i++)
+            Thread.sleep(5);
+        assertEquals(count, scheduler.getWaitingCount());
+    }
+
+    static void waitForPreempted(Request request)
+            throws InterruptedException {
+        for (int i = 0; i < 1000 && !request.cancellation.isPreempted(); i++)
+            Thread.sleep(5);
+        assertTrue(request.cancellation.isPreempted());
+    }
+
+    @Test
+    public void testCancelWhileWaiting() throws InterruptedException {
+        // take all the slots, so the worker has to wait for one
+        RenderScheduler shared = RenderScheduler.getShared();
+        List<Request> blockers = new ArrayList<Request>();
+        for (int i = 0; i < shared.getSlotCount(); i++) {
+            Request blocker = new ScheduledTestRequest(
+                    Request.PRIORITY_PREVIEW, false);
+            shared.acquire(null, blocker);
+            blockers.add(blocker);
+        }
+        ScheduledTestWorker worker = new ScheduledTestWorker();
+        worker.start();
+        Object owner = new Object();
+        CountingTestRequest req = new CountingTestRequest(owner);
+        try {
+            worker.putRequest(req);
+            waitForWaitingCount(shared, 1);
+            // the waiting request is neither queued nor running
+            assertEquals(1, worker.cancelRequestsByOwner(owner));
+        }
+        finally {
+            for (Request blocker: blockers)
+                shared.release(blocker);
+        }
+        worker.quit();
+        worker.join(1000);
+        assertFalse(worker.isAlive());
+        assertEquals(0, req.executeCount);
+        assertEquals(1, req.cancelledCount);
+    }
+
+    @Test
+    public void testCancelQueuedRequests() throws InterruptedException {
+        RenderScheduler shared = RenderScheduler.getShared();
+        List<Request> blockers = new ArrayList<Request>();
+        for (int i = 0; i < shared.getSlotCount(); i++) {
+            Request blocker = new ScheduledTestRequest(
+                    Request.PRIORITY_PREVIEW, false);
+            shared.acquire(null, blocker);
+            blockers.add(blocker);
+        }
+        ScheduledTestWorker worker = new ScheduledTestWorker();
+        worker.start();
+        Object owner = new Object();
+        CountingTestRequest waiting = new CountingTestRequest(owner);
+        CountingTestRequest queued = new CountingTestRequest(owner);
+        CountingTestRequest other = new CountingTestRequest(new Object());
+        try {
+            worker.putRequest(waiting);
+            waitForWaitingCount(shared, 1);
+            worker.putRequest(queued);
+            worker.putRequest(other);
+            // dropped queued requests are notified too
+            assertEquals(2, worker.cancelRequestsByOwner(owner));
+            assertEquals(1, queued.cancelledCount);
+            assertEquals(0, other.cancelledCount);
+        }
+        finally {
+            for (Request blocker: blockers)
+                shared.release(blocker);
+        }
+        worker.quit();
+        worker.join(1000);
+        assertEquals(0, queued.executeCount);
+        assertEquals(1, other.executeCount);
+    }
+}
@@ -20,6 +20,11 @@ package org.boblycat.blimp.util;
 
 import static org.boblycat.blimp.util.Util.*;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
 import org.junit.*;
 import static org.junit.Assert.*;
 
@@ -102,4 +107,44 @@ public class UtilTests {
         assertEquals("", changeFileExtension(".bar", ""));
         assertEquals("", changeFileExtension("", ""));
     }
+
+    @Test
+    public void testBandExecutorThreadCountChange() throws Exception {
+        int oldCount = BandExecutor.getThreadCount();
+        try {
+            BandExecutor.setThreadCount(2);
+            final CountDownLatch started = new CountDownLatch(2);
+            final CountDownLatch resume = new CountDownLatch(1);
+            final List<Callable<Integer>> tasks =
+                new ArrayList<Callable<Integer>>();
+            for (int i = 0; i < 4; i++) {
+                final int value = i;
+                tasks.add(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        started.countDown();
+                        resume.await();
+                        return value;
+                    }
+                });
+            }
+            final List<List<Integer>> results = new ArrayList<List<Integer>>();
+            Thread caller = new Thread() {
+                public void run() {
+                    results.add(BandExecutor.invokeAll(tasks));
+                }
+            };
+            caller.start();
+            started.await();
+            // the running call keeps its threads, new calls get new ones
+            BandExecutor.setThreadCount(3);
+            resume.countDown();
+            caller.join();
+            assertEquals(1, results.size());
+            assertEquals(3, results.get(0).get(3).intValue());
+            assertEquals(2, BandExecutor.invokeAll(tasks).get(2).intValue());
+        }
+        finally {
+            BandExecutor.setThreadCount(oldCount);
+        }
+    }
 }